@@ -0,0 +1,309 @@
+package com.yarg.robotpi;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.Arrays;
+
+import javax.swing.JComponent;
+import javax.swing.Timer;
+
+import com.yarg.robotpi.audio.AudioLevelMeter;
+
+/**
+ * Draws the level of the audio sent to and heard from the robot, and
+ * optionally their spectra. The meters are measured on the audio threads;
+ * this component only reads their published results from a Swing timer at
+ * display rate, so all painting stays on the event dispatch thread and the
+ * audio threads never wait on it.
+ */
+public class AudioLevelDisplay extends JComponent implements ActionListener {
+
+	private static final long serialVersionUID = 1L;
+
+	/** Repaints per second. */
+	private static final int FRAMES_PER_SECOND = 30;
+
+	/** Lowest level drawn, in dBFS. */
+	private static final float FLOOR_DB = -60.0f;
+
+	/** Results older than this are drawn as silence. */
+	private static final long STALE_MILLIS = 250;
+
+	/** How fast peak markers fall, in dB per frame. */
+	private static final float PEAK_FALL_DB = 0.75f;
+
+	/** Height of each level bar. */
+	private static final int BAR_HEIGHT = 10;
+
+	/** Width of the bar labels. */
+	private static final int LABEL_WIDTH = 42;
+
+	/** Height of the spectrum view. */
+	private static final int SPECTRUM_HEIGHT = 60;
+
+	/** Level above which the bar turns amber. */
+	private static final float WARNING_DB = -12.0f;
+
+	/** Level above which the bar turns red. */
+	private static final float CLIP_DB = -1.0f;
+
+	/** Meter of the audio sent to the robot. */
+	private final AudioLevelMeter outgoing;
+
+	/** Meter of the audio heard from the robot. */
+	private final AudioLevelMeter incoming;
+
+	/** Drives repaints. */
+	private final Timer timer;
+
+	/** Latest outgoing spectrum. */
+	private final float[] outgoingSpectrum;
+
+	/** Latest incoming spectrum. */
+	private final float[] incomingSpectrum;
+
+	/** Held outgoing peak. */
+	private float outgoingPeakDb = AudioLevelMeter.SILENCE_DB;
+
+	/** Held incoming peak. */
+	private float incomingPeakDb = AudioLevelMeter.SILENCE_DB;
+
+	/** True to draw the spectra. */
+	private boolean spectrumVisible;
+
+	/**
+	 * Create a display.
+	 * @param outgoing Meter of the audio sent to the robot.
+	 * @param incoming Meter of the audio heard from the robot.
+	 */
+	public AudioLevelDisplay(AudioLevelMeter outgoing, AudioLevelMeter incoming) {
+
+		this.outgoing = outgoing;
+		this.incoming = incoming;
+		outgoingSpectrum = new float[outgoing.getSpectrumBands()];
+		incomingSpectrum = new float[incoming.getSpectrumBands()];
+
+		timer = new Timer(1000 / FRAMES_PER_SECOND, this);
+		timer.setCoalesce(true);
+
+		setOpaque(true);
+		setBackground(Color.DARK_GRAY);
+		updateSize();
+	}
+
+	/**
+	 * Start updating. Call on the event dispatch thread.
+	 */
+	public void startDisplay() {
+		timer.start();
+	}
+
+	/**
+	 * Stop updating. Call on the event dispatch thread.
+	 */
+	public void stopDisplay() {
+		timer.stop();
+	}
+
+	/**
+	 * Show or hide the spectra. The meters only compute a spectrum while it
+	 * is shown. Call on the event dispatch thread.
+	 * @param visible True to show the spectra.
+	 */
+	public void setSpectrumVisible(boolean visible) {
+
+		spectrumVisible = visible;
+		outgoing.setSpectrumEnabled(visible);
+		incoming.setSpectrumEnabled(visible);
+
+		updateSize();
+		revalidate();
+		repaint();
+	}
+
+	/**
+	 * Height of the display with or without the spectra.
+	 * @param withSpectrum True to include the spectra.
+	 * @return Height in pixels.
+	 */
+	public static int getDisplayHeight(boolean withSpectrum) {
+		return 3 * BAR_HEIGHT + (withSpectrum ? SPECTRUM_HEIGHT + BAR_HEIGHT : 0);
+	}
+
+	// -------------------------------------------------------------------------
+	// Methods required by ActionListener
+	// -------------------------------------------------------------------------
+
+	@Override
+	public void actionPerformed(ActionEvent e) {
+
+		outgoingPeakDb = holdPeak(outgoing, outgoingPeakDb);
+		incomingPeakDb = holdPeak(incoming, incomingPeakDb);
+
+		if (spectrumVisible) {
+			copySpectrum(outgoing, outgoingSpectrum);
+			copySpectrum(incoming, incomingSpectrum);
+		}
+
+		repaint();
+	}
+
+	// -------------------------------------------------------------------------
+	// Painting
+	// -------------------------------------------------------------------------
+
+	@Override
+	protected void paintComponent(Graphics g) {
+
+		int width = getWidth();
+
+		g.setColor(getBackground());
+		g.fillRect(0, 0, width, getHeight());
+
+		paintBar(g, "Mic", outgoing, outgoingPeakDb, 0, width);
+		paintBar(g, "Robot", incoming, incomingPeakDb, 2 * BAR_HEIGHT, width);
+
+		if (spectrumVisible) {
+			int top = 4 * BAR_HEIGHT;
+			paintSpectrum(g, outgoingSpectrum, Color.GREEN, top, width);
+			paintSpectrum(g, incomingSpectrum, Color.CYAN, top, width);
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Size the component for the current mode.
+	 */
+	private void updateSize() {
+		Dimension size = new Dimension(0, getDisplayHeight(spectrumVisible));
+		setMinimumSize(size);
+		setPreferredSize(size);
+		setMaximumSize(new Dimension(Integer.MAX_VALUE, size.height));
+	}
+
+	/**
+	 * Current level of a meter, or silence if its stream has gone quiet.
+	 * @param meter Meter to read.
+	 * @return Level in dBFS.
+	 */
+	private static float level(AudioLevelMeter meter) {
+		return meter.getAgeMillis() > STALE_MILLIS ? AudioLevelMeter.SILENCE_DB : meter.getRmsDb();
+	}
+
+	/**
+	 * Follow a meter's peak, letting the held value fall slowly.
+	 * @param meter Meter to read.
+	 * @param held Peak held so far.
+	 * @return New held peak.
+	 */
+	private static float holdPeak(AudioLevelMeter meter, float held) {
+		float peak = meter.getAgeMillis() > STALE_MILLIS
+				? AudioLevelMeter.SILENCE_DB : meter.getPeakDb();
+		return Math.max(peak, held - PEAK_FALL_DB);
+	}
+
+	/**
+	 * Copy a meter's spectrum, or silence if its stream has gone quiet.
+	 * @param meter Meter to read.
+	 * @param bands Array to copy to.
+	 */
+	private static void copySpectrum(AudioLevelMeter meter, float[] bands) {
+		if (meter.getAgeMillis() > STALE_MILLIS) {
+			Arrays.fill(bands, AudioLevelMeter.SILENCE_DB);
+		} else {
+			meter.copySpectrum(bands);
+		}
+	}
+
+	/**
+	 * Fraction of full scale a level is drawn at.
+	 * @param db Level in dBFS.
+	 * @return 0 at the floor, 1 at full scale.
+	 */
+	private static float scale(float db) {
+		return Math.max(0.0f, Math.min(1.0f, (db - FLOOR_DB) / -FLOOR_DB));
+	}
+
+	/**
+	 * Draw one level bar with its peak marker.
+	 * @param g Graphics to draw with.
+	 * @param label Name of the stream.
+	 * @param meter Meter of the stream.
+	 * @param peakDb Held peak in dBFS.
+	 * @param y Top of the bar.
+	 * @param width Width of the component.
+	 */
+	private void paintBar(Graphics g, String label, AudioLevelMeter meter, 
+			float peakDb, int y, int width) {
+
+		int barWidth = width - LABEL_WIDTH;
+		float db = level(meter);
+
+		g.setColor(Color.LIGHT_GRAY);
+		g.drawString(label, 2, y + BAR_HEIGHT);
+
+		g.setColor(Color.BLACK);
+		g.fillRect(LABEL_WIDTH, y + 1, barWidth, BAR_HEIGHT);
+
+		g.setColor(db >= CLIP_DB ? Color.RED : db >= WARNING_DB ? Color.ORANGE : Color.GREEN);
+		g.fillRect(LABEL_WIDTH, y + 1, Math.round(barWidth * scale(db)), BAR_HEIGHT);
+
+		g.setColor(peakDb >= CLIP_DB ? Color.RED : Color.WHITE);
+		int peakX = LABEL_WIDTH + Math.round((barWidth - 1) * scale(peakDb));
+		g.drawLine(peakX, y + 1, peakX, y + BAR_HEIGHT);
+	}
+
+	/**
+	 * Draw a spectrum as an outline of its bands.
+	 * @param g Graphics to draw with.
+	 * @param bands Band levels in dBFS, lowest first.
+	 * @param color Color to draw in.
+	 * @param top Top of the spectrum view.
+	 * @param width Width of the component.
+	 */
+	private void paintSpectrum(Graphics g, float[] bands, Color color, int top, int width) {
+
+		float bandWidth = (float) width / bands.length;
+		int bottom = top + SPECTRUM_HEIGHT;
+
+		g.setColor(color);
+
+		int lastX = 0;
+		int lastY = bottom;
+
+		for (int b = 0; b < bands.length; b++) {
+			int x = Math.round(b * bandWidth);
+			int nextX = Math.round((b + 1) * bandWidth);
+			int y = bottom - Math.round(SPECTRUM_HEIGHT * scale(bands[b]));
+			g.drawLine(lastX, lastY, x, y);
+			g.drawLine(x, y, nextX, y);
+			lastX = nextX;
+			lastY = y;
+		}
+	}
+}
@@ -21,45 +21,98 @@ package com.yarg.robotpi;
 
 import java.awt.Color;
 import java.awt.Dimension;
+import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 import java.io.File;
-import java.io.FilenameFilter;
 import java.io.IOException;
+import java.net.InetAddress;
 import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
 
 import javax.swing.Box;
 import javax.swing.BoxLayout;
+import javax.swing.DefaultComboBoxModel;
 import javax.swing.JButton;
+import javax.swing.JCheckBox;
 import javax.swing.JComboBox;
 import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSpinner;
 import javax.swing.SpinnerNumberModel;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
 
+import com.yarg.robotpi.audio.AudioLineProfile;
 import com.yarg.robotpi.audio.AudioStreamClient;
+import com.yarg.robotpi.audio.SoundDirectoryIndex;
+import com.yarg.robotpi.audio.SoundLibraryAnalyzer;
+import com.yarg.robotpi.config.PerformanceConfig;
+import com.yarg.robotpi.config.PerformanceProfile;
 import com.yarg.robotpi.input.ControllerInputThread;
 import com.yarg.robotpi.input.gamepad.GamepadInput;
+import com.yarg.robotpi.net.UdpReactor;
+import com.yarg.robotpi.telemetry.TelemetryFrame;
+import com.yarg.robotpi.telemetry.TelemetryReceiver;
+import com.yarg.robotpi.video.RtpStreamStatistics;
+import com.yarg.robotpi.video.RtpStreamTap;
+import com.yarg.robotpi.video.VideoReceiverSupervisor;
 
-public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListener, ChangeListener{
+public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListener, ChangeListener, SoundDirectoryIndex.Listener, StartupOrchestrator.Listener, PerformanceConfig.Listener{
 	
 	private static final long serialVersionUID = -6126624868213630860L;
 
-	private static final int AUDIO_PACKET_DELAY_DEFAULT = 125;
-	
 	private static final int AUDIO_PACKET_DELAY_MAX = 1000;
 	
 	private static final int AUDIO_PACKET_DELAY_MIN = 10;
 	
-	private Process videoReceiverProcess;
+	/** Robot host name, resolved once at startup. */
+	private static final String ROBOT_HOST_NAME = "robotpi.local";
+	
+	private static final long NETWORK_TIMEOUT_MILLIS = 3000;
+	
+	private static final long VIDEO_TIMEOUT_MILLIS = 2000;
+	
+	private static final long AUDIO_TIMEOUT_MILLIS = 5000;
+	
+	private static final long GAMEPAD_TIMEOUT_MILLIS = 5000;
+	
+	private static final long SOUNDS_TIMEOUT_MILLIS = 5000;
+	
+	private static final long TELEMETRY_TIMEOUT_MILLIS = 2000;
+	
+	/** Telemetry older than this is shown as lost. */
+	private static final long TELEMETRY_STALE_MILLIS = 2000;
+	
+	/** Subsystems in the order their readiness is shown. */
+	private static final String[] SUBSYSTEMS = 
+			{"Network", "Video", "Telemetry", "Audio", "Gamepad", "Sounds"};
+	
+	/** Subsystems shown on each row of the readiness panel. */
+	private static final int SUBSYSTEM_COLUMNS = 3;
+	
+	private volatile VideoReceiverSupervisor videoReceiver;
+	
+	/** Local port the video receiver listens on behind the tap. */
+	private static final int VIDEO_TAP_FORWARD_PORT = 5004;
+	
+	private volatile RtpStreamTap videoTap;
+	
+	private static final int STATUS_INTERVAL_MILLIS = 1000;
 	
 	private static final String REFRESH_BUTTON_LABEL = "Refresh Sounds";
 	
-	private static final Dimension windowSize = new Dimension(300, 300);
+	private static final Dimension windowSize = new Dimension(300, 
+			525 + AudioLevelDisplay.getDisplayHeight(false));
+	
+	private JLabel[] subsystemLabels;
 	
 	private JLabel driveInputLabel;
 	
@@ -75,31 +128,68 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 	
 	private JLabel playSoundLabel;
 	
+	private JLabel videoStatusLabel;
+	
+	private JLabel videoNetworkLabel;
+	
+	private JLabel robotPowerLabel;
+	
+	private JLabel robotMotorsLabel;
+	
+	private JLabel robotCommandsLabel;
+	
+	/** Refreshes the video and telemetry rows. */
+	private Timer statusTimer;
+	
 	private JSpinner audioPacketDelaySpinner;
 	
+	private JComboBox<AudioLineProfile> audioLineProfileList;
+	
+	private JCheckBox recordAudioCheckBox;
+	
+	private JCheckBox spectrumCheckBox;
+	
+	private JPanel audioLevelPanel;
+	
+	private AudioLevelDisplay audioLevelDisplay;
+	
 	private JComboBox<String> audioFilesList;
 	
 	private JButton refreshAudioFileListButton;
 	
 	private String[] audioFiles = new String[0];
 	
-	private ControllerInputThread inputThread;
+	/** Performance settings, reloaded when robotpi.properties changes. */
+	private PerformanceConfig config;
+	
+	private StartupOrchestrator startup;
+	
+	/** Runs all UDP traffic when enabled, null for a thread per socket. */
+	private UdpReactor reactor;
+	
+	/** Robot address once resolved, the host name if resolution failed. */
+	private Future<String> robotAddress;
+	
+	private volatile ControllerInputThread inputThread;
+	
+	private volatile AudioStreamClient audioStreamClient;
+	
+	private volatile SoundLibraryAnalyzer soundLibrary;
+	
+	private volatile SoundDirectoryIndex soundDirectoryIndex;
 	
-	private AudioStreamClient audioStreamClient;
+	private volatile TelemetryReceiver telemetryReceiver;
+	
+	/** Telemetry copied out for display, only used on the event thread. */
+	private final TelemetryFrame telemetryFrame = new TelemetryFrame();
 	
 	private String soundFileDirectory;
 	
+	private String recordingDirectory;
+	
 	public RobotPi() {
 		initialize();
-		
-		inputThread = new ControllerInputThread(new GamepadInput(), this);
-		audioStreamClient = new AudioStreamClient();
-		
-		inputThread.setAudioControls(audioStreamClient);
-		
-		inputThread.startControllerInputThread();
-		audioStreamClient.startAudioStream();
-		audioStreamClient.setAudioFilePacketDelay(AUDIO_PACKET_DELAY_DEFAULT);
+		startSubsystems();
 	}
 
 	/**
@@ -117,19 +207,15 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 	
 	private void initialize() {
 		
-		videoReceiverProcess = null;
-		
-		try {
-			videoReceiverProcess = Runtime.getRuntime().exec("/usr/local/bin/gst-launch-1.0 -v udpsrc port=5000 ! gdpdepay ! rtph264depay ! avdec_h264 ! videoconvert ! videoflip method=horizontal-flip ! autovideosink sync=false");
-		} catch (IOException e) {
-			// TODO Auto-generated catch block
-			e.printStackTrace();
-		}
-		
 		Path currentRelativePath = Paths.get("");
 		String workDir = currentRelativePath.toAbsolutePath().toString();
 		soundFileDirectory = workDir+File.separator+"sounds";
 		System.out.println("Sound file directory: "+soundFileDirectory);
+		recordingDirectory = workDir+File.separator+"recordings";
+		
+		config = new PerformanceConfig(new File(workDir, "robotpi.properties"));
+		config.load();
+		PerformanceProfile profile = config.getProfile();
 		
 		// Get the menu name right for Mac.
 	    System.setProperty("apple.laf.useScreenMenuBar", "true");
@@ -146,6 +232,21 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 		this.getContentPane().setLayout(
 				new BoxLayout(this.getContentPane(), BoxLayout.Y_AXIS));
 		
+		// --------------------------------------
+		// Subsystem readiness
+		// --------------------------------------
+		// Too many to fit on one row of the window.
+		JPanel subsystemPanel = new JPanel(new GridLayout(0, SUBSYSTEM_COLUMNS));
+		
+		subsystemLabels = new JLabel[SUBSYSTEMS.length];
+		
+		for (int i = 0; i < SUBSYSTEMS.length; i++) {
+			subsystemLabels[i] = new JLabel(SUBSYSTEMS[i], JLabel.CENTER);
+			subsystemLabels[i].setForeground(Color.GRAY);
+			subsystemPanel.add(subsystemLabels[i]);
+		}
+		this.getContentPane().add(subsystemPanel);
+		
 		// --------------------------------------
 		// Drive panel
 		// --------------------------------------
@@ -253,6 +354,72 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 		playSoundPanel.add(playSoundLabel);
 		this.getContentPane().add(playSoundPanel);
 		
+		// --------------------------------------
+		// Video receiver status
+		// --------------------------------------
+		JPanel videoStatusPanel = new JPanel();
+		videoStatusPanel.setLayout(
+				new BoxLayout(videoStatusPanel, BoxLayout.X_AXIS));
+		
+		JLabel videoStatusTitle = new JLabel("Video:");
+		videoStatusPanel.add(videoStatusTitle);
+		videoStatusPanel.add(Box.createHorizontalGlue());
+		
+		videoStatusLabel = new JLabel("STOPPED");
+		videoStatusPanel.add(videoStatusLabel);
+		this.getContentPane().add(videoStatusPanel);
+		
+		JPanel videoNetworkPanel = new JPanel();
+		videoNetworkPanel.setLayout(
+				new BoxLayout(videoNetworkPanel, BoxLayout.X_AXIS));
+		
+		JLabel videoNetworkTitle = new JLabel("Video network:");
+		videoNetworkPanel.add(videoNetworkTitle);
+		videoNetworkPanel.add(Box.createHorizontalGlue());
+		
+		videoNetworkLabel = new JLabel("-");
+		videoNetworkPanel.add(videoNetworkLabel);
+		this.getContentPane().add(videoNetworkPanel);
+		
+		// --------------------------------------
+		// Robot telemetry
+		// --------------------------------------
+		JPanel robotPowerPanel = new JPanel();
+		robotPowerPanel.setLayout(new BoxLayout(robotPowerPanel, BoxLayout.X_AXIS));
+		
+		JLabel robotPowerTitle = new JLabel("Robot:");
+		robotPowerPanel.add(robotPowerTitle);
+		robotPowerPanel.add(Box.createHorizontalGlue());
+		
+		robotPowerLabel = new JLabel("-");
+		robotPowerPanel.add(robotPowerLabel);
+		this.getContentPane().add(robotPowerPanel);
+		
+		JPanel robotMotorsPanel = new JPanel();
+		robotMotorsPanel.setLayout(new BoxLayout(robotMotorsPanel, BoxLayout.X_AXIS));
+		
+		JLabel robotMotorsTitle = new JLabel("Motor load:");
+		robotMotorsPanel.add(robotMotorsTitle);
+		robotMotorsPanel.add(Box.createHorizontalGlue());
+		
+		robotMotorsLabel = new JLabel("-");
+		robotMotorsPanel.add(robotMotorsLabel);
+		this.getContentPane().add(robotMotorsPanel);
+		
+		JPanel robotCommandsPanel = new JPanel();
+		robotCommandsPanel.setLayout(new BoxLayout(robotCommandsPanel, BoxLayout.X_AXIS));
+		
+		JLabel robotCommandsTitle = new JLabel("Robot link:");
+		robotCommandsPanel.add(robotCommandsTitle);
+		robotCommandsPanel.add(Box.createHorizontalGlue());
+		
+		robotCommandsLabel = new JLabel("-");
+		robotCommandsPanel.add(robotCommandsLabel);
+		this.getContentPane().add(robotCommandsPanel);
+		
+		statusTimer = new Timer(STATUS_INTERVAL_MILLIS, this);
+		statusTimer.start();
+		
 		// --------------------------------------
 		// Change audio file packet delay
 		// --------------------------------------
@@ -264,7 +431,7 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 		audioPacketDelaySpinnerPanel.add(Box.createHorizontalGlue());
 		
 		SpinnerNumberModel spinnerNumerModel = new SpinnerNumberModel();//new SpinnerNumberModel(AUDIO_PACKET_DELAY_DEFAULT, 10, 1000, 1);
-		spinnerNumerModel.setValue(AUDIO_PACKET_DELAY_DEFAULT);
+		spinnerNumerModel.setValue(profile.getAudioFilePacketDelayMillis());
 		audioPacketDelaySpinner = new JSpinner(spinnerNumerModel);
 		
 		Dimension audioPacketDelaySpinnerDimension = new Dimension(100, 30);
@@ -276,6 +443,62 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 		audioPacketDelaySpinnerPanel.add(audioPacketDelaySpinner);
 		this.getContentPane().add(audioPacketDelaySpinnerPanel);
 		
+		// --------------------------------------
+		// Audio line latency profile
+		// --------------------------------------
+		JPanel audioLineProfilePanel = new JPanel();
+		audioLineProfilePanel.setLayout(new BoxLayout(audioLineProfilePanel, BoxLayout.X_AXIS));
+		
+		JLabel audioLineProfileLabel = new JLabel("Audio latency");
+		audioLineProfilePanel.add(audioLineProfileLabel);
+		audioLineProfilePanel.add(Box.createHorizontalGlue());
+		
+		audioLineProfileList = new JComboBox<AudioLineProfile>(AudioLineProfile.values());
+		audioLineProfileList.setSelectedItem(profile.getAudioLineProfile());
+		audioLineProfileList.setMinimumSize(audioPacketDelaySpinnerDimension);
+		audioLineProfileList.setMaximumSize(audioPacketDelaySpinnerDimension);
+		audioLineProfileList.setPreferredSize(audioPacketDelaySpinnerDimension);
+		audioLineProfileList.addActionListener(this);
+		
+		audioLineProfilePanel.add(audioLineProfileList);
+		this.getContentPane().add(audioLineProfilePanel);
+		
+		// --------------------------------------
+		// Record audio
+		// --------------------------------------
+		JPanel recordAudioPanel = new JPanel();
+		recordAudioPanel.setLayout(new BoxLayout(recordAudioPanel, BoxLayout.X_AXIS));
+		
+		JLabel recordAudioLabel = new JLabel("Record audio");
+		recordAudioPanel.add(recordAudioLabel);
+		recordAudioPanel.add(Box.createHorizontalGlue());
+		
+		recordAudioCheckBox = new JCheckBox();
+		recordAudioCheckBox.addActionListener(this);
+		
+		recordAudioPanel.add(recordAudioCheckBox);
+		this.getContentPane().add(recordAudioPanel);
+		
+		// --------------------------------------
+		// Audio levels
+		// --------------------------------------
+		JPanel spectrumPanel = new JPanel();
+		spectrumPanel.setLayout(new BoxLayout(spectrumPanel, BoxLayout.X_AXIS));
+		
+		JLabel spectrumLabel = new JLabel("Show spectrum");
+		spectrumPanel.add(spectrumLabel);
+		spectrumPanel.add(Box.createHorizontalGlue());
+		
+		spectrumCheckBox = new JCheckBox();
+		spectrumCheckBox.addActionListener(this);
+		
+		spectrumPanel.add(spectrumCheckBox);
+		this.getContentPane().add(spectrumPanel);
+		
+		audioLevelPanel = new JPanel();
+		audioLevelPanel.setLayout(new BoxLayout(audioLevelPanel, BoxLayout.X_AXIS));
+		this.getContentPane().add(audioLevelPanel);
+		
 		// --------------------------------------
 		// Refresh button panel
 		// --------------------------------------
@@ -309,7 +532,6 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 		audioFilesList.setMinimumSize(audioFileListDimension);
 		audioFilesList.setMaximumSize(audioFileListDimension);
 		audioFilesList.setPreferredSize(audioFileListDimension);
-		refreshAudioFileList();
 		
 		audioFilePanel.add(audioFilesList);
 		this.getContentPane().add(audioFilePanel);
@@ -330,48 +552,384 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 	}
 	
 	/**
-	 * Refresh the audio file combo box list.
+	 * Start every subsystem at once. Each one attaches itself as soon as it is
+	 * up, so the window is usable straight away and shows what is still
+	 * starting.
 	 */
-	private void refreshAudioFileList() {
+	private void startSubsystems() {
+		
+		config.addListener(this);
+		config.startWatching();
+		
+		if (config.getProfile().isNetworkReactor()) {
+			reactor = UdpReactor.open();
+		}
+		
+		startup = new StartupOrchestrator(this);
+		
+		robotAddress = startup.start("Network", NETWORK_TIMEOUT_MILLIS, new Callable<String>() {
+			
+			@Override
+			public String call() throws Exception {
+				String address = InetAddress.getByName(ROBOT_HOST_NAME).getHostAddress();
+				System.out.println("Robot address: "+address);
+				return address;
+			}
+		});
+		
+		startup.start("Video", VIDEO_TIMEOUT_MILLIS, new Callable<Void>() {
+			
+			@Override
+			public Void call() throws Exception {
+				startVideo();
+				return null;
+			}
+		});
 		
-		File soundDirectory = new File(soundFileDirectory);
-		File[] soundFiles = soundDirectory.listFiles(new FilenameFilter() {
+		startup.start("Telemetry", TELEMETRY_TIMEOUT_MILLIS, new Callable<Void>() {
 			
 			@Override
-			public boolean accept(File dir, String name) {
-				if (name.endsWith(".wav")){// || name.endsWith(".mp3")) {
-					return true;
+			public Void call() throws Exception {
+				TelemetryReceiver receiver = 
+						new TelemetryReceiver(config.getProfile().getTelemetryPort());
+				receiver.setReactor(reactor);
+				receiver.startReceiving();
+				telemetryReceiver = receiver;
+				linkSubsystems();
+				return null;
+			}
+		});
+		
+		startup.start("Audio", AUDIO_TIMEOUT_MILLIS, new Callable<Void>() {
+			
+			@Override
+			public Void call() throws Exception {
+				final AudioStreamClient client = 
+						new AudioStreamClient(resolvedRobotAddress(), config.getProfile());
+				client.setReactor(reactor);
+				client.startAudioStream();
+				audioStreamClient = client;
+				
+				SwingUtilities.invokeLater(new Runnable() {
+					
+					@Override
+					public void run() {
+						attachAudio(client);
+					}
+				});
+				
+				linkSubsystems();
+				return null;
+			}
+		});
+		
+		startup.start("Gamepad", GAMEPAD_TIMEOUT_MILLIS, new Callable<Void>() {
+			
+			@Override
+			public Void call() throws Exception {
+				GamepadInput gamepad = new GamepadInput();
+				ControllerInputThread thread = new ControllerInputThread(gamepad, 
+						RobotPi.this, resolvedRobotAddress(), config.getProfile().getControllerPort());
+				inputThread = thread;
+				thread.setProfile(config.getProfile());
+				if (reactor != null) {
+					thread.setReactor(reactor);
 				}
-				return false;
+				linkSubsystems();
+				thread.startControllerInputThread();
+				return null;
 			}
 		});
 		
-		if (soundFiles == null) {
+		startup.start("Sounds", SOUNDS_TIMEOUT_MILLIS, new Callable<Void>() {
+			
+			@Override
+			public Void call() throws Exception {
+				soundLibrary = new SoundLibraryAnalyzer(new File(soundFileDirectory));
+				linkSubsystems();
+				soundLibrary.analyzeLibraryInBackground();
+				
+				soundDirectoryIndex = 
+						new SoundDirectoryIndex(new File(soundFileDirectory), RobotPi.this);
+				soundDirectoryIndex.startIndex();
+				return null;
+			}
+		});
+	}
+	
+	/**
+	 * Start the video receiver, behind the measuring tap if enabled.
+	 */
+	private void startVideo() {
+		
+		PerformanceProfile profile = config.getProfile();
+		VideoReceiverSupervisor receiver = new VideoReceiverSupervisor();
+		receiver.setBinary(profile.getVideoBinary());
+		receiver.setPipeline(VideoReceiverSupervisor.pipeline(
+				profile.getVideoPipeline(), VideoReceiverSupervisor.VIDEO_PORT));
+		
+		if (profile.isVideoTap()) {
+			RtpStreamTap tap = new RtpStreamTap(
+					VideoReceiverSupervisor.VIDEO_PORT, VIDEO_TAP_FORWARD_PORT);
+			try {
+				tap.startTap();
+				receiver.setPipeline(VideoReceiverSupervisor.pipeline(
+						profile.getVideoPipeline(), VIDEO_TAP_FORWARD_PORT));
+				videoTap = tap;
+			} catch (IOException e) {
+				System.out.println("Unable to start video tap, receiving directly.");
+				e.printStackTrace();
+			}
+		}
+		
+		receiver.startSupervisor();
+		videoReceiver = receiver;
+	}
+	
+	/**
+	 * Wait for the robot address to be resolved. Falls back to the host name
+	 * if resolution failed or is taking too long, leaving the lookup to the
+	 * subsystem.
+	 * @return Robot address to connect to.
+	 */
+	private String resolvedRobotAddress() {
+		
+		try {
+			return robotAddress.get(NETWORK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			System.out.println("Robot address not resolved, using "+ROBOT_HOST_NAME);
+			return ROBOT_HOST_NAME;
+		}
+	}
+	
+	/**
+	 * Connect subsystems to each other once both sides are up. Called by every
+	 * startup task that the others depend on.
+	 */
+	private synchronized void linkSubsystems() {
+		
+		if (audioStreamClient != null && inputThread != null) {
+			inputThread.setAudioControls(audioStreamClient);
+		}
+		
+		if (audioStreamClient != null && soundLibrary != null) {
+			audioStreamClient.setSoundLibrary(soundLibrary);
+		}
+		
+		if (audioStreamClient != null && telemetryReceiver != null) {
+			audioStreamClient.setTelemetry(telemetryReceiver);
+		}
+	}
+	
+	/**
+	 * Hook a started audio client up to the window, applying anything chosen
+	 * while it was starting. Must be called on the event dispatch thread.
+	 * @param client Started audio client.
+	 */
+	private void attachAudio(AudioStreamClient client) {
+		
+		client.setAudioFilePacketDelay(
+				((Number) audioPacketDelaySpinner.getValue()).longValue());
+		
+		client.setLineProfile((AudioLineProfile) audioLineProfileList.getSelectedItem());
+		
+		audioLevelDisplay = new AudioLevelDisplay(
+				client.getOutgoingLevel(), client.getIncomingLevel());
+		audioLevelPanel.add(audioLevelDisplay);
+		audioLevelDisplay.startDisplay();
+		showSpectrum(spectrumCheckBox.isSelected());
+	}
+	
+	/**
+	 * Show the readiness of a subsystem. Must be called on the event dispatch
+	 * thread.
+	 * @param name Subsystem name.
+	 * @param status Subsystem status.
+	 * @param detail Timing or error.
+	 */
+	private void showSubsystemStatus(String name, StartupOrchestrator.Status status, String detail) {
+		
+		int index = Arrays.asList(SUBSYSTEMS).indexOf(name);
+		
+		if (index < 0) {
+			return;
+		}
+		
+		JLabel label = subsystemLabels[index];
+		label.setToolTipText(status+(detail.isEmpty() ? "" : ", "+detail));
+		
+		switch (status) {
+		case READY:
+			label.setForeground(new Color(0, 150, 0));
+			break;
+		case TIMED_OUT:
+			label.setForeground(Color.ORANGE);
+			break;
+		case FAILED:
+			label.setForeground(Color.RED);
+			break;
+		default:
+			label.setForeground(Color.GRAY);
+			break;
+		}
+	}
+	
+	/**
+	 * Show a new list of audio files, keeping the selection if the selected
+	 * file is still there. Swaps in a whole new model so the combo box
+	 * fires a single event. Must be called on the event dispatch thread.
+	 * @param fileNames Sorted audio file names.
+	 */
+	private void showAudioFiles(String[] fileNames) {
+		
+		Object selected = audioFilesList.getSelectedItem();
+		
+		audioFiles = fileNames;
+		DefaultComboBoxModel<String> model = 
+				new DefaultComboBoxModel<String>(fileNames);
+		
+		if (selected != null && Arrays.binarySearch(fileNames, selected) >= 0) {
+			model.setSelectedItem(selected);
+		}
+		
+		audioFilesList.setModel(model);
+	}
+	
+	/**
+	 * Show what the video receiver is doing. Must be called on the event
+	 * dispatch thread.
+	 */
+	private void showVideoStatus() {
+		
+		VideoReceiverSupervisor videoReceiver = this.videoReceiver;
+		RtpStreamTap videoTap = this.videoTap;
+		
+		if (videoReceiver == null) {
 			return;
 		}
 		
-		// Clear out the old.
-		audioFilesList.removeAllItems();
+		VideoReceiverSupervisor.State state = videoReceiver.getReceiverState();
 		
-		// Create and add the new.
-		audioFiles = new String[soundFiles.length];
+		if (state == VideoReceiverSupervisor.State.PLAYING) {
+			videoStatusLabel.setText(String.format("%.1f fps, %d restarts", 
+					videoReceiver.getFramesPerSecond(), videoReceiver.getRestarts()));
+			videoStatusLabel.setForeground(Color.BLACK);
+		} else {
+			videoStatusLabel.setText(state.toString());
+			videoStatusLabel.setForeground(Color.RED);
+		}
 		
-		for (int i = 0; i < soundFiles.length; i++) {
-			audioFiles[i] = soundFiles[i].getName();
-			audioFilesList.addItem(audioFiles[i]);
+		if (videoTap == null) {
+			videoNetworkLabel.setText("not measured");
+		} else {
+			RtpStreamStatistics stream = videoTap.getStatistics();
+			videoNetworkLabel.setText(String.format("%.1f fps, %.1f%% lost, %.1f ms jitter",
+					stream.getFrameRate(), stream.getLossRatio() * 100.0f, 
+					stream.getJitterMillis()));
 		}
 	}
 	
+	/**
+	 * Show the newest robot telemetry. Must be called on the event dispatch
+	 * thread.
+	 */
+	private void showTelemetry() {
+		
+		TelemetryReceiver receiver = telemetryReceiver;
+		
+		if (receiver == null) {
+			return;
+		}
+		
+		TelemetryFrame frame = telemetryFrame;
+		receiver.getLatest(frame);
+		
+		if (frame.getAgeMillis(System.nanoTime()) > TELEMETRY_STALE_MILLIS) {
+			robotPowerLabel.setText(frame.isValid() ? "telemetry lost" : "no telemetry");
+			robotPowerLabel.setForeground(Color.RED);
+			robotMotorsLabel.setText("-");
+			robotCommandsLabel.setText("-");
+			return;
+		}
+		
+		robotPowerLabel.setText(String.format("%.2f V %.1f A, CPU %.1f C %d%%",
+				frame.getBatteryVolts(), frame.getBatteryMilliamps() / 1000.0f,
+				frame.getCpuTemperature(), frame.getCpuLoadPercent()));
+		robotPowerLabel.setForeground(Color.BLACK);
+		
+		robotMotorsLabel.setText(String.format("%.0f/%.0f/%.0f/%.0f%%",
+				frame.getLeftMotorLoad() / 10.0f, frame.getRightMotorLoad() / 10.0f,
+				frame.getHeadLiftMotorLoad() / 10.0f, frame.getHeadTurnMotorLoad() / 10.0f));
+		
+		robotCommandsLabel.setText(String.format("%s, %d dBm",
+				frame.hasCommand() 
+					? "command "+frame.getCommandAgeMillis()+" ms old" : "no commands",
+				frame.getWifiDbm()));
+	}
+	
+	/**
+	 * Show or hide the audio spectra, growing the window to fit. Must be
+	 * called on the event dispatch thread.
+	 * @param visible True to show the spectra.
+	 */
+	private void showSpectrum(boolean visible) {
+		
+		if (audioLevelDisplay == null) {
+			return;
+		}
+		
+		audioLevelDisplay.setSpectrumVisible(visible);
+		
+		Dimension size = new Dimension(windowSize.width, windowSize.height
+				- AudioLevelDisplay.getDisplayHeight(false)
+				+ AudioLevelDisplay.getDisplayHeight(visible));
+		
+		this.setMinimumSize(size);
+		this.setMaximumSize(size);
+		this.setPreferredSize(size);
+		this.setSize(size);
+		this.validate();
+	}
+	
 	/**
 	 * Perform all shutdown operations to safely close down the robot.
 	 */
 	private void shutdown() {
 		System.out.println("Shutdown process...");
 		
-		videoReceiverProcess.destroy();
+		// Anything still starting is abandoned; only what came up is stopped.
+		if (startup != null) {
+			startup.shutdown();
+		}
+		if (config != null) {
+			config.stopWatching();
+		}
 		
-		inputThread.stopControllerInputThread();
-		audioStreamClient.stopAudioStream();
+		if (videoReceiver != null) {
+			videoReceiver.stopSupervisor();
+		}
+		if (videoTap != null) {
+			videoTap.stopTap();
+		}
+		
+		if (inputThread != null) {
+			inputThread.stopControllerInputThread();
+		}
+		if (soundDirectoryIndex != null) {
+			soundDirectoryIndex.stopIndex();
+		}
+		if (audioStreamClient != null) {
+			audioStreamClient.stopAudioStream();
+		}
+		if (soundLibrary != null) {
+			soundLibrary.shutdown();
+		}
+		if (telemetryReceiver != null) {
+			telemetryReceiver.stopReceiving();
+		}
+		if (reactor != null) {
+			reactor.stopReactor();
+		}
 		System.out.println("Everything shutdown.");
 	}
 
@@ -439,7 +997,7 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 	{
 		String fileName = (String) audioFilesList.getSelectedItem();
 		
-		if (fileName.equals("")) {
+		if (fileName == null || fileName.equals("")) {
 			return null;
 		}
 		
@@ -479,13 +1037,113 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 	@Override
 	public void actionPerformed(ActionEvent e) {
 		
-		if (e.getSource() == refreshAudioFileListButton) {
-			refreshAudioFileList();
+		if (e.getSource() == statusTimer) {
+			showVideoStatus();
+			showTelemetry();
+		} else if (e.getSource() == refreshAudioFileListButton) {
+			if (soundDirectoryIndex != null && soundLibrary != null) {
+				soundDirectoryIndex.rescan();
+				soundLibrary.analyzeLibraryInBackground();
+			}
 		} else if (e.getSource() == audioFilesList) {
 			
+		} else if (audioStreamClient == null) {
+			// Audio is still starting; choices are applied once it is up.
+			recordAudioCheckBox.setSelected(false);
+		} else if (e.getSource() == audioLineProfileList) {
+			AudioLineProfile profile = 
+					(AudioLineProfile) audioLineProfileList.getSelectedItem();
+			audioStreamClient.setLineProfile(profile);
+			System.out.println(audioStreamClient.describeLineLatency());
+		} else if (e.getSource() == recordAudioCheckBox) {
+			if (recordAudioCheckBox.isSelected()) {
+				boolean recording = audioStreamClient.startRecording(
+						new File(recordingDirectory));
+				recordAudioCheckBox.setSelected(recording);
+			} else {
+				audioStreamClient.stopRecording();
+			}
+		} else if (e.getSource() == spectrumCheckBox) {
+			showSpectrum(spectrumCheckBox.isSelected());
 		}
 	}
 
+	// -------------------------------------------------------------------------
+	// Methods required by SoundDirectoryIndex.Listener
+	// -------------------------------------------------------------------------
+	
+	@Override
+	public void soundFilesChanged(final String[] fileNames) {
+		
+		SwingUtilities.invokeLater(new Runnable() {
+			
+			@Override
+			public void run() {
+				showAudioFiles(fileNames);
+			}
+		});
+	}
+	
+	@Override
+	public void soundFileReady(File soundFile) {
+		AudioStreamClient client = audioStreamClient;
+		if (client != null) {
+			client.prewarmAudioFile(soundFile);
+		}
+	}
+	
+	@Override
+	public void soundFileRemoved(File soundFile) {
+		AudioStreamClient client = audioStreamClient;
+		if (client != null) {
+			client.forgetAudioFile(soundFile);
+		}
+	}
+	
+	// -------------------------------------------------------------------------
+	// Methods required by StartupOrchestrator.Listener
+	// -------------------------------------------------------------------------
+	
+	@Override
+	public void subsystemStatusChanged(final String name, 
+			final StartupOrchestrator.Status status, final String detail) {
+		
+		SwingUtilities.invokeLater(new Runnable() {
+			
+			@Override
+			public void run() {
+				showSubsystemStatus(name, status, detail);
+			}
+		});
+	}
+	
+	// -------------------------------------------------------------------------
+	// Methods required by PerformanceConfig.Listener
+	// -------------------------------------------------------------------------
+	
+	@Override
+	public void profileChanged(final PerformanceProfile profile, PerformanceProfile previous) {
+		
+		ControllerInputThread thread = inputThread;
+		if (thread != null) {
+			thread.setProfile(profile);
+		}
+		
+		AudioStreamClient client = audioStreamClient;
+		if (client != null) {
+			client.applyProfile(profile);
+		}
+		
+		SwingUtilities.invokeLater(new Runnable() {
+			
+			@Override
+			public void run() {
+				audioPacketDelaySpinner.setValue(profile.getAudioFilePacketDelayMillis());
+				audioLineProfileList.setSelectedItem(profile.getAudioLineProfile());
+			}
+		});
+	}
+	
 	// -------------------------------------------------------------------------
 	// Methods required by ChangeListener
 	// -------------------------------------------------------------------------
@@ -506,7 +1164,7 @@ public class RobotPi extends JFrame implements RobotPIUIInterface, ActionListene
 				audioPacketDelaySpinner.setValue(AUDIO_PACKET_DELAY_MIN);
 //				audioStreamClient.setAudioFilePacketDelay(AUDIO_PACKET_DELAY_MIN);
 //				System.out.println("CAP AT MIN");
-			} else {
+			} else if (audioStreamClient != null) {
 				audioStreamClient.setAudioFilePacketDelay(value.longValue());
 //				System.out.println("Changed delay to: "+value.longValue());
 			}
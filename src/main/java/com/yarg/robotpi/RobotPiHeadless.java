@@ -0,0 +1,538 @@
+package com.yarg.robotpi;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.net.InetAddress;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.yarg.robotpi.audio.AudioStreamClient;
+import com.yarg.robotpi.audio.SoundDirectoryIndex;
+import com.yarg.robotpi.audio.SoundLibraryAnalyzer;
+import com.yarg.robotpi.config.PerformanceConfig;
+import com.yarg.robotpi.config.PerformanceProfile;
+import com.yarg.robotpi.input.ControllerInputThread;
+import com.yarg.robotpi.input.gamepad.GamepadInput;
+import com.yarg.robotpi.net.UdpReactor;
+import com.yarg.robotpi.telemetry.TelemetryFrame;
+import com.yarg.robotpi.telemetry.TelemetryReceiver;
+import com.yarg.robotpi.video.VideoReceiverSupervisor;
+
+/**
+ * Client without a window, for rigs with no display. Nothing from AWT or
+ * Swing is loaded: controller state changes are written to the console and
+ * sounds are picked with the gamepad, starting from the one named in
+ * configuration.
+ *
+ * Configured with system properties:
+ * <ul>
+ * <li>robotpi.host - robot host name, default robotpi.local</li>
+ * <li>robotpi.sounds - sound file directory, default ./sounds</li>
+ * <li>robotpi.sound - sound file selected at startup, default the first</li>
+ * <li>robotpi.video - true to run the video receiver too, default false</li>
+ * <li>robotpi.config - performance settings file, default
+ * ./robotpi.properties</li>
+ * <li>robotpi.telemetrySeconds - interval between robot telemetry reports,
+ * default 10, 0 for none</li>
+ * </ul>
+ */
+public class RobotPiHeadless implements RobotPIUIInterface, SoundDirectoryIndex.Listener, StartupOrchestrator.Listener, PerformanceConfig.Listener {
+
+	/** Robot host name if none is configured. */
+	private static final String DEFAULT_HOST_NAME = "robotpi.local";
+
+	/** Time allowed for resolving the robot address. */
+	private static final long NETWORK_TIMEOUT_MILLIS = 3000;
+
+	/** Time allowed for each other subsystem. */
+	private static final long SUBSYSTEM_TIMEOUT_MILLIS = 5000;
+
+	/** Robot host name. */
+	private final String hostName;
+
+	/** Directory holding the sound files. */
+	private final String soundFileDirectory;
+
+	/** Sound to select once the sound files are known, null for the first. */
+	private String initialSound;
+
+	/** True to run the video receiver. */
+	private final boolean videoEnabled;
+
+	/** Performance settings, reloaded when the file changes. */
+	private final PerformanceConfig config;
+
+	/** Seconds between telemetry reports, 0 for none. */
+	private final int telemetrySeconds;
+
+	/** Runs all UDP traffic when enabled, null for a thread per socket. */
+	private UdpReactor reactor;
+
+	/** Starts the subsystems. */
+	private StartupOrchestrator startup;
+
+	/** Robot address once resolved. */
+	private Future<String> robotAddress;
+
+	/** Released when the client is shut down. */
+	private final CountDownLatch stopped = new CountDownLatch(1);
+
+	/** Video receiver, null unless enabled and started. */
+	private volatile VideoReceiverSupervisor videoReceiver;
+
+	/** Controller input, null until started. */
+	private volatile ControllerInputThread inputThread;
+
+	/** Audio client, null until started. */
+	private volatile AudioStreamClient audioStreamClient;
+
+	/** Sound file analysis, null until started. */
+	private volatile SoundLibraryAnalyzer soundLibrary;
+
+	/** Sound file directory watcher, null until started. */
+	private volatile SoundDirectoryIndex soundDirectoryIndex;
+
+	/** Receives robot telemetry, null until started. */
+	private volatile TelemetryReceiver telemetryReceiver;
+
+	/** Telemetry copied out for reporting, only used by the main thread. */
+	private final TelemetryFrame telemetryFrame = new TelemetryFrame();
+
+	/** Known sound file names, sorted. */
+	private String[] soundFiles = new String[0];
+
+	/** Index of the selected sound file, -1 if none. */
+	private int selectedSound = -1;
+
+	/** Last open mouth state shown. */
+	private boolean openMouth;
+
+	/** Last talking state shown. */
+	private boolean talking;
+
+	/** Last play sound state shown. */
+	private boolean playSound;
+
+	/**
+	 * Create a headless client from the system properties.
+	 */
+	public RobotPiHeadless() {
+
+		hostName = System.getProperty("robotpi.host", DEFAULT_HOST_NAME);
+		soundFileDirectory = System.getProperty("robotpi.sounds", 
+				Paths.get("sounds").toAbsolutePath().toString());
+		initialSound = System.getProperty("robotpi.sound");
+		videoEnabled = Boolean.getBoolean("robotpi.video");
+		config = new PerformanceConfig(new File(
+				System.getProperty("robotpi.config", "robotpi.properties")));
+		telemetrySeconds = Integer.getInteger("robotpi.telemetrySeconds", 10);
+	}
+
+	/**
+	 * Run the client until the process is stopped.
+	 * @param args Unused; configure with system properties.
+	 */
+	public static void main(String[] args) throws InterruptedException {
+
+		// Must be set before anything can touch AWT.
+		System.setProperty("java.awt.headless", "true");
+
+		final RobotPiHeadless robotPi = new RobotPiHeadless();
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+
+			@Override
+			public void run() {
+				robotPi.shutdown();
+			}
+		});
+
+		robotPi.start();
+
+		if (robotPi.telemetrySeconds <= 0) {
+			robotPi.stopped.await();
+		} else {
+			while (!robotPi.stopped.await(robotPi.telemetrySeconds, TimeUnit.SECONDS)) {
+				robotPi.showTelemetry();
+			}
+		}
+	}
+
+	/**
+	 * Start every subsystem at once.
+	 */
+	public void start() {
+
+		System.out.println("Headless client for "+hostName
+				+", sound file directory: "+soundFileDirectory);
+
+		config.load();
+		config.addListener(this);
+		config.startWatching();
+
+		if (config.getProfile().isNetworkReactor()) {
+			reactor = UdpReactor.open();
+		}
+
+		startup = new StartupOrchestrator(this);
+
+		robotAddress = startup.start("Network", NETWORK_TIMEOUT_MILLIS, new Callable<String>() {
+
+			@Override
+			public String call() throws Exception {
+				String address = InetAddress.getByName(hostName).getHostAddress();
+				System.out.println("Robot address: "+address);
+				return address;
+			}
+		});
+
+		if (videoEnabled) {
+			startup.start("Video", SUBSYSTEM_TIMEOUT_MILLIS, new Callable<Void>() {
+
+				@Override
+				public Void call() throws Exception {
+					PerformanceProfile profile = config.getProfile();
+					VideoReceiverSupervisor receiver = new VideoReceiverSupervisor();
+					receiver.setBinary(profile.getVideoBinary());
+					receiver.setPipeline(VideoReceiverSupervisor.pipeline(
+							profile.getVideoPipeline(), VideoReceiverSupervisor.VIDEO_PORT));
+					receiver.startSupervisor();
+					videoReceiver = receiver;
+					return null;
+				}
+			});
+		}
+
+		startup.start("Telemetry", SUBSYSTEM_TIMEOUT_MILLIS, new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				TelemetryReceiver receiver = 
+						new TelemetryReceiver(config.getProfile().getTelemetryPort());
+				receiver.setReactor(reactor);
+				receiver.startReceiving();
+				telemetryReceiver = receiver;
+				linkSubsystems();
+				return null;
+			}
+		});
+
+		startup.start("Audio", SUBSYSTEM_TIMEOUT_MILLIS, new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				AudioStreamClient client = 
+						new AudioStreamClient(resolvedRobotAddress(), config.getProfile());
+				client.setReactor(reactor);
+				client.startAudioStream();
+				audioStreamClient = client;
+				linkSubsystems();
+				return null;
+			}
+		});
+
+		startup.start("Gamepad", SUBSYSTEM_TIMEOUT_MILLIS, new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				GamepadInput gamepad = new GamepadInput();
+				ControllerInputThread thread = new ControllerInputThread(gamepad, 
+						RobotPiHeadless.this, resolvedRobotAddress(), 
+						config.getProfile().getControllerPort());
+				inputThread = thread;
+				thread.setProfile(config.getProfile());
+				if (reactor != null) {
+					thread.setReactor(reactor);
+				}
+				linkSubsystems();
+				thread.startControllerInputThread();
+				return null;
+			}
+		});
+
+		startup.start("Sounds", SUBSYSTEM_TIMEOUT_MILLIS, new Callable<Void>() {
+
+			@Override
+			public Void call() throws Exception {
+				soundLibrary = new SoundLibraryAnalyzer(new File(soundFileDirectory));
+				linkSubsystems();
+				soundLibrary.analyzeLibraryInBackground();
+
+				soundDirectoryIndex = new SoundDirectoryIndex(
+						new File(soundFileDirectory), RobotPiHeadless.this);
+				soundDirectoryIndex.startIndex();
+				return null;
+			}
+		});
+	}
+
+	/**
+	 * Stop everything that was started.
+	 */
+	public void shutdown() {
+
+		System.out.println("Shutdown process...");
+
+		if (startup != null) {
+			startup.shutdown();
+		}
+		config.stopWatching();
+		if (videoReceiver != null) {
+			videoReceiver.stopSupervisor();
+		}
+		if (inputThread != null) {
+			inputThread.stopControllerInputThread();
+		}
+		if (soundDirectoryIndex != null) {
+			soundDirectoryIndex.stopIndex();
+		}
+		if (audioStreamClient != null) {
+			audioStreamClient.stopAudioStream();
+		}
+		if (soundLibrary != null) {
+			soundLibrary.shutdown();
+		}
+		if (telemetryReceiver != null) {
+			telemetryReceiver.stopReceiving();
+		}
+		if (reactor != null) {
+			reactor.stopReactor();
+		}
+
+		System.out.println("Everything shutdown.");
+		stopped.countDown();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Print the newest robot telemetry.
+	 */
+	private void showTelemetry() {
+
+		TelemetryReceiver receiver = telemetryReceiver;
+
+		if (receiver != null) {
+			receiver.getLatest(telemetryFrame);
+			long age = telemetryFrame.getAgeMillis(System.nanoTime());
+			System.out.println("Robot: "+telemetryFrame.describe()
+					+(telemetryFrame.isValid() ? ", received "+age+" ms ago" : ""));
+		}
+	}
+
+	/**
+	 * Wait for the robot address to be resolved, falling back to the host
+	 * name.
+	 * @return Robot address to connect to.
+	 */
+	private String resolvedRobotAddress() {
+
+		try {
+			return robotAddress.get(NETWORK_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+		} catch (Exception e) {
+			System.out.println("Robot address not resolved, using "+hostName);
+			return hostName;
+		}
+	}
+
+	/**
+	 * Connect subsystems to each other once both sides are up.
+	 */
+	private synchronized void linkSubsystems() {
+
+		if (audioStreamClient != null && inputThread != null) {
+			inputThread.setAudioControls(audioStreamClient);
+		}
+
+		if (audioStreamClient != null && soundLibrary != null) {
+			audioStreamClient.setSoundLibrary(soundLibrary);
+		}
+
+		if (audioStreamClient != null && telemetryReceiver != null) {
+			audioStreamClient.setTelemetry(telemetryReceiver);
+		}
+	}
+
+	/**
+	 * Print a controller state change.
+	 * @param name State name.
+	 * @param value New value.
+	 */
+	private static void showState(String name, boolean value) {
+		System.out.println(name+": "+value);
+	}
+
+	/**
+	 * Print the selected sound file. Called with the lock held.
+	 */
+	private void showSelectedSound() {
+		System.out.println("Selected sound: "
+				+(selectedSound < 0 ? "none" : soundFiles[selectedSound]));
+	}
+
+	// -------------------------------------------------------------------------
+	// Required by RobotPiUIInterface
+	// -------------------------------------------------------------------------
+
+	@Override
+	public void setDriveInput(float value) {
+		// Analog inputs change constantly; not worth printing.
+	}
+
+	@Override
+	public void setTurnInput(float value) {
+	}
+
+	@Override
+	public void setHeadLiftInput(float value) {
+	}
+
+	@Override
+	public void setHeadTurnInput(float value) {
+	}
+
+	@Override
+	public void setOpenMouth(boolean value) {
+		if (value != openMouth) {
+			openMouth = value;
+			showState("Open mouth", value);
+		}
+	}
+
+	@Override
+	public void setTalking(boolean value) {
+		if (value != talking) {
+			talking = value;
+			showState("Talking", value);
+		}
+	}
+
+	@Override
+	public void setPlaySound(boolean value) {
+		if (value != playSound) {
+			playSound = value;
+			showState("Play sound", value);
+		}
+	}
+
+	@Override
+	public synchronized String getSelectedAudioFilePath() {
+
+		if (selectedSound < 0) {
+			return null;
+		}
+
+		return soundFileDirectory + File.separator + soundFiles[selectedSound];
+	}
+
+	@Override
+	public synchronized void selectPreviousAudioFile() {
+
+		if (selectedSound > 0) {
+			selectedSound--;
+			showSelectedSound();
+		}
+	}
+
+	@Override
+	public synchronized void selectNextAudioFile() {
+
+		if (selectedSound < soundFiles.length - 1) {
+			selectedSound++;
+			showSelectedSound();
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Methods required by SoundDirectoryIndex.Listener
+	// -------------------------------------------------------------------------
+
+	@Override
+	public synchronized void soundFilesChanged(String[] fileNames) {
+
+		// Keep the selection, or take the configured one the first time it
+		// shows up.
+		String selected = selectedSound < 0 ? initialSound : soundFiles[selectedSound];
+
+		soundFiles = fileNames;
+		selectedSound = selected == null ? -1 : Arrays.binarySearch(fileNames, selected);
+
+		if (selectedSound < 0) {
+			if (initialSound != null) {
+				System.out.println("Configured sound not found: "+initialSound);
+			}
+			selectedSound = fileNames.length > 0 ? 0 : -1;
+		}
+		initialSound = null;
+
+		System.out.println(fileNames.length+" sound files");
+		showSelectedSound();
+	}
+
+	@Override
+	public void soundFileReady(File soundFile) {
+		AudioStreamClient client = audioStreamClient;
+		if (client != null) {
+			client.prewarmAudioFile(soundFile);
+		}
+	}
+
+	@Override
+	public void soundFileRemoved(File soundFile) {
+		AudioStreamClient client = audioStreamClient;
+		if (client != null) {
+			client.forgetAudioFile(soundFile);
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Methods required by PerformanceConfig.Listener
+	// -------------------------------------------------------------------------
+
+	@Override
+	public void profileChanged(PerformanceProfile profile, PerformanceProfile previous) {
+
+		ControllerInputThread thread = inputThread;
+		if (thread != null) {
+			thread.setProfile(profile);
+		}
+
+		AudioStreamClient client = audioStreamClient;
+		if (client != null) {
+			client.applyProfile(profile);
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Methods required by StartupOrchestrator.Listener
+	// -------------------------------------------------------------------------
+
+	@Override
+	public void subsystemStatusChanged(String name, StartupOrchestrator.Status status, String detail) {
+		// The orchestrator already logs every change.
+	}
+}
@@ -0,0 +1,268 @@
+package com.yarg.robotpi;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Starts independent subsystems at the same time, each on its own worker
+ * thread, and reports on them as they come up. A subsystem that takes longer
+ * than its timeout is reported as timed out but left to finish, so a slow
+ * device or name lookup shows up straight away without holding up anything
+ * else; if it gets there in the end it is reported ready after all.
+ *
+ * Each task is expected to attach what it started to the application
+ * itself before returning. How long every subsystem took is logged, and a
+ * summary once all have finished.
+ */
+public class StartupOrchestrator {
+
+	/** Progress of a subsystem. */
+	public enum Status {
+
+		/** Started, not finished yet. */
+		STARTING,
+
+		/** Up and attached. */
+		READY,
+
+		/** Still not up after its timeout. */
+		TIMED_OUT,
+
+		/** Failed to start. */
+		FAILED
+	}
+
+	/** Told about every change of status. */
+	public interface Listener {
+
+		/**
+		 * A subsystem changed status. Called on a worker thread.
+		 * @param name Subsystem name.
+		 * @param status New status.
+		 * @param detail Timing or error, for display.
+		 */
+		public void subsystemStatusChanged(String name, Status status, String detail);
+	}
+
+	/** Runs the startup tasks. */
+	private final ExecutorService workers;
+
+	/** Fires the timeouts. */
+	private final ScheduledExecutorService timer;
+
+	/** Told about every change of status. */
+	private final Listener listener;
+
+	/** When startup began. */
+	private final long startNanos = System.nanoTime();
+
+	/** Status of every subsystem, in the order started. */
+	private final Map<String, Status> statuses = new LinkedHashMap<String, Status>();
+
+	/** How long every finished subsystem took. */
+	private final Map<String, Long> durations = new LinkedHashMap<String, Long>();
+
+	/** Subsystems not finished yet. */
+	private int unfinished;
+
+	/**
+	 * Create an orchestrator.
+	 * @param listener Told about every change of status.
+	 */
+	public StartupOrchestrator(Listener listener) {
+
+		this.listener = listener;
+
+		ThreadFactory threads = new ThreadFactory() {
+
+			private final AtomicInteger count = new AtomicInteger();
+
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Startup-"+count.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		};
+
+		workers = Executors.newCachedThreadPool(threads);
+		timer = Executors.newSingleThreadScheduledExecutor(threads);
+	}
+
+	/**
+	 * Start a subsystem.
+	 * @param name Subsystem name, unique.
+	 * @param timeoutMillis Time after which it is reported timed out.
+	 * @param task Starts the subsystem and attaches it.
+	 * @return Result of the task, for tasks others depend on.
+	 */
+	public <T> Future<T> start(final String name, long timeoutMillis, final Callable<T> task) {
+
+		synchronized (this) {
+			statuses.put(name, Status.STARTING);
+			unfinished++;
+		}
+		listener.subsystemStatusChanged(name, Status.STARTING, "");
+
+		final long submittedNanos = System.nanoTime();
+
+		final Future<T> result = workers.submit(new Callable<T>() {
+
+			@Override
+			public T call() throws Exception {
+				try {
+					T value = task.call();
+					finish(name, Status.READY, submittedNanos, null);
+					return value;
+				} catch (Exception e) {
+					finish(name, Status.FAILED, submittedNanos, e);
+					throw e;
+				} catch (Error e) {
+					finish(name, Status.FAILED, submittedNanos, e);
+					throw e;
+				}
+			}
+		});
+
+		timer.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				timedOut(name, submittedNanos);
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+
+		return result;
+	}
+
+	/**
+	 * Status of a subsystem.
+	 * @param name Subsystem name.
+	 * @return Status, or null if never started.
+	 */
+	public synchronized Status getStatus(String name) {
+		return statuses.get(name);
+	}
+
+	/**
+	 * Describe how long each subsystem took, for logging.
+	 * @return Startup timing summary.
+	 */
+	public synchronized String describe() {
+
+		List<String> parts = new ArrayList<String>();
+
+		for (Map.Entry<String, Status> entry : statuses.entrySet()) {
+			Long millis = durations.get(entry.getKey());
+			parts.add(entry.getKey()+" "+entry.getValue()
+					+(millis == null ? "" : " "+millis+" ms"));
+		}
+
+		return "Startup after "+elapsedMillis(startNanos)+" ms: "+parts;
+	}
+
+	/**
+	 * Stop any startup work still running.
+	 */
+	public void shutdown() {
+		timer.shutdownNow();
+		workers.shutdownNow();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Record the end of a task.
+	 * @param name Subsystem name.
+	 * @param status Final status.
+	 * @param submittedNanos When the task was started.
+	 * @param failure What went wrong, null on success.
+	 */
+	private void finish(String name, Status status, long submittedNanos, Throwable failure) {
+
+		long millis = elapsedMillis(submittedNanos);
+		boolean late;
+		boolean last;
+
+		synchronized (this) {
+			late = statuses.get(name) == Status.TIMED_OUT;
+			statuses.put(name, status);
+			durations.put(name, millis);
+			last = --unfinished == 0;
+		}
+
+		String detail = failure == null 
+				? millis+" ms" : failure.getClass().getSimpleName()+": "+failure.getMessage();
+
+		System.out.println("Startup: "+name+" "+status+(late ? " late" : "")+" after "+millis+" ms"
+				+(failure == null ? "" : " ("+detail+")"));
+		if (failure != null) {
+			failure.printStackTrace();
+		}
+
+		listener.subsystemStatusChanged(name, status, detail);
+
+		if (last) {
+			System.out.println(describe());
+		}
+	}
+
+	/**
+	 * Report a subsystem that is taking too long.
+	 * @param name Subsystem name.
+	 * @param submittedNanos When the task was started.
+	 */
+	private void timedOut(String name, long submittedNanos) {
+
+		synchronized (this) {
+			if (statuses.get(name) != Status.STARTING) {
+				return;
+			}
+			statuses.put(name, Status.TIMED_OUT);
+		}
+
+		long millis = elapsedMillis(submittedNanos);
+		System.out.println("Startup: "+name+" still not up after "+millis+" ms");
+		listener.subsystemStatusChanged(name, Status.TIMED_OUT, "no answer after "+millis+" ms");
+	}
+
+	/**
+	 * Time since a moment.
+	 * @param sinceNanos Moment from System.nanoTime().
+	 * @return Milliseconds elapsed.
+	 */
+	private static long elapsedMillis(long sinceNanos) {
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - sinceNanos);
+	}
+}
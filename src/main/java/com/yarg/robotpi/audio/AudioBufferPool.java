@@ -0,0 +1,118 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ArrayBlockingQueue;
+
+/**
+ * Fixed set of packet buffers allocated up front and passed around instead
+ * of copying packet contents. A buffer is taken by the thread that fills it
+ * and given back by the thread that is done with it. Taking and giving back
+ * allocate nothing.
+ *
+ * Buffers are heap backed because the audio line only accepts arrays.
+ */
+public class AudioBufferPool {
+
+	/** Buffers ready to be taken. */
+	private final ArrayBlockingQueue<ByteBuffer> free;
+
+	/** Size of each buffer. */
+	private final int bufferBytes;
+
+	/** Number of buffers in the pool. */
+	private final int capacity;
+
+	/** Times a buffer was wanted but none was free. */
+	private volatile long exhausted;
+
+	/**
+	 * Create a new pool.
+	 * @param capacity Number of buffers.
+	 * @param bufferBytes Size of each buffer.
+	 */
+	public AudioBufferPool(int capacity, int bufferBytes) {
+
+		this.capacity = capacity;
+		this.bufferBytes = bufferBytes;
+		free = new ArrayBlockingQueue<ByteBuffer>(capacity);
+
+		for (int i = 0; i < capacity; i++) {
+			free.offer(ByteBuffer.allocate(bufferBytes));
+		}
+	}
+
+	/**
+	 * Take a buffer. It is cleared and ready to be filled.
+	 * @return Buffer, or null if all buffers are in use.
+	 */
+	public ByteBuffer acquire() {
+
+		ByteBuffer buffer = free.poll();
+
+		if (buffer == null) {
+			exhausted++;
+		}
+
+		return buffer;
+	}
+
+	/**
+	 * Give a buffer back. It must not be used afterwards.
+	 * @param buffer Buffer taken from this pool.
+	 */
+	public void release(ByteBuffer buffer) {
+		buffer.clear();
+		free.offer(buffer);
+	}
+
+	/**
+	 * Size of each buffer.
+	 * @return Buffer size in bytes.
+	 */
+	public int getBufferBytes() {
+		return bufferBytes;
+	}
+
+	/**
+	 * Number of buffers in the pool.
+	 * @return Buffer count.
+	 */
+	public int getCapacity() {
+		return capacity;
+	}
+
+	/**
+	 * Number of buffers ready to be taken.
+	 * @return Free buffer count.
+	 */
+	public int getAvailable() {
+		return free.size();
+	}
+
+	/**
+	 * Times a buffer was wanted but none was free.
+	 * @return Exhaustion count.
+	 */
+	public long getExhausted() {
+		return exhausted;
+	}
+}
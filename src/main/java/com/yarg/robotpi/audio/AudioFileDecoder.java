@@ -0,0 +1,77 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioInputStream;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Decodes whole sound files into 16 bit samples.
+ */
+public class AudioFileDecoder {
+
+	private AudioFileDecoder() {
+	}
+
+	/**
+	 * Decode a sound file.
+	 * @param audioFile Sound file to decode.
+	 * @param format Format to convert to. Must be 16 bit signed big endian
+	 * mono.
+	 * @return Decoded samples.
+	 * @throws UnsupportedAudioFileException If the file format is unknown.
+	 * @throws IOException If the file can't be read.
+	 * @throws IllegalArgumentException If the file can't be converted to the
+	 * format.
+	 */
+	public static short[] decode(File audioFile, AudioFormat format) 
+			throws UnsupportedAudioFileException, IOException {
+
+		ByteArrayOutputStream pcm = new ByteArrayOutputStream();
+
+		try (AudioInputStream fileStream = 
+						AudioSystem.getAudioInputStream(audioFile);
+				AudioInputStream conversionStream = 
+						AudioSystem.getAudioInputStream(format, fileStream)) {
+
+			byte[] buffer = new byte[16384];
+			int bytesRead;
+
+			while ((bytesRead = conversionStream.read(buffer)) != -1) {
+				pcm.write(buffer, 0, bytesRead);
+			}
+		}
+
+		byte[] bytes = pcm.toByteArray();
+		short[] samples = new short[bytes.length / 2];
+
+		for (int i = 0; i < samples.length; i++) {
+			samples[i] = (short) ((bytes[2 * i] << 8) | (bytes[2 * i + 1] & 0xFF));
+		}
+
+		return samples;
+	}
+}
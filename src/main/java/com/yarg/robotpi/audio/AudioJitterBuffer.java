@@ -0,0 +1,532 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Receive side jitter buffer for 16 bit signed big endian mono PCM packets.
+ * The receive thread inserts packets by sequence number and the playout
+ * thread takes them out in sequence order at the pace of the audio line.
+ *
+ * The target depth follows the interarrival jitter, estimated the same way
+ * as RTP (RFC 3550), so the buffer holds just enough audio to ride out the
+ * network, plus a margin that grows on every underrun and shrinks again
+ * while playback is clean. A hole in the sequence is concealed by repeating
+ * the previous packet at a falling level, and a packet that turns up after
+ * its slot was concealed is dropped. When the buffer runs dry it conceals a
+ * few packets fading to silence, keeping the slot of the missing packet, then
+ * waits to fill to the target depth again. If it sits well above the target
+ * for a while it drops a packet to bring the latency back down.
+ *
+ * Packets are pooled buffers handed over by the receive thread and handed on
+ * to the playout thread without copying; every buffer the jitter buffer
+ * drops goes back to the pool. Methods synchronize on the buffer; at
+ * a few dozen packets a second the lock is never contended for long.
+ */
+public class AudioJitterBuffer {
+
+	/** Bytes per frame of 16 bit mono audio. */
+	private static final int FRAME_SIZE = 2;
+
+	/** Lowest target depth in milliseconds. */
+	private static final float MIN_TARGET_MILLIS = 20.0f;
+
+	/** Highest target depth in milliseconds. */
+	private static final float MAX_TARGET_MILLIS = 300.0f;
+
+	/** Target depth in multiples of the measured jitter. */
+	private static final float JITTER_MULTIPLIER = 3.0f;
+
+	/** Packets concealed in a row before going silent. */
+	private static final int MAX_CONCEALED_IN_A_ROW = 3;
+
+	/** Share of the underrun boost kept after each packet played. */
+	private static final double BOOST_DECAY = 0.995;
+
+	/** Packets above the target depth tolerated before shrinking. */
+	private static final int SHRINK_SLACK_PACKETS = 2;
+
+	/** Packets played above the slack before one is dropped. */
+	private static final int SHRINK_AFTER_PACKETS = 50;
+
+	/** Sample rate of the audio. */
+	private final float sampleRate;
+
+	/** Pool packets come from and go back to. */
+	private final AudioBufferPool pool;
+
+	/** Packets, indexed by sequence number modulo capacity. */
+	private final ByteBuffer[] slots;
+
+	/** Sequence number held by each slot, -1 when empty. */
+	private final long[] sequences;
+
+	/** Mask to turn a sequence number into a slot index. */
+	private final int mask;
+
+	/** Last packet played, kept for concealment. Null if none. */
+	private ByteBuffer lastPacket;
+
+	/** Concealment packet handed out in place of a missing one. */
+	private final ByteBuffer concealment;
+
+	/** True once the first packet of a talk spurt has been inserted. */
+	private boolean started;
+
+	/** True while waiting for the buffer to fill to the target depth. */
+	private boolean priming;
+
+	/** Next sequence number to play. */
+	private long nextSequence;
+
+	/** Number of packets in the buffer. */
+	private int depth;
+
+	/** Packets concealed since the last real packet was played. */
+	private int concealedInARow;
+
+	/** Packets played in a row with the buffer above the slack. */
+	private int aboveSlackCount;
+
+	/** Arrival time of the previous packet. */
+	private long lastArrivalNanos;
+
+	/** Duration of the previous packet. */
+	private long lastDurationNanos;
+
+	/** Smoothed interarrival jitter. */
+	private double jitterNanos;
+
+	/** Smoothed packet duration. */
+	private double packetNanos;
+
+	/** 
+	 * Extra depth added on every underrun and slowly given back, for jitter
+	 * the average misses, such as the odd long delay.
+	 */
+	private double boostNanos;
+
+	/** Times the buffer ran dry while playing. */
+	private long underruns;
+
+	/** Packets replaced by concealment. */
+	private long concealedPackets;
+
+	/** Packets dropped because their slot had already been played. */
+	private long latePackets;
+
+	/** Packets dropped because the buffer was full. */
+	private long overflowPackets;
+
+	/** Packets dropped to bring the latency down. */
+	private long shrinkPackets;
+
+	/** Packets played. */
+	private long playedPackets;
+
+	/** Called after each packet is inserted, null for nothing. */
+	private volatile Runnable wakeUp;
+
+	/**
+	 * Create a new jitter buffer.
+	 * @param sampleRate Sample rate of the audio.
+	 * @param capacity Number of packets the buffer can hold. Rounded up to a
+	 * power of two.
+	 * @param pool Pool the inserted packets come from.
+	 */
+	public AudioJitterBuffer(float sampleRate, int capacity, AudioBufferPool pool) {
+
+		int size = 2;
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		this.sampleRate = sampleRate;
+		this.pool = pool;
+		slots = new ByteBuffer[size];
+		sequences = new long[size];
+		mask = size - 1;
+		lastPacket = null;
+		concealment = ByteBuffer.allocate(pool.getBufferBytes());
+
+		reset();
+	}
+
+	/**
+	 * Empty the buffer and start over, keeping the statistics.
+	 */
+	public synchronized void reset() {
+
+		for (int i = 0; i < sequences.length; i++) {
+			if (slots[i] != null) {
+				pool.release(slots[i]);
+				slots[i] = null;
+			}
+			sequences[i] = -1;
+		}
+
+		releaseLastPacket();
+		depth = 0;
+		started = false;
+		priming = true;
+		concealedInARow = 0;
+		aboveSlackCount = 0;
+		lastArrivalNanos = 0;
+	}
+
+	/**
+	 * Add a received packet. The buffer belongs to the jitter buffer from
+	 * here on, and goes back to the pool once played or dropped.
+	 * @param sequence Sequence number of the packet.
+	 * @param packet Pooled buffer holding the packet between its position
+	 * and limit.
+	 * @param arrivalNanos Arrival time from {@link System#nanoTime()}.
+	 * @return False if the packet was dropped.
+	 */
+	public synchronized boolean insert(long sequence, ByteBuffer packet, 
+			long arrivalNanos) {
+
+		int length = packet.remaining();
+
+		if (length < FRAME_SIZE) {
+			pool.release(packet);
+			return false;
+		}
+
+		if (!started) {
+			started = true;
+			nextSequence = sequence;
+		}
+
+		if (sequence < nextSequence) {
+			latePackets++;
+			pool.release(packet);
+			return false;
+		}
+
+		// Too far ahead to fit. Give up on the oldest packets.
+		while (sequence >= nextSequence + slots.length) {
+			discard(nextSequence);
+			nextSequence++;
+			overflowPackets++;
+		}
+
+		int slot = (int) (sequence & mask);
+
+		if (sequences[slot] == sequence) {
+			// Duplicate.
+			pool.release(packet);
+			return false;
+		}
+
+		slots[slot] = packet;
+		sequences[slot] = sequence;
+		depth++;
+
+		updateJitter(length, arrivalNanos);
+
+		Runnable wake = wakeUp;
+		if (wake != null) {
+			wake.run();
+		}
+
+		return true;
+	}
+
+	/**
+	 * Run something on the receive thread every time a packet is inserted,
+	 * so the playout thread can sleep while there is nothing to play.
+	 * @param wakeUp Called after each packet is inserted, or null for nothing.
+	 */
+	public void setWakeUp(Runnable wakeUp) {
+		this.wakeUp = wakeUp;
+	}
+
+	/**
+	 * Take the next packet to play. Returns nothing while filling up to the
+	 * target depth; otherwise returns the next packet, or a concealment
+	 * packet in its place if it is missing.
+	 * @return Packet between its position and limit, or null if there is
+	 * nothing to play yet. Only valid until the next call, and must not be
+	 * modified.
+	 */
+	public synchronized ByteBuffer poll() {
+
+		if (priming) {
+			if (depth == 0 || depth < getTargetPackets()) {
+				return null;
+			}
+			priming = false;
+		}
+
+		int slot = (int) (nextSequence & mask);
+
+		if (sequences[slot] == nextSequence) {
+
+			// Running well above target for a while; drop this one to bring
+			// the latency down, as long as there is another to play.
+			if (depth > getTargetPackets() + SHRINK_SLACK_PACKETS) {
+				if (++aboveSlackCount >= SHRINK_AFTER_PACKETS) {
+					aboveSlackCount = 0;
+					discard(nextSequence);
+					nextSequence++;
+					shrinkPackets++;
+					return poll();
+				}
+			} else {
+				aboveSlackCount = 0;
+			}
+
+			// The packet played before this one is done with now.
+			releaseLastPacket();
+			lastPacket = slots[slot];
+			slots[slot] = null;
+			sequences[slot] = -1;
+			depth--;
+
+			nextSequence++;
+			concealedInARow = 0;
+			playedPackets++;
+			boostNanos *= BOOST_DECAY;
+			return lastPacket;
+		}
+
+		if (depth == 0 && concealedInARow == 0) {
+			underruns++;
+			boostNanos += packetNanos;
+		}
+
+		if (lastPacket == null || concealedInARow >= MAX_CONCEALED_IN_A_ROW) {
+			// Nothing sensible left to conceal with. Go quiet and wait for the
+			// buffer to fill to the target again.
+			if (depth == 0) {
+				priming = true;
+				concealedInARow = 0;
+				releaseLastPacket();
+				lastArrivalNanos = 0;
+				return null;
+			}
+
+			// A long hole with more audio behind it; skip to it.
+			while (sequences[(int) (nextSequence & mask)] != nextSequence) {
+				nextSequence++;
+			}
+			concealedInARow = 0;
+			return poll();
+		}
+
+		// A missing packet with audio behind it is lost and the concealment
+		// takes its slot. With nothing behind it the packet is just late, so
+		// its slot is kept and it plays when it arrives, the concealed time
+		// adding to the depth.
+		if (depth > 0) {
+			nextSequence++;
+		}
+		concealedPackets++;
+		return conceal();
+	}
+
+	/**
+	 * Number of packets in the buffer.
+	 * @return Buffered packet count.
+	 */
+	public synchronized int getDepth() {
+		return depth;
+	}
+
+	/**
+	 * Audio held in the buffer.
+	 * @return Buffered audio in milliseconds.
+	 */
+	public synchronized float getDepthMillis() {
+		return (float) (depth * packetNanos / 1000000.0);
+	}
+
+	/**
+	 * Number of packets the buffer aims to hold.
+	 * @return Target depth in packets.
+	 */
+	public synchronized int getTargetPackets() {
+
+		if (packetNanos <= 0.0) {
+			return 1;
+		}
+
+		return Math.max(1, (int) Math.ceil(getTargetMillis() * 1000000.0 / packetNanos));
+	}
+
+	/**
+	 * Audio the buffer aims to hold.
+	 * @return Target depth in milliseconds.
+	 */
+	public synchronized float getTargetMillis() {
+		float target = (float) ((JITTER_MULTIPLIER * jitterNanos + boostNanos) / 1000000.0);
+		return Math.max(MIN_TARGET_MILLIS, Math.min(MAX_TARGET_MILLIS, target));
+	}
+
+	/**
+	 * Smoothed interarrival jitter.
+	 * @return Jitter in milliseconds.
+	 */
+	public synchronized float getJitterMillis() {
+		return (float) (jitterNanos / 1000000.0);
+	}
+
+	/**
+	 * Times the buffer ran dry while playing.
+	 * @return Underrun count.
+	 */
+	public synchronized long getUnderruns() {
+		return underruns;
+	}
+
+	/**
+	 * Packets replaced by concealment.
+	 * @return Concealed packet count.
+	 */
+	public synchronized long getConcealedPackets() {
+		return concealedPackets;
+	}
+
+	/**
+	 * Packets dropped because they arrived after their slot was played.
+	 * @return Late packet count.
+	 */
+	public synchronized long getLatePackets() {
+		return latePackets;
+	}
+
+	/**
+	 * Packets dropped because the buffer was full, or to bring the latency
+	 * down.
+	 * @return Dropped packet count.
+	 */
+	public synchronized long getDroppedPackets() {
+		return overflowPackets + shrinkPackets;
+	}
+
+	/**
+	 * Packets played.
+	 * @return Played packet count.
+	 */
+	public synchronized long getPlayedPackets() {
+		return playedPackets;
+	}
+
+	/**
+	 * Describe the buffer state, for logging.
+	 * @return Buffer summary.
+	 */
+	public synchronized String describe() {
+		return String.format(
+				"depth %d/%d packets (%.0f/%.0f ms), jitter %.1f ms, played %d, " 
+				+ "concealed %d, underruns %d, late %d, dropped %d",
+				depth, getTargetPackets(), getDepthMillis(), getTargetMillis(),
+				getJitterMillis(), playedPackets, concealedPackets, underruns,
+				latePackets, overflowPackets + shrinkPackets);
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Empty the slot of a sequence number if it holds it.
+	 * @param sequence Sequence number to drop.
+	 */
+	private void discard(long sequence) {
+
+		int slot = (int) (sequence & mask);
+
+		if (sequences[slot] == sequence) {
+			pool.release(slots[slot]);
+			slots[slot] = null;
+			sequences[slot] = -1;
+			depth--;
+		}
+	}
+
+	/**
+	 * Give the last packet played back to the pool.
+	 */
+	private void releaseLastPacket() {
+
+		if (lastPacket != null) {
+			pool.release(lastPacket);
+			lastPacket = null;
+		}
+	}
+
+	/**
+	 * Update the jitter estimate with a new arrival. Packets carry no send
+	 * time, so the spacing the sender would have used is taken to be the
+	 * duration of the previous packet.
+	 * @param length Length of the packet.
+	 * @param arrivalNanos Arrival time.
+	 */
+	private void updateJitter(int length, long arrivalNanos) {
+
+		long durationNanos = (long) ((length / FRAME_SIZE) * 1000000000.0 / sampleRate);
+
+		packetNanos = packetNanos == 0.0 
+				? durationNanos 
+				: packetNanos + (durationNanos - packetNanos) / 16.0;
+
+		if (lastArrivalNanos != 0) {
+			long difference = (arrivalNanos - lastArrivalNanos) - lastDurationNanos;
+			jitterNanos += (Math.abs(difference) - jitterNanos) / 16.0;
+		}
+
+		lastArrivalNanos = arrivalNanos;
+		lastDurationNanos = durationNanos;
+	}
+
+	/**
+	 * Write a concealment packet: the last packet played, faded from the
+	 * level the previous packet ended at to a lower one so repeats die away
+	 * instead of buzzing.
+	 * @return Concealment packet.
+	 */
+	private ByteBuffer conceal() {
+
+		float startGain = 1.0f - (float) concealedInARow / MAX_CONCEALED_IN_A_ROW;
+		concealedInARow++;
+		float endGain = 1.0f - (float) concealedInARow / MAX_CONCEALED_IN_A_ROW;
+
+		byte[] in = lastPacket.array();
+		int inOffset = lastPacket.arrayOffset() + lastPacket.position();
+		byte[] out = concealment.array();
+		int frames = lastPacket.remaining() / FRAME_SIZE;
+
+		for (int i = 0; i < frames; i++) {
+			float gain = startGain + (endGain - startGain) * i / frames;
+			int j = i * FRAME_SIZE;
+			int sample = (short) ((in[inOffset + j] << 8) | (in[inOffset + j + 1] & 0xFF));
+			sample = Math.round(sample * gain);
+			out[j] = (byte) (sample >> 8);
+			out[j + 1] = (byte) sample;
+		}
+
+		concealment.clear();
+		concealment.limit(frames * FRAME_SIZE);
+		return concealment;
+	}
+}
@@ -0,0 +1,311 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Measures the level, and optionally the spectrum, of an audio stream for
+ * display. The audio thread feeds it every buffer it handles; all the work
+ * there is one pass over the samples into running sums, plus an FFT of the
+ * latest samples a few dozen times a second when the spectrum is on. Nothing
+ * is allocated after construction.
+ *
+ * Results are published through volatile fields at the display rate, and the
+ * spectrum through a pair of arrays that are swapped on publish, so the user
+ * interface can read them from its own thread at any time without locking.
+ * A reader racing two publishes in a row may see a mix of two frames, which
+ * is harmless for a display.
+ */
+public class AudioLevelMeter {
+
+	/** Level reported for silence, in dBFS. */
+	public static final float SILENCE_DB = -90.0f;
+
+	/** How often results are published. */
+	private static final int PUBLISH_PER_SECOND = 30;
+
+	/** Points in the spectrum FFT. */
+	private static final int FFT_SIZE = 1024;
+
+	/** Bands in the published spectrum. */
+	private static final int SPECTRUM_BANDS = 24;
+
+	/** Lowest frequency shown in the spectrum. */
+	private static final float SPECTRUM_LOW_HZ = 60.0f;
+
+	/** Highest frequency shown in the spectrum. */
+	private static final float SPECTRUM_HIGH_HZ = 16000.0f;
+
+	/** Full scale sample value. */
+	private static final float FULL_SCALE = 32768.0f;
+
+	/** Samples between publishes. */
+	private final int publishSamples;
+
+	/** Transform used for the spectrum. */
+	private final FastFourierTransform fft;
+
+	/** Hann window, scaled so a full scale sine reads 0 dBFS. */
+	private final float[] window;
+
+	/** Latest samples, oldest first from historyIndex. */
+	private final float[] history;
+
+	/** FFT real parts. */
+	private final float[] real;
+
+	/** FFT imaginary parts. */
+	private final float[] imaginary;
+
+	/** First FFT bin of each band. */
+	private final int[] bandStart;
+
+	/** One past the last FFT bin of each band. */
+	private final int[] bandEnd;
+
+	/** Spectrum being written and spectrum published. */
+	private final float[][] spectra;
+
+	/** Index of the published spectrum. */
+	private volatile int publishedSpectrum;
+
+	/** True to compute the spectrum. */
+	private volatile boolean spectrumEnabled;
+
+	/** Level of the last publish period in dBFS. */
+	private volatile float rmsDb = SILENCE_DB;
+
+	/** Peak of the last publish period in dBFS. */
+	private volatile float peakDb = SILENCE_DB;
+
+	/** When results were last published. */
+	private volatile long publishedNanos;
+
+	// The following are only touched by the audio thread.
+
+	/** Next slot of history to write. */
+	private int historyIndex;
+
+	/** Sum of squares since the last publish. */
+	private double sumOfSquares;
+
+	/** Largest magnitude since the last publish. */
+	private int peak;
+
+	/** Samples since the last publish. */
+	private int samples;
+
+	/**
+	 * Create a meter.
+	 * @param sampleRate Sample rate of the measured audio.
+	 */
+	public AudioLevelMeter(float sampleRate) {
+
+		publishSamples = Math.max(1, (int) (sampleRate / PUBLISH_PER_SECOND));
+
+		fft = new FastFourierTransform(FFT_SIZE);
+		window = new float[FFT_SIZE];
+		history = new float[FFT_SIZE];
+		real = new float[FFT_SIZE];
+		imaginary = new float[FFT_SIZE];
+
+		double windowSum = 0.0;
+		for (int i = 0; i < FFT_SIZE; i++) {
+			window[i] = (float) (0.5 - 0.5 * Math.cos(2.0 * Math.PI * i / (FFT_SIZE - 1)));
+			windowSum += window[i];
+		}
+		for (int i = 0; i < FFT_SIZE; i++) {
+			window[i] *= (float) (2.0 / windowSum);
+		}
+
+		bandStart = new int[SPECTRUM_BANDS];
+		bandEnd = new int[SPECTRUM_BANDS];
+		spectra = new float[2][SPECTRUM_BANDS];
+
+		float binHz = sampleRate / FFT_SIZE;
+		float high = Math.min(SPECTRUM_HIGH_HZ, sampleRate / 2);
+		double ratio = Math.pow(high / SPECTRUM_LOW_HZ, 1.0 / SPECTRUM_BANDS);
+
+		for (int b = 0; b < SPECTRUM_BANDS; b++) {
+			int start = (int) Math.round(SPECTRUM_LOW_HZ * Math.pow(ratio, b) / binHz);
+			int end = (int) Math.round(SPECTRUM_LOW_HZ * Math.pow(ratio, b + 1) / binHz);
+			bandStart[b] = Math.max(1, start);
+			bandEnd[b] = Math.min(FFT_SIZE / 2, Math.max(bandStart[b] + 1, end));
+		}
+
+		for (float[] spectrum : spectra) {
+			Arrays.fill(spectrum, SILENCE_DB);
+		}
+	}
+
+	/**
+	 * Turn the spectrum on or off. Off by default.
+	 * @param enabled True to compute the spectrum.
+	 */
+	public void setSpectrumEnabled(boolean enabled) {
+		spectrumEnabled = enabled;
+	}
+
+	/**
+	 * True if the spectrum is computed.
+	 * @return True if the spectrum is on.
+	 */
+	public boolean isSpectrumEnabled() {
+		return spectrumEnabled;
+	}
+
+	/**
+	 * Measure a buffer. Only call from one thread.
+	 * @param data 16 bit signed big endian mono samples.
+	 * @param offset Offset of the first byte.
+	 * @param length Number of bytes.
+	 */
+	public void process(byte[] data, int offset, int length) {
+
+		boolean spectrum = spectrumEnabled;
+		int end = offset + (length & ~1);
+
+		for (int i = offset; i < end; i += 2) {
+
+			int sample = (data[i] << 8) | (data[i + 1] & 0xFF);
+			sumOfSquares += sample * sample;
+			int magnitude = sample < 0 ? -sample : sample;
+			if (magnitude > peak) {
+				peak = magnitude;
+			}
+
+			if (spectrum) {
+				history[historyIndex] = sample;
+				historyIndex = (historyIndex + 1) & (FFT_SIZE - 1);
+			}
+
+			if (++samples >= publishSamples) {
+				publish(spectrum);
+			}
+		}
+	}
+
+	/**
+	 * Level of the latest publish period.
+	 * @return RMS level in dBFS.
+	 */
+	public float getRmsDb() {
+		return rmsDb;
+	}
+
+	/**
+	 * Peak of the latest publish period.
+	 * @return Peak level in dBFS.
+	 */
+	public float getPeakDb() {
+		return peakDb;
+	}
+
+	/**
+	 * Time since results were last published. Grows while the stream is
+	 * quiet, when nothing reaches the meter.
+	 * @return Age of the results in milliseconds.
+	 */
+	public long getAgeMillis() {
+		return (System.nanoTime() - publishedNanos) / 1000000L;
+	}
+
+	/**
+	 * Number of bands in the spectrum.
+	 * @return Band count.
+	 */
+	public int getSpectrumBands() {
+		return SPECTRUM_BANDS;
+	}
+
+	/**
+	 * Copy the latest spectrum, lowest band first.
+	 * @param bands Array of at least {@link #getSpectrumBands()} levels in
+	 * dBFS to copy to.
+	 */
+	public void copySpectrum(float[] bands) {
+		System.arraycopy(spectra[publishedSpectrum], 0, bands, 0, SPECTRUM_BANDS);
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Publish the sums of the period just ended and start a new one.
+	 * @param spectrum True to publish the spectrum too.
+	 */
+	private void publish(boolean spectrum) {
+
+		rmsDb = toDb((float) Math.sqrt(sumOfSquares / samples));
+		peakDb = toDb(peak);
+
+		if (spectrum) {
+			computeSpectrum(spectra[1 - publishedSpectrum]);
+			publishedSpectrum = 1 - publishedSpectrum;
+		}
+
+		publishedNanos = System.nanoTime();
+		sumOfSquares = 0.0;
+		peak = 0;
+		samples = 0;
+	}
+
+	/**
+	 * Transform the latest samples into band levels.
+	 * @param bands Array to write the band levels to.
+	 */
+	private void computeSpectrum(float[] bands) {
+
+		for (int i = 0; i < FFT_SIZE; i++) {
+			int h = (historyIndex + i) & (FFT_SIZE - 1);
+			real[i] = history[h] * window[i];
+			imaginary[i] = 0.0f;
+		}
+
+		fft.transform(real, imaginary);
+
+		for (int b = 0; b < SPECTRUM_BANDS; b++) {
+			float strongest = 0.0f;
+			for (int k = bandStart[b]; k < bandEnd[b]; k++) {
+				float power = real[k] * real[k] + imaginary[k] * imaginary[k];
+				if (power > strongest) {
+					strongest = power;
+				}
+			}
+			bands[b] = toDb((float) Math.sqrt(strongest));
+		}
+	}
+
+	/**
+	 * Convert a magnitude in sample units to dBFS.
+	 * @param magnitude Magnitude.
+	 * @return Level in dBFS, no lower than {@link #SILENCE_DB}.
+	 */
+	private static float toDb(float magnitude) {
+
+		if (magnitude <= 0.0f) {
+			return SILENCE_DB;
+		}
+
+		return Math.max(SILENCE_DB, (float) (20.0 * Math.log10(magnitude / FULL_SCALE)));
+	}
+}
@@ -0,0 +1,86 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Trade off between latency and robustness for the audio lines. Each profile
+ * sets how much audio the capture and playback lines buffer, and how much
+ * audio the playout thread keeps queued in the playback line.
+ */
+public enum AudioLineProfile {
+
+	/** Smallest buffers. For a quiet machine and a good audio driver. */
+	LOW_LATENCY("Low latency", 20, 40, 10),
+
+	/** Default. Small buffers with some room for scheduling hiccups. */
+	BALANCED("Balanced", 50, 100, 20),
+
+	/** Large buffers for busy machines or drivers that glitch easily. */
+	SAFE("Safe", 200, 400, 60);
+
+	/** Name shown to operators. */
+	private final String label;
+
+	/** Capture line buffer in milliseconds. */
+	private final int captureBufferMillis;
+
+	/** Playback line buffer in milliseconds. */
+	private final int playbackBufferMillis;
+
+	/** Audio kept queued in the playback line in milliseconds. */
+	private final int playbackQueueMillis;
+
+	private AudioLineProfile(String label, int captureBufferMillis, 
+			int playbackBufferMillis, int playbackQueueMillis) {
+		this.label = label;
+		this.captureBufferMillis = captureBufferMillis;
+		this.playbackBufferMillis = playbackBufferMillis;
+		this.playbackQueueMillis = playbackQueueMillis;
+	}
+
+	/**
+	 * Capture line buffer.
+	 * @return Buffer length in milliseconds.
+	 */
+	public int getCaptureBufferMillis() {
+		return captureBufferMillis;
+	}
+
+	/**
+	 * Playback line buffer.
+	 * @return Buffer length in milliseconds.
+	 */
+	public int getPlaybackBufferMillis() {
+		return playbackBufferMillis;
+	}
+
+	/**
+	 * Audio kept queued in the playback line.
+	 * @return Queue length in milliseconds.
+	 */
+	public int getPlaybackQueueMillis() {
+		return playbackQueueMillis;
+	}
+
+	@Override
+	public String toString() {
+		return label;
+	}
+}
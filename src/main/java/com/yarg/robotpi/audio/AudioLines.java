@@ -0,0 +1,113 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.DataLine;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+import javax.sound.sampled.TargetDataLine;
+
+/**
+ * Opens audio lines with an explicit buffer size and reports what the driver
+ * actually granted, which is often not what was asked for.
+ */
+public class AudioLines {
+
+	private AudioLines() {
+	}
+
+	/**
+	 * Number of bytes holding a stretch of audio.
+	 * @param format Audio format.
+	 * @param milliseconds Length of audio.
+	 * @return Size in bytes, a whole number of frames.
+	 */
+	public static int bytesForMillis(AudioFormat format, int milliseconds) {
+		long frames = (long) (format.getFrameRate() * milliseconds / 1000.0f);
+		return (int) Math.max(1, frames) * format.getFrameSize();
+	}
+
+	/**
+	 * Length of audio held in a number of bytes.
+	 * @param format Audio format.
+	 * @param bytes Size in bytes.
+	 * @return Length in milliseconds.
+	 */
+	public static float millisForBytes(AudioFormat format, int bytes) {
+		return bytes / format.getFrameSize() * 1000.0f / format.getFrameRate();
+	}
+
+	/**
+	 * Open a playback line, closing it first if it is open.
+	 * @param line Line to open.
+	 * @param format Audio format.
+	 * @param bufferMillis Buffer length to ask for.
+	 * @throws LineUnavailableException If the line can't be opened.
+	 */
+	public static void open(SourceDataLine line, AudioFormat format, 
+			int bufferMillis) throws LineUnavailableException {
+
+		if (line.isOpen()) {
+			line.close();
+		}
+
+		int requested = bytesForMillis(format, bufferMillis);
+		line.open(format, requested);
+		report("Playback", line, format, requested);
+	}
+
+	/**
+	 * Open a capture line, closing it first if it is open.
+	 * @param line Line to open.
+	 * @param format Audio format.
+	 * @param bufferMillis Buffer length to ask for.
+	 * @throws LineUnavailableException If the line can't be opened.
+	 */
+	public static void open(TargetDataLine line, AudioFormat format, 
+			int bufferMillis) throws LineUnavailableException {
+
+		if (line.isOpen()) {
+			line.close();
+		}
+
+		int requested = bytesForMillis(format, bufferMillis);
+		line.open(format, requested);
+		report("Capture", line, format, requested);
+	}
+
+	/**
+	 * Log the buffer asked for and the buffer granted.
+	 * @param name Line name for the log.
+	 * @param line Opened line.
+	 * @param format Audio format.
+	 * @param requested Bytes asked for.
+	 */
+	private static void report(String name, DataLine line, AudioFormat format, 
+			int requested) {
+
+		int granted = line.getBufferSize();
+
+		System.out.println(String.format(
+				"%s line buffer: asked for %d bytes (%.1f ms), got %d bytes (%.1f ms)",
+				name, requested, millisForBytes(format, requested),
+				granted, millisForBytes(format, granted)));
+	}
+}
@@ -0,0 +1,186 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Sums any number of 16 bit mono sources into a single output buffer. Each
+ * source is added with its own gain into an int accumulator, and the result
+ * is saturated back to 16 bits when rendered. The per sample loops only touch
+ * primitive arrays so the JIT is free to unroll and vectorize them.
+ */
+public class AudioMixer {
+
+	/** Fixed point fraction bits used for gains. */
+	private static final int GAIN_SHIFT = 12;
+
+	/** Fixed point representation of unity gain. */
+	private static final int UNITY_GAIN = 1 << GAIN_SHIFT;
+
+	/** Largest gain a source can be mixed with. */
+	public static final float MAX_GAIN = 8.0f;
+
+	/** Mix accumulator, one int per frame. */
+	private final int[] accumulator;
+
+	/** Number of frames in the current mix. */
+	private int frames;
+
+	/**
+	 * Create a new mixer.
+	 * @param maxFrames Largest number of frames mixed at once.
+	 */
+	public AudioMixer(int maxFrames) {
+		accumulator = new int[maxFrames];
+	}
+
+	/**
+	 * Largest number of frames that can be mixed at once.
+	 * @return Maximum frames per mix.
+	 */
+	public int getMaxFrames() {
+		return accumulator.length;
+	}
+
+	/**
+	 * Number of frames in the current mix.
+	 * @return Frames in the mix.
+	 */
+	public int getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Start a new mix of silence.
+	 * @param frames Number of frames to mix.
+	 */
+	public void clear(int frames) {
+		this.frames = Math.min(frames, accumulator.length);
+		Arrays.fill(accumulator, 0, this.frames, 0);
+	}
+
+	/**
+	 * Shorten the current mix, keeping what was mixed so far.
+	 * @param frames Number of frames to keep.
+	 */
+	public void truncate(int frames) {
+		this.frames = Math.max(0, Math.min(frames, this.frames));
+	}
+
+	/**
+	 * Add 16 bit samples to the mix.
+	 * @param samples Samples to add.
+	 * @param offset Index of the first sample to add.
+	 * @param count Number of samples to add. Anything past the current mix
+	 * length is ignored.
+	 * @param gain Gain to apply to the samples.
+	 */
+	public void mix(short[] samples, int offset, int count, float gain) {
+
+		int n = Math.min(count, frames);
+		int g = toFixedGain(gain);
+		int[] acc = accumulator;
+
+		if (g == UNITY_GAIN) {
+			for (int i = 0; i < n; i++) {
+				acc[i] += samples[offset + i];
+			}
+		} else {
+			for (int i = 0; i < n; i++) {
+				acc[i] += (samples[offset + i] * g) >> GAIN_SHIFT;
+			}
+		}
+	}
+
+	/**
+	 * Add 16 bit signed big endian samples to the mix.
+	 * @param pcm Buffer holding the samples.
+	 * @param offset Offset of the first byte to add.
+	 * @param count Number of samples to add. Anything past the current mix
+	 * length is ignored.
+	 * @param gain Gain to apply to the samples.
+	 */
+	public void mixBigEndian(byte[] pcm, int offset, int count, float gain) {
+
+		int n = Math.min(count, frames);
+		int g = toFixedGain(gain);
+		int[] acc = accumulator;
+
+		for (int i = 0; i < n; i++) {
+			int j = offset + 2 * i;
+			int sample = (pcm[j] << 8) | (pcm[j + 1] & 0xFF);
+			acc[i] += (sample * g) >> GAIN_SHIFT;
+		}
+	}
+
+	/**
+	 * Saturate the mix to 16 bits and write it as signed big endian samples.
+	 * @param out Buffer to write to.
+	 * @param offset Offset to start writing at.
+	 * @return Number of bytes written.
+	 */
+	public int render(byte[] out, int offset) {
+
+		int n = frames;
+		int[] acc = accumulator;
+
+		for (int i = 0; i < n; i++) {
+			int sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, acc[i]));
+			out[offset + 2 * i] = (byte) (sample >> 8);
+			out[offset + 2 * i + 1] = (byte) sample;
+		}
+
+		return n * 2;
+	}
+
+	/**
+	 * Saturate the mix to 16 bits and write it as samples.
+	 * @param out Buffer to write to.
+	 * @param offset Index to start writing at.
+	 * @return Number of samples written.
+	 */
+	public int render(short[] out, int offset) {
+
+		int n = frames;
+		int[] acc = accumulator;
+
+		for (int i = 0; i < n; i++) {
+			out[offset + i] = (short) Math.max(
+					Short.MIN_VALUE, Math.min(Short.MAX_VALUE, acc[i]));
+		}
+
+		return n;
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Convert a gain to fixed point, clamped to the supported range.
+	 * @param gain Gain to convert.
+	 * @return Fixed point gain.
+	 */
+	private static int toFixedGain(float gain) {
+		float clamped = Math.max(0.0f, Math.min(MAX_GAIN, gain));
+		return Math.round(clamped * UNITY_GAIN);
+	}
+}
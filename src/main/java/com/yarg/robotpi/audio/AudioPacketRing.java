@@ -0,0 +1,329 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Lock free single producer, single consumer queue of audio packets. Every
+ * slot is a preallocated buffer, so passing a packet from the capture thread
+ * to the send thread costs one copy and no allocation. The producer never
+ * blocks: when the ring is full the new packet is dropped and counted.
+ *
+ * Exactly one thread may call {@link #offer(byte[], int, int)}, and exactly
+ * one other thread may call the consumer methods.
+ */
+public class AudioPacketRing {
+
+	/** What to throw away when the consumer falls behind. */
+	public enum DropPolicy {
+
+		/** Keep everything queued, drop new packets once the ring is full. */
+		DROP_NEWEST,
+
+		/** Keep the backlog short, dropping the oldest packets first. */
+		DROP_OLDEST
+	}
+
+	/** Packet buffers. */
+	private final byte[][] slots;
+
+	/** Length of the packet in each slot. */
+	private final int[] lengths;
+
+	/** Optional time stamp carried with the packet in each slot. */
+	private final long[] marks;
+
+	/** Mask turning a sequence number into a slot index. */
+	private final int mask;
+
+	/** Sequence of the next packet to write. Written by the producer. */
+	private final AtomicLong head = new AtomicLong();
+
+	/** Sequence of the next packet to read. Written by the consumer. */
+	private final AtomicLong tail = new AtomicLong();
+
+	/** Producer's last view of the tail. */
+	private long cachedTail;
+
+	/** Packets dropped by the producer because the ring was full. */
+	private final AtomicLong droppedNewest = new AtomicLong();
+
+	/** Packets dropped by the consumer to keep the backlog short. */
+	private final AtomicLong droppedOldest = new AtomicLong();
+
+	/** Deepest the queue has been. */
+	private volatile int highWaterMark;
+
+	/** Drop policy in effect. */
+	private volatile DropPolicy dropPolicy = DropPolicy.DROP_OLDEST;
+
+	/** Largest backlog kept when dropping oldest packets. */
+	private volatile int maxBacklog;
+
+	/** Thread waiting for packets, unparked on every offer. */
+	private volatile Thread consumer;
+
+	/** Called after each packet is queued, null for nothing. */
+	private volatile Runnable wakeUp;
+
+	/**
+	 * Create a new ring.
+	 * @param capacity Number of slots. Rounded up to a power of two.
+	 * @param slotBytes Size of each slot, the largest packet accepted.
+	 */
+	public AudioPacketRing(int capacity, int slotBytes) {
+
+		int size = 2;
+		while (size < capacity) {
+			size <<= 1;
+		}
+
+		slots = new byte[size][slotBytes];
+		lengths = new int[size];
+		marks = new long[size];
+		mask = size - 1;
+		maxBacklog = size;
+	}
+
+	/**
+	 * Number of slots.
+	 * @return Capacity of the ring.
+	 */
+	public int getCapacity() {
+		return slots.length;
+	}
+
+	/**
+	 * Largest packet the ring accepts.
+	 * @return Slot size in bytes.
+	 */
+	public int getSlotBytes() {
+		return slots[0].length;
+	}
+
+	/**
+	 * Choose what to drop when the consumer falls behind.
+	 * @param dropPolicy Drop policy.
+	 * @param maxBacklog Largest number of packets kept queued when dropping
+	 * the oldest packets. Ignored for {@link DropPolicy#DROP_NEWEST}.
+	 */
+	public void setDropPolicy(DropPolicy dropPolicy, int maxBacklog) {
+		this.dropPolicy = dropPolicy;
+		this.maxBacklog = Math.max(1, Math.min(maxBacklog, slots.length));
+	}
+
+	// -------------------------------------------------------------------------
+	// Producer
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Queue a copy of a packet. Never blocks.
+	 * @param data Packet data.
+	 * @param offset Offset of the first byte.
+	 * @param length Packet length. Must not exceed the slot size.
+	 * @return True if queued, false if the ring was full and the packet was
+	 * dropped.
+	 */
+	public boolean offer(byte[] data, int offset, int length) {
+		return offer(data, offset, length, 0L);
+	}
+
+	/**
+	 * Queue a copy of a packet along with a time stamp, used to measure how
+	 * long the packet takes to reach the wire. Never blocks.
+	 * @param data Packet data.
+	 * @param offset Offset of the first byte.
+	 * @param length Packet length. Must not exceed the slot size.
+	 * @param mark System.nanoTime() based time stamp, or 0 for none.
+	 * @return True if queued, false if the ring was full and the packet was
+	 * dropped.
+	 */
+	public boolean offer(byte[] data, int offset, int length, long mark) {
+		return offer(null, 0, data, offset, length, mark);
+	}
+
+	/**
+	 * Queue a copy of a header followed by a packet, without copying them
+	 * together first. Never blocks.
+	 * @param header Header data, or null for none.
+	 * @param headerLength Header length.
+	 * @param data Packet data.
+	 * @param offset Offset of the first byte.
+	 * @param length Packet length. Together with the header it must not
+	 * exceed the slot size.
+	 * @param mark System.nanoTime() based time stamp, or 0 for none.
+	 * @return True if queued, false if the ring was full and the packet was
+	 * dropped.
+	 */
+	public boolean offer(byte[] header, int headerLength, byte[] data, int offset, 
+			int length, long mark) {
+
+		long sequence = head.get();
+
+		if (sequence - cachedTail >= slots.length) {
+			cachedTail = tail.get();
+			if (sequence - cachedTail >= slots.length) {
+				droppedNewest.incrementAndGet();
+				return false;
+			}
+		}
+
+		int index = (int) (sequence & mask);
+		int start = 0;
+		if (header != null) {
+			System.arraycopy(header, 0, slots[index], 0, headerLength);
+			start = headerLength;
+		}
+		System.arraycopy(data, offset, slots[index], start, length);
+		lengths[index] = start + length;
+		marks[index] = mark;
+
+		// Publish the slot contents together with the new head.
+		head.lazySet(sequence + 1);
+
+		int depth = (int) (sequence + 1 - tail.get());
+		if (depth > highWaterMark) {
+			highWaterMark = depth;
+		}
+
+		Thread waiting = consumer;
+		if (waiting != null) {
+			LockSupport.unpark(waiting);
+		}
+
+		Runnable wake = wakeUp;
+		if (wake != null) {
+			wake.run();
+		}
+
+		return true;
+	}
+
+	// -------------------------------------------------------------------------
+	// Consumer
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Buffer of the oldest queued packet. Stays valid until {@link #remove()}.
+	 * Trims the backlog first when dropping the oldest packets.
+	 * @return Packet buffer, or null if the ring is empty.
+	 */
+	public byte[] peek() {
+
+		long sequence = tail.get();
+		long available = head.get() - sequence;
+
+		if (available <= 0) {
+			return null;
+		}
+
+		if (dropPolicy == DropPolicy.DROP_OLDEST && available > maxBacklog) {
+			long dropped = available - maxBacklog;
+			droppedOldest.addAndGet(dropped);
+			sequence += dropped;
+			tail.lazySet(sequence);
+		}
+
+		return slots[(int) (sequence & mask)];
+	}
+
+	/**
+	 * Length of the packet returned by {@link #peek()}.
+	 * @return Packet length.
+	 */
+	public int peekLength() {
+		return lengths[(int) (tail.get() & mask)];
+	}
+
+	/**
+	 * Time stamp of the packet returned by {@link #peek()}.
+	 * @return Time stamp, or 0 if the packet has none.
+	 */
+	public long peekMark() {
+		return marks[(int) (tail.get() & mask)];
+	}
+
+	/**
+	 * Release the oldest packet so its slot can be reused.
+	 */
+	public void remove() {
+		tail.lazySet(tail.get() + 1);
+	}
+
+	/**
+	 * Run something on the producer thread every time a packet is queued,
+	 * for consumers that don't wait in {@link #await()}.
+	 * @param wakeUp Called after each packet is queued, or null for nothing.
+	 */
+	public void setWakeUp(Runnable wakeUp) {
+		this.wakeUp = wakeUp;
+	}
+
+	/**
+	 * Wait for a packet to be queued. May return early, for example when the
+	 * waiting thread is interrupted.
+	 */
+	public void await() {
+
+		consumer = Thread.currentThread();
+
+		if (head.get() == tail.get()) {
+			LockSupport.park(this);
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Statistics
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Number of packets waiting.
+	 * @return Queue depth.
+	 */
+	public int size() {
+		return (int) Math.max(0, head.get() - tail.get());
+	}
+
+	/**
+	 * Deepest the queue has been.
+	 * @return Largest queue depth seen.
+	 */
+	public int getHighWaterMark() {
+		return highWaterMark;
+	}
+
+	/**
+	 * Packets dropped because the ring was full.
+	 * @return Newest packets dropped.
+	 */
+	public long getDroppedNewest() {
+		return droppedNewest.get();
+	}
+
+	/**
+	 * Packets dropped to keep the backlog short.
+	 * @return Oldest packets dropped.
+	 */
+	public long getDroppedOldest() {
+		return droppedOldest.get();
+	}
+}
@@ -0,0 +1,188 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Cuts a stream of 16 bit mono PCM into fixed size packets that fit in a
+ * single datagram without IP fragmentation. Packet size is either the
+ * largest whole number of frames within the payload budget, or a fixed
+ * duration capped by the budget.
+ *
+ * Typical use:
+ * <pre>
+ * int offset = 0;
+ * while (offset &lt; length) {
+ *     offset += packetizer.write(data, offset, length - offset);
+ *     if (packetizer.isPacketReady()) {
+ *         send(packetizer.getPacket(), packetizer.getPacketLength());
+ *         packetizer.clear();
+ *     }
+ * }
+ * </pre>
+ */
+public class AudioPacketizer {
+
+	/** Default payload budget. Leaves room for IP/UDP headers and tunnels. */
+	public static final int DEFAULT_MAX_PAYLOAD_BYTES = 1200;
+
+	/** Bytes per frame of 16 bit mono audio. */
+	private static final int FRAME_SIZE = 2;
+
+	/** Largest payload allowed per packet. */
+	private final int maxPayloadBytes;
+
+	/** Packet duration in milliseconds, 0 to fill the payload budget. */
+	private final int packetMillis;
+
+	/** Packet being filled. */
+	private final byte[] packet;
+
+	/** Bytes per packet for the current sample rate. */
+	private int packetBytes;
+
+	/** Bytes currently in the packet. */
+	private int length;
+
+	/** Sample rate the packet size was computed for. */
+	private float sampleRate;
+
+	/**
+	 * Create a new packetizer.
+	 * @param maxPayloadBytes Largest payload allowed per packet.
+	 * @param packetMillis Packet duration in milliseconds, or 0 to make every
+	 * packet as large as the payload budget allows.
+	 * @param sampleRate Sample rate of the audio.
+	 */
+	public AudioPacketizer(int maxPayloadBytes, int packetMillis, float sampleRate) {
+
+		if (maxPayloadBytes < FRAME_SIZE) {
+			throw new IllegalArgumentException(
+					"Payload budget too small: "+maxPayloadBytes);
+		}
+
+		this.maxPayloadBytes = maxPayloadBytes;
+		this.packetMillis = Math.max(0, packetMillis);
+		packet = new byte[maxPayloadBytes];
+
+		setSampleRate(sampleRate);
+	}
+
+	/**
+	 * Recompute the packet size for a new sample rate. Anything buffered is
+	 * dropped.
+	 * @param sampleRate Sample rate of the audio.
+	 */
+	public void setSampleRate(float sampleRate) {
+
+		this.sampleRate = sampleRate;
+
+		int budgetFrames = maxPayloadBytes / FRAME_SIZE;
+		int frames = budgetFrames;
+
+		if (packetMillis > 0) {
+			frames = Math.max(1, Math.min(budgetFrames,
+					Math.round(sampleRate * packetMillis / 1000.0f)));
+		}
+
+		packetBytes = frames * FRAME_SIZE;
+		length = 0;
+	}
+
+	/**
+	 * Copy as much data as fits into the current packet.
+	 * @param data Data to copy.
+	 * @param offset Offset of the first byte.
+	 * @param count Number of bytes available.
+	 * @return Number of bytes copied.
+	 */
+	public int write(byte[] data, int offset, int count) {
+
+		int copied = Math.min(count, packetBytes - length);
+		System.arraycopy(data, offset, packet, length, copied);
+		length += copied;
+		return copied;
+	}
+
+	/**
+	 * True once the packet holds a full packet worth of audio.
+	 * @return True if the packet is ready to send.
+	 */
+	public boolean isPacketReady() {
+		return length >= packetBytes;
+	}
+
+	/**
+	 * True if any audio is waiting in the packet.
+	 * @return True if the packet is not empty.
+	 */
+	public boolean hasPendingData() {
+		return length > 0;
+	}
+
+	/**
+	 * Buffer holding the packet. Valid until the next call to
+	 * {@link #clear()}.
+	 * @return Packet buffer.
+	 */
+	public byte[] getPacket() {
+		return packet;
+	}
+
+	/**
+	 * Number of bytes in the packet.
+	 * @return Packet length.
+	 */
+	public int getPacketLength() {
+		return length;
+	}
+
+	/**
+	 * Start a new packet.
+	 */
+	public void clear() {
+		length = 0;
+	}
+
+	/**
+	 * Size of a full packet.
+	 * @return Packet size in bytes.
+	 */
+	public int getPacketBytes() {
+		return packetBytes;
+	}
+
+	/**
+	 * Duration of a full packet.
+	 * @return Packet duration in milliseconds.
+	 */
+	public float getPacketDurationMillis() {
+		return (packetBytes / FRAME_SIZE) * 1000.0f / sampleRate;
+	}
+
+	/**
+	 * Describe the packet size in use, for logging.
+	 * @return Packet size description.
+	 */
+	public String describe() {
+		return String.format("%d byte packets (%.1f ms at %.0f Hz, budget %d bytes)",
+				packetBytes, getPacketDurationMillis(), sampleRate,
+				maxPayloadBytes);
+	}
+}
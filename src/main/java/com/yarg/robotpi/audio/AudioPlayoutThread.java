@@ -0,0 +1,259 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.locks.LockSupport;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.LineUnavailableException;
+import javax.sound.sampled.SourceDataLine;
+
+/**
+ * Moves audio from the jitter buffer to the speakers. Only a few
+ * milliseconds are kept queued in the line so the jitter buffer, not the
+ * line, decides the latency; the thread sleeps between writes for as long
+ * as the line takes to play out the excess, and while there is nothing to
+ * play it sleeps until the jitter buffer wakes it with a new packet. A change
+ * of line profile is applied here, on the thread that writes to the line, by
+ * reopening the line with the new buffer size.
+ */
+public class AudioPlayoutThread extends Thread {
+
+	/**
+	 * Longest sleep while there is nothing to play. Inserts wake the thread
+	 * long before this; it is only a safety net.
+	 */
+	private static final long IDLE_NANOS = 250000000L;
+
+	/**
+	 * Shortest sleep while the line is full. Some mixers only update the
+	 * space available in blocks, so waiting for a single frame could spin.
+	 */
+	private static final long MIN_DRAIN_NANOS = 1000000L;
+
+	/** Line to play to. */
+	private final SourceDataLine sourceDataLine;
+
+	/** Format of the line. */
+	private final AudioFormat format;
+
+	/** Buffer to play from. */
+	private final AudioJitterBuffer jitterBuffer;
+
+	/** Measures how long written audio waits in the line. */
+	private final LineLatencyMeter latencyMeter;
+
+	/** Profile asked for by the control side. */
+	private volatile AudioLineProfile requestedProfile;
+
+	/** Profile the line is open with. */
+	private AudioLineProfile profile;
+
+	/** Bytes kept queued in the line. */
+	private int lineQueueBytes;
+
+	/** Frames written since the line was opened. */
+	private long framesWritten;
+
+	/** Recorder to copy played audio to, null when not recording. */
+	private volatile AudioRecorder recorder;
+
+	/** Meter measuring played audio, null for none. */
+	private volatile AudioLevelMeter levelMeter;
+
+	/** Flag execution state of thread. */
+	private volatile boolean running;
+
+	/**
+	 * Create a new playout thread.
+	 * @param sourceDataLine Started line to play to.
+	 * @param format Format the line is open with.
+	 * @param profile Profile the line is open with.
+	 * @param jitterBuffer Buffer to play from.
+	 * @param latencyMeter Meter to record line latency in.
+	 */
+	public AudioPlayoutThread(SourceDataLine sourceDataLine, AudioFormat format,
+			AudioLineProfile profile, AudioJitterBuffer jitterBuffer, 
+			LineLatencyMeter latencyMeter) {
+
+		super("AudioPlayoutThread");
+		this.sourceDataLine = sourceDataLine;
+		this.format = format;
+		this.jitterBuffer = jitterBuffer;
+		this.latencyMeter = latencyMeter;
+		this.profile = profile;
+		requestedProfile = profile;
+		lineQueueBytes = AudioLines.bytesForMillis(
+				format, profile.getPlaybackQueueMillis());
+		framesWritten = sourceDataLine.getLongFramePosition();
+	}
+
+	/**
+	 * Start playing.
+	 */
+	public void startPlayout() {
+
+		running = true;
+
+		final Thread playout = this;
+		jitterBuffer.setWakeUp(new Runnable() {
+
+			@Override
+			public void run() {
+				LockSupport.unpark(playout);
+			}
+		});
+
+		this.start();
+	}
+
+	/**
+	 * Stop playing and wait for the thread to finish, so the line can be
+	 * closed safely afterwards.
+	 */
+	public void stopPlayout() {
+
+		running = false;
+		jitterBuffer.setWakeUp(null);
+		this.interrupt();
+
+		try {
+			this.join(1000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * Switch to another line profile. The line is reopened by the playout
+	 * thread, so the switch costs a brief gap in playback.
+	 * @param profile Profile to use.
+	 */
+	public void setLineProfile(AudioLineProfile profile) {
+		requestedProfile = profile;
+		LockSupport.unpark(this);
+	}
+
+	/**
+	 * Copy played audio to a recorder.
+	 * @param recorder Recorder to copy to, or null to stop copying.
+	 */
+	public void setRecorder(AudioRecorder recorder) {
+		this.recorder = recorder;
+	}
+
+	/**
+	 * Measure played audio.
+	 * @param levelMeter Meter to feed, or null for none.
+	 */
+	public void setLevelMeter(AudioLevelMeter levelMeter) {
+		this.levelMeter = levelMeter;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		while (running) {
+
+			if (requestedProfile != profile) {
+				applyProfile(requestedProfile);
+			}
+
+			int queued = sourceDataLine.getBufferSize() - sourceDataLine.available();
+
+			if (queued >= lineQueueBytes) {
+				// Sleep until the excess and one more frame have played.
+				int frames = (queued - lineQueueBytes) / format.getFrameSize() + 1;
+				LockSupport.parkNanos(Math.max(MIN_DRAIN_NANOS,
+						(long) (frames * 1000000000.0 / format.getFrameRate())));
+				continue;
+			}
+
+			ByteBuffer packet = jitterBuffer.poll();
+
+			if (packet == null) {
+				LockSupport.parkNanos(IDLE_NANOS);
+				continue;
+			}
+
+			// Straight from the received buffer to the line.
+			int written = sourceDataLine.write(packet.array(), 
+					packet.arrayOffset() + packet.position(), packet.remaining());
+
+			framesWritten += written / format.getFrameSize();
+
+			AudioLevelMeter meter = levelMeter;
+			if (meter != null) {
+				meter.process(packet.array(),
+						packet.arrayOffset() + packet.position(), written);
+			}
+
+			AudioRecorder activeRecorder = recorder;
+			if (activeRecorder != null) {
+				activeRecorder.record(AudioRecorder.Stream.INCOMING, packet.array(),
+						packet.arrayOffset() + packet.position(), written);
+			}
+			latencyMeter.record(framesWritten - sourceDataLine.getLongFramePosition(),
+					format.getFrameRate());
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Reopen the line with the buffer of a new profile. Falls back to the old
+	 * profile if the line won't open with the new one.
+	 * @param next Profile to switch to.
+	 */
+	private void applyProfile(AudioLineProfile next) {
+
+		System.out.println("Playback line profile: "+next);
+
+		try {
+			AudioLines.open(sourceDataLine, format, next.getPlaybackBufferMillis());
+		} catch (LineUnavailableException e) {
+			e.printStackTrace();
+			System.out.println("Playback line won't open as "+next+", staying "+profile);
+			requestedProfile = profile;
+			try {
+				AudioLines.open(sourceDataLine, format, profile.getPlaybackBufferMillis());
+			} catch (LineUnavailableException e1) {
+				e1.printStackTrace();
+				System.out.println("Playback line lost. Stopping playback.");
+				running = false;
+				return;
+			}
+			next = profile;
+		}
+
+		sourceDataLine.start();
+		profile = next;
+		lineQueueBytes = AudioLines.bytesForMillis(
+				format, profile.getPlaybackQueueMillis());
+		framesWritten = sourceDataLine.getLongFramePosition();
+		latencyMeter.reset();
+	}
+}
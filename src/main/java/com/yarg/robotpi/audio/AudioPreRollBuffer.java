@@ -0,0 +1,118 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Keeps the most recent few milliseconds of microphone audio while nobody is
+ * talking, so the start of speech that began just before the talk button was
+ * pressed can still be sent. Older audio is overwritten as new audio
+ * arrives. Not thread safe; owned by the capture thread.
+ */
+public class AudioPreRollBuffer {
+
+	/** Circular audio storage. */
+	private final byte[] buffer;
+
+	/** Where the next byte is written. */
+	private int writePosition;
+
+	/** Number of bytes held. */
+	private int size;
+
+	/**
+	 * Create a new pre-roll buffer.
+	 * @param capacityBytes Amount of audio to keep. Should be a whole number
+	 * of frames.
+	 */
+	public AudioPreRollBuffer(int capacityBytes) {
+		buffer = new byte[Math.max(2, capacityBytes)];
+	}
+
+	/**
+	 * Add audio, overwriting the oldest audio if full.
+	 * @param data Audio to add.
+	 * @param offset Offset of the first byte.
+	 * @param length Number of bytes to add.
+	 */
+	public void write(byte[] data, int offset, int length) {
+
+		int capacity = buffer.length;
+
+		// Only the newest capacity bytes matter.
+		if (length >= capacity) {
+			System.arraycopy(data, offset + length - capacity, buffer, 0, capacity);
+			writePosition = 0;
+			size = capacity;
+			return;
+		}
+
+		int first = Math.min(length, capacity - writePosition);
+		System.arraycopy(data, offset, buffer, writePosition, first);
+		System.arraycopy(data, offset + first, buffer, 0, length - first);
+
+		writePosition = (writePosition + length) % capacity;
+		size = Math.min(capacity, size + length);
+	}
+
+	/**
+	 * Take the oldest audio out of the buffer.
+	 * @param destination Buffer to copy to.
+	 * @param offset Offset to start copying to.
+	 * @param maxLength Largest number of bytes to take.
+	 * @return Number of bytes taken.
+	 */
+	public int read(byte[] destination, int offset, int maxLength) {
+
+		int capacity = buffer.length;
+		int count = Math.min(maxLength, size);
+		int start = (writePosition - size + capacity) % capacity;
+
+		int first = Math.min(count, capacity - start);
+		System.arraycopy(buffer, start, destination, offset, first);
+		System.arraycopy(buffer, 0, destination, offset + first, count - first);
+
+		size -= count;
+		return count;
+	}
+
+	/**
+	 * Number of bytes held.
+	 * @return Buffered byte count.
+	 */
+	public int size() {
+		return size;
+	}
+
+	/**
+	 * Most audio the buffer holds.
+	 * @return Capacity in bytes.
+	 */
+	public int getCapacity() {
+		return buffer.length;
+	}
+
+	/**
+	 * Throw away everything held.
+	 */
+	public void clear() {
+		size = 0;
+		writePosition = 0;
+	}
+}
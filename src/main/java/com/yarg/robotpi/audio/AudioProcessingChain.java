@@ -0,0 +1,196 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Runs a fixed list of {@link AudioProcessor} stages over each buffer, in
+ * place, and measures how much time each stage takes. Stages can be turned
+ * on and off from any thread while the audio thread is processing.
+ *
+ * The timing counters are written by the audio thread alone and read
+ * without locking, so a report taken while audio is flowing may be a
+ * buffer out of date.
+ */
+public class AudioProcessingChain {
+
+	/** Stages, in processing order. */
+	private final AudioProcessor[] stages;
+
+	/** Sample rate of the audio. */
+	private final float sampleRate;
+
+	/** Bit per stage, set while the stage is on. */
+	private volatile int enabledStages;
+
+	/** Time spent in each stage. */
+	private final long[] stageNanos;
+
+	/** Longest single call of each stage. */
+	private final long[] stageMaxNanos;
+
+	/** Buffers processed. */
+	private long buffers;
+
+	/** Frames processed. */
+	private long frames;
+
+	/**
+	 * Create a chain with every stage on.
+	 * @param sampleRate Sample rate of the audio.
+	 * @param stages Stages in processing order, at most 32.
+	 */
+	public AudioProcessingChain(float sampleRate, AudioProcessor... stages) {
+
+		if (stages.length > Integer.SIZE) {
+			throw new IllegalArgumentException("Too many stages: "+stages.length);
+		}
+
+		this.sampleRate = sampleRate;
+		this.stages = stages.clone();
+		stageNanos = new long[stages.length];
+		stageMaxNanos = new long[stages.length];
+		enabledStages = stages.length == Integer.SIZE ? -1 : (1 << stages.length) - 1;
+	}
+
+	/**
+	 * Turn a stage on or off. A stage turned back on carries on from its old
+	 * state, so it is reset first.
+	 * @param stage Stage in this chain.
+	 * @param enabled True to run the stage.
+	 */
+	public synchronized void setEnabled(AudioProcessor stage, boolean enabled) {
+
+		int bit = 1 << indexOf(stage);
+
+		if (enabled && (enabledStages & bit) == 0) {
+			stage.reset();
+		}
+
+		enabledStages = enabled ? enabledStages | bit : enabledStages & ~bit;
+	}
+
+	/**
+	 * True if a stage is on.
+	 * @param stage Stage in this chain.
+	 * @return True if the stage runs.
+	 */
+	public boolean isEnabled(AudioProcessor stage) {
+		return (enabledStages & (1 << indexOf(stage))) != 0;
+	}
+
+	/**
+	 * Run every enabled stage over a buffer, in place.
+	 * @param data 16 bit signed big endian mono samples.
+	 * @param offset Offset of the first byte.
+	 * @param length Number of bytes.
+	 */
+	public void process(byte[] data, int offset, int length) {
+
+		int enabled = enabledStages;
+
+		for (int i = 0; i < stages.length; i++) {
+
+			if ((enabled & (1 << i)) == 0) {
+				continue;
+			}
+
+			long start = System.nanoTime();
+			stages[i].process(data, offset, length);
+			long elapsed = System.nanoTime() - start;
+
+			stageNanos[i] += elapsed;
+			if (elapsed > stageMaxNanos[i]) {
+				stageMaxNanos[i] = elapsed;
+			}
+		}
+
+		buffers++;
+		frames += length / 2;
+	}
+
+	/**
+	 * Reset every stage. Call when the stream is interrupted.
+	 */
+	public void reset() {
+		for (AudioProcessor stage : stages) {
+			stage.reset();
+		}
+	}
+
+	/**
+	 * Time spent in every stage so far, as a fraction of the duration of the
+	 * audio processed.
+	 * @return Share of real time, 0 if nothing was processed.
+	 */
+	public double getRealTimeShare() {
+
+		if (frames == 0) {
+			return 0.0;
+		}
+
+		long total = 0;
+		for (long nanos : stageNanos) {
+			total += nanos;
+		}
+
+		return total / (frames / sampleRate * 1e9);
+	}
+
+	/**
+	 * Describe the time taken by each stage, for logging.
+	 * @return Per stage timing.
+	 */
+	public String describe() {
+
+		StringBuilder text = new StringBuilder(String.format(
+				"%d buffers, %.3f%% of real time", 
+				buffers, getRealTimeShare() * 100.0));
+
+		for (int i = 0; i < stages.length; i++) {
+			text.append(String.format("; %s%s %.1f us avg, %.1f us max",
+					stages[i].getName(),
+					(enabledStages & (1 << i)) == 0 ? " (off)" : "",
+					buffers == 0 ? 0.0 : stageNanos[i] / 1000.0 / buffers,
+					stageMaxNanos[i] / 1000.0));
+		}
+
+		return text.toString();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Position of a stage in the chain.
+	 * @param stage Stage to find.
+	 * @return Index of the stage.
+	 */
+	private int indexOf(AudioProcessor stage) {
+
+		for (int i = 0; i < stages.length; i++) {
+			if (stages[i] == stage) {
+				return i;
+			}
+		}
+
+		throw new IllegalArgumentException("Not in this chain: "+stage.getName());
+	}
+}
@@ -0,0 +1,50 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * A stage of in place audio processing. Works on 16 bit signed big endian
+ * mono PCM and keeps whatever state it needs between calls, so a stream is
+ * processed buffer by buffer with no allocation.
+ *
+ * Processing is done by a single audio thread. Settings may be changed from
+ * any thread and take effect from the next buffer.
+ */
+public interface AudioProcessor {
+
+	/**
+	 * Short name of the stage, for logging.
+	 * @return Stage name.
+	 */
+	public String getName();
+
+	/**
+	 * Process a buffer in place.
+	 * @param data 16 bit signed big endian mono samples.
+	 * @param offset Offset of the first byte.
+	 * @param length Number of bytes.
+	 */
+	public void process(byte[] data, int offset, int length);
+
+	/**
+	 * Forget buffered audio. Call when the stream is interrupted.
+	 */
+	public void reset();
+}
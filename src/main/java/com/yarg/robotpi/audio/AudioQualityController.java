@@ -0,0 +1,461 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import com.yarg.robotpi.telemetry.TelemetryFrame;
+import com.yarg.robotpi.telemetry.TelemetryReceiver;
+
+/**
+ * Steps the outbound audio down through quality tiers when the network
+ * can't keep up, so the controller and video traffic sharing the link keep
+ * getting through, and back up once it has been clear for a while.
+ *
+ * Tier 0 is the configured sample rate and packet size. Each lower tier
+ * sends at the next lower rate of 22050, 16000, 11025 and 8000 Hz, so it
+ * sends fewer bytes a second, in packets of at least 20 to 60 ms, so it
+ * never sends more packets a second than the tier above. The packets carry an {@link AudioRateHeader}
+ * while adapting so the robot can follow; the adaptation is off by default
+ * because a robot that doesn't read the header would play the header as
+ * audio.
+ *
+ * Two signals count as congestion: packets piling up or being dropped in
+ * the local send queue, and, when robot telemetry is available, controller
+ * commands arriving late at the robot. Stepping down needs congestion to
+ * last {@value #DOWNGRADE_HOLD_MILLIS} ms; stepping up needs the link to be
+ * clear for a hold time that doubles every time a step up has to be taken
+ * back, so a marginal link doesn't flap between tiers.
+ *
+ * Only the sender thread calls {@link #update(long, AudioPacketRing, int)}.
+ */
+public class AudioQualityController {
+
+	/** Sample rates to step down through, highest first. */
+	private static final int[] STEP_SAMPLE_RATES = {22050, 16000, 11025, 8000};
+
+	/** Shortest packet duration at each step rate, in milliseconds. */
+	private static final int[] STEP_PACKET_MILLIS = {20, 40, 40, 60};
+
+	/** IPv4 and UDP header bytes on every datagram. */
+	private static final int DATAGRAM_OVERHEAD_BYTES = 28;
+
+	/** Time between looks at the signals. */
+	private static final long EVALUATION_INTERVAL_MILLIS = 100;
+
+	/** Packets waiting to be sent that count as congestion. */
+	private static final int CONGESTED_BACKLOG_PACKETS = 3;
+
+	/** Robot side command age that counts as congestion. */
+	private static final int CONGESTED_COMMAND_AGE_MILLIS = 150;
+
+	/** Telemetry older than this is ignored. */
+	private static final long TELEMETRY_STALE_MILLIS = 1000;
+
+	/** Congestion must last this long before stepping down. */
+	private static final long DOWNGRADE_HOLD_MILLIS = 300;
+
+	/** Time after a step down for the queue to drain before the next one. */
+	private static final long DOWNGRADE_SETTLE_MILLIS = 1000;
+
+	/** Shortest clear time before stepping up. */
+	private static final long MIN_UPGRADE_HOLD_MILLIS = 5000;
+
+	/** Longest clear time before stepping up. */
+	private static final long MAX_UPGRADE_HOLD_MILLIS = 60000;
+
+	/** True to adapt; false keeps the top tier. */
+	private volatile boolean enabled;
+
+	/** Enabled setting in use by the sender thread. */
+	private volatile boolean appliedEnabled;
+
+	/** Robot telemetry, null if not available. */
+	private volatile TelemetryReceiver telemetry;
+
+	/** Current tier, 0 is full quality. */
+	private volatile int tier;
+
+	/** Times the quality was stepped down. */
+	private volatile long downgrades;
+
+	/** Times the quality was stepped up. */
+	private volatile long upgrades;
+
+	/** Sample rate the sender is using. */
+	private volatile int outputSampleRate;
+
+	/** Audio bytes in each packet the sender is making. */
+	private volatile int outputPacketBytes;
+
+	/** Header bytes in front of each packet. */
+	private volatile int outputHeaderBytes;
+
+	// The following are only touched by the sender thread.
+
+	/** Telemetry copied out for inspection. */
+	private final TelemetryFrame telemetryFrame = new TelemetryFrame();
+
+	/** Next time to look at the signals. */
+	private long nextEvaluationNanos;
+
+	/** When the current run of congestion started, 0 if clear. */
+	private long congestedSinceNanos;
+
+	/** When the current run of clear evaluations started, 0 if congested. */
+	private long clearSinceNanos;
+
+	/** Earliest time of the next step down. */
+	private long settledNanos;
+
+	/** When the last step up happened, 0 once it has proven itself. */
+	private long upgradedNanos;
+
+	/** Clear time needed before the next step up. */
+	private long upgradeHoldMillis = MIN_UPGRADE_HOLD_MILLIS;
+
+	/** Packets the send queue had dropped at the last evaluation. */
+	private long lastDropped;
+
+	/** What triggered the last congestion, for logging. */
+	private String congestionCause = "";
+
+	/**
+	 * Turn adaptation on or off. Turning it off goes back to full quality
+	 * at the next update.
+	 * @param enabled True to adapt.
+	 */
+	public void setEnabled(boolean enabled) {
+		this.enabled = enabled;
+	}
+
+	/**
+	 * True while adapting.
+	 * @return True if enabled.
+	 */
+	public boolean isEnabled() {
+		return enabled;
+	}
+
+	/**
+	 * True while packets must carry an {@link AudioRateHeader}. Follows the
+	 * enabled setting at the next update, so it only changes between
+	 * packets.
+	 * @return True to put the header in front of every packet.
+	 */
+	public boolean isRateMarked() {
+		return appliedEnabled;
+	}
+
+	/**
+	 * Also treat late controller commands at the robot as congestion.
+	 * @param telemetry Robot telemetry, or null to only watch the send queue.
+	 */
+	public void setTelemetry(TelemetryReceiver telemetry) {
+		this.telemetry = telemetry;
+	}
+
+	/**
+	 * Look at the signals and step the tier if needed. Cheap enough to call
+	 * for every block of audio; only evaluates every
+	 * {@value #EVALUATION_INTERVAL_MILLIS} ms.
+	 * @param nowNanos Current time from System.nanoTime().
+	 * @param sendQueue Outbound packet queue.
+	 * @param configuredRate Sample rate of the full quality tier.
+	 * @return True if the tier, or whether packets carry the header,
+	 * changed.
+	 */
+	public boolean update(long nowNanos, AudioPacketRing sendQueue, int configuredRate) {
+
+		boolean changed = false;
+		boolean adapting = enabled;
+
+		if (adapting != appliedEnabled) {
+			appliedEnabled = adapting;
+			changed = true;
+		}
+
+		// The configured rate can drop below a tier.
+		int lowest = getTierCount(configuredRate) - 1;
+		if (tier > lowest) {
+			tier = lowest;
+			changed = true;
+		}
+
+		return step(nowNanos, sendQueue, lowest) || changed;
+	}
+
+	/**
+	 * Number of tiers for a configured rate: the configured rate itself and
+	 * every step rate below it.
+	 * @param configuredRate Sample rate of the full quality tier.
+	 * @return Tier count, at least 1.
+	 */
+	public static int getTierCount(int configuredRate) {
+
+		int count = 1;
+
+		for (int rate : STEP_SAMPLE_RATES) {
+			if (rate < configuredRate) {
+				count++;
+			}
+		}
+
+		return count;
+	}
+
+	/**
+	 * Sample rate of a tier.
+	 * @param tier Tier, 0 is full quality.
+	 * @param configuredRate Sample rate of the full quality tier.
+	 * @return Sample rate in Hz.
+	 */
+	public static int getSampleRate(int tier, int configuredRate) {
+		int step = getStep(tier, configuredRate);
+		return step < 0 ? configuredRate : STEP_SAMPLE_RATES[step];
+	}
+
+	/**
+	 * Packet duration of a tier.
+	 * @param tier Tier, 0 is full quality.
+	 * @param configuredRate Sample rate of the full quality tier.
+	 * @param configuredMillis Packet duration of the full quality tier, 0 to
+	 * fill the payload budget.
+	 * @return Packet duration in milliseconds, 0 to fill the payload budget.
+	 */
+	public static int getPacketMillis(int tier, int configuredRate, int configuredMillis) {
+		int step = getStep(tier, configuredRate);
+		return step < 0 ? configuredMillis : Math.max(configuredMillis, STEP_PACKET_MILLIS[step]);
+	}
+
+	/**
+	 * Bits a second a stream of packets takes on the wire, IP and UDP
+	 * headers included.
+	 * @param sampleRate Sample rate of the audio.
+	 * @param packetBytes Audio bytes in each packet.
+	 * @param headerBytes Header bytes in front of the audio.
+	 * @return Bit rate.
+	 */
+	public static double getWireBitsPerSecond(int sampleRate, int packetBytes, int headerBytes) {
+		double packetsPerSecond = sampleRate * 2.0 / packetBytes;
+		return packetsPerSecond * (packetBytes + headerBytes + DATAGRAM_OVERHEAD_BYTES) * 8.0;
+	}
+
+	/**
+	 * Sample rate to send at in the current tier.
+	 * @param configuredRate Sample rate of the full quality tier.
+	 * @return Sample rate in Hz.
+	 */
+	public int getSampleRate(int configuredRate) {
+		return getSampleRate(tier, configuredRate);
+	}
+
+	/**
+	 * Packet duration in the current tier.
+	 * @param configuredRate Sample rate of the full quality tier.
+	 * @param configuredMillis Packet duration of the full quality tier, 0 to
+	 * fill the payload budget.
+	 * @return Packet duration in milliseconds, 0 to fill the payload budget.
+	 */
+	public int getPacketMillis(int configuredRate, int configuredMillis) {
+		return getPacketMillis(tier, configuredRate, configuredMillis);
+	}
+
+	/**
+	 * Tell the controller what the sender ended up sending, after the
+	 * payload budget has been applied, for logging.
+	 * @param sampleRate Sample rate in Hz.
+	 * @param packetBytes Audio bytes in each packet.
+	 * @param headerBytes Header bytes in front of each packet.
+	 */
+	public void setOutput(int sampleRate, int packetBytes, int headerBytes) {
+		outputSampleRate = sampleRate;
+		outputPacketBytes = packetBytes;
+		outputHeaderBytes = headerBytes;
+	}
+
+	/**
+	 * Current tier.
+	 * @return Tier, 0 is full quality.
+	 */
+	public int getTier() {
+		return tier;
+	}
+
+	/**
+	 * Describe the adaptation, for logging.
+	 * @return Adaptation summary.
+	 */
+	public String describe() {
+
+		int sampleRate = outputSampleRate;
+		int packetBytes = outputPacketBytes;
+		int headerBytes = outputHeaderBytes;
+		String output = packetBytes == 0 ? "nothing sent yet" : String.format(
+				"%d Hz, %d+%d byte packets every %.1f ms, %.0f kbit/s on the wire",
+				sampleRate, headerBytes, packetBytes, packetBytes * 500.0 / sampleRate,
+				getWireBitsPerSecond(sampleRate, packetBytes, headerBytes) / 1000.0);
+
+		if (!enabled) {
+			return "Outbound audio quality: fixed, "+output;
+		}
+
+		return String.format("Outbound audio quality: tier %d, %s, %d steps down, %d up",
+				tier, output, downgrades, upgrades);
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Index into the step rates of a tier.
+	 * @param tier Tier, 0 is full quality.
+	 * @param configuredRate Sample rate of the full quality tier.
+	 * @return Step index, or -1 for the configured rate.
+	 */
+	private static int getStep(int tier, int configuredRate) {
+
+		int remaining = tier;
+
+		for (int i = 0; i < STEP_SAMPLE_RATES.length && remaining > 0; i++) {
+			if (STEP_SAMPLE_RATES[i] < configuredRate && --remaining == 0) {
+				return i;
+			}
+		}
+
+		return -1;
+	}
+
+	/**
+	 * Look at the signals and step the tier if needed.
+	 * @param nowNanos Current time from System.nanoTime().
+	 * @param sendQueue Outbound packet queue.
+	 * @param lowest Lowest tier available.
+	 * @return True if the tier changed.
+	 */
+	private boolean step(long nowNanos, AudioPacketRing sendQueue, int lowest) {
+
+		if (!enabled) {
+			if (tier == 0) {
+				return false;
+			}
+			tier = 0;
+			upgradeHoldMillis = MIN_UPGRADE_HOLD_MILLIS;
+			upgradedNanos = 0;
+			return true;
+		}
+
+		if (nowNanos - nextEvaluationNanos < 0) {
+			return false;
+		}
+
+		nextEvaluationNanos = nowNanos + EVALUATION_INTERVAL_MILLIS * 1000000L;
+
+		long dropped = sendQueue.getDroppedNewest() + sendQueue.getDroppedOldest();
+		boolean congested = isCongested(nowNanos, sendQueue.size(), dropped - lastDropped);
+		lastDropped = dropped;
+
+		if (congested) {
+
+			clearSinceNanos = 0;
+			if (congestedSinceNanos == 0) {
+				congestedSinceNanos = nowNanos;
+			}
+
+			// A step up that runs straight into congestion was premature.
+			if (upgradedNanos != 0) {
+				upgradeHoldMillis = Math.min(MAX_UPGRADE_HOLD_MILLIS, upgradeHoldMillis * 2);
+				upgradedNanos = 0;
+			}
+
+			if (nowNanos - congestedSinceNanos >= DOWNGRADE_HOLD_MILLIS * 1000000L
+					&& nowNanos - settledNanos >= 0
+					&& tier < lowest) {
+				tier++;
+				downgrades++;
+				settledNanos = nowNanos + DOWNGRADE_SETTLE_MILLIS * 1000000L;
+				congestedSinceNanos = 0;
+				System.out.println("Outbound audio quality down to tier "+tier
+						+" ("+congestionCause+")");
+				return true;
+			}
+
+			return false;
+		}
+
+		congestedSinceNanos = 0;
+		if (clearSinceNanos == 0) {
+			clearSinceNanos = nowNanos;
+		}
+
+		// A step up that stayed clear for a whole hold has proven itself.
+		if (upgradedNanos != 0 
+				&& nowNanos - upgradedNanos >= upgradeHoldMillis * 1000000L) {
+			upgradeHoldMillis = MIN_UPGRADE_HOLD_MILLIS;
+			upgradedNanos = 0;
+		}
+
+		if (tier > 0 && nowNanos - clearSinceNanos >= upgradeHoldMillis * 1000000L) {
+			tier--;
+			upgrades++;
+			upgradedNanos = nowNanos;
+			clearSinceNanos = nowNanos;
+			System.out.println("Outbound audio quality up to tier "+tier
+					+" after "+upgradeHoldMillis+" ms clear");
+			return true;
+		}
+
+		return false;
+	}
+
+	/**
+	 * Decide whether the link is congested right now.
+	 * @param nowNanos Current time from System.nanoTime().
+	 * @param backlog Packets waiting to be sent.
+	 * @param newlyDropped Packets dropped since the last evaluation.
+	 * @return True if congested.
+	 */
+	private boolean isCongested(long nowNanos, int backlog, long newlyDropped) {
+
+		if (newlyDropped > 0) {
+			congestionCause = newlyDropped+" packets dropped";
+			return true;
+		}
+
+		if (backlog >= CONGESTED_BACKLOG_PACKETS) {
+			congestionCause = backlog+" packets queued";
+			return true;
+		}
+
+		TelemetryReceiver receiver = telemetry;
+
+		if (receiver != null) {
+			receiver.getLatest(telemetryFrame);
+			if (telemetryFrame.getAgeMillis(nowNanos) <= TELEMETRY_STALE_MILLIS
+					&& telemetryFrame.hasCommand()
+					&& telemetryFrame.getCommandAgeMillis() > CONGESTED_COMMAND_AGE_MILLIS) {
+				congestionCause = "robot command age "
+						+telemetryFrame.getCommandAgeMillis()+" ms";
+				return true;
+			}
+		}
+
+		return false;
+	}
+}
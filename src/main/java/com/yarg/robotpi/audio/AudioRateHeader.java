@@ -0,0 +1,93 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Header put in front of every outbound audio packet while the quality
+ * adaptation is on, telling the robot the sample rate of the audio that
+ * follows. Eight bytes, big endian:
+ * <pre>
+ * 0  magic 0x5241 ("RA")
+ * 2  version, 1
+ * 3  reserved, 0
+ * 4  sample rate in Hz
+ * </pre>
+ * Without the adaptation packets are plain PCM at the configured rate, as
+ * before.
+ */
+public class AudioRateHeader {
+
+	/** Bytes in the header. */
+	public static final int BYTES = 8;
+
+	/** First two bytes of the header. */
+	public static final int MAGIC = 0x5241;
+
+	/** Header layout version. */
+	public static final int VERSION = 1;
+
+	private AudioRateHeader() {
+	}
+
+	/**
+	 * Write a header.
+	 * @param buffer Buffer to write to. Must hold {@link #BYTES} bytes from
+	 * the offset.
+	 * @param offset Offset to start writing at.
+	 * @param sampleRate Sample rate of the audio in the packet.
+	 * @return Number of bytes written.
+	 */
+	public static int write(byte[] buffer, int offset, int sampleRate) {
+
+		buffer[offset] = (byte) (MAGIC >> 8);
+		buffer[offset + 1] = (byte) MAGIC;
+		buffer[offset + 2] = (byte) VERSION;
+		buffer[offset + 3] = 0;
+		buffer[offset + 4] = (byte) (sampleRate >> 24);
+		buffer[offset + 5] = (byte) (sampleRate >> 16);
+		buffer[offset + 6] = (byte) (sampleRate >> 8);
+		buffer[offset + 7] = (byte) sampleRate;
+
+		return BYTES;
+	}
+
+	/**
+	 * Read the sample rate from the start of a packet.
+	 * @param buffer Buffer holding the packet.
+	 * @param offset Offset of the first byte of the packet.
+	 * @param length Length of the packet.
+	 * @return Sample rate in Hz, or -1 if the packet doesn't start with a
+	 * header.
+	 */
+	public static int readSampleRate(byte[] buffer, int offset, int length) {
+
+		if (length < BYTES
+				|| (buffer[offset] & 0xFF) != (MAGIC >> 8)
+				|| (buffer[offset + 1] & 0xFF) != (MAGIC & 0xFF)
+				|| buffer[offset + 2] != VERSION) {
+			return -1;
+		}
+
+		return ((buffer[offset + 4] & 0xFF) << 24)
+				| ((buffer[offset + 5] & 0xFF) << 16)
+				| ((buffer[offset + 6] & 0xFF) << 8)
+				| (buffer[offset + 7] & 0xFF);
+	}
+}
@@ -0,0 +1,256 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Receives audio datagrams straight into buffers from an
+ * {@link AudioBufferPool}, so a packet is never copied on its way from the
+ * socket to the jitter buffer. When the pool runs dry the datagram is read
+ * into a scratch buffer and dropped so the socket keeps draining.
+ */
+public class AudioReceiver {
+
+	/** Kernel receive buffer asked for, enough for bursts of packets. */
+	private static final int SOCKET_RECEIVE_BUFFER_BYTES = 1 << 20;
+
+	/** Port to listen on. */
+	private final int port;
+
+	/** Pool to receive into. */
+	private final AudioBufferPool pool;
+
+	/** Datagrams land here when the pool is empty. */
+	private final ByteBuffer scratch;
+
+	/** Open channel, null when closed. */
+	private volatile DatagramChannel channel;
+
+	/** Datagrams received into pooled buffers. */
+	private volatile long receivedPackets;
+
+	/** Bytes received into pooled buffers. */
+	private volatile long receivedBytes;
+
+	/** Datagrams dropped because no pooled buffer was free. */
+	private volatile long droppedPackets;
+
+	/** Datagrams that filled the whole buffer and may have been cut short. */
+	private volatile long truncatedPackets;
+
+	/**
+	 * Create a new receiver.
+	 * @param port Port to listen on.
+	 * @param pool Pool to receive into.
+	 */
+	public AudioReceiver(int port, AudioBufferPool pool) {
+		this.port = port;
+		this.pool = pool;
+		scratch = ByteBuffer.allocate(pool.getBufferBytes());
+	}
+
+	/**
+	 * Open the channel, closing any channel opened before.
+	 * @throws IOException If the port can't be bound.
+	 */
+	public void open() throws IOException {
+
+		close();
+
+		DatagramChannel newChannel = DatagramChannel.open();
+
+		try {
+			newChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			newChannel.setOption(StandardSocketOptions.SO_RCVBUF, 
+					SOCKET_RECEIVE_BUFFER_BYTES);
+			newChannel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			newChannel.close();
+			throw e;
+		}
+
+		channel = newChannel;
+	}
+
+	/**
+	 * True while the channel is open.
+	 * @return True if open.
+	 */
+	public boolean isOpen() {
+		DatagramChannel current = channel;
+		return current != null && current.isOpen();
+	}
+
+	/**
+	 * Close the channel. A thread blocked in {@link #receive()} gets an
+	 * exception.
+	 */
+	public void close() {
+
+		DatagramChannel current = channel;
+		channel = null;
+
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Wait for the next datagram.
+	 * @return Pooled buffer holding the datagram between its position and
+	 * limit, owned by the caller; or null if it had to be dropped.
+	 * @throws IOException If receiving fails or the channel is closed.
+	 */
+	public ByteBuffer receive() throws IOException {
+
+		DatagramChannel current = channel;
+
+		if (current == null) {
+			throw new IOException("Audio receive channel is not open");
+		}
+
+		ByteBuffer buffer = pool.acquire();
+
+		if (buffer == null) {
+			scratch.clear();
+			current.receive(scratch);
+			droppedPackets++;
+			return null;
+		}
+
+		try {
+			current.receive(buffer);
+		} catch (IOException e) {
+			pool.release(buffer);
+			throw e;
+		}
+
+		if (!buffer.hasRemaining()) {
+			truncatedPackets++;
+		}
+
+		buffer.flip();
+		receivedPackets++;
+		receivedBytes += buffer.remaining();
+		return buffer;
+	}
+
+	/**
+	 * Take the next datagram if one is waiting, for a non-blocking channel.
+	 * Datagrams that arrive while the pool is empty are dropped.
+	 * @return Pooled buffer holding the datagram between its position and
+	 * limit, owned by the caller; or null if nothing is waiting.
+	 * @throws IOException If receiving fails or the channel is closed.
+	 */
+	public ByteBuffer poll() throws IOException {
+
+		DatagramChannel current = channel;
+
+		if (current == null) {
+			throw new IOException("Audio receive channel is not open");
+		}
+
+		while (true) {
+
+			ByteBuffer buffer = pool.acquire();
+
+			if (buffer == null) {
+				scratch.clear();
+				if (current.receive(scratch) == null) {
+					return null;
+				}
+				droppedPackets++;
+				continue;
+			}
+
+			SocketAddress source;
+			try {
+				source = current.receive(buffer);
+			} catch (IOException e) {
+				pool.release(buffer);
+				throw e;
+			}
+
+			if (source == null) {
+				pool.release(buffer);
+				return null;
+			}
+
+			if (!buffer.hasRemaining()) {
+				truncatedPackets++;
+			}
+
+			buffer.flip();
+			receivedPackets++;
+			receivedBytes += buffer.remaining();
+			return buffer;
+		}
+	}
+
+	/**
+	 * Open channel, for registering with a reactor.
+	 * @return Channel, or null when closed.
+	 */
+	public DatagramChannel getChannel() {
+		return channel;
+	}
+
+	/**
+	 * Datagrams received into pooled buffers.
+	 * @return Received packet count.
+	 */
+	public long getReceivedPackets() {
+		return receivedPackets;
+	}
+
+	/**
+	 * Bytes received into pooled buffers.
+	 * @return Received byte count.
+	 */
+	public long getReceivedBytes() {
+		return receivedBytes;
+	}
+
+	/**
+	 * Datagrams dropped because no pooled buffer was free.
+	 * @return Dropped packet count.
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets;
+	}
+
+	/**
+	 * Datagrams that filled a whole buffer and may have been cut short.
+	 * @return Possibly truncated packet count.
+	 */
+	public long getTruncatedPackets() {
+		return truncatedPackets;
+	}
+}
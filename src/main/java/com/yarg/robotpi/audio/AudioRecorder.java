@@ -0,0 +1,299 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Records the audio heard from the robot and the audio sent to it into a
+ * pair of WAV files. The real time threads only copy each buffer into a
+ * lock free queue, one per stream, and never wait; if the disk falls so far
+ * behind that a queue fills up, the recording loses audio, never the live
+ * stream. A writer thread drains the queues to disk and rewrites the WAV
+ * headers every second so the files stay playable.
+ *
+ * Both files share the time the recording started: gaps where nothing was
+ * sent or received are filled with silence so the two line up in an editor.
+ */
+public class AudioRecorder extends Thread {
+
+	/** Audio streams that can be recorded. */
+	public enum Stream {
+
+		/** Audio received from the robot, as played. */
+		INCOMING("incoming"),
+
+		/** Audio sent to the robot, before sample rate conversion. */
+		OUTGOING("outgoing");
+
+		/** File name suffix. */
+		private final String suffix;
+
+		private Stream(String suffix) {
+			this.suffix = suffix;
+		}
+	}
+
+	/** Packets each queue holds. */
+	private static final int QUEUE_PACKETS = 256;
+
+	/** Largest chunk in a queue. Bigger buffers are split. */
+	private static final int QUEUE_SLOT_BYTES = 8192;
+
+	/** How often the WAV headers are rewritten. */
+	private static final long FINALIZE_INTERVAL_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** Pause when both queues are empty. */
+	private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(10);
+
+	/** Gaps shorter than this are not filled with silence. */
+	private static final long MIN_GAP_MILLIS = 100;
+
+	/** Bytes per frame of 16 bit mono audio. */
+	private static final int FRAME_SIZE = 2;
+
+	/** Queue of each stream. */
+	private final AudioPacketRing[] queues;
+
+	/** File of each stream. */
+	private final WavFileWriter[] writers;
+
+	/** Files being written. */
+	private final File[] files;
+
+	/** Sample rate of the recorded audio. */
+	private final float sampleRate;
+
+	/** When recording started. */
+	private final long startNanos;
+
+	/** Flag execution state of thread. */
+	private volatile boolean running;
+
+	/**
+	 * Create a recorder and its files. Call {@link #startRecording()} to
+	 * begin.
+	 * @param directory Directory to write to. Created if missing.
+	 * @param sampleRate Sample rate of both streams.
+	 * @throws IOException If the files can't be created.
+	 */
+	public AudioRecorder(File directory, float sampleRate) throws IOException {
+
+		super("AudioRecorder");
+
+		if (!directory.isDirectory() && !directory.mkdirs()) {
+			throw new IOException("Unable to create recording directory: "+directory);
+		}
+
+		this.sampleRate = sampleRate;
+		String stamp = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+
+		Stream[] streams = Stream.values();
+		queues = new AudioPacketRing[streams.length];
+		writers = new WavFileWriter[streams.length];
+		files = new File[streams.length];
+
+		try {
+			for (Stream stream : streams) {
+				int i = stream.ordinal();
+				queues[i] = new AudioPacketRing(QUEUE_PACKETS, QUEUE_SLOT_BYTES);
+				files[i] = new File(directory, "robotpi-"+stamp+"-"+stream.suffix+".wav");
+				writers[i] = new WavFileWriter(files[i], sampleRate);
+			}
+		} catch (IOException e) {
+			closeWriters();
+			throw e;
+		}
+
+		startNanos = System.nanoTime();
+		setDaemon(true);
+	}
+
+	/**
+	 * Start the writer thread.
+	 */
+	public void startRecording() {
+		running = true;
+		this.start();
+		System.out.println("Recording audio to "+files[0].getParent());
+	}
+
+	/**
+	 * Stop recording. Whatever is queued is written and the files closed
+	 * before this returns.
+	 */
+	public void stopRecording() {
+
+		running = false;
+		LockSupport.unpark(this);
+
+		try {
+			this.join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		System.out.println(describe());
+	}
+
+	/**
+	 * Copy a buffer into the recording. Never blocks. Each stream must only
+	 * be recorded from one thread.
+	 * @param stream Stream the audio belongs to.
+	 * @param data 16 bit signed big endian mono samples.
+	 * @param offset Offset of the first byte.
+	 * @param length Number of bytes.
+	 */
+	public void record(Stream stream, byte[] data, int offset, int length) {
+
+		AudioPacketRing queue = queues[stream.ordinal()];
+		long now = System.nanoTime();
+
+		for (int done = 0; done < length; done += QUEUE_SLOT_BYTES) {
+			queue.offer(data, offset + done, 
+					Math.min(QUEUE_SLOT_BYTES, length - done), now);
+		}
+	}
+
+	/**
+	 * Describe what was recorded, for logging.
+	 * @return Recording summary.
+	 */
+	public String describe() {
+
+		StringBuilder text = new StringBuilder("Recording:");
+
+		for (Stream stream : Stream.values()) {
+			int i = stream.ordinal();
+			text.append(String.format(" %s %.1f s (%d chunks lost, queue peak %d of %d)",
+					stream.suffix, writers[i].getFrames() / sampleRate,
+					queues[i].getDroppedNewest(), queues[i].getHighWaterMark(),
+					queues[i].getCapacity()));
+		}
+
+		return text.toString();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		long lastFinalizeNanos = System.nanoTime();
+
+		try {
+			while (true) {
+
+				// Read the flag before draining so nothing queued before a
+				// stop is left behind.
+				boolean stopping = !running;
+				boolean wrote = false;
+
+				for (int i = 0; i < queues.length; i++) {
+					wrote |= drain(i);
+				}
+
+				if (System.nanoTime() - lastFinalizeNanos >= FINALIZE_INTERVAL_NANOS) {
+					for (WavFileWriter writer : writers) {
+						writer.finalizeHeader();
+					}
+					lastFinalizeNanos = System.nanoTime();
+				}
+
+				if (stopping) {
+					break;
+				}
+
+				if (!wrote) {
+					LockSupport.parkNanos(this, IDLE_NANOS);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("Recording stopped, unable to write audio.");
+			e.printStackTrace();
+			running = false;
+		} finally {
+			closeWriters();
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Write everything queued for a stream.
+	 * @param index Stream index.
+	 * @return True if anything was written.
+	 * @throws IOException If writing fails.
+	 */
+	private boolean drain(int index) throws IOException {
+
+		AudioPacketRing queue = queues[index];
+		WavFileWriter writer = writers[index];
+		boolean wrote = false;
+		byte[] chunk;
+
+		while ((chunk = queue.peek()) != null) {
+
+			int length = queue.peekLength();
+
+			// Line the chunk up with the recording clock if the stream was
+			// quiet for a while.
+			long chunkFrames = length / FRAME_SIZE;
+			long dueFrames = (long) ((queue.peekMark() - startNanos) / 1e9 * sampleRate)
+					- chunkFrames;
+			long gapFrames = dueFrames - writer.getFrames();
+
+			if (gapFrames > sampleRate * MIN_GAP_MILLIS / 1000) {
+				writer.writeSilence(gapFrames);
+			}
+
+			writer.write(chunk, 0, length);
+			queue.remove();
+			wrote = true;
+		}
+
+		return wrote;
+	}
+
+	/**
+	 * Close every open file.
+	 */
+	private void closeWriters() {
+
+		for (WavFileWriter writer : writers) {
+			if (writer == null) {
+				continue;
+			}
+			try {
+				writer.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+}
@@ -0,0 +1,339 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.UnknownHostException;
+import java.nio.ByteBuffer;
+
+import com.yarg.robotpi.net.UdpReactor;
+
+/**
+ * Takes audio packets queued by the capture thread and sends them to the
+ * robot. Sending is the only thing this thread does, so a stalled network
+ * only ever backs up the packet ring and never the capture line.
+ *
+ * Alternatively the packets can be handed to a shared {@link UdpReactor}
+ * with {@link #startSending(UdpReactor)}, in which case this thread is never
+ * started.
+ */
+public class AudioSendThread extends Thread implements UdpReactor.OutboundQueue {
+
+	/** The datagram client. Setup to only allow a single client connection.*/
+	private DatagramSocket clientDatagramSocket = null;
+
+	/** Flag execution state of thread. */
+	private volatile boolean running;
+
+	/** Server address to send datagrams to. */
+	private String serverAddress;
+
+	/** Port to send datagrams over. */
+	private int serverPort;
+
+	/** Packets waiting to be sent. */
+	private AudioPacketRing packetRing;
+
+	/** Packets sent. */
+	private volatile long sentPackets;
+
+	/** Bytes sent. */
+	private volatile long sentBytes;
+
+	/** Reactor sending the packets, null when this thread sends them. */
+	private UdpReactor reactor;
+
+	/** Reactor channel the packets go out on. */
+	private UdpReactor.Outbound outbound;
+
+	/** Time stamp of the packet last peeked by the reactor. */
+	private long peekedMark;
+
+	/** Talk presses measured. */
+	private volatile long talkLatencyCount;
+
+	/** Sum of all talk press to wire times. */
+	private volatile long talkLatencyTotalNanos;
+
+	/** Longest talk press to wire time. */
+	private volatile long talkLatencyMaxNanos;
+
+	/**
+	 * Create a new send thread.
+	 * @param serverAddress Server to send audio data to.
+	 * @param serverPort Server port to send audio data to.
+	 * @param packetRing Packets to send.
+	 */
+	public AudioSendThread(String serverAddress, int serverPort, 
+			AudioPacketRing packetRing) {
+
+		this.serverAddress = serverAddress;
+		this.serverPort = serverPort;
+		this.packetRing = packetRing;
+	}
+
+	/**
+	 * Open the datagram socket. Must be called before starting.
+	 * @return True if the socket opened.
+	 */
+	public boolean initialize() {
+
+		if (clientDatagramSocket != null) {
+			clientDatagramSocket.close();
+		}
+
+		try {
+			clientDatagramSocket = new DatagramSocket();
+		} catch (SocketException e) {
+			e.printStackTrace();
+			clientDatagramSocket = null;
+			return false;
+		}
+
+		try {
+			clientDatagramSocket.setTrafficClass(
+					UdpReactor.Priority.MEDIA.getTrafficClass());
+		} catch (SocketException e) {
+			System.out.println("Unable to mark audio packets: "+e.getMessage());
+		}
+
+		return true;
+	}
+
+	/**
+	 * Start sending queued packets.
+	 */
+	public void startSending() {
+		running = true;
+		this.start();
+	}
+
+	/**
+	 * Send queued packets through a reactor instead of this thread. The
+	 * blocking socket is closed.
+	 * @param reactor Reactor to send through.
+	 * @return True if the reactor took the channel.
+	 */
+	public boolean startSending(UdpReactor reactor) {
+
+		if (clientDatagramSocket != null) {
+			clientDatagramSocket.close();
+			clientDatagramSocket = null;
+		}
+
+		try {
+			InetSocketAddress target = new InetSocketAddress(
+					InetAddress.getByName(serverAddress), serverPort);
+			outbound = reactor.addOutbound("audio out", UdpReactor.Priority.MEDIA, 
+					target, this);
+		} catch (IOException e) {
+			System.out.println("Unable to send audio through the reactor. Nothing will be sent.");
+			e.printStackTrace();
+			return false;
+		}
+
+		this.reactor = reactor;
+		final UdpReactor.Outbound signalled = outbound;
+		packetRing.setWakeUp(new Runnable() {
+
+			@Override
+			public void run() {
+				signalled.signal();
+			}
+		});
+
+		return true;
+	}
+
+	/**
+	 * Stop sending and close the socket.
+	 */
+	public void stopSending() {
+
+		if (reactor != null) {
+			packetRing.setWakeUp(null);
+			reactor.removeOutbound(outbound);
+			System.out.println("Audio send: "+outbound.describe());
+			reactor = null;
+			outbound = null;
+		}
+
+		running = false;
+		this.interrupt();
+
+		if (clientDatagramSocket != null) {
+			clientDatagramSocket.close();
+			clientDatagramSocket = null;
+		}
+	}
+
+	/**
+	 * Packets sent so far.
+	 * @return Sent packet count.
+	 */
+	public long getSentPackets() {
+		return sentPackets;
+	}
+
+	/**
+	 * Bytes sent so far.
+	 * @return Sent byte count.
+	 */
+	public long getSentBytes() {
+		return sentBytes;
+	}
+
+	/**
+	 * Describe the talk press to wire latency measured so far.
+	 * @return Latency summary.
+	 */
+	public String describeTalkLatency() {
+
+		long count = talkLatencyCount;
+
+		if (count == 0) {
+			return "no talk presses measured";
+		}
+
+		return String.format("%d presses, mean %.2f ms, max %.2f ms",
+				count,
+				talkLatencyTotalNanos / 1e6 / count,
+				talkLatencyMaxNanos / 1e6);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		if (clientDatagramSocket == null) {
+			System.out.println("Audio send socket is not open. Nothing will be sent.");
+			return;
+		}
+
+		InetAddress address;
+		try {
+			address = InetAddress.getByName(serverAddress);
+		} catch (UnknownHostException e) {
+			System.out.println("Unreoverable error occurred during startup of audio stream. See stack trace for more information.");
+			e.printStackTrace();
+			return;
+		}
+
+		DatagramPacket packet = new DatagramPacket(new byte[0], 0, address, serverPort);
+
+		while (running) {
+
+			byte[] data = packetRing.peek();
+
+			if (data == null) {
+				// Parks until the capture thread queues a packet or
+				// stopSending interrupts.
+				packetRing.await();
+				continue;
+			}
+
+			int length = packetRing.peekLength();
+			long mark = packetRing.peekMark();
+			packet.setData(data, 0, length);
+
+			try {
+				clientDatagramSocket.send(packet);
+				sentPackets++;
+				sentBytes += length;
+
+				if (mark != 0) {
+					recordTalkLatency(System.nanoTime() - mark);
+				}
+			} catch (IOException e) {
+
+				if (!running) {
+					break;
+				}
+
+				System.out.println("Exception on outgoing audio stream. Pausing before continuing.");
+				e.printStackTrace();
+
+				// Give it a moment to rest and then continue. Capture keeps
+				// running and the ring sheds the backlog meanwhile.
+				try {
+					sleep(500);
+				} catch (InterruptedException e1) {
+					e1.printStackTrace();
+				}
+			}
+
+			packetRing.remove();
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Methods required by UdpReactor.OutboundQueue
+	// -------------------------------------------------------------------------
+
+	@Override
+	public boolean peekInto(ByteBuffer target) {
+
+		byte[] data = packetRing.peek();
+
+		if (data == null) {
+			return false;
+		}
+
+		target.put(data, 0, packetRing.peekLength());
+		peekedMark = packetRing.peekMark();
+		return true;
+	}
+
+	@Override
+	public void remove() {
+
+		if (peekedMark != 0) {
+			recordTalkLatency(System.nanoTime() - peekedMark);
+			peekedMark = 0;
+		}
+
+		packetRing.remove();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Record the time from a talk press to its first packet leaving.
+	 * @param latencyNanos Measured latency.
+	 */
+	private void recordTalkLatency(long latencyNanos) {
+
+		talkLatencyCount++;
+		talkLatencyTotalNanos += latencyNanos;
+		talkLatencyMaxNanos = Math.max(talkLatencyMaxNanos, latencyNanos);
+
+		System.out.println(String.format(
+				"Talk press to wire: %.2f ms", latencyNanos / 1e6));
+	}
+}
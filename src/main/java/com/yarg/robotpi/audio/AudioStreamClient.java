@@ -20,8 +20,14 @@ package com.yarg.robotpi.audio;
  */
 
 import java.io.File;
+import java.io.IOException;
+
+import javax.sound.sampled.AudioFormat;
 
 import com.yarg.robotpi.audio.SourceDataLineThread;
+import com.yarg.robotpi.config.PerformanceProfile;
+import com.yarg.robotpi.net.UdpReactor;
+import com.yarg.robotpi.telemetry.TelemetryReceiver;
 import com.yarg.robotpi.audio.TargetDataLineThread;
 import com.yarg.robotpi.input.AudioControls;
 
@@ -31,28 +37,328 @@ public class AudioStreamClient implements AudioControls{
 	
 	private int SEND_PORT = 49809;
 	
-	private String SERVER_ADDRESS = "robotpi.local";
+	/** Robot to send to if none is given. */
+	private static final String DEFAULT_SERVER_ADDRESS = "robotpi.local";
+	
+	/** 
+	 * Sample rate audio is sent to the robot at. The robot must be set up to
+	 * play the same rate; 16000 or 22050 are plenty for voice.
+	 */
+	private int OUTBOUND_SAMPLE_RATE = 44100;
 
 	SourceDataLineThread incomingStream;
 	TargetDataLineThread microphoneStream;
 	
+	/** Analyzed sound files, for loudness and envelope. May be null. */
+	private SoundLibraryAnalyzer soundLibrary;
+	
+	/** Metadata of the audio file most recently started, if known. */
+	private volatile SoundFileMetadata currentFileMetadata;
+	
+	/** Sample rate audio is played and mixed at, as recorded and metered. */
+	private static final float MIX_SAMPLE_RATE = 44100.0f;
+	
+	/** Records both streams to disk, null when not recording. */
+	private AudioRecorder recorder;
+	
+	/** Level of the audio heard from the robot. */
+	private final AudioLevelMeter incomingLevel = new AudioLevelMeter(MIX_SAMPLE_RATE);
+	
+	/** Level of the audio sent to the robot. */
+	private final AudioLevelMeter outgoingLevel = new AudioLevelMeter(MIX_SAMPLE_RATE);
+	
 	public AudioStreamClient() {
+		this(DEFAULT_SERVER_ADDRESS);
+	}
+	
+	/**
+	 * Create a client sending to a given robot. Opens the audio lines and
+	 * sockets, which can take a while.
+	 * @param serverAddress Robot host name or address. Pass an address that
+	 * is already resolved to avoid another name lookup.
+	 */
+	public AudioStreamClient(String serverAddress) {
+		this(serverAddress, PerformanceProfile.defaults());
+	}
+	
+	/**
+	 * Create a client sending to a given robot with the given settings,
+	 * including the ports.
+	 * @param serverAddress Robot host name or address.
+	 * @param profile Performance settings.
+	 */
+	public AudioStreamClient(String serverAddress, PerformanceProfile profile) {
+		RECEIVE_PORT = profile.getAudioReceivePort();
+		SEND_PORT = profile.getAudioSendPort();
+		OUTBOUND_SAMPLE_RATE = profile.getAudioOutboundSampleRate();
+		
 		incomingStream = new SourceDataLineThread(RECEIVE_PORT);
-		microphoneStream = new TargetDataLineThread(SERVER_ADDRESS, SEND_PORT);
+		microphoneStream = new TargetDataLineThread(serverAddress, SEND_PORT);
 		
 		incomingStream.initialize();
 		microphoneStream.initialize();
+		microphoneStream.setOutboundSampleRate(OUTBOUND_SAMPLE_RATE);
+		incomingStream.setLevelMeter(incomingLevel);
+		microphoneStream.setLevelMeter(outgoingLevel);
+		applyProfile(profile);
 	}
 
+	/**
+	 * Run both audio sockets on a shared reactor instead of a thread each.
+	 * Must be called before starting.
+	 * @param reactor Reactor to use, or null for a thread per socket.
+	 */
+	public void setReactor(UdpReactor reactor) {
+		incomingStream.setReactor(reactor);
+		microphoneStream.setReactor(reactor);
+	}
+	
 	public void startAudioStream() {
 		incomingStream.startAudioStreamSpeakers();
 		microphoneStream.startAudioStreamMicrophone();
 	}
 	
 	public void stopAudioStream() {
+		stopRecording();
 		incomingStream.stopAudioStreamSpeakers();
 		microphoneStream.stopAudioStreamMicrophone();
 	}
+	
+	/**
+	 * Meter measuring the audio heard from the robot.
+	 * @return Incoming level meter.
+	 */
+	public AudioLevelMeter getIncomingLevel() {
+		return incomingLevel;
+	}
+	
+	/**
+	 * Meter measuring the audio sent to the robot.
+	 * @return Outgoing level meter.
+	 */
+	public AudioLevelMeter getOutgoingLevel() {
+		return outgoingLevel;
+	}
+	
+	/**
+	 * Start recording the audio heard from and sent to the robot. Does
+	 * nothing if already recording.
+	 * @param directory Directory to write the recordings to.
+	 * @return True if recording.
+	 */
+	public synchronized boolean startRecording(File directory) {
+		
+		if (recorder != null) {
+			return true;
+		}
+		
+		try {
+			recorder = new AudioRecorder(directory, MIX_SAMPLE_RATE);
+		} catch (IOException e) {
+			System.out.println("Unable to start recording.");
+			e.printStackTrace();
+			return false;
+		}
+		
+		recorder.startRecording();
+		incomingStream.setRecorder(recorder);
+		microphoneStream.setRecorder(recorder);
+		return true;
+	}
+	
+	/**
+	 * Stop recording and close the files. Does nothing if not recording.
+	 */
+	public synchronized void stopRecording() {
+		
+		if (recorder == null) {
+			return;
+		}
+		
+		incomingStream.setRecorder(null);
+		microphoneStream.setRecorder(null);
+		recorder.stopRecording();
+		recorder = null;
+	}
+	
+	/**
+	 * Switch to new performance settings while running. Ports are only read
+	 * when the client is created. Packet settings apply together from the
+	 * next talk spurt or sound file.
+	 * @param profile Settings to use.
+	 */
+	public void applyProfile(PerformanceProfile profile) {
+		microphoneStream.setOutboundSampleRate(profile.getAudioOutboundSampleRate());
+		microphoneStream.setMaxPayloadBytes(profile.getAudioMaxPayloadBytes());
+		microphoneStream.setPacketDurationMillis(profile.getAudioPacketMillis());
+		microphoneStream.setPreRollMillis(profile.getAudioPreRollMillis());
+		microphoneStream.setVoiceActivityDetection(profile.isAudioVoiceActivityDetection());
+		microphoneStream.getQualityController().setEnabled(profile.isAudioAdaptiveQuality());
+		microphoneStream.setStreamingAudioFileDelay(profile.getAudioFilePacketDelayMillis());
+		setLineProfile(profile.getAudioLineProfile());
+	}
+	
+	/**
+	 * Let the outbound quality adaptation also react to controller commands
+	 * arriving late at the robot.
+	 * @param telemetry Robot telemetry, or null to only watch the send queue.
+	 */
+	public void setTelemetry(TelemetryReceiver telemetry) {
+		microphoneStream.getQualityController().setTelemetry(telemetry);
+	}
+	
+	/**
+	 * Set the sample rate audio is sent to the robot at. The robot must be
+	 * configured to play the same rate.
+	 * @param sampleRate Outbound sample rate in Hz.
+	 */
+	public void setOutboundSampleRate(int sampleRate) {
+		microphoneStream.setOutboundSampleRate(sampleRate);
+	}
+	
+	/**
+	 * Format of the audio sent to the robot, for configuring the receiver.
+	 * @return Outbound audio format.
+	 */
+	public AudioFormat getOutboundAudioFormat() {
+		return microphoneStream.getOutboundAudioFormat();
+	}
+	
+	/**
+	 * Set the largest audio payload sent to the robot in one datagram.
+	 * @param bytes Payload budget in bytes.
+	 */
+	public void setMaxPayloadBytes(int bytes) {
+		microphoneStream.setMaxPayloadBytes(bytes);
+	}
+	
+	/**
+	 * Send audio packets of a fixed duration, capped by the payload budget.
+	 * @param milliseconds Packet duration, 0 to fill the payload budget.
+	 */
+	public void setPacketDurationMillis(int milliseconds) {
+		microphoneStream.setPacketDurationMillis(milliseconds);
+	}
+	
+	/**
+	 * Keep the last few milliseconds of microphone audio before each talk
+	 * press and send it ahead of the live audio.
+	 * @param milliseconds Pre-roll length, 0 to disable.
+	 */
+	public void setMicrophonePreRollMillis(int milliseconds) {
+		microphoneStream.setPreRollMillis(milliseconds);
+	}
+	
+	/**
+	 * Switch both audio lines to another latency profile while running.
+	 * @param profile Profile to use.
+	 */
+	public void setLineProfile(AudioLineProfile profile) {
+		incomingStream.setLineProfile(profile);
+		microphoneStream.setLineProfile(profile);
+	}
+	
+	/**
+	 * Describe the latency measured on the capture and playback lines.
+	 * @return Latency summary.
+	 */
+	public String describeLineLatency() {
+		return microphoneStream.getCaptureLatency().describe()
+				+ ", " + incomingStream.getPlaybackLatency().describe();
+	}
+	
+	/**
+	 * Configure the noise gate on the microphone.
+	 * @param enabled True to gate the microphone.
+	 * @param thresholdDb Level the gate opens at, in dBFS.
+	 */
+	public void setNoiseGate(boolean enabled, float thresholdDb) {
+		microphoneStream.getNoiseGate().setThresholdDb(thresholdDb);
+		microphoneStream.getMicrophoneProcessing().setEnabled(
+				microphoneStream.getNoiseGate(), enabled);
+	}
+	
+	/**
+	 * Configure the automatic gain control on the microphone.
+	 * @param enabled True to level the microphone.
+	 * @param targetDb Speech level aimed for, in dBFS RMS.
+	 */
+	public void setAutomaticGainControl(boolean enabled, float targetDb) {
+		microphoneStream.getAutomaticGainControl().setTargetDb(targetDb);
+		microphoneStream.getMicrophoneProcessing().setEnabled(
+				microphoneStream.getAutomaticGainControl(), enabled);
+	}
+	
+	/**
+	 * Configure the limiter on the microphone.
+	 * @param enabled True to limit the microphone.
+	 * @param ceilingDb Highest level let through, in dBFS.
+	 */
+	public void setLimiter(boolean enabled, float ceilingDb) {
+		microphoneStream.getLimiter().setCeilingDb(ceilingDb);
+		microphoneStream.getMicrophoneProcessing().setEnabled(
+				microphoneStream.getLimiter(), enabled);
+	}
+	
+	/**
+	 * Describe the time taken by each microphone processing stage.
+	 * @return Processing timing summary.
+	 */
+	public String describeMicrophoneProcessing() {
+		return microphoneStream.getMicrophoneProcessing().describe();
+	}
+	
+	/**
+	 * Describe the talk press to wire latency measured so far.
+	 * @return Latency summary.
+	 */
+	public String describeTalkLatency() {
+		return microphoneStream.describeTalkLatency();
+	}
+	
+	/**
+	 * Set the analyzed sound library. Files are then played at their
+	 * normalized loudness and report their envelope level.
+	 * @param soundLibrary Sound library, or null to play files as recorded.
+	 */
+	public void setSoundLibrary(SoundLibraryAnalyzer soundLibrary) {
+		this.soundLibrary = soundLibrary;
+	}
+	
+	/**
+	 * Load a sound file ahead of time so it starts without delay, and
+	 * analyze it if a sound library is set.
+	 * @param audioFile Sound file to load.
+	 */
+	public void prewarmAudioFile(File audioFile) {
+		
+		if (soundLibrary != null) {
+			soundLibrary.analyze(audioFile);
+		}
+		
+		microphoneStream.prewarmAudioFile(audioFile);
+	}
+	
+	/**
+	 * Forget everything loaded for a sound file that was removed.
+	 * @param audioFile Sound file to forget.
+	 */
+	public void forgetAudioFile(File audioFile) {
+		
+		if (soundLibrary != null) {
+			soundLibrary.remove(audioFile);
+		}
+		
+		microphoneStream.forgetAudioFile(audioFile);
+	}
+	
+	/**
+	 * Enable or disable suppression of silent microphone audio.
+	 * @param enabled True to only send microphone audio while speaking.
+	 */
+	public void setVoiceActivityDetection(boolean enabled) {
+		microphoneStream.setVoiceActivityDetection(enabled);
+	}
 
 	// -------------------------------------------------------------------------
 	// Methods required by AudioControls
@@ -60,18 +366,36 @@ public class AudioStreamClient implements AudioControls{
 	
 	@Override
 	public void playAudioFile(File audioFile) {
-		stopMicrophone();
-		microphoneStream.playAudioFile(audioFile);
+		
+		SoundFileMetadata metadata = 
+				soundLibrary == null ? null : soundLibrary.getMetadata(audioFile);
+		
+		currentFileMetadata = metadata;
+		microphoneStream.playAudioFile(
+				audioFile, metadata == null ? 1.0f : metadata.getGain());
+	}
+	
+	@Override
+	public float getAudioFileLevel() {
+		
+		SoundFileMetadata metadata = currentFileMetadata;
+		long position = microphoneStream.getAudioFilePositionMillis();
+		
+		if (metadata == null || position < 0) {
+			return -1.0f;
+		}
+		
+		return metadata.getEnvelopeLevel(position);
 	}
 
 	@Override
 	public void playMicrophone() {
-		stopAudioFile();
 		microphoneStream.playMicrophone();
 	}
 
 	@Override
 	public void stopAudioFile() {
+		currentFileMetadata = null;
 		microphoneStream.stopAudioFile();
 	}
 
@@ -0,0 +1,219 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Evens out the microphone level between quiet and loud operators. The
+ * speech level is tracked over a few hundred milliseconds and the gain moved
+ * slowly towards whatever brings it to the target. The gain only adapts
+ * while someone is talking, so pauses are not pumped up into loud hiss, and
+ * it is kept between fixed limits.
+ *
+ * The gain is worked out once per control block and ramped linearly across
+ * the block, so the per sample cost is a multiply and an add.
+ */
+public class AutomaticGainControl implements AudioProcessor {
+
+	/** Default speech level aimed for, in dBFS RMS. */
+	public static final float DEFAULT_TARGET_DB = -20.0f;
+
+	/** Default largest boost, in dB. */
+	public static final float DEFAULT_MAX_GAIN_DB = 20.0f;
+
+	/** Largest cut, in dB. */
+	private static final float MIN_GAIN_DB = -12.0f;
+
+	/** Below this the input is treated as a pause and the gain held. */
+	private static final float ADAPT_THRESHOLD_DB = -48.0f;
+
+	/** Time constant of the level measurement. */
+	private static final float LEVEL_MILLIS = 300.0f;
+
+	/** How fast the gain may rise. */
+	private static final float RISE_DB_PER_SECOND = 10.0f;
+
+	/** How fast the gain may fall. */
+	private static final float FALL_DB_PER_SECOND = 30.0f;
+
+	/** Samples per gain update. */
+	private static final int CONTROL_SAMPLES = 64;
+
+	/** Level smoothing per control block. */
+	private final float levelCoefficient;
+
+	/** Largest gain step up per control block. */
+	private final float riseStep;
+
+	/** Largest gain step down per control block. */
+	private final float fallStep;
+
+	/** Smallest gain. */
+	private final float minGain;
+
+	/** Level adapting stops below, as mean square. */
+	private final float adaptMeanSquare;
+
+	/** Target level as mean square. */
+	private volatile float targetMeanSquare;
+
+	/** Largest gain. */
+	private volatile float maxGain;
+
+	/** Gain reached at the end of the current block, for monitoring. */
+	private volatile float gain = 1.0f;
+
+	/** Gain at the start of the current block. */
+	private float startGain = 1.0f;
+
+	/** Gain increment per sample across the current block. */
+	private float gainStep;
+
+	/** Smoothed mean square of the input. */
+	private float meanSquare;
+
+	/** Sum of squares of the block being measured. */
+	private float blockSumOfSquares;
+
+	/** Samples into the current block. */
+	private int blockPosition;
+
+	/**
+	 * Create an automatic gain control.
+	 * @param sampleRate Sample rate of the audio.
+	 */
+	public AutomaticGainControl(float sampleRate) {
+
+		float blockSeconds = CONTROL_SAMPLES / sampleRate;
+
+		levelCoefficient = (float) (1.0 - Math.exp(-blockSeconds * 1000.0 / LEVEL_MILLIS));
+		riseStep = Decibels.toGain(RISE_DB_PER_SECOND * blockSeconds);
+		fallStep = Decibels.toGain(-FALL_DB_PER_SECOND * blockSeconds);
+		minGain = Decibels.toGain(MIN_GAIN_DB);
+
+		float adaptLevel = Decibels.toSample(ADAPT_THRESHOLD_DB);
+		adaptMeanSquare = adaptLevel * adaptLevel;
+
+		setTargetDb(DEFAULT_TARGET_DB);
+		setMaxGainDb(DEFAULT_MAX_GAIN_DB);
+		reset();
+	}
+
+	/**
+	 * Set the speech level aimed for.
+	 * @param db Target level in dBFS RMS.
+	 */
+	public void setTargetDb(float db) {
+		float level = Decibels.toSample(db);
+		targetMeanSquare = level * level;
+	}
+
+	/**
+	 * Set the largest boost given to quiet speech.
+	 * @param db Largest gain in dB.
+	 */
+	public void setMaxGainDb(float db) {
+		maxGain = Decibels.toGain(Math.max(0.0f, db));
+	}
+
+	/**
+	 * Gain currently applied.
+	 * @return Gain in dB.
+	 */
+	public float getGainDb() {
+		return Decibels.fromGain(gain);
+	}
+
+	@Override
+	public String getName() {
+		return "AGC";
+	}
+
+	@Override
+	public void process(byte[] data, int offset, int length) {
+
+		int end = offset + (length & ~1);
+		float current = startGain + gainStep * blockPosition;
+
+		for (int i = offset; i < end; i += 2) {
+
+			int sample = (data[i] << 8) | (data[i + 1] & 0xFF);
+			blockSumOfSquares += (float) sample * sample;
+
+			int out = Math.round(sample * current);
+			out = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, out));
+			data[i] = (byte) (out >> 8);
+			data[i + 1] = (byte) out;
+
+			current += gainStep;
+
+			if (++blockPosition == CONTROL_SAMPLES) {
+				updateGain();
+				current = startGain;
+			}
+		}
+	}
+
+	@Override
+	public void reset() {
+
+		// The gain is kept so the next talk press starts at the level the
+		// last one settled on.
+		startGain = gain;
+		gainStep = 0.0f;
+		meanSquare = 0.0f;
+		blockSumOfSquares = 0.0f;
+		blockPosition = 0;
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Measure the block just finished and work out the gain ramp for the
+	 * next one.
+	 */
+	private void updateGain() {
+
+		meanSquare += (blockSumOfSquares / CONTROL_SAMPLES - meanSquare) * levelCoefficient;
+
+		float from = startGain + gainStep * CONTROL_SAMPLES;
+		float to = from;
+
+		if (meanSquare > adaptMeanSquare) {
+
+			float wanted = (float) Math.sqrt(targetMeanSquare / meanSquare);
+			wanted = Math.max(minGain, Math.min(maxGain, wanted));
+
+			to = wanted > from
+					? Math.min(wanted, from * riseStep)
+					: Math.max(wanted, from * fallStep);
+		}
+
+		// Keep within limits even if they were changed while talking.
+		to = Math.max(minGain, Math.min(maxGain, to));
+
+		startGain = from;
+		gainStep = (to - from) / CONTROL_SAMPLES;
+		gain = to;
+		blockSumOfSquares = 0.0f;
+		blockPosition = 0;
+	}
+}
@@ -0,0 +1,59 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Conversions between decibels and linear values for 16 bit audio.
+ */
+final class Decibels {
+
+	/** Full scale sample value. */
+	static final float FULL_SCALE = 32768.0f;
+
+	private Decibels() {
+	}
+
+	/**
+	 * Linear gain of a level change.
+	 * @param db Change in dB.
+	 * @return Linear gain.
+	 */
+	static float toGain(float db) {
+		return (float) Math.pow(10.0, db / 20.0);
+	}
+
+	/**
+	 * Sample magnitude of a level.
+	 * @param db Level in dBFS.
+	 * @return Magnitude in sample units.
+	 */
+	static float toSample(float db) {
+		return FULL_SCALE * toGain(db);
+	}
+
+	/**
+	 * Level change of a linear gain.
+	 * @param gain Linear gain, positive.
+	 * @return Change in dB.
+	 */
+	static float fromGain(float gain) {
+		return (float) (20.0 * Math.log10(gain));
+	}
+}
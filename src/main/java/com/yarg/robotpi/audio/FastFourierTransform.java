@@ -0,0 +1,119 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * In place radix 2 fast Fourier transform of a fixed size. Twiddle factors
+ * and the bit reversal order are computed once, so a transform allocates
+ * nothing and one instance can be reused for every block.
+ */
+public class FastFourierTransform {
+
+	/** Number of points. */
+	private final int size;
+
+	/** Cosine of each twiddle angle. */
+	private final float[] cosTable;
+
+	/** Sine of each twiddle angle. */
+	private final float[] sinTable;
+
+	/** Index each point is swapped with before the butterflies. */
+	private final int[] reversed;
+
+	/**
+	 * Create a transform.
+	 * @param size Number of points, a power of two.
+	 */
+	public FastFourierTransform(int size) {
+
+		if (size < 2 || Integer.bitCount(size) != 1) {
+			throw new IllegalArgumentException("Size must be a power of two: "+size);
+		}
+
+		this.size = size;
+		cosTable = new float[size / 2];
+		sinTable = new float[size / 2];
+		reversed = new int[size];
+
+		for (int i = 0; i < size / 2; i++) {
+			double angle = -2.0 * Math.PI * i / size;
+			cosTable[i] = (float) Math.cos(angle);
+			sinTable[i] = (float) Math.sin(angle);
+		}
+
+		int bits = Integer.numberOfTrailingZeros(size);
+		for (int i = 0; i < size; i++) {
+			reversed[i] = Integer.reverse(i) >>> (32 - bits);
+		}
+	}
+
+	/**
+	 * Number of points.
+	 * @return Transform size.
+	 */
+	public int getSize() {
+		return size;
+	}
+
+	/**
+	 * Transform in place.
+	 * @param real Real parts, {@link #getSize()} long.
+	 * @param imaginary Imaginary parts, {@link #getSize()} long.
+	 */
+	public void transform(float[] real, float[] imaginary) {
+
+		for (int i = 0; i < size; i++) {
+			int j = reversed[i];
+			if (j > i) {
+				float t = real[i];
+				real[i] = real[j];
+				real[j] = t;
+				t = imaginary[i];
+				imaginary[i] = imaginary[j];
+				imaginary[j] = t;
+			}
+		}
+
+		for (int half = 1; half < size; half <<= 1) {
+
+			int step = size / (half << 1);
+
+			for (int start = 0; start < size; start += half << 1) {
+				for (int k = 0; k < half; k++) {
+
+					float wr = cosTable[k * step];
+					float wi = sinTable[k * step];
+
+					int a = start + k;
+					int b = a + half;
+
+					float tr = wr * real[b] - wi * imaginary[b];
+					float ti = wr * imaginary[b] + wi * real[b];
+
+					real[b] = real[a] - tr;
+					imaginary[b] = imaginary[a] - ti;
+					real[a] += tr;
+					imaginary[a] += ti;
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,114 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Tracks how long audio sits in an audio line, from the difference between
+ * the frames the application has handed over or taken and the frame
+ * position the line reports. Written by one audio thread, read by anyone.
+ */
+public class LineLatencyMeter {
+
+	/** Name used when describing the meter. */
+	private final String name;
+
+	/** Most recent latency. */
+	private volatile float lastMillis;
+
+	/** Smoothed latency. */
+	private volatile float averageMillis;
+
+	/** Highest latency since the last reset. */
+	private volatile float maxMillis;
+
+	/** Number of measurements since the last reset. */
+	private volatile long count;
+
+	/**
+	 * Create a new meter.
+	 * @param name Name used when describing the meter.
+	 */
+	public LineLatencyMeter(String name) {
+		this.name = name;
+	}
+
+	/**
+	 * Record a measurement.
+	 * @param frames Frames of audio between the application and the device.
+	 * @param frameRate Frame rate of the line.
+	 */
+	public void record(long frames, float frameRate) {
+
+		float millis = Math.max(0L, frames) * 1000.0f / frameRate;
+
+		lastMillis = millis;
+		averageMillis = count == 0 ? millis : averageMillis + (millis - averageMillis) / 32.0f;
+		maxMillis = Math.max(maxMillis, millis);
+		count++;
+	}
+
+	/**
+	 * Forget all measurements, for example after the line was reopened.
+	 */
+	public void reset() {
+		lastMillis = 0.0f;
+		averageMillis = 0.0f;
+		maxMillis = 0.0f;
+		count = 0;
+	}
+
+	/**
+	 * Most recent latency.
+	 * @return Latency in milliseconds.
+	 */
+	public float getLastMillis() {
+		return lastMillis;
+	}
+
+	/**
+	 * Smoothed latency.
+	 * @return Latency in milliseconds.
+	 */
+	public float getAverageMillis() {
+		return averageMillis;
+	}
+
+	/**
+	 * Highest latency since the last reset.
+	 * @return Latency in milliseconds.
+	 */
+	public float getMaxMillis() {
+		return maxMillis;
+	}
+
+	/**
+	 * Describe the measurements, for logging.
+	 * @return Latency summary.
+	 */
+	public String describe() {
+
+		if (count == 0) {
+			return name+" latency: not measured";
+		}
+
+		return String.format("%s latency: %.1f ms now, %.1f ms average, %.1f ms max",
+				name, lastMillis, averageMillis, maxMillis);
+	}
+}
@@ -0,0 +1,232 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Keeps the microphone below a ceiling without audible clipping. Audio is
+ * delayed by a short look-ahead so the gain can start coming down before a
+ * peak arrives: the gain needed by each sample is held at its minimum over
+ * the look-ahead window and then averaged over the same window, which ramps
+ * smoothly into every peak and never lets one through. The gain recovers
+ * over the release time once the peak has passed.
+ */
+public class LookAheadLimiter implements AudioProcessor {
+
+	/** Default ceiling, in dBFS. */
+	public static final float DEFAULT_CEILING_DB = -1.0f;
+
+	/** Look-ahead, which is also the delay added to the audio. */
+	private static final float LOOK_AHEAD_MILLIS = 5.0f;
+
+	/** Time for the gain to recover. */
+	private static final float RELEASE_MILLIS = 80.0f;
+
+	/** Samples of look-ahead. */
+	private final int window;
+
+	/** Gain recovery per sample. */
+	private final float releaseCoefficient;
+
+	/** Delayed input. */
+	private final float[] delay;
+
+	/** Gains in the minimum hold queue. */
+	private final float[] holdGain;
+
+	/** Sample number each queued gain expires at. */
+	private final long[] holdExpiry;
+
+	/** Held gains being averaged. */
+	private final float[] average;
+
+	/** Largest sample magnitude let through. */
+	private volatile float ceiling;
+
+	/** Lowest gain applied since last asked, for monitoring. */
+	private volatile float lowestGain = 1.0f;
+
+	/** Next delay slot. */
+	private int delayPosition;
+
+	/** Oldest entry of the minimum hold queue. */
+	private int holdHead;
+
+	/** Entries in the minimum hold queue. */
+	private int holdSize;
+
+	/** Next average slot. */
+	private int averagePosition;
+
+	/** Sum of the average slots. */
+	private double averageSum;
+
+	/** Samples processed. */
+	private long sampleNumber;
+
+	/** Gain applied to the last sample. */
+	private float gain;
+
+	/** Lowest gain applied since last published. */
+	private float lowest;
+
+	/**
+	 * Create a limiter.
+	 * @param sampleRate Sample rate of the audio.
+	 */
+	public LookAheadLimiter(float sampleRate) {
+
+		window = Math.max(2, Math.round(sampleRate * LOOK_AHEAD_MILLIS / 1000.0f));
+		releaseCoefficient = (float) (1.0 - Math.exp(-1000.0 / (RELEASE_MILLIS * sampleRate)));
+
+		delay = new float[window - 1];
+		holdGain = new float[window];
+		holdExpiry = new long[window];
+		average = new float[window];
+
+		setCeilingDb(DEFAULT_CEILING_DB);
+		reset();
+	}
+
+	/**
+	 * Set the ceiling.
+	 * @param db Ceiling in dBFS.
+	 */
+	public void setCeilingDb(float db) {
+		ceiling = Decibels.toSample(Math.min(0.0f, db));
+	}
+
+	/**
+	 * Delay added to the audio.
+	 * @return Latency in frames.
+	 */
+	public int getLatencyFrames() {
+		return delay.length;
+	}
+
+	/**
+	 * Deepest gain reduction since the last call, then starts over.
+	 * @return Gain reduction in dB, 0 or negative.
+	 */
+	public float takeGainReductionDb() {
+		float reduction = Decibels.fromGain(lowestGain);
+		lowestGain = 1.0f;
+		return reduction;
+	}
+
+	@Override
+	public String getName() {
+		return "Limiter";
+	}
+
+	@Override
+	public void process(byte[] data, int offset, int length) {
+
+		float limit = ceiling;
+		int end = offset + (length & ~1);
+
+		for (int i = offset; i < end; i += 2) {
+
+			float sample = (short) ((data[i] << 8) | (data[i + 1] & 0xFF));
+			float magnitude = sample < 0 ? -sample : sample;
+			float needed = magnitude > limit ? limit / magnitude : 1.0f;
+
+			// Minimum of the needed gain over the look-ahead window, kept
+			// as a queue of ever larger gains.
+			if (holdSize > 0 && holdExpiry[holdHead] <= sampleNumber) {
+				holdHead = (holdHead + 1) % window;
+				holdSize--;
+			}
+			while (holdSize > 0 && holdGain[(holdHead + holdSize - 1) % window] >= needed) {
+				holdSize--;
+			}
+			int tail = (holdHead + holdSize) % window;
+			holdGain[tail] = needed;
+			holdExpiry[tail] = sampleNumber + window;
+			holdSize++;
+			float held = holdGain[holdHead];
+
+			// Average the held gain over the same window.
+			averageSum += held - average[averagePosition];
+			average[averagePosition] = held;
+			if (++averagePosition == window) {
+				averagePosition = 0;
+				averageSum = sum(average);
+			}
+			float smoothed = (float) (averageSum / window);
+
+			gain = smoothed < gain ? smoothed : gain + (smoothed - gain) * releaseCoefficient;
+			if (gain < lowest) {
+				lowest = gain;
+			}
+
+			float delayed = delay[delayPosition];
+			delay[delayPosition] = sample;
+			if (++delayPosition == delay.length) {
+				delayPosition = 0;
+			}
+
+			int out = Math.round(delayed * gain);
+			out = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, out));
+			data[i] = (byte) (out >> 8);
+			data[i + 1] = (byte) out;
+
+			sampleNumber++;
+		}
+
+		if (lowest < lowestGain) {
+			lowestGain = lowest;
+		}
+		lowest = 1.0f;
+	}
+
+	@Override
+	public void reset() {
+
+		Arrays.fill(delay, 0.0f);
+		Arrays.fill(average, 1.0f);
+		averageSum = window;
+		averagePosition = 0;
+		delayPosition = 0;
+		holdHead = 0;
+		holdSize = 0;
+		gain = 1.0f;
+		lowest = 1.0f;
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Sum of an array. Used to stop rounding errors building up in the
+	 * running sum.
+	 * @param values Values to add.
+	 * @return Sum.
+	 */
+	private static double sum(float[] values) {
+		double total = 0.0;
+		for (float value : values) {
+			total += value;
+		}
+		return total;
+	}
+}
@@ -0,0 +1,187 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Mutes the microphone between words so room noise and fan hum don't reach
+ * the robot. The gate opens as soon as the signal peak rises above the
+ * threshold, stays open for a hold time after it falls back, and then fades
+ * down to the floor. It closes a few dB below where it opens so it doesn't
+ * chatter on signals hovering around the threshold.
+ */
+public class NoiseGate implements AudioProcessor {
+
+	/** Default level the gate opens at, in dBFS. */
+	public static final float DEFAULT_THRESHOLD_DB = -50.0f;
+
+	/** Default attenuation while closed, in dB. */
+	public static final float DEFAULT_RANGE_DB = -30.0f;
+
+	/** Gate closes this far below the threshold. */
+	private static final float HYSTERESIS_DB = 4.0f;
+
+	/** Time for the gate to open. */
+	private static final float ATTACK_MILLIS = 1.0f;
+
+	/** Time the gate stays open after the signal drops. */
+	private static final float HOLD_MILLIS = 150.0f;
+
+	/** Time for the gate to close. */
+	private static final float RELEASE_MILLIS = 100.0f;
+
+	/** Decay time of the peak envelope. */
+	private static final float ENVELOPE_MILLIS = 10.0f;
+
+	/** Sample rate of the audio. */
+	private final float sampleRate;
+
+	/** Gain smoothing per sample while opening. */
+	private final float attackCoefficient;
+
+	/** Gain smoothing per sample while closing. */
+	private final float releaseCoefficient;
+
+	/** Envelope decay per sample. */
+	private final float envelopeCoefficient;
+
+	/** Samples of hold. */
+	private final int holdSamples;
+
+	/** Level the gate opens at, in sample units. */
+	private volatile float openLevel;
+
+	/** Level the gate closes at, in sample units. */
+	private volatile float closeLevel;
+
+	/** Gain while closed. */
+	private volatile float floorGain;
+
+	/** Peak envelope. */
+	private float envelope;
+
+	/** Current gain. */
+	private float gain;
+
+	/** Samples of hold left. */
+	private int holdRemaining;
+
+	/** True while open. */
+	private boolean open;
+
+	/**
+	 * Create a noise gate.
+	 * @param sampleRate Sample rate of the audio.
+	 */
+	public NoiseGate(float sampleRate) {
+
+		this.sampleRate = sampleRate;
+		attackCoefficient = smoothing(ATTACK_MILLIS);
+		releaseCoefficient = smoothing(RELEASE_MILLIS);
+		envelopeCoefficient = 1.0f - smoothing(ENVELOPE_MILLIS);
+		holdSamples = (int) (sampleRate * HOLD_MILLIS / 1000.0f);
+
+		setThresholdDb(DEFAULT_THRESHOLD_DB);
+		setRangeDb(DEFAULT_RANGE_DB);
+		reset();
+	}
+
+	/**
+	 * Set the level the gate opens at.
+	 * @param db Threshold in dBFS.
+	 */
+	public void setThresholdDb(float db) {
+		openLevel = Decibels.toSample(db);
+		closeLevel = Decibels.toSample(db - HYSTERESIS_DB);
+	}
+
+	/**
+	 * Set how far the gate turns the microphone down while closed.
+	 * @param db Attenuation in dB, negative.
+	 */
+	public void setRangeDb(float db) {
+		floorGain = Decibels.toGain(Math.min(0.0f, db));
+	}
+
+	/**
+	 * True while the gate is open.
+	 * @return True if open.
+	 */
+	public boolean isOpen() {
+		return open;
+	}
+
+	@Override
+	public String getName() {
+		return "Noise gate";
+	}
+
+	@Override
+	public void process(byte[] data, int offset, int length) {
+
+		float openAt = openLevel;
+		float closeAt = closeLevel;
+		float floor = floorGain;
+		int end = offset + (length & ~1);
+
+		for (int i = offset; i < end; i += 2) {
+
+			int sample = (data[i] << 8) | (data[i + 1] & 0xFF);
+			float magnitude = sample < 0 ? -sample : sample;
+
+			envelope = magnitude > envelope ? magnitude : envelope * envelopeCoefficient;
+
+			if (envelope >= openAt) {
+				open = true;
+				holdRemaining = holdSamples;
+			} else if (envelope < closeAt && open && --holdRemaining <= 0) {
+				open = false;
+			}
+
+			float target = open ? 1.0f : floor;
+			gain += (target - gain) * (target > gain ? attackCoefficient : releaseCoefficient);
+
+			int out = Math.round(sample * gain);
+			data[i] = (byte) (out >> 8);
+			data[i + 1] = (byte) out;
+		}
+	}
+
+	@Override
+	public void reset() {
+		envelope = 0.0f;
+		gain = floorGain;
+		holdRemaining = 0;
+		open = false;
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * One pole smoothing coefficient reaching about two thirds of a step in
+	 * the given time.
+	 * @param millis Time constant in milliseconds.
+	 * @return Coefficient per sample.
+	 */
+	private float smoothing(float millis) {
+		return (float) (1.0 - Math.exp(-1000.0 / (millis * sampleRate)));
+	}
+}
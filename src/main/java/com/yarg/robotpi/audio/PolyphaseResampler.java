@@ -0,0 +1,297 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Streaming rational sample rate converter for 16 bit signed big endian mono
+ * PCM. Uses a Kaiser windowed sinc low pass split into one filter phase per
+ * interpolation step, so every output sample costs a single short dot
+ * product. All buffers are allocated up front; processing allocates nothing.
+ */
+public class PolyphaseResampler {
+
+	/** Filter taps per phase for every whole step of decimation. */
+	private static final int TAPS_PER_DECIMATION_STEP = 48;
+
+	/** Kaiser window shape. Gives roughly 70 dB of stop band rejection. */
+	private static final double KAISER_BETA = 7.0;
+
+	/** Input sample rate in Hz. */
+	private final int inputRate;
+
+	/** Output sample rate in Hz. */
+	private final int outputRate;
+
+	/** Interpolation factor. */
+	private final int interpolation;
+
+	/** Decimation factor. */
+	private final int decimation;
+
+	/** Taps in each filter phase. */
+	private final int taps;
+
+	/** Filter coefficients, phase major. */
+	private final float[] coefficients;
+
+	/** Input history followed by the samples of the current call. */
+	private final float[] history;
+
+	/** Largest number of input frames accepted per call. */
+	private final int maxInputFrames;
+
+	/** Index into the current input of the next output sample. */
+	private int inputIndex;
+
+	/** Filter phase of the next output sample. */
+	private int phase;
+
+	/**
+	 * Create a new resampler.
+	 * @param inputRate Input sample rate in Hz.
+	 * @param outputRate Output sample rate in Hz.
+	 * @param maxInputFrames Largest number of frames passed to a single call.
+	 */
+	public PolyphaseResampler(int inputRate, int outputRate, int maxInputFrames) {
+
+		if (inputRate <= 0 || outputRate <= 0) {
+			throw new IllegalArgumentException(
+					"Sample rates must be positive: "+inputRate+" -> "+outputRate);
+		}
+
+		int divisor = greatestCommonDivisor(inputRate, outputRate);
+
+		this.inputRate = inputRate;
+		this.outputRate = outputRate;
+		this.maxInputFrames = maxInputFrames;
+
+		interpolation = outputRate / divisor;
+		decimation = inputRate / divisor;
+
+		int steps = (decimation + interpolation - 1) / interpolation;
+		taps = isPassThrough() ? 1 : TAPS_PER_DECIMATION_STEP * Math.max(1, steps);
+
+		coefficients = isPassThrough() ? new float[] {1.0f} : designFilter();
+		history = new float[taps - 1 + maxInputFrames];
+
+		reset();
+	}
+
+	/**
+	 * Forget all buffered input. Call when the stream is interrupted.
+	 */
+	public void reset() {
+		Arrays.fill(history, 0.0f);
+		inputIndex = 0;
+		phase = 0;
+	}
+
+	/**
+	 * Input sample rate in Hz.
+	 * @return Input sample rate.
+	 */
+	public int getInputRate() {
+		return inputRate;
+	}
+
+	/**
+	 * Output sample rate in Hz.
+	 * @return Output sample rate.
+	 */
+	public int getOutputRate() {
+		return outputRate;
+	}
+
+	/**
+	 * True when the input and output rates match and samples are copied as is.
+	 * @return True if no conversion is done.
+	 */
+	public boolean isPassThrough() {
+		return interpolation == decimation;
+	}
+
+	/**
+	 * Largest number of output frames a call with the given input can make.
+	 * @param inputFrames Number of input frames.
+	 * @return Upper bound on output frames.
+	 */
+	public int getMaxOutputFrames(int inputFrames) {
+		return (int) (((long) inputFrames * interpolation) / decimation) + 1;
+	}
+
+	/**
+	 * Convert a block of samples.
+	 * @param in Input samples, 16 bit signed big endian mono.
+	 * @param inOffset Offset of the first input byte.
+	 * @param inFrames Number of input frames. At most the maximum given to
+	 * the constructor.
+	 * @param out Output buffer. Must hold
+	 * {@link #getMaxOutputFrames(int)} frames from the offset.
+	 * @param outOffset Offset to start writing at.
+	 * @return Number of bytes written.
+	 */
+	public int process(byte[] in, int inOffset, int inFrames, byte[] out, int outOffset) {
+
+		if (isPassThrough()) {
+			System.arraycopy(in, inOffset, out, outOffset, inFrames * 2);
+			return inFrames * 2;
+		}
+
+		int frames = Math.min(inFrames, maxInputFrames);
+		int historyLength = taps - 1;
+		float[] x = history;
+		float[] c = coefficients;
+
+		for (int i = 0; i < frames; i++) {
+			int j = inOffset + 2 * i;
+			x[historyLength + i] = (short) ((in[j] << 8) | (in[j + 1] & 0xFF));
+		}
+
+		int written = 0;
+
+		while (inputIndex < frames) {
+
+			int newest = historyLength + inputIndex;
+			int base = phase * taps;
+			float sum = 0.0f;
+
+			for (int k = 0; k < taps; k++) {
+				sum += c[base + k] * x[newest - k];
+			}
+
+			int sample = Math.round(sum);
+			sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+
+			int o = outOffset + 2 * written;
+			out[o] = (byte) (sample >> 8);
+			out[o + 1] = (byte) sample;
+			written++;
+
+			phase += decimation;
+			inputIndex += phase / interpolation;
+			phase %= interpolation;
+		}
+
+		inputIndex -= frames;
+
+		// Keep the tail of this block as history for the next one.
+		System.arraycopy(x, frames, x, 0, historyLength);
+
+		return written * 2;
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Design the polyphase low pass filter. The cut off sits just below the
+	 * lower of the two Nyquist frequencies so nothing aliases when
+	 * decimating and no images remain when interpolating.
+	 * @return Coefficients, phase major, each phase with unity DC gain.
+	 */
+	private float[] designFilter() {
+
+		int length = interpolation * taps;
+		double center = (length - 1) / 2.0;
+
+		// Cut off relative to the upsampled rate. The transition band of the
+		// window is a few percent of the lower rate wide, so pull the cut off
+		// in far enough for the stop band to start at Nyquist.
+		double cutoff =
+				(0.5 / Math.max(interpolation, decimation))
+				* Math.max(0.5, 1.0 - 12.0 / taps);
+
+		double[] prototype = new double[length];
+		double windowNormalization = besselI0(KAISER_BETA);
+
+		for (int n = 0; n < length; n++) {
+
+			double t = n - center;
+			double sinc = t == 0.0
+					? 2.0 * cutoff
+					: Math.sin(2.0 * Math.PI * cutoff * t) / (Math.PI * t);
+
+			double ratio = 2.0 * n / (length - 1) - 1.0;
+			double window = besselI0(
+					KAISER_BETA * Math.sqrt(Math.max(0.0, 1.0 - ratio * ratio)))
+					/ windowNormalization;
+
+			prototype[n] = sinc * window;
+		}
+
+		float[] result = new float[length];
+
+		for (int p = 0; p < interpolation; p++) {
+
+			double sum = 0.0;
+			for (int k = 0; k < taps; k++) {
+				sum += prototype[k * interpolation + p];
+			}
+
+			for (int k = 0; k < taps; k++) {
+				result[p * taps + k] = (float) (prototype[k * interpolation + p] / sum);
+			}
+		}
+
+		return result;
+	}
+
+	/**
+	 * Zeroth order modified Bessel function of the first kind.
+	 * @param x Argument.
+	 * @return I0(x).
+	 */
+	private static double besselI0(double x) {
+
+		double sum = 1.0;
+		double term = 1.0;
+		double halfX = x / 2.0;
+
+		for (int k = 1; k < 50; k++) {
+			term *= (halfX / k) * (halfX / k);
+			sum += term;
+			if (term < sum * 1e-12) {
+				break;
+			}
+		}
+
+		return sum;
+	}
+
+	/**
+	 * Greatest common divisor.
+	 * @param a First value.
+	 * @param b Second value.
+	 * @return Greatest common divisor of a and b.
+	 */
+	private static int greatestCommonDivisor(int a, int b) {
+
+		while (b != 0) {
+			int t = a % b;
+			a = b;
+			b = t;
+		}
+
+		return a;
+	}
+}
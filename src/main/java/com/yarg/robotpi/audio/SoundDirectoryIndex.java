@@ -0,0 +1,416 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Keeps a sorted list of the sound files in the sounds directory up to date
+ * from file system change events, so the directory is listed once at start
+ * and never again unless the events overflow or a rescan is asked for.
+ * Each change is applied as a delta and the listener is handed an immutable
+ * snapshot of the file names. New and modified files are passed to the
+ * listener for prewarming once they have stopped changing, so a file that is
+ * still being copied is not decoded half written.
+ */
+public class SoundDirectoryIndex extends Thread {
+
+	/** Receives index updates. Called on the index thread. */
+	public interface Listener {
+
+		/**
+		 * The list of sound files changed.
+		 * @param fileNames Sorted file names. Never modified afterwards.
+		 */
+		public void soundFilesChanged(String[] fileNames);
+
+		/**
+		 * A sound file was added or modified and has settled.
+		 * @param soundFile Sound file to prewarm.
+		 */
+		public void soundFileReady(File soundFile);
+
+		/**
+		 * A sound file was removed.
+		 * @param soundFile Sound file that is gone.
+		 */
+		public void soundFileRemoved(File soundFile);
+	}
+
+	/** Extension of the files that are indexed. */
+	private static final String SOUND_FILE_EXTENSION = ".wav";
+
+	/** Time a file must go without events before it is prewarmed. */
+	private static final long SETTLE_MILLIS = 250;
+
+	/** Longest wait for events before checking for a rescan request. */
+	private static final long POLL_MILLIS = 500;
+
+	/** Directory being indexed. */
+	private final Path directory;
+
+	/** Listener to report changes to. */
+	private final Listener listener;
+
+	/** Latest published snapshot. */
+	private final AtomicReference<String[]> snapshot;
+
+	/** Current file names. Owned by the index thread. */
+	private final TreeSet<String> fileNames;
+
+	/** Changed files waiting to settle, with the time of their last event. */
+	private final Map<String, Long> unsettled;
+
+	/** Watch service, null while the directory can't be watched. */
+	private volatile WatchService watchService;
+
+	/** True once the directory has been listed. */
+	private boolean scanned;
+
+	/** Track execution state of this thread. */
+	private volatile boolean running;
+
+	/** Set to ask the index thread for a full rescan. */
+	private volatile boolean rescanRequested;
+
+	/**
+	 * Create a new index.
+	 * @param directory Directory holding the sound files.
+	 * @param listener Listener to report changes to.
+	 */
+	public SoundDirectoryIndex(File directory, Listener listener) {
+		super("SoundDirectoryIndex");
+		this.directory = directory.toPath();
+		this.listener = listener;
+		snapshot = new AtomicReference<String[]>(new String[0]);
+		fileNames = new TreeSet<String>();
+		unsettled = new LinkedHashMap<String, Long>();
+		running = false;
+		rescanRequested = true;
+		setDaemon(true);
+	}
+
+	/**
+	 * Start indexing.
+	 */
+	public void startIndex() {
+		running = true;
+		this.start();
+	}
+
+	/**
+	 * Stop indexing.
+	 */
+	public void stopIndex() {
+
+		running = false;
+
+		WatchService service = watchService;
+		if (service != null) {
+			try {
+				service.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+		this.interrupt();
+	}
+
+	/**
+	 * Ask for the directory to be listed again. Only needed if change events
+	 * are not delivered, for example on some network file systems.
+	 */
+	public void rescan() {
+		rescanRequested = true;
+	}
+
+	/**
+	 * Latest list of sound files.
+	 * @return Sorted file names. Must not be modified.
+	 */
+	public String[] getFileNames() {
+		return snapshot.get();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		while (running) {
+
+			if (rescanRequested) {
+				rescanRequested = false;
+				watch();
+				scan();
+			}
+
+			if (watchService == null) {
+				sleepQuietly(POLL_MILLIS);
+				continue;
+			}
+
+			long timeout = unsettled.isEmpty() ? POLL_MILLIS : SETTLE_MILLIS;
+			boolean changed = false;
+
+			try {
+				WatchKey key = watchService.poll(timeout, TimeUnit.MILLISECONDS);
+
+				// Drain everything queued so a burst of changes is published
+				// as a single snapshot.
+				while (key != null) {
+					changed |= applyEvents(key);
+					if (!key.reset()) {
+						// Directory is gone. Try to watch it again later.
+						closeWatchService();
+						rescanRequested = true;
+						break;
+					}
+					key = watchService.poll();
+				}
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				// Stopping.
+			}
+
+			if (changed) {
+				publish();
+			}
+
+			prewarmSettled();
+		}
+
+		closeWatchService();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Register for change events on the directory if not done yet.
+	 */
+	private void watch() {
+
+		if (watchService != null) {
+			return;
+		}
+
+		try {
+			WatchService service = FileSystems.getDefault().newWatchService();
+			directory.register(service, 
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_DELETE,
+					StandardWatchEventKinds.ENTRY_MODIFY);
+			watchService = service;
+		} catch (IOException e) {
+			System.out.println("Unable to watch sound file directory: "+directory);
+		}
+	}
+
+	/**
+	 * Close the watch service.
+	 */
+	private void closeWatchService() {
+
+		if (watchService == null) {
+			return;
+		}
+
+		try {
+			watchService.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+
+		watchService = null;
+	}
+
+	/**
+	 * List the directory and apply the difference to the index.
+	 */
+	private void scan() {
+
+		Set<String> found = new HashSet<String>();
+
+		if (Files.isDirectory(directory)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path path : stream) {
+					String name = path.getFileName().toString();
+					if (isSoundFile(name)) {
+						found.add(name);
+					}
+				}
+			} catch (IOException e) {
+				System.out.println("Unable to list sound file directory: "+directory);
+				e.printStackTrace();
+				return;
+			}
+		}
+
+		boolean initial = !scanned;
+		boolean changed = false;
+
+		scanned = true;
+
+		Iterator<String> existing = fileNames.iterator();
+		while (existing.hasNext()) {
+			String name = existing.next();
+			if (!found.contains(name)) {
+				existing.remove();
+				unsettled.remove(name);
+				listener.soundFileRemoved(resolve(name));
+				changed = true;
+			}
+		}
+
+		for (String name : found) {
+			if (fileNames.add(name)) {
+				// Files present at start are analyzed in bulk elsewhere.
+				if (!initial) {
+					unsettled.put(name, System.nanoTime());
+				}
+				changed = true;
+			}
+		}
+
+		if (changed || initial) {
+			publish();
+		}
+	}
+
+	/**
+	 * Apply the events of a watch key to the index.
+	 * @param key Signalled key.
+	 * @return True if the list of names changed.
+	 */
+	private boolean applyEvents(WatchKey key) {
+
+		boolean changed = false;
+
+		for (WatchEvent<?> event : key.pollEvents()) {
+
+			WatchEvent.Kind<?> kind = event.kind();
+
+			if (kind == StandardWatchEventKinds.OVERFLOW) {
+				rescanRequested = true;
+				continue;
+			}
+
+			String name = ((Path) event.context()).getFileName().toString();
+
+			if (!isSoundFile(name)) {
+				continue;
+			}
+
+			if (kind == StandardWatchEventKinds.ENTRY_DELETE) {
+				unsettled.remove(name);
+				if (fileNames.remove(name)) {
+					listener.soundFileRemoved(resolve(name));
+					changed = true;
+				}
+			} else {
+				changed |= fileNames.add(name);
+				unsettled.put(name, System.nanoTime());
+			}
+		}
+
+		return changed;
+	}
+
+	/**
+	 * Hand files that stopped changing to the listener.
+	 */
+	private void prewarmSettled() {
+
+		long now = System.nanoTime();
+		long settleNanos = TimeUnit.MILLISECONDS.toNanos(SETTLE_MILLIS);
+
+		Iterator<Map.Entry<String, Long>> pending = unsettled.entrySet().iterator();
+		while (pending.hasNext()) {
+			Map.Entry<String, Long> entry = pending.next();
+			if (now - entry.getValue() >= settleNanos) {
+				pending.remove();
+				File soundFile = resolve(entry.getKey());
+				if (soundFile.isFile()) {
+					listener.soundFileReady(soundFile);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Publish the current names as a new snapshot.
+	 */
+	private void publish() {
+		String[] names = fileNames.toArray(new String[fileNames.size()]);
+		snapshot.set(names);
+		listener.soundFilesChanged(names);
+	}
+
+	/**
+	 * Get the file for a name in the directory.
+	 * @param name File name.
+	 * @return Sound file.
+	 */
+	private File resolve(String name) {
+		return directory.resolve(name).toFile();
+	}
+
+	/**
+	 * True for files the index should track.
+	 * @param name File name.
+	 * @return True for sound files.
+	 */
+	private static boolean isSoundFile(String name) {
+		return name.endsWith(SOUND_FILE_EXTENSION);
+	}
+
+	/**
+	 * Sleep, returning early when interrupted.
+	 * @param milliseconds Time to sleep.
+	 */
+	private static void sleepQuietly(long milliseconds) {
+		try {
+			Thread.sleep(milliseconds);
+		} catch (InterruptedException e) {
+			// Woken by stopIndex.
+		}
+	}
+}
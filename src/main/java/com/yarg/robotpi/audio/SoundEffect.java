@@ -0,0 +1,79 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * Sound file decoded into memory as 16 bit mono samples, ready to be mixed.
+ */
+public class SoundEffect {
+
+	/** Name of the sound file. */
+	private final String name;
+
+	/** Decoded samples. */
+	private final short[] samples;
+
+	/** Sample rate of the decoded samples. */
+	private final float sampleRate;
+
+	/**
+	 * Create a new sound effect.
+	 * @param name Name of the sound file.
+	 * @param samples Decoded samples.
+	 * @param sampleRate Sample rate of the decoded samples.
+	 */
+	public SoundEffect(String name, short[] samples, float sampleRate) {
+		this.name = name;
+		this.samples = samples;
+		this.sampleRate = sampleRate;
+	}
+
+	/**
+	 * Name of the sound file.
+	 * @return Sound file name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Decoded samples. Shared, must not be modified.
+	 * @return Samples.
+	 */
+	public short[] getSamples() {
+		return samples;
+	}
+
+	/**
+	 * Sample rate of the decoded samples.
+	 * @return Sample rate.
+	 */
+	public float getSampleRate() {
+		return sampleRate;
+	}
+
+	/**
+	 * Length of the effect.
+	 * @return Length in frames.
+	 */
+	public int getFrameCount() {
+		return samples.length;
+	}
+}
@@ -0,0 +1,126 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Decodes sound files once and keeps them in memory in the mixer format.
+ * Entries are refreshed when the file on disk changes.
+ */
+public class SoundEffectCache {
+
+	/** Format effects are decoded to. 16 bit signed big endian mono. */
+	private AudioFormat format;
+
+	/** Decoded effects keyed by absolute path. */
+	private ConcurrentHashMap<String, CacheEntry> effects;
+
+	/**
+	 * Create a new cache.
+	 * @param format Format to decode effects to. Must be 16 bit signed big
+	 * endian mono.
+	 */
+	public SoundEffectCache(AudioFormat format) {
+		this.format = format;
+		effects = new ConcurrentHashMap<String, CacheEntry>();
+	}
+
+	/**
+	 * Get a decoded sound effect, loading it if it is not cached yet or the
+	 * file changed since it was loaded.
+	 * @param audioFile Sound file to get.
+	 * @return Decoded effect or null if the file could not be decoded.
+	 */
+	public SoundEffect get(File audioFile) {
+
+		String key = audioFile.getAbsolutePath();
+		long lastModified = audioFile.lastModified();
+
+		CacheEntry entry = effects.get(key);
+
+		if (entry != null && entry.lastModified == lastModified) {
+			return entry.effect;
+		}
+
+		SoundEffect effect = load(audioFile);
+
+		if (effect == null) {
+			return null;
+		}
+
+		effects.put(key, new CacheEntry(effect, lastModified));
+		return effect;
+	}
+
+	/**
+	 * Drop a sound file from the cache.
+	 * @param audioFile Sound file to drop.
+	 */
+	public void remove(File audioFile) {
+		effects.remove(audioFile.getAbsolutePath());
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Decode a sound file into memory.
+	 * @param audioFile Sound file to decode.
+	 * @return Decoded effect or null on failure.
+	 */
+	private SoundEffect load(File audioFile) {
+
+		short[] samples;
+
+		try {
+			samples = AudioFileDecoder.decode(audioFile, format);
+		} catch (UnsupportedAudioFileException | IOException 
+				| IllegalArgumentException e) {
+			System.out.println("Unable to decode sound file: "+audioFile);
+			e.printStackTrace();
+			return null;
+		}
+
+		return new SoundEffect(
+				audioFile.getName(), samples, format.getSampleRate());
+	}
+
+	/**
+	 * Cached effect along with the file time stamp it was decoded from.
+	 */
+	private static class CacheEntry {
+
+		private final SoundEffect effect;
+
+		private final long lastModified;
+
+		CacheEntry(SoundEffect effect, long lastModified) {
+			this.effect = effect;
+			this.lastModified = lastModified;
+		}
+	}
+}
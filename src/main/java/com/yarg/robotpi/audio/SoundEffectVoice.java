@@ -0,0 +1,103 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+/**
+ * A single playback of a {@link SoundEffect}. Tracks the play position so the
+ * same cached effect can be played by several voices at once.
+ */
+public class SoundEffectVoice {
+
+	/** Effect being played. */
+	private final SoundEffect effect;
+
+	/** Gain to mix the effect with. */
+	private final float gain;
+
+	/** Stop generation this voice was started in. */
+	private final int generation;
+
+	/** Next frame to play. Read by other threads to follow playback. */
+	private volatile int position;
+
+	/**
+	 * Create a new voice.
+	 * @param effect Effect to play.
+	 * @param gain Gain to mix the effect with.
+	 * @param generation Stop generation the voice belongs to.
+	 */
+	public SoundEffectVoice(SoundEffect effect, float gain, int generation) {
+		this.effect = effect;
+		this.gain = gain;
+		this.generation = generation;
+		position = 0;
+	}
+
+	/**
+	 * Mix the next frames of the effect.
+	 * @param mixer Mixer to add the frames to.
+	 * @param frames Number of frames wanted.
+	 * @return Number of frames mixed.
+	 */
+	public int mixInto(AudioMixer mixer, int frames) {
+
+		int count = Math.min(frames, effect.getFrameCount() - position);
+
+		if (count <= 0) {
+			return 0;
+		}
+
+		mixer.mix(effect.getSamples(), position, count, gain);
+		position += count;
+		return count;
+	}
+
+	/**
+	 * True once every frame has been played.
+	 * @return True if finished.
+	 */
+	public boolean isFinished() {
+		return position >= effect.getFrameCount();
+	}
+
+	/**
+	 * Play position of this voice.
+	 * @return Milliseconds of the effect played so far.
+	 */
+	public long getPositionMillis() {
+		return (long) (position * 1000.0f / effect.getSampleRate());
+	}
+
+	/**
+	 * Effect played by this voice.
+	 * @return Sound effect.
+	 */
+	public SoundEffect getEffect() {
+		return effect;
+	}
+
+	/**
+	 * Stop generation this voice was started in.
+	 * @return Stop generation.
+	 */
+	public int getGeneration() {
+		return generation;
+	}
+}
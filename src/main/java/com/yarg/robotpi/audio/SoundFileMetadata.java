@@ -0,0 +1,186 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Facts about a sound file worked out ahead of time so playback needs no
+ * analysis: length, peak level, the gain that brings the file to the library
+ * loudness target, and a coarse amplitude envelope for moving the mouth.
+ * Instances are immutable.
+ */
+public class SoundFileMetadata {
+
+	/** Content hash of the analyzed file. */
+	private final String hash;
+
+	/** Length of the file in milliseconds. */
+	private final long durationMillis;
+
+	/** Largest absolute sample, 0 to 1 of full scale. */
+	private final float peak;
+
+	/** Loudness of the non silent parts in dB relative to full scale. */
+	private final float loudnessDb;
+
+	/** Gain that brings the file to the loudness target without clipping. */
+	private final float gain;
+
+	/** Milliseconds covered by each envelope value. */
+	private final int envelopeMillis;
+
+	/** Envelope values, 0 to 255 relative to the loudest window. */
+	private final byte[] envelope;
+
+	/**
+	 * Create new metadata.
+	 * @param hash Content hash of the file.
+	 * @param durationMillis Length of the file in milliseconds.
+	 * @param peak Largest absolute sample, 0 to 1.
+	 * @param loudnessDb Loudness in dB relative to full scale.
+	 * @param gain Gain that normalizes the file.
+	 * @param envelopeMillis Milliseconds per envelope value.
+	 * @param envelope Envelope values, 0 to 255. Not copied.
+	 */
+	public SoundFileMetadata(String hash, long durationMillis, float peak, 
+			float loudnessDb, float gain, int envelopeMillis, byte[] envelope) {
+		this.hash = hash;
+		this.durationMillis = durationMillis;
+		this.peak = peak;
+		this.loudnessDb = loudnessDb;
+		this.gain = gain;
+		this.envelopeMillis = envelopeMillis;
+		this.envelope = envelope;
+	}
+
+	/**
+	 * Content hash of the analyzed file.
+	 * @return Hex encoded hash.
+	 */
+	public String getHash() {
+		return hash;
+	}
+
+	/**
+	 * Length of the file.
+	 * @return Duration in milliseconds.
+	 */
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * Largest absolute sample in the file.
+	 * @return Peak, 0 to 1 of full scale.
+	 */
+	public float getPeak() {
+		return peak;
+	}
+
+	/**
+	 * Loudness of the non silent parts of the file.
+	 * @return Loudness in dB relative to full scale.
+	 */
+	public float getLoudnessDb() {
+		return loudnessDb;
+	}
+
+	/**
+	 * Gain to play the file with so the library plays at an even level.
+	 * @return Playback gain.
+	 */
+	public float getGain() {
+		return gain;
+	}
+
+	/**
+	 * Envelope level at a point in the file.
+	 * @param positionMillis Play position in milliseconds.
+	 * @return Level from 0 to 1 relative to the loudest part of the file, 0
+	 * outside the file.
+	 */
+	public float getEnvelopeLevel(long positionMillis) {
+
+		if (positionMillis < 0 || envelope.length == 0) {
+			return 0.0f;
+		}
+
+		long index = positionMillis / envelopeMillis;
+
+		if (index >= envelope.length) {
+			return 0.0f;
+		}
+
+		return (envelope[(int) index] & 0xFF) / 255.0f;
+	}
+
+	/**
+	 * Write the metadata to a cache file.
+	 * @param out Output to write to.
+	 * @throws IOException If writing fails.
+	 */
+	public void write(DataOutput out) throws IOException {
+		out.writeUTF(hash);
+		out.writeLong(durationMillis);
+		out.writeFloat(peak);
+		out.writeFloat(loudnessDb);
+		out.writeFloat(gain);
+		out.writeInt(envelopeMillis);
+		out.writeInt(envelope.length);
+		out.write(envelope);
+	}
+
+	/**
+	 * Read metadata written by {@link #write(DataOutput)}.
+	 * @param in Input to read from.
+	 * @return Metadata read.
+	 * @throws IOException If reading fails or the data is damaged.
+	 */
+	public static SoundFileMetadata read(DataInput in) throws IOException {
+
+		String hash = in.readUTF();
+		long durationMillis = in.readLong();
+		float peak = in.readFloat();
+		float loudnessDb = in.readFloat();
+		float gain = in.readFloat();
+		int envelopeMillis = in.readInt();
+		int envelopeLength = in.readInt();
+
+		if (envelopeMillis <= 0 || envelopeLength < 0) {
+			throw new IOException("Damaged sound metadata for "+hash);
+		}
+
+		byte[] envelope = new byte[envelopeLength];
+		in.readFully(envelope);
+
+		return new SoundFileMetadata(hash, durationMillis, peak, loudnessDb, 
+				gain, envelopeMillis, envelope);
+	}
+
+	@Override
+	public String toString() {
+		return String.format("%.1f s, peak %.1f dBFS, loudness %.1f dBFS, gain %.2f",
+				durationMillis / 1000.0f, 20.0 * Math.log10(Math.max(peak, 1e-6f)),
+				loudnessDb, gain);
+	}
+}
@@ -0,0 +1,535 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import javax.sound.sampled.AudioFormat;
+import javax.sound.sampled.AudioSystem;
+import javax.sound.sampled.UnsupportedAudioFileException;
+
+/**
+ * Analyzes every sound file in the sounds directory in parallel on a fork
+ * join pool and keeps a {@link SoundFileMetadata} for each. Results are saved
+ * to a cache file in the sounds directory keyed by the hash of the file
+ * contents, so only new or changed files are decoded on later runs, even if
+ * they were renamed or copied.
+ */
+public class SoundLibraryAnalyzer {
+
+	/** Name of the metadata cache file in the sounds directory. */
+	public static final String CACHE_FILE_NAME = ".robotpi-sounds.cache";
+
+	/** Cache file marker. */
+	private static final int CACHE_MAGIC = 0x52504953;
+
+	/** Cache file layout version. Bump when the analysis changes. */
+	private static final int CACHE_VERSION = 1;
+
+	/** Milliseconds per envelope value. Matches the controller loop period. */
+	private static final int ENVELOPE_MILLIS = 40;
+
+	/** Milliseconds per block when measuring loudness. */
+	private static final int LOUDNESS_BLOCK_MILLIS = 50;
+
+	/** Blocks quieter than this do not count towards loudness. */
+	private static final float SILENCE_GATE_DB = -60.0f;
+
+	/** Loudness every file is normalized to. */
+	private static final float TARGET_LOUDNESS_DB = -18.0f;
+
+	/** Highest peak allowed after normalization. */
+	private static final float MAX_NORMALIZED_PEAK = 0.98f;
+
+	/** Sample rate to assume when a file does not state one. */
+	private static final float DEFAULT_SAMPLE_RATE = 44100.0f;
+
+	/** Directory holding the sound files. */
+	private final File directory;
+
+	/** Pool the files are analyzed on. */
+	private final ForkJoinPool pool;
+
+	/** Metadata keyed by content hash. Loaded from and saved to the cache. */
+	private final ConcurrentHashMap<String, SoundFileMetadata> byHash;
+
+	/** Metadata keyed by absolute path, for lookups during playback. */
+	private final ConcurrentHashMap<String, PathEntry> byPath;
+
+	/** True once the cache file has been read. */
+	private boolean cacheLoaded;
+
+	/** True when results were added since the cache file was written. */
+	private volatile boolean cacheDirty;
+
+	/**
+	 * Create a new analyzer.
+	 * @param directory Directory holding the sound files.
+	 */
+	public SoundLibraryAnalyzer(File directory) {
+		this.directory = directory;
+		pool = new ForkJoinPool();
+		byHash = new ConcurrentHashMap<String, SoundFileMetadata>();
+		byPath = new ConcurrentHashMap<String, PathEntry>();
+		cacheLoaded = false;
+		cacheDirty = false;
+	}
+
+	/**
+	 * Analyze every sound file in the directory, reusing cached results for
+	 * files that have not changed, and save the cache. Blocks until done.
+	 * @return Number of sound files with metadata.
+	 */
+	public synchronized int analyzeLibrary() {
+
+		long start = System.nanoTime();
+
+		if (!cacheLoaded) {
+			loadCache();
+			cacheLoaded = true;
+		}
+
+		File[] soundFiles = directory.listFiles(new FilenameFilter() {
+
+			@Override
+			public boolean accept(File dir, String name) {
+				return name.endsWith(".wav");
+			}
+		});
+
+		if (soundFiles == null) {
+			return 0;
+		}
+
+		int cachedBefore = byHash.size();
+
+		if (soundFiles.length > 0) {
+			pool.invoke(new AnalyzeTask(soundFiles, 0, soundFiles.length));
+		}
+
+		// Drop paths of files that are gone, and count what is ready.
+		Set<String> paths = new HashSet<String>();
+		for (File soundFile : soundFiles) {
+			paths.add(soundFile.getAbsolutePath());
+		}
+		byPath.keySet().retainAll(paths);
+
+		int analyzed = byPath.size();
+
+		if (cacheDirty) {
+			saveCache();
+		}
+
+		System.out.println(String.format(
+				"Sound library: %d of %d files ready, %d newly analyzed, %.0f ms",
+				analyzed, soundFiles.length, byHash.size() - cachedBefore,
+				(System.nanoTime() - start) / 1000000.0));
+
+		return analyzed;
+	}
+
+	/**
+	 * Run {@link #analyzeLibrary()} on a background thread.
+	 */
+	public void analyzeLibraryInBackground() {
+
+		Thread thread = new Thread("SoundLibraryAnalyzer") {
+
+			@Override
+			public void run() {
+				analyzeLibrary();
+			}
+		};
+
+		thread.setDaemon(true);
+		thread.start();
+	}
+
+	/**
+	 * Get the metadata for a sound file analyzed earlier. Does no I/O apart
+	 * from checking the file has not changed, so it is cheap enough to call
+	 * from the control loop.
+	 * @param soundFile Sound file to look up.
+	 * @return Metadata, or null if the file has not been analyzed (yet).
+	 */
+	public SoundFileMetadata getMetadata(File soundFile) {
+
+		PathEntry entry = byPath.get(soundFile.getAbsolutePath());
+
+		if (entry == null || entry.lastModified != soundFile.lastModified()
+				|| entry.length != soundFile.length()) {
+			return null;
+		}
+
+		return entry.metadata;
+	}
+
+	/**
+	 * Analyze a single file now, or return the cached result if its
+	 * contents have been analyzed before. Runs on the calling thread.
+	 * @param soundFile Sound file to analyze.
+	 * @return Metadata, or null if the file could not be read or decoded.
+	 */
+	public SoundFileMetadata analyze(File soundFile) {
+
+		SoundFileMetadata metadata = getMetadata(soundFile);
+
+		if (metadata != null) {
+			return metadata;
+		}
+
+		long lastModified = soundFile.lastModified();
+		long length = soundFile.length();
+
+		String hash;
+		try {
+			hash = hashFile(soundFile);
+		} catch (IOException e) {
+			System.out.println("Unable to read sound file: "+soundFile);
+			e.printStackTrace();
+			return null;
+		}
+
+		metadata = byHash.get(hash);
+
+		if (metadata == null) {
+			metadata = measure(soundFile, hash);
+			if (metadata == null) {
+				return null;
+			}
+			byHash.put(hash, metadata);
+			cacheDirty = true;
+		}
+
+		byPath.put(soundFile.getAbsolutePath(), 
+				new PathEntry(metadata, lastModified, length));
+		return metadata;
+	}
+
+	/**
+	 * Forget a sound file, for example after it was deleted. Its cached
+	 * analysis is kept in case the same contents come back.
+	 * @param soundFile Sound file to forget.
+	 */
+	public void remove(File soundFile) {
+		byPath.remove(soundFile.getAbsolutePath());
+	}
+
+	/**
+	 * Stop the analysis pool.
+	 */
+	public void shutdown() {
+		pool.shutdownNow();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Decode a file and measure it.
+	 * @param soundFile File to measure.
+	 * @param hash Content hash of the file.
+	 * @return Metadata, or null if the file could not be decoded.
+	 */
+	private SoundFileMetadata measure(File soundFile, String hash) {
+
+		float sampleRate;
+		short[] samples;
+
+		try {
+			sampleRate = AudioSystem.getAudioFileFormat(soundFile)
+					.getFormat().getSampleRate();
+			if (sampleRate <= 0.0f) {
+				sampleRate = DEFAULT_SAMPLE_RATE;
+			}
+
+			samples = AudioFileDecoder.decode(soundFile, 
+					new AudioFormat(sampleRate, 16, 1, true, true));
+		} catch (UnsupportedAudioFileException | IOException 
+				| IllegalArgumentException e) {
+			System.out.println("Unable to analyze sound file: "+soundFile);
+			e.printStackTrace();
+			return null;
+		}
+
+		int peakSample = 0;
+		for (short sample : samples) {
+			peakSample = Math.max(peakSample, Math.abs((int) sample));
+		}
+		float peak = peakSample / 32768.0f;
+
+		// Loudness is the mean energy of the blocks above the silence gate,
+		// so pauses in speech do not make a file look quiet.
+		int blockFrames = Math.max(1, 
+				Math.round(sampleRate * LOUDNESS_BLOCK_MILLIS / 1000.0f));
+		double gate = Math.pow(10.0, SILENCE_GATE_DB / 10.0);
+		double loudEnergy = 0.0;
+		int loudBlocks = 0;
+
+		for (int start = 0; start < samples.length; start += blockFrames) {
+			double energy = meanSquare(samples, start, 
+					Math.min(samples.length, start + blockFrames));
+			if (energy > gate) {
+				loudEnergy += energy;
+				loudBlocks++;
+			}
+		}
+
+		float loudnessDb = loudBlocks == 0 
+				? SILENCE_GATE_DB 
+				: (float) (10.0 * Math.log10(loudEnergy / loudBlocks));
+
+		float gain = 1.0f;
+		if (loudBlocks > 0 && peak > 0.0f) {
+			gain = (float) Math.pow(10.0, 
+					(TARGET_LOUDNESS_DB - loudnessDb) / 20.0);
+			gain = Math.min(gain, MAX_NORMALIZED_PEAK / peak);
+			gain = Math.min(gain, AudioMixer.MAX_GAIN);
+		}
+
+		// Envelope of RMS per window, scaled to the loudest window.
+		int windowFrames = Math.max(1, 
+				Math.round(sampleRate * ENVELOPE_MILLIS / 1000.0f));
+		int windows = (samples.length + windowFrames - 1) / windowFrames;
+		double[] rms = new double[windows];
+		double loudestWindow = 0.0;
+
+		for (int w = 0; w < windows; w++) {
+			int start = w * windowFrames;
+			rms[w] = Math.sqrt(meanSquare(samples, start, 
+					Math.min(samples.length, start + windowFrames)));
+			loudestWindow = Math.max(loudestWindow, rms[w]);
+		}
+
+		byte[] envelope = new byte[windows];
+		if (loudestWindow > 0.0) {
+			for (int w = 0; w < windows; w++) {
+				envelope[w] = (byte) Math.round(255.0 * rms[w] / loudestWindow);
+			}
+		}
+
+		long durationMillis = (long) (samples.length * 1000.0 / sampleRate);
+
+		return new SoundFileMetadata(hash, durationMillis, peak, loudnessDb, 
+				gain, ENVELOPE_MILLIS, envelope);
+	}
+
+	/**
+	 * Mean square of a run of samples, relative to full scale.
+	 * @param samples Samples.
+	 * @param start First sample.
+	 * @param end One past the last sample.
+	 * @return Mean square, 0 to 1.
+	 */
+	private static double meanSquare(short[] samples, int start, int end) {
+
+		if (end <= start) {
+			return 0.0;
+		}
+
+		double sum = 0.0;
+		for (int i = start; i < end; i++) {
+			double sample = samples[i] / 32768.0;
+			sum += sample * sample;
+		}
+
+		return sum / (end - start);
+	}
+
+	/**
+	 * Hash the contents of a file.
+	 * @param file File to hash.
+	 * @return Hex encoded SHA-1 of the contents.
+	 * @throws IOException If the file can't be read.
+	 */
+	private static String hashFile(File file) throws IOException {
+
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance("SHA-1");
+		} catch (NoSuchAlgorithmException e) {
+			throw new IOException("SHA-1 not available", e);
+		}
+
+		try (InputStream in = new FileInputStream(file)) {
+			byte[] buffer = new byte[65536];
+			int bytesRead;
+			while ((bytesRead = in.read(buffer)) != -1) {
+				digest.update(buffer, 0, bytesRead);
+			}
+		}
+
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b & 0xFF));
+		}
+
+		return hex.toString();
+	}
+
+	/**
+	 * Read previously saved results. A missing or damaged cache is ignored.
+	 */
+	private void loadCache() {
+
+		File cacheFile = new File(directory, CACHE_FILE_NAME);
+
+		if (!cacheFile.isFile()) {
+			return;
+		}
+
+		try (DataInputStream in = new DataInputStream(
+				new BufferedInputStream(new FileInputStream(cacheFile)))) {
+
+			if (in.readInt() != CACHE_MAGIC || in.readInt() != CACHE_VERSION) {
+				System.out.println("Ignoring outdated sound metadata cache.");
+				return;
+			}
+
+			int count = in.readInt();
+			for (int i = 0; i < count; i++) {
+				SoundFileMetadata metadata = SoundFileMetadata.read(in);
+				byHash.put(metadata.getHash(), metadata);
+			}
+
+		} catch (IOException e) {
+			System.out.println("Ignoring damaged sound metadata cache.");
+			e.printStackTrace();
+			byHash.clear();
+		}
+	}
+
+	/**
+	 * Write all results to the cache file. Written to a temporary file first
+	 * so a crash never leaves a half written cache behind.
+	 */
+	private void saveCache() {
+
+		File cacheFile = new File(directory, CACHE_FILE_NAME);
+		File tempFile = new File(directory, CACHE_FILE_NAME+".tmp");
+
+		cacheDirty = false;
+
+		try {
+			try (DataOutputStream out = new DataOutputStream(
+					new BufferedOutputStream(new FileOutputStream(tempFile)))) {
+
+				out.writeInt(CACHE_MAGIC);
+				out.writeInt(CACHE_VERSION);
+
+				// Snapshot first so the count matches what is written.
+				SoundFileMetadata[] entries = 
+						byHash.values().toArray(new SoundFileMetadata[0]);
+
+				out.writeInt(entries.length);
+				for (SoundFileMetadata metadata : entries) {
+					metadata.write(out);
+				}
+			}
+
+			Files.move(tempFile.toPath(), cacheFile.toPath(), 
+					StandardCopyOption.REPLACE_EXISTING);
+
+		} catch (IOException e) {
+			System.out.println("Unable to save sound metadata cache: "+cacheFile);
+			e.printStackTrace();
+			cacheDirty = true;
+		}
+	}
+
+	/**
+	 * Metadata for a path along with the file state it was valid for.
+	 */
+	private static class PathEntry {
+
+		/** Metadata of the file. */
+		private final SoundFileMetadata metadata;
+
+		/** Modification time of the file when it was analyzed. */
+		private final long lastModified;
+
+		/** Size of the file when it was analyzed. */
+		private final long length;
+
+		private PathEntry(SoundFileMetadata metadata, long lastModified, 
+				long length) {
+			this.metadata = metadata;
+			this.lastModified = lastModified;
+			this.length = length;
+		}
+	}
+
+	/**
+	 * Analyzes a range of files, splitting it in half until each task holds a
+	 * single file. Decoding a file dwarfs the cost of a task so there is no
+	 * point batching.
+	 */
+	private class AnalyzeTask extends RecursiveAction {
+
+		private static final long serialVersionUID = 1L;
+
+		/** Files to analyze. */
+		private final File[] files;
+
+		/** First file of this task. */
+		private final int from;
+
+		/** One past the last file of this task. */
+		private final int to;
+
+		private AnalyzeTask(File[] files, int from, int to) {
+			this.files = files;
+			this.from = from;
+			this.to = to;
+		}
+
+		@Override
+		protected void compute() {
+
+			if (to - from == 1) {
+				analyze(files[from]);
+				return;
+			}
+
+			int middle = (from + to) >>> 1;
+			invokeAll(new AnalyzeTask(files, from, middle), 
+					new AnalyzeTask(files, middle, to));
+		}
+	}
+}
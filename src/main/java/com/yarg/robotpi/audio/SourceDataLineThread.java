@@ -20,9 +20,9 @@ package com.yarg.robotpi.audio;
  */
 
 import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
 
 import javax.sound.sampled.AudioFormat;
 import javax.sound.sampled.AudioSystem;
@@ -30,24 +30,101 @@ import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.SourceDataLine;
 
+import com.yarg.robotpi.net.UdpReactor;
+
 public class SourceDataLineThread extends Thread {
+	
+	/** Largest payload a UDP datagram can carry. */
+	private static final int MAX_DATAGRAM_BYTES = 65507;
+	
+	/** Packets the jitter buffer can hold. */
+	private static final int JITTER_BUFFER_PACKETS = 32;
+	
+	/** 
+	 * Receive buffers. Enough for a full jitter buffer, the packet being
+	 * played and one being received.
+	 */
+	private static final int RECEIVE_BUFFERS = JITTER_BUFFER_PACKETS + 4;
+	
+	/** First pause after a receive failure. */
+	private static final long MIN_BACKOFF_MILLIS = 10;
+	
+	/** Longest pause after repeated receive failures. */
+	private static final long MAX_BACKOFF_MILLIS = 1000;
 
 	private int serverPort;
 	
-	/** The connected client. Setup to only allow a single client connection.*/
-	private DatagramSocket serverDatagramSocket = null;
+	/** Receives datagrams into pooled buffers. */
+	private AudioReceiver receiver;
+	
+	/** Buffers packets are received into and played from. */
+	private AudioBufferPool bufferPool;
 	
 	/** Flag execution state of thread. */
-	private boolean running;
+	private volatile boolean running;
 
 	/** Plays audio to the speakers. */
 	private SourceDataLine sourceDataLine;
+	
+	/** Smallest incoming packet seen so far. */
+	private int smallestPacketBytes = Integer.MAX_VALUE;
+	
+	/** Largest incoming packet seen so far. */
+	private int largestPacketBytes = 0;
+	
+	/** Smooths out network jitter between the socket and the line. */
+	private AudioJitterBuffer jitterBuffer;
+	
+	/** Plays from the jitter buffer to the line. */
+	private AudioPlayoutThread playoutThread;
+	
+	/** Buffer sizes the line should be opened with. */
+	private volatile AudioLineProfile lineProfile = AudioLineProfile.BALANCED;
+	
+	/** 
+	 * Buffer sizes the line was last opened with here. Differs from the
+	 * profile asked for when it changes before the playout thread starts.
+	 */
+	private AudioLineProfile openLineProfile;
+	
+	/** Recorder to copy played audio to, null when not recording. */
+	private volatile AudioRecorder recorder;
+	
+	/** Meter measuring played audio, null for none. */
+	private volatile AudioLevelMeter levelMeter;
+	
+	/** How long audio waits in the line before it is heard. */
+	private LineLatencyMeter playbackLatency = new LineLatencyMeter("Playback");
+	
+	/** 
+	 * Sequence number of the next packet. The robot does not number its
+	 * packets, so they are numbered in order of arrival; a packet that
+	 * turns up after its slot was concealed is then dropped as late, which
+	 * keeps the latency from creeping up.
+	 */
+	private long nextSequence = 0;
+	
+	/** Reactor receiving the packets, null when this thread receives them. */
+	private UdpReactor reactor;
+	
+	/** Pause before the next receive attempt, 0 while receiving works. */
+	private long backoffMillis = 0;
+	
+	/** Receive failures in a row. */
+	private int failuresInARow = 0;
 
 	/**
 	 * Default constructor.
 	 */
 	public SourceDataLineThread(int serverPort) {
 		this.serverPort = serverPort;
+		
+		// Buffers hold the largest possible datagram so nothing the robot
+		// sends is ever cut short.
+		bufferPool = new AudioBufferPool(RECEIVE_BUFFERS, MAX_DATAGRAM_BYTES);
+		receiver = new AudioReceiver(serverPort, bufferPool);
+		jitterBuffer = new AudioJitterBuffer(getAudioFormat().getSampleRate(), 
+				JITTER_BUFFER_PACKETS, bufferPool);
 		initialize();
 	}
 	
@@ -69,13 +146,10 @@ public class SourceDataLineThread extends Thread {
 			}
 		}
 		
-		if (serverDatagramSocket != null) {
-			serverDatagramSocket.close();
-		}
-		
 		try {
-			serverDatagramSocket = new DatagramSocket(serverPort);
-		} catch (SocketException e) {
+			receiver.open();
+		} catch (IOException e) {
+			System.out.println("Unable to listen for incoming audio on port "+serverPort);
 			e.printStackTrace();
 		}
 		
@@ -87,7 +161,10 @@ public class SourceDataLineThread extends Thread {
 			try {
 				sourceDataLine = 
 						(SourceDataLine) AudioSystem.getLine(dataLineInfo);
-				sourceDataLine.open(getAudioFormat());
+				AudioLineProfile profile = lineProfile;
+				AudioLines.open(sourceDataLine, getAudioFormat(), 
+						profile.getPlaybackBufferMillis());
+				openLineProfile = profile;
 			} catch (LineUnavailableException e1) {
 				e1.printStackTrace();
 				System.out.println("Source data line unable to open. Bailing");
@@ -104,8 +181,41 @@ public class SourceDataLineThread extends Thread {
 	 */
 	public void startAudioStreamSpeakers() {
 		
+		if (sourceDataLine != null) {
+			// Tell the playout thread what the line is really open with, so it
+			// reopens the line if another profile was asked for since.
+			playoutThread = new AudioPlayoutThread(sourceDataLine, getAudioFormat(), 
+					openLineProfile, jitterBuffer, playbackLatency);
+			playoutThread.setLineProfile(lineProfile);
+			playoutThread.setRecorder(recorder);
+			playoutThread.setLevelMeter(levelMeter);
+			playoutThread.startPlayout();
+		}
+		
 		running = true;
-		this.start();
+		
+		if (reactor == null) {
+			this.start();
+		} else if (receiver.isOpen()) {
+			reactor.addInbound(receiver.getChannel(), new UdpReactor.InboundHandler() {
+				
+				@Override
+				public void readable(DatagramChannel channel) throws IOException {
+					receiveWaiting();
+				}
+			});
+			System.out.println("Incoming audio: receiving on the UDP reactor");
+		}
+	}
+	
+	/**
+	 * Receive through a shared reactor instead of this thread. Must be called
+	 * before starting. The receive socket is not reopened after a failure in
+	 * this mode.
+	 * @param reactor Reactor to receive on, or null for this thread.
+	 */
+	public void setReactor(UdpReactor reactor) {
+		this.reactor = reactor;
 	}
 	
 	/**
@@ -114,56 +224,210 @@ public class SourceDataLineThread extends Thread {
 	public void stopAudioStreamSpeakers() {
 		
 		running = false;
+		receiver.close();
 		this.interrupt();
 		
-		sourceDataLine.flush();
-		sourceDataLine.close();
-		sourceDataLine = null;
+		if (playoutThread != null) {
+			playoutThread.stopPlayout();
+			playoutThread = null;
+		}
+		
+		System.out.println("Incoming audio jitter buffer: "+jitterBuffer.describe());
+		System.out.println(playbackLatency.describe());
+		System.out.println(String.format(
+				"Incoming audio receive: %d packets, %d bytes, %d dropped with no free buffer",
+				receiver.getReceivedPackets(), receiver.getReceivedBytes(),
+				receiver.getDroppedPackets()));
 		
-		serverDatagramSocket.close();
-		serverDatagramSocket = null;
+		if (sourceDataLine != null) {
+			sourceDataLine.flush();
+			sourceDataLine.close();
+			sourceDataLine = null;
+		}
 	}
 	
 	/* (non-Javadoc)
 	 * @see java.lang.Thread#run()
 	 */
-	public void run() {			
+	public void run() {
+		
+		System.out.println("Incoming audio: receiving into "+bufferPool.getCapacity()
+				+" pooled "+bufferPool.getBufferBytes()+" byte buffers");
+		
+		while (running) {
 			
-			int dataLen = getAudioBufferSizeBytes();
-			byte[] datagramBuffer = new byte[dataLen];
-			DatagramPacket datagramPacket = new DatagramPacket(datagramBuffer, dataLen);
+			ByteBuffer packet;
 			
-			while (running) {
-				
-				try {
-					serverDatagramSocket.receive(datagramPacket);
-				} catch (IOException e) {
-					
-					System.out.println("Exception on incoming audio stream. Pausing before continuing.");
-					e.printStackTrace();
-					
-					// Let the system rest and then loop back to try the
-					// next incoming data bit.
-					try {
-						sleep(500);
-					} catch (InterruptedException e1) {
-						e1.printStackTrace();
-					}
-					continue;
+			try {
+				if (!receiver.isOpen()) {
+					receiver.open();
+				}
+				packet = receiver.receive();
+			} catch (ClosedChannelException e) {
+				// Closed by stopAudioStreamSpeakers, or by an interrupt. Reopen
+				// on the next pass if still running.
+				if (running) {
+					backOff(e);
 				}
-					
-				sourceDataLine.write(
-						datagramPacket.getData(), 
-						0, 
-						datagramPacket.getLength());
+				continue;
+			} catch (IOException e) {
+				backOff(e);
+				continue;
 			}
-
+			
+			backoffMillis = 0;
+			failuresInARow = 0;
+			
+			if (packet == null) {
+				continue;
+			}
+			
+			recordPacketSize(packet.remaining());
+			jitterBuffer.insert(nextSequence++, packet, System.nanoTime());
+		}
+	}
+	
+	/**
+	 * Switch the playback line to another buffer profile. Applied by the
+	 * playout thread without stopping the stream.
+	 * @param profile Profile to use.
+	 */
+	public void setLineProfile(AudioLineProfile profile) {
+		
+		lineProfile = profile;
+		
+		if (playoutThread != null) {
+			playoutThread.setLineProfile(profile);
+		}
+	}
+	
+	/**
+	 * Copy audio played from the robot to a recorder.
+	 * @param recorder Recorder to copy to, or null to stop copying.
+	 */
+	public void setRecorder(AudioRecorder recorder) {
+		
+		this.recorder = recorder;
+		
+		if (playoutThread != null) {
+			playoutThread.setRecorder(recorder);
+		}
+	}
+	
+	/**
+	 * Measure audio played from the robot.
+	 * @param levelMeter Meter to feed, or null for none.
+	 */
+	public void setLevelMeter(AudioLevelMeter levelMeter) {
+		
+		this.levelMeter = levelMeter;
+		
+		if (playoutThread != null) {
+			playoutThread.setLevelMeter(levelMeter);
+		}
+	}
+	
+	/**
+	 * Measured playback line latency.
+	 * @return Latency meter.
+	 */
+	public LineLatencyMeter getPlaybackLatency() {
+		return playbackLatency;
+	}
+	
+	/**
+	 * Jitter buffer between the socket and the speakers, for metrics.
+	 * @return Jitter buffer.
+	 */
+	public AudioJitterBuffer getJitterBuffer() {
+		return jitterBuffer;
+	}
+	
+	/**
+	 * Smallest incoming packet seen so far.
+	 * @return Packet size in bytes, 0 if nothing was received.
+	 */
+	public int getSmallestPacketBytes() {
+		return largestPacketBytes == 0 ? 0 : smallestPacketBytes;
+	}
+	
+	/**
+	 * Largest incoming packet seen so far.
+	 * @return Packet size in bytes, 0 if nothing was received.
+	 */
+	public int getLargestPacketBytes() {
+		return largestPacketBytes;
 	}
 	
 	// -------------------------------------------------------------------------
 	// Private methods
 	// -------------------------------------------------------------------------
 	
+	/**
+	 * Queue every datagram waiting on the non-blocking channel. Runs on the
+	 * reactor thread.
+	 * @throws IOException If receiving fails.
+	 */
+	private void receiveWaiting() throws IOException {
+		
+		ByteBuffer packet;
+		
+		while ((packet = receiver.poll()) != null) {
+			recordPacketSize(packet.remaining());
+			jitterBuffer.insert(nextSequence++, packet, System.nanoTime());
+		}
+	}
+	
+	/**
+	 * Pause after a receive failure, doubling the pause on each failure in a
+	 * row up to a limit, so a brief fault costs milliseconds and a lasting
+	 * one does not spin.
+	 * @param e Failure that occurred.
+	 */
+	private void backOff(IOException e) {
+		
+		backoffMillis = backoffMillis == 0 
+				? MIN_BACKOFF_MILLIS 
+				: Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+		
+		// Only report the start of a run of failures and then every time the
+		// pause tops out.
+		if (failuresInARow++ == 0 || backoffMillis == MAX_BACKOFF_MILLIS) {
+			System.out.println("Exception on incoming audio stream ("+failuresInARow
+					+" in a row). Pausing "+backoffMillis+" ms before continuing.");
+			e.printStackTrace();
+		}
+		
+		try {
+			sleep(backoffMillis);
+		} catch (InterruptedException e1) {
+			// Stopping.
+		}
+	}
+	
+	/**
+	 * Track the range of incoming packet sizes and report whenever it grows.
+	 * @param length Size of the packet just received.
+	 */
+	private void recordPacketSize(int length) {
+		
+		if (length >= smallestPacketBytes && length <= largestPacketBytes) {
+			return;
+		}
+		
+		smallestPacketBytes = Math.min(smallestPacketBytes, length);
+		largestPacketBytes = Math.max(largestPacketBytes, length);
+		
+		float frameMillis = 1000.0f / getAudioFormat().getFrameRate();
+		int frameSize = getAudioFormat().getFrameSize();
+		
+		System.out.println(String.format(
+				"Incoming audio packets: %d to %d bytes (%.1f to %.1f ms)",
+				smallestPacketBytes, largestPacketBytes,
+				smallestPacketBytes / frameSize * frameMillis,
+				largestPacketBytes / frameSize * frameMillis));
+	}
+	
 	/**
 	 * Get the audio format.
 	 * @return Audio format to use for recording.
@@ -184,16 +448,4 @@ public class SourceDataLineThread extends Thread {
 				bigEndian);
 	}
 	
-	/**
-	 * Size of the playback buffer in bytes.
-	 * @return Size of buffer
-	 */
-	private int getAudioBufferSizeBytes() {
-
-        int frameSizeInBytes = getAudioFormat().getFrameSize();
-        int bufferLengthInFrames = sourceDataLine.getBufferSize() / 8;
-        int bufferLengthInBytes = bufferLengthInFrames * frameSizeInBytes;
-        return bufferLengthInBytes;
-	}
-	
 }
@@ -20,28 +20,67 @@ package com.yarg.robotpi.audio;
  */
 
 import java.io.File;
-import java.io.IOException;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
-import java.net.SocketException;
-import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
 
 import javax.sound.sampled.AudioFormat;
-import javax.sound.sampled.AudioInputStream;
 import javax.sound.sampled.AudioSystem;
 import javax.sound.sampled.DataLine;
 import javax.sound.sampled.LineUnavailableException;
 import javax.sound.sampled.TargetDataLine;
-import javax.sound.sampled.UnsupportedAudioFileException;
+
+import com.yarg.robotpi.net.UdpReactor;
 
 public class TargetDataLineThread extends Thread {
 	
-	/** The datagram client. Setup to only allow a single client connection.*/
-	private DatagramSocket clientDatagramSocket = null;
+	/** What the sender is doing. */
+	public enum SenderState {
+		
+		/** Nothing to send, parked until woken. */
+		IDLE,
+		
+		/** Nothing to send, capturing the microphone into the pre-roll. */
+		LISTENING,
+		
+		/** Sending the microphone. */
+		MICROPHONE,
+		
+		/** Sending audio files. */
+		AUDIO_FILE,
+		
+		/** Sending the microphone mixed with audio files. */
+		MIXED
+	}
+	
+	/** Number of packets the send queue holds. */
+	private static final int PACKET_RING_CAPACITY = 32;
+	
+	/** Largest packet the send queue holds, and so the largest payload. */
+	private static final int PACKET_RING_SLOT_BYTES = 8192;
+	
+	/** Default backlog kept when dropping the oldest queued packets. */
+	private static final int DEFAULT_MAX_SEND_BACKLOG = 16;
+	
+	/** Longest microphone pre-roll allowed. */
+	private static final int MAX_PRE_ROLL_MILLIS = 500;
+	
+	/** 
+	 * Audio mixed per audio file packet. Matches the default audio file
+	 * packet delay so files stream in real time, whatever the capture line
+	 * buffer size.
+	 */
+	private static final int MIX_BLOCK_MILLIS = 125;
+	
+	/** Packets captured and waiting to be sent. */
+	private AudioPacketRing packetRing;
+	
+	/** Sends queued packets so capture never waits on the network. */
+	private AudioSendThread audioSendThread;
 	
 	/** Flag execution state of thread. */
-	private boolean running;
+	private volatile boolean running;
 
 	/** This is the mic audio input. */
 	private TargetDataLine targetDataLine;
@@ -53,19 +92,144 @@ public class TargetDataLineThread extends Thread {
 	private String serverAddress;
 	
 	/** True if microphone audio should be sent. */
-	private boolean playMicrophone;
+	private volatile boolean playMicrophone;
 	
 	/** True if should play from audio file. */
 	private boolean playAudioFile;
 	
-	/** Audio file input stream. */
-	private AudioInputStream audioFileInputStream = null;
+	/** Audio file most recently started. */
+	private File currentAudioFile = null;
+	
+	/** Voice playing the audio file most recently started. */
+	private volatile SoundEffectVoice currentVoice = null;
+	
+	/** Decoded audio files ready to be mixed. */
+	private SoundEffectCache soundEffectCache;
+	
+	/** Voices started by the control thread, not yet picked up for mixing. */
+	private ConcurrentLinkedQueue<SoundEffectVoice> startedVoices;
+	
+	/** Bumped on every stop so voices started before it are dropped. */
+	private volatile int stopGeneration = 0;
+	
+	/** Gain applied to the microphone when mixing. */
+	private volatile float microphoneGain = 1.0f;
+	
+	/** Sample rate audio is sent to the robot at. */
+	private volatile int outboundSampleRate;
+	
+	/** Largest audio payload sent in one datagram. */
+	private volatile int maxPayloadBytes = AudioPacketizer.DEFAULT_MAX_PAYLOAD_BYTES;
+	
+	/** Fixed packet duration in milliseconds, 0 to fill the payload budget. */
+	private volatile int packetMillis = 0;
+	
+	/** Lowers the sample rate and packet rate when the network is congested. */
+	private final AudioQualityController quality = new AudioQualityController();
+	
+	/** Keep alive marker sent in place of suppressed silence. */
+	private byte[] keepAliveBuffer;
+	
+	/** What the sender is currently doing. */
+	private volatile SenderState state = SenderState.IDLE;
+	
+	/** When the sender was last woken up. */
+	private volatile long wakeNanos;
+	
+	/** True until the first packet after waking up has been queued. */
+	private boolean awaitingFirstPacket;
+	
+	/** Longest time from wake up to the first packet queued. */
+	private volatile long maxWakeLatencyNanos;
+	
+	/** Microphone audio kept from before the talk press, 0 for none. */
+	private volatile int preRollMillis = 0;
+	
+	/** Capture line buffer profile asked for by the control side. */
+	private volatile AudioLineProfile requestedLineProfile = AudioLineProfile.BALANCED;
+	
+	/** How long captured audio waits in the line before it is read. */
+	private LineLatencyMeter captureLatency = new LineLatencyMeter("Capture");
+	
+	/** When the talk button was last pressed. */
+	private volatile long talkPressNanos;
+	
+	/** Recorder to copy the outgoing mix to, null when not recording. */
+	private volatile AudioRecorder recorder;
+	
+	/** Meter measuring the outgoing mix, null for none. */
+	private volatile AudioLevelMeter levelMeter;
+	
+	/** Reactor sending the packets, null for a send thread of their own. */
+	private UdpReactor reactor;
+	
+	// The following are only touched by the sender thread.
+	
+	/** Capture and mix buffer. */
+	private byte[] readBuffer;
+	
+	/** Mixes the active sources. */
+	private AudioMixer mixer;
+	
+	/** Sound effect voices being mixed. */
+	private ArrayList<SoundEffectVoice> voices;
+	
+	/** Converts the mix to the outbound sample rate. */
+	private PolyphaseResampler resampler;
+	
+	/** Holds the mix after sample rate conversion. */
+	private byte[] sendBuffer;
+	
+	/** Cuts the outbound stream into packets. */
+	private AudioPacketizer packetizer;
 	
-	/** Audio file conversion stream. Takes input stream and writes to output.*/
-	private AudioInputStream audioFileConversionStream = null;
+	/** Payload budget the packetizer was built with. */
+	private int configuredPayloadBytes;
+	
+	/** Packet duration the packetizer was built with. */
+	private int configuredPacketMillis;
+	
+	/** Rate header put in front of packets while the quality adapts. */
+	private final byte[] rateHeader = new byte[AudioRateHeader.BYTES];
+	
+	/** Bytes of the rate header sent with each packet, 0 for none. */
+	private int rateHeaderBytes;
+	
+	/** Bytes read from the microphone at a time, about one packet worth. */
+	private int microphoneReadBytes;
+	
+	/** Recent microphone audio kept while listening. */
+	private AudioPreRollBuffer preRoll;
+	
+	/** True until the first packet after a talk press has been queued. */
+	private boolean awaitingFirstTalkPacket;
+	
+	/** Capture line buffer profile the line is open with. */
+	private AudioLineProfile lineProfile;
+	
+	/** Frames read from the line since it was opened or flushed. */
+	private long framesRead;
 	
 	/** Delay between packets sent in milliseconds. */
-	private Long streamingAudioFileDelay = 125L;
+	private volatile long streamingAudioFileDelay = 125L;
+	
+	/** Suppresses silent microphone buffers. */
+	private VoiceActivityDetector voiceActivityDetector;
+	
+	/** True if silent microphone buffers should be suppressed. */
+	private volatile boolean voiceActivityDetection = true;
+	
+	/** Mutes the microphone between words. */
+	private NoiseGate noiseGate;
+	
+	/** Evens out the microphone level. */
+	private AutomaticGainControl automaticGainControl;
+	
+	/** Keeps the microphone from clipping. */
+	private LookAheadLimiter limiter;
+	
+	/** Processing applied to the microphone before mixing. */
+	private AudioProcessingChain microphoneProcessing;
 
 	/**
 	 * Create a new target data line thread that sends the microphone data
@@ -79,6 +243,25 @@ public class TargetDataLineThread extends Thread {
 		
 		this.serverAddress = serverAddress;
 		this.serverPort = serverPort;
+		
+		voiceActivityDetector = 
+				new VoiceActivityDetector(getAudioFormat().getSampleRate());
+		soundEffectCache = new SoundEffectCache(getAudioFormat());
+		outboundSampleRate = (int) getAudioFormat().getSampleRate();
+		startedVoices = new ConcurrentLinkedQueue<SoundEffectVoice>();
+		keepAliveBuffer = new byte[voiceActivityDetector.getKeepAliveLength()];
+		
+		float captureRate = getAudioFormat().getSampleRate();
+		noiseGate = new NoiseGate(captureRate);
+		automaticGainControl = new AutomaticGainControl(captureRate);
+		limiter = new LookAheadLimiter(captureRate);
+		microphoneProcessing = new AudioProcessingChain(captureRate, 
+				noiseGate, automaticGainControl, limiter);
+		
+		packetRing = new AudioPacketRing(
+				PACKET_RING_CAPACITY, PACKET_RING_SLOT_BYTES);
+		packetRing.setDropPolicy(
+				AudioPacketRing.DropPolicy.DROP_OLDEST, DEFAULT_MAX_SEND_BACKLOG);
 	}
 	
 	/**
@@ -99,14 +282,14 @@ public class TargetDataLineThread extends Thread {
 			}
 		}
 	
-		if (clientDatagramSocket != null) {
-			clientDatagramSocket.close();
+		if (audioSendThread != null) {
+			audioSendThread.stopSending();
 		}
 		
-		try {
-			clientDatagramSocket = new DatagramSocket();
-		} catch (SocketException e1) {
-			e1.printStackTrace();
+		audioSendThread = 
+				new AudioSendThread(serverAddress, serverPort, packetRing);
+		
+		if (!audioSendThread.initialize()) {
 			stopAudioStreamMicrophone();
 			return;
 		}
@@ -123,7 +306,9 @@ public class TargetDataLineThread extends Thread {
 
 			try {
 				targetDataLine = (TargetDataLine) AudioSystem.getLine(dataLineInfo);
-				targetDataLine.open(getAudioFormat());
+				lineProfile = requestedLineProfile;
+				AudioLines.open(targetDataLine, getAudioFormat(), 
+						lineProfile.getCaptureBufferMillis());
 			} catch (LineUnavailableException e) {
 				e.printStackTrace();
 				stopAudioStreamMicrophone();
@@ -137,79 +322,349 @@ public class TargetDataLineThread extends Thread {
 	public void startAudioStreamMicrophone() {
 		
 		running = true;
+		if (reactor == null) {
+			audioSendThread.startSending();
+		} else {
+			audioSendThread.startSending(reactor);
+		}
 		this.start();
 	}
 	
+	/**
+	 * Send through a shared reactor instead of a send thread of its own.
+	 * Must be called before starting.
+	 * @param reactor Reactor to send on, or null for a send thread.
+	 */
+	public void setReactor(UdpReactor reactor) {
+		this.reactor = reactor;
+	}
+	
 	public void stopAudioStreamMicrophone() {
 		
 		running = false;
 		this.interrupt();
 		
+		System.out.println(String.format(
+				"Microphone VAD: %d sent, %d suppressed (%d keep alive), %d bytes saved",
+				voiceActivityDetector.getSentBuffers(),
+				voiceActivityDetector.getSuppressedBuffers(),
+				voiceActivityDetector.getKeepAliveBuffers(),
+				voiceActivityDetector.getSuppressedBytes()));
+		System.out.println(String.format(
+				"Microphone send queue: peak %d of %d, %d dropped full, %d dropped stale",
+				packetRing.getHighWaterMark(),
+				packetRing.getCapacity(),
+				packetRing.getDroppedNewest(),
+				packetRing.getDroppedOldest()));
+		System.out.println(String.format(
+				"Microphone sender: longest wake to first packet %.3f ms",
+				maxWakeLatencyNanos / 1e6));
+		if (audioSendThread != null) {
+			System.out.println("Talk press to wire: "
+					+ audioSendThread.describeTalkLatency());
+		}
+		System.out.println(captureLatency.describe());
+		System.out.println("Microphone processing: "+microphoneProcessing.describe());
+		System.out.println(quality.describe());
+		
 		if (targetDataLine != null) {
 			targetDataLine.flush();
 			targetDataLine.close();
 			targetDataLine = null;
 		}
 		
-		if (clientDatagramSocket != null) {
-			clientDatagramSocket.close();
-			clientDatagramSocket = null;
+		if (audioSendThread != null) {
+			audioSendThread.stopSending();
 		}
 	}
 	
 	public void playAudioFile(File audioFile) {
+		playAudioFile(audioFile, 1.0f);
+	}
+	
+	/**
+	 * Start mixing an audio file into the outgoing stream. Several files can
+	 * play at once, but asking for the file that is already playing again
+	 * does nothing.
+	 * @param audioFile Audio file to play.
+	 * @param gain Gain to mix the file with.
+	 */
+	public void playAudioFile(File audioFile, float gain) {
 		
-		if (playAudioFile) {
+		if (playAudioFile && audioFile.equals(currentAudioFile)) {
 			return;
 		}
-
-		try {
-			audioFileInputStream = AudioSystem.getAudioInputStream(audioFile);
-		} catch (UnsupportedAudioFileException | IOException e) {
-			e.printStackTrace();
-			playAudioFile = false;
-			return;
-		}
-
-		audioFileConversionStream = 
-				AudioSystem.getAudioInputStream(
-						getAudioFormat(), audioFileInputStream);
 		
-		if (audioFileConversionStream == null) {
-			playAudioFile = false;
+		SoundEffect effect = soundEffectCache.get(audioFile);
+		
+		if (effect == null) {
 			return;
 		}
 		
+		SoundEffectVoice voice = 
+				new SoundEffectVoice(effect, gain, stopGeneration);
+		startedVoices.offer(voice);
+		
+		currentAudioFile = audioFile;
+		currentVoice = voice;
 		playAudioFile = true;
+		wake();
 	}
 	
 	public void stopAudioFile() {
 		
+		if (!playAudioFile) {
+			return;
+		}
+		
 		playAudioFile = false;
+		currentAudioFile = null;
+		currentVoice = null;
+		stopGeneration++;
+		wake();
+	}
+	
+	/**
+	 * Decode an audio file into the effect cache ahead of time so starting
+	 * it later does not wait on the disk.
+	 * @param audioFile Audio file to load.
+	 */
+	public void prewarmAudioFile(File audioFile) {
+		soundEffectCache.get(audioFile);
+	}
+	
+	/**
+	 * Drop an audio file from the effect cache.
+	 * @param audioFile Audio file to drop.
+	 */
+	public void forgetAudioFile(File audioFile) {
+		soundEffectCache.remove(audioFile);
+	}
+	
+	/**
+	 * Play position of the audio file most recently started. Stays at the
+	 * end of the file once it has finished until the file is stopped.
+	 * @return Milliseconds played so far, or -1 if no file is playing.
+	 */
+	public long getAudioFilePositionMillis() {
 		
-		try {
-			if (audioFileConversionStream != null) {
-				audioFileConversionStream.close();
-			}
-			if (audioFileInputStream != null) {
-				audioFileInputStream.close();
-			}
-		} catch (IOException e) {
-			e.printStackTrace();
+		SoundEffectVoice voice = currentVoice;
+		
+		if (voice == null) {
+			return -1;
 		}
+		
+		return voice.getPositionMillis();
 	}
 	
 	public void playMicrophone() {
+		
+		if (playMicrophone) {
+			return;
+		}
+		
+		talkPressNanos = System.nanoTime();
 		playMicrophone = true;
+		wake();
 	}
 	
 	public void stopMicrophone() {
 		playMicrophone = false;
 	}
 	
-	public void setStreamingAudioFileDelay(Long milliseconds) {
+	/**
+	 * Set the gain applied to the microphone when mixing.
+	 * @param gain Microphone gain.
+	 */
+	public void setMicrophoneGain(float gain) {
+		microphoneGain = gain;
+	}
+	
+	/**
+	 * Copy the outgoing mix to a recorder, at the capture rate before it is
+	 * converted for sending.
+	 * @param recorder Recorder to copy to, or null to stop copying.
+	 */
+	public void setRecorder(AudioRecorder recorder) {
+		this.recorder = recorder;
+	}
+	
+	/**
+	 * Measure the outgoing mix, at the capture rate.
+	 * @param levelMeter Meter to feed, or null for none.
+	 */
+	public void setLevelMeter(AudioLevelMeter levelMeter) {
+		this.levelMeter = levelMeter;
+	}
+	
+	/**
+	 * Set the sample rate audio is sent to the robot at. Microphone and audio
+	 * file audio is captured and mixed at the capture rate and converted just
+	 * before sending. The robot must be configured to play the same rate.
+	 * @param sampleRate Outbound sample rate in Hz, such as 16000 or 22050.
+	 */
+	public void setOutboundSampleRate(int sampleRate) {
+		outboundSampleRate = sampleRate;
+	}
+	
+	/**
+	 * Format of the audio sent to the robot.
+	 * @return Outbound audio format.
+	 */
+	public AudioFormat getOutboundAudioFormat() {
+		
+		AudioFormat captureFormat = getAudioFormat();
+		
+		return new AudioFormat(
+				quality.getSampleRate(outboundSampleRate),
+				captureFormat.getSampleSizeInBits(),
+				captureFormat.getChannels(),
+				true,
+				captureFormat.isBigEndian());
+	}
+	
+	/**
+	 * Set the largest audio payload sent in one datagram. Keep it under the
+	 * path MTU so packets are never fragmented. Capped at the size of the
+	 * send queue slots.
+	 * @param bytes Payload budget in bytes.
+	 */
+	public void setMaxPayloadBytes(int bytes) {
+		maxPayloadBytes = Math.min(bytes, packetRing.getSlotBytes());
+	}
+	
+	/**
+	 * Send packets of a fixed duration instead of filling the payload budget.
+	 * Packets are still capped by the budget.
+	 * @param milliseconds Packet duration, such as 10 or 20. 0 to fill the
+	 * payload budget.
+	 */
+	public void setPacketDurationMillis(int milliseconds) {
+		packetMillis = milliseconds;
+	}
+	
+	/**
+	 * Quality adaptation applied on top of the outbound sample rate and
+	 * packet duration.
+	 * @return Quality controller.
+	 */
+	public AudioQualityController getQualityController() {
+		return quality;
+	}
+	
+	/**
+	 * Choose what to drop when the network can't keep up with capture.
+	 * @param dropPolicy Drop policy.
+	 * @param maxBacklog Largest number of packets kept queued when dropping
+	 * the oldest packets.
+	 */
+	public void setSendDropPolicy(AudioPacketRing.DropPolicy dropPolicy, 
+			int maxBacklog) {
+		packetRing.setDropPolicy(dropPolicy, maxBacklog);
+	}
+	
+	/**
+	 * Packets captured and waiting to be sent, for monitoring.
+	 * @return Send queue.
+	 */
+	public AudioPacketRing getSendQueue() {
+		return packetRing;
+	}
+	
+	/**
+	 * Switch the capture line to another buffer profile. Applied by the
+	 * capture thread, which reopens the line without stopping the stream.
+	 * @param profile Profile to use.
+	 */
+	public void setLineProfile(AudioLineProfile profile) {
+		requestedLineProfile = profile;
+		wake();
+	}
+	
+	/**
+	 * Measured capture line latency.
+	 * @return Latency meter.
+	 */
+	public LineLatencyMeter getCaptureLatency() {
+		return captureLatency;
+	}
+	
+	/**
+	 * Keep the last few milliseconds of microphone audio while nobody is
+	 * talking and send it ahead of the live audio on the next talk press, so
+	 * the first syllable isn't clipped. The receiver ends up that much further
+	 * behind for the rest of the talk spurt, and the microphone is read
+	 * continuously instead of the sender sleeping while idle.
+	 * @param milliseconds Pre-roll length, 0 to disable.
+	 */
+	public void setPreRollMillis(int milliseconds) {
+		preRollMillis = Math.max(0, Math.min(MAX_PRE_ROLL_MILLIS, milliseconds));
+		wake();
+	}
+	
+	/**
+	 * Describe the talk press to wire latency measured so far.
+	 * @return Latency summary.
+	 */
+	public String describeTalkLatency() {
+		return audioSendThread.describeTalkLatency();
+	}
+	
+	/**
+	 * Set the delay between packets while streaming an audio file.
+	 * @param milliseconds Delay between packets in milliseconds.
+	 */
+	public void setStreamingAudioFileDelay(long milliseconds) {
 		streamingAudioFileDelay = milliseconds;
-		System.out.println("delay: "+streamingAudioFileDelay);
+	}
+	
+	/**
+	 * Enable or disable suppression of silent microphone buffers.
+	 * @param enabled True to only send microphone audio while speaking.
+	 */
+	public void setVoiceActivityDetection(boolean enabled) {
+		voiceActivityDetection = enabled;
+	}
+	
+	/**
+	 * Processing applied to the microphone before it is mixed, for turning
+	 * stages on and off and reading their timing.
+	 * @return Microphone processing chain.
+	 */
+	public AudioProcessingChain getMicrophoneProcessing() {
+		return microphoneProcessing;
+	}
+	
+	/**
+	 * Noise gate stage of the microphone processing.
+	 * @return Noise gate.
+	 */
+	public NoiseGate getNoiseGate() {
+		return noiseGate;
+	}
+	
+	/**
+	 * Automatic gain control stage of the microphone processing.
+	 * @return Automatic gain control.
+	 */
+	public AutomaticGainControl getAutomaticGainControl() {
+		return automaticGainControl;
+	}
+	
+	/**
+	 * Limiter stage of the microphone processing.
+	 * @return Limiter.
+	 */
+	public LookAheadLimiter getLimiter() {
+		return limiter;
+	}
+	
+	/**
+	 * What the sender is currently doing, for monitoring.
+	 * @return Sender state.
+	 */
+	public SenderState getSenderState() {
+		return state;
 	}
 	
 	/* (non-Javadoc)
@@ -217,86 +672,66 @@ public class TargetDataLineThread extends Thread {
 	 */
 	public void run() {			
 			
-		byte[] readBuffer = new byte[getAudioBufferSizeBytes()];
-		
-		InetAddress address;
-		try {
-			address = InetAddress.getByName(serverAddress);
-		} catch (UnknownHostException e) {
-			System.out.println("Unreoverable error occurred during startup of audio stream. See stack trace for more information.");
-			e.printStackTrace();
-			return;
-		}
-		DatagramPacket packet = new DatagramPacket(readBuffer, readBuffer.length, 
-		                                address, serverPort);
-		
-		int bytesRead = 0;
+		readBuffer = new byte[AudioLines.bytesForMillis(getAudioFormat(), MIX_BLOCK_MILLIS)];
+		mixer = new AudioMixer(readBuffer.length / 2);
+		voices = new ArrayList<SoundEffectVoice>();
+		framesRead = targetDataLine.getLongFramePosition();
 		
 		while (running) {
 			
-			if (playAudioFile) {
-				
-				try {
-					bytesRead = audioFileConversionStream.read(readBuffer);
-				} catch (IOException e) {
-					e.printStackTrace();
-					
-					System.out.println("Exception on outgoing audio stream (A). Pausing before continuing.");
-					// Give it a moment to rest and then continue.
-					try {
-						sleep(500);
-					} catch (InterruptedException e1) {
-						e1.printStackTrace();
-						continue;
-					}
-				}
-				
-				if (bytesRead != -1) {
-					packet.setData(readBuffer);
-					
-					// Force delay to not overfill buffer and also
-					// cause stomping on stream playback at receiving end.
-					try {
-						sleep(streamingAudioFileDelay);
-					} catch (InterruptedException e) {
-						e.printStackTrace();
-					}
-					
-					try {
-						clientDatagramSocket.send(packet);
-					} catch (IOException e) {
-						
-						System.out.println("Exception on outgoing audio stream (B). Pausing before continuing.");
-						e.printStackTrace();
-						
-						// Give it a moment to rest and then continue.
-						try {
-							sleep(500);
-						} catch (InterruptedException e1) {
-							e1.printStackTrace();
-							continue;
-						}
-					}
+			if (requestedLineProfile != lineProfile) {
+				applyLineProfile(requestedLineProfile);
+			}
+			
+			collectVoices();
+			
+			SenderState next = nextState();
+			
+			if (next != state) {
+				changeState(next);
+			}
+			
+			switch (state) {
+			case IDLE:
+				// Nothing to send. Sleep until a control method wakes us.
+				LockSupport.park(this);
+				break;
+			case LISTENING:
+				// Keep the line drained and remember the latest audio.
+				int listened = readMicrophone(microphoneReadBytes);
+				if (preRoll != null) {
+					preRoll.write(readBuffer, 0, listened);
 				}
-		
-			} else if (playMicrophone) {
+				break;
+			case MICROPHONE:
+			case MIXED:
+				// Send any pre-roll first, then the live microphone, which
+				// paces the stream.
+				int cnt = preRoll != null && preRoll.size() > 0
+						? preRoll.read(readBuffer, 0, microphoneReadBytes)
+						: readMicrophone(microphoneReadBytes);
 				
-				int cnt = targetDataLine.read(readBuffer, 0,
-						readBuffer.length);
-
 				if (cnt > 0) {
-					
-					packet.setData(readBuffer);
-					
-					try {
-						clientDatagramSocket.send(packet);
-					} catch (IOException e) {
-
-						System.out.println("Exception on outgoing audio stream (C). Pausing before continuing.");
-						e.printStackTrace();
-						continue;
-					}
+					microphoneProcessing.process(readBuffer, 0, cnt);
+					mixer.clear(cnt / 2);
+					mixer.mixBigEndian(readBuffer, 0, cnt / 2, microphoneGain);
+					mixVoices();
+					sendMix(state == SenderState.MICROPHONE && voiceActivityDetection);
 				}
+				break;
+			case AUDIO_FILE:
+				mixer.clear(mixer.getMaxFrames());
+				
+				// Don't pad the last packet of a sound effect with silence.
+				mixer.truncate(mixVoices());
+				sendMix(false);
+				
+				// Force delay to not overfill buffer and also
+				// cause stomping on stream playback at receiving end. A wake
+				// up cuts the delay short so state changes apply at once.
+				LockSupport.parkNanos(this, 
+						TimeUnit.MILLISECONDS.toNanos(streamingAudioFileDelay));
+				break;
 			}
 		}
 	}
@@ -305,6 +740,338 @@ public class TargetDataLineThread extends Thread {
 	// Private methods
 	// -------------------------------------------------------------------------
 	
+	/**
+	 * Read from the microphone into the read buffer and measure how long the
+	 * audio waited in the line.
+	 * @param bytes Bytes to read.
+	 * @return Bytes read.
+	 */
+	private int readMicrophone(int bytes) {
+		
+		int count = targetDataLine.read(readBuffer, 0, bytes);
+		int frames = count / 2;
+		framesRead += frames;
+		
+		// The oldest frame just read has waited for everything captured
+		// after it.
+		captureLatency.record(
+				targetDataLine.getLongFramePosition() - framesRead + frames,
+				getAudioFormat().getFrameRate());
+		
+		return count;
+	}
+	
+	/**
+	 * Reopen the capture line with the buffer of a new profile. Falls back to
+	 * the old profile if the line won't open with the new one.
+	 * @param next Profile to switch to.
+	 */
+	private void applyLineProfile(AudioLineProfile next) {
+		
+		System.out.println("Capture line profile: "+next);
+		
+		try {
+			AudioLines.open(targetDataLine, getAudioFormat(), 
+					next.getCaptureBufferMillis());
+		} catch (LineUnavailableException e) {
+			e.printStackTrace();
+			System.out.println("Capture line won't open as "+next+", staying "+lineProfile);
+			requestedLineProfile = lineProfile;
+			try {
+				AudioLines.open(targetDataLine, getAudioFormat(), 
+						lineProfile.getCaptureBufferMillis());
+			} catch (LineUnavailableException e1) {
+				e1.printStackTrace();
+				System.out.println("Capture line lost. Stopping microphone.");
+				running = false;
+				return;
+			}
+			next = lineProfile;
+		}
+		
+		targetDataLine.start();
+		lineProfile = next;
+		framesRead = targetDataLine.getLongFramePosition();
+		captureLatency.reset();
+	}
+	
+	/**
+	 * Wake the sender if it is idle or waiting between audio file packets.
+	 */
+	private void wake() {
+		wakeNanos = System.nanoTime();
+		LockSupport.unpark(this);
+	}
+	
+	/**
+	 * Pick up voices started since the last packet and let go of the ones
+	 * that finished or were stopped.
+	 */
+	private void collectVoices() {
+		
+		SoundEffectVoice startedVoice;
+		while ((startedVoice = startedVoices.poll()) != null) {
+			voices.add(startedVoice);
+		}
+		
+		int generation = stopGeneration;
+		for (int i = voices.size() - 1; i >= 0; i--) {
+			SoundEffectVoice voice = voices.get(i);
+			if (voice.isFinished() || voice.getGeneration() != generation) {
+				voices.remove(i);
+			}
+		}
+	}
+	
+	/**
+	 * Work out which state the sender should be in.
+	 * @return State matching the active sources.
+	 */
+	private SenderState nextState() {
+		
+		boolean microphone = playMicrophone;
+		boolean audioFile = !voices.isEmpty();
+		
+		if (microphone && audioFile) {
+			return SenderState.MIXED;
+		} else if (microphone) {
+			return SenderState.MICROPHONE;
+		} else if (audioFile) {
+			return SenderState.AUDIO_FILE;
+		} else if (preRollMillis > 0) {
+			return SenderState.LISTENING;
+		}
+		return SenderState.IDLE;
+	}
+	
+	/**
+	 * Move to a new state, doing whatever the transition requires.
+	 * @param next State to move to.
+	 */
+	private void changeState(SenderState next) {
+		
+		boolean microphoneBefore = 
+				state == SenderState.MICROPHONE || state == SenderState.MIXED;
+		boolean microphoneAfter = 
+				next == SenderState.MICROPHONE || next == SenderState.MIXED;
+		
+		boolean sendingBefore = 
+				state != SenderState.IDLE && state != SenderState.LISTENING;
+		boolean sendingAfter = 
+				next != SenderState.IDLE && next != SenderState.LISTENING;
+		
+		// Pick up setting changes made since the last transition.
+		configureOutput();
+		
+		if (sendingBefore && !sendingAfter) {
+			
+			// Send whatever is left of the last packet.
+			if (packetizer != null && packetizer.hasPendingData()) {
+				queuePacket(packetizer.getPacket(), 
+						packetizer.getPacketLength(), false);
+				packetizer.clear();
+			}
+			
+		} else if (sendingAfter && !sendingBefore) {
+			
+			// Don't let the tail of the last burst bleed into this one.
+			resampler.reset();
+			awaitingFirstPacket = true;
+		}
+		
+		if (microphoneAfter && !microphoneBefore) {
+			
+			// Audio captured while nobody was listening is stale. Only the
+			// pre-roll is worth sending.
+			if (state != SenderState.LISTENING) {
+				targetDataLine.flush();
+				framesRead = targetDataLine.getLongFramePosition();
+				if (preRoll != null) {
+					preRoll.clear();
+				}
+			}
+			
+			// Treat the start of every talk press as speech.
+			voiceActivityDetector.reset();
+			microphoneProcessing.reset();
+			awaitingFirstTalkPacket = true;
+		}
+		
+		state = next;
+	}
+	
+	/**
+	 * Rebuild the resampler, packetizer and pre-roll if their settings
+	 * changed.
+	 */
+	private void configureOutput() {
+		
+		int sampleRate = quality.getSampleRate(outboundSampleRate);
+		int captureRate = (int) getAudioFormat().getSampleRate();
+		
+		if (resampler == null || resampler.getOutputRate() != sampleRate) {
+			
+			resampler = new PolyphaseResampler(
+					captureRate, sampleRate, mixer.getMaxFrames());
+			sendBuffer = new byte[
+					2 * resampler.getMaxOutputFrames(mixer.getMaxFrames())];
+			voiceActivityDetector.setSampleRate(sampleRate);
+			packetizer = null;
+			
+			System.out.println("Outbound audio sample rate: "+sampleRate+" Hz");
+		}
+		
+		// The rate header comes out of the payload budget.
+		int headerBytes = quality.isRateMarked() ? AudioRateHeader.BYTES : 0;
+		int payloadBytes = maxPayloadBytes - headerBytes;
+		int durationMillis = quality.getPacketMillis(outboundSampleRate, packetMillis);
+		
+		if (packetizer == null 
+				|| configuredPayloadBytes != payloadBytes 
+				|| configuredPacketMillis != durationMillis) {
+			
+			packetizer = new AudioPacketizer(
+					payloadBytes, durationMillis, sampleRate);
+			configuredPayloadBytes = payloadBytes;
+			configuredPacketMillis = durationMillis;
+			
+			System.out.println("Outbound audio: "+packetizer.describe());
+		}
+		
+		rateHeaderBytes = headerBytes;
+		AudioRateHeader.write(rateHeader, 0, sampleRate);
+		quality.setOutput(sampleRate, packetizer.getPacketBytes(), headerBytes);
+		
+		// Read about one packet worth at a time so the first packet of a
+		// talk press leaves as soon as it is captured.
+		long packetFrames = (long) packetizer.getPacketBytes() / 2 
+				* captureRate / sampleRate;
+		microphoneReadBytes = (int) Math.max(2, 
+				Math.min(readBuffer.length, packetFrames * 2));
+		
+		int preRollBytes = 
+				2 * (int) ((long) captureRate * preRollMillis / 1000);
+		
+		if (preRollBytes == 0) {
+			preRoll = null;
+		} else if (preRoll == null || preRoll.getCapacity() != preRollBytes) {
+			preRoll = new AudioPreRollBuffer(preRollBytes);
+		}
+	}
+	
+	/**
+	 * Add the next frames of every voice to the mix.
+	 * @return Largest number of frames any voice added.
+	 */
+	private int mixVoices() {
+		
+		int mixedFrames = 0;
+		int frames = mixer.getFrames();
+		
+		for (int i = 0; i < voices.size(); i++) {
+			mixedFrames = Math.max(
+					mixedFrames, voices.get(i).mixInto(mixer, frames));
+		}
+		
+		return mixedFrames;
+	}
+	
+	/**
+	 * Render the mix, convert it to the outbound rate and queue it in packets.
+	 * @param suppressSilence True to run voice activity detection on each
+	 * packet.
+	 */
+	private void sendMix(boolean suppressSilence) {
+		
+		// Switch quality tiers between packets, sending what is left of the
+		// last packet at the old settings.
+		if (quality.update(System.nanoTime(), packetRing, outboundSampleRate)) {
+			if (packetizer.hasPendingData()) {
+				queuePacket(packetizer.getPacket(), 
+						packetizer.getPacketLength(), false);
+				packetizer.clear();
+			}
+			configureOutput();
+			System.out.println(quality.describe());
+		}
+		
+		int length = mixer.render(readBuffer, 0);
+		byte[] outbound = readBuffer;
+		
+		if (length == 0) {
+			return;
+		}
+		
+		AudioLevelMeter meter = levelMeter;
+		if (meter != null) {
+			meter.process(readBuffer, 0, length);
+		}
+		
+		AudioRecorder activeRecorder = recorder;
+		if (activeRecorder != null) {
+			activeRecorder.record(AudioRecorder.Stream.OUTGOING, readBuffer, 0, length);
+		}
+		
+		if (!resampler.isPassThrough()) {
+			length = resampler.process(
+					readBuffer, 0, length / 2, sendBuffer, 0);
+			outbound = sendBuffer;
+		}
+		
+		int offset = 0;
+		
+		while (offset < length) {
+			
+			offset += packetizer.write(outbound, offset, length - offset);
+			
+			if (packetizer.isPacketReady()) {
+				queuePacket(packetizer.getPacket(), 
+						packetizer.getPacketLength(), suppressSilence);
+				packetizer.clear();
+			}
+		}
+	}
+	
+	/**
+	 * Queue one packet of audio for sending, or a keep alive in its place
+	 * when silence is being suppressed. Never blocks.
+	 * @param data Audio to send.
+	 * @param length Number of bytes to send.
+	 * @param suppressSilence True to run voice activity detection first.
+	 */
+	private void queuePacket(byte[] data, int length, boolean suppressSilence) {
+		
+		if (suppressSilence) {
+			
+			switch (voiceActivityDetector.process(data, 0, length)) {
+			case SEND:
+				break;
+			case KEEP_ALIVE:
+				data = keepAliveBuffer;
+				length = voiceActivityDetector.writeKeepAlive(keepAliveBuffer, 0);
+				break;
+			default:
+				return;
+			}
+		}
+		
+		long mark = awaitingFirstTalkPacket ? talkPressNanos : 0L;
+		
+		if (!packetRing.offer(rateHeaderBytes > 0 ? rateHeader : null, rateHeaderBytes, 
+				data, 0, length, mark)) {
+			return;
+		}
+		
+		awaitingFirstTalkPacket = false;
+		
+		if (awaitingFirstPacket) {
+			
+			awaitingFirstPacket = false;
+			long latency = System.nanoTime() - wakeNanos;
+			maxWakeLatencyNanos = Math.max(maxWakeLatencyNanos, latency);
+		}
+	}
+	
 	/**
 	 * Get the audio format.
 	 * @return Audio format to use for recording.
@@ -324,16 +1091,4 @@ public class TargetDataLineThread extends Thread {
 				signed,
 				bigEndian);
 	}
-	
-	/**
-	 * Size of the playback buffer in bytes.
-	 * @return Size of buffer
-	 */
-	private int getAudioBufferSizeBytes() {
-
-        int frameSizeInBytes = getAudioFormat().getFrameSize();
-        int bufferLengthInFrames = targetDataLine.getBufferSize() / 8;
-        int bufferLengthInBytes = bufferLengthInFrames * frameSizeInBytes;
-        return bufferLengthInBytes;
-	}
 }
@@ -0,0 +1,418 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Energy and zero crossing based voice activity detector for 16 bit signed
+ * big endian mono PCM. Buffers are inspected in place and nothing is
+ * allocated per call, so it is safe to run on every microphone buffer.
+ *
+ * A buffer is considered speech when its energy rises well above the tracked
+ * noise floor, or when it carries moderate energy with a zero crossing rate
+ * typical of unvoiced consonants. Once speech stops the detector keeps sending
+ * for a hangover period so word endings are not clipped, after which buffers
+ * are suppressed and only a short comfort noise keep alive is sent now and
+ * then.
+ *
+ * The noise floor is the quietest noise buffer seen over the last couple of
+ * seconds of noise. It is frozen during speech and hangover, so a long steady
+ * sound such as a held vowel never becomes the floor and gets suppressed.
+ * Only when nothing but speech has been seen for a long time is the floor
+ * reset to the quietest part of it, so a background that got much louder
+ * doesn't count as speech for ever.
+ */
+public class VoiceActivityDetector {
+
+	/** Result of inspecting a single buffer. */
+	public enum Decision {
+
+		/** Buffer contains speech (or is within hangover), send it. */
+		SEND,
+
+		/** Buffer is silence, send a keep alive marker instead. */
+		KEEP_ALIVE,
+
+		/** Buffer is silence, send nothing. */
+		SUPPRESS
+	}
+
+	/** Lowest RMS level (16 bit sample units) ever treated as speech. */
+	private static final float MIN_SPEECH_RMS = 300.0f;
+
+	/** Speech must be this many times louder than the noise floor. */
+	private static final float NOISE_FLOOR_RATIO = 3.0f;
+
+	/** Unvoiced speech only needs this fraction of the speech threshold. */
+	private static final float UNVOICED_ENERGY_RATIO = 0.25f;
+
+	/** Lower bound of zero crossings per second for unvoiced speech. */
+	private static final float UNVOICED_MIN_CROSSINGS_PER_SECOND = 4000.0f;
+
+	/** Upper bound of zero crossings per second for unvoiced speech. */
+	private static final float UNVOICED_MAX_CROSSINGS_PER_SECOND = 16000.0f;
+
+	/** Noise floor to start from before any silence has been measured. */
+	private static final float INITIAL_NOISE_FLOOR_RMS = 100.0f;
+
+	/** Length of noise the floor is the minimum of, in milliseconds. */
+	private static final int NOISE_WINDOW_MILLIS = 2000;
+
+	/** Number of parts the noise window is tracked in. */
+	private static final int NOISE_WINDOW_PARTS = 4;
+
+	/**
+	 * The quietest buffer is below the average noise; scale it up to get
+	 * closer to the average.
+	 */
+	private static final float MINIMUM_BIAS = 1.5f;
+
+	/** Unbroken speech after which the background is assumed to have changed. */
+	private static final int MAX_SPEECH_MILLIS = 10000;
+
+	/** Default hangover after the last speech buffer in milliseconds. */
+	private static final int DEFAULT_HANGOVER_MILLIS = 300;
+
+	/** Default interval between keep alive markers in milliseconds. */
+	private static final int DEFAULT_KEEP_ALIVE_MILLIS = 250;
+
+	/** Number of samples in a keep alive marker. */
+	private static final int KEEP_ALIVE_SAMPLES = 16;
+
+	/** Sample rate of the analyzed audio. */
+	private float sampleRate;
+
+	/** Hangover duration in milliseconds. */
+	private int hangoverMillis;
+
+	/** Keep alive interval in milliseconds. */
+	private int keepAliveMillis;
+
+	/** Hangover duration in samples. */
+	private long hangoverSamples;
+
+	/** Keep alive interval in samples. */
+	private long keepAliveSamples;
+
+	/** Samples of hangover left before suppression starts. */
+	private long hangoverRemaining;
+
+	/** Samples suppressed since the last keep alive marker. */
+	private long samplesSinceKeepAlive;
+
+	/** True while buffers are being suppressed. */
+	private boolean suppressing;
+
+	/** Tracked mean square of the background noise. */
+	private float noiseFloorMeanSquare;
+
+	/** Quietest noise buffer mean square in each finished part of the window. */
+	private final float[] partMinimums = new float[NOISE_WINDOW_PARTS];
+
+	/** Part of the window the next finished part goes in. */
+	private int partIndex;
+
+	/** Quietest noise buffer mean square in the part being filled. */
+	private float currentMinimum;
+
+	/** Noise samples in the part being filled. */
+	private long partSamplesSeen;
+
+	/** Noise samples in each part of the window. */
+	private long partSamples;
+
+	/** Samples of speech and hangover since the last noise buffer. */
+	private long speechSamplesSeen;
+
+	/** Quietest buffer mean square since the last noise buffer. */
+	private float speechMinimum = Float.MAX_VALUE;
+
+	/** State of the comfort noise generator. */
+	private int noiseSeed = 0x2545F491;
+
+	/** Buffers sent as speech. */
+	private long sentBuffers;
+
+	/** Buffers suppressed as silence. */
+	private long suppressedBuffers;
+
+	/** Keep alive markers sent in place of silence. */
+	private long keepAliveBuffers;
+
+	/** Bytes of microphone audio that were not sent. */
+	private long suppressedBytes;
+
+	/**
+	 * Create a new detector.
+	 * @param sampleRate Sample rate of the audio to be analyzed.
+	 */
+	public VoiceActivityDetector(float sampleRate) {
+		this.sampleRate = sampleRate;
+		partSamples = (long) (sampleRate * NOISE_WINDOW_MILLIS / 1000.0f / NOISE_WINDOW_PARTS);
+		setHangoverMillis(DEFAULT_HANGOVER_MILLIS);
+		setKeepAliveMillis(DEFAULT_KEEP_ALIVE_MILLIS);
+		noiseFloorMeanSquare =
+				INITIAL_NOISE_FLOOR_RMS * INITIAL_NOISE_FLOOR_RMS;
+		Arrays.fill(partMinimums, noiseFloorMeanSquare);
+		currentMinimum = Float.MAX_VALUE;
+		reset();
+	}
+
+	/**
+	 * Set how long to keep sending after speech stops.
+	 * @param milliseconds Hangover duration.
+	 */
+	public void setHangoverMillis(int milliseconds) {
+		hangoverMillis = milliseconds;
+		hangoverSamples = (long) (sampleRate * milliseconds / 1000.0f);
+	}
+
+	/**
+	 * Set the interval between keep alive markers while suppressing.
+	 * @param milliseconds Keep alive interval.
+	 */
+	public void setKeepAliveMillis(int milliseconds) {
+		keepAliveMillis = milliseconds;
+		keepAliveSamples = (long) (sampleRate * milliseconds / 1000.0f);
+	}
+
+	/**
+	 * Change the sample rate of the analyzed audio.
+	 * @param sampleRate New sample rate.
+	 */
+	public void setSampleRate(float sampleRate) {
+		this.sampleRate = sampleRate;
+		partSamples = (long) (sampleRate * NOISE_WINDOW_MILLIS / 1000.0f / NOISE_WINDOW_PARTS);
+		setHangoverMillis(hangoverMillis);
+		setKeepAliveMillis(keepAliveMillis);
+	}
+
+	/**
+	 * Reset the speech state. Call when the microphone starts sending so the
+	 * first buffers are treated as speech. The noise floor is kept.
+	 */
+	public void reset() {
+		hangoverRemaining = hangoverSamples;
+		samplesSinceKeepAlive = 0;
+		suppressing = false;
+	}
+
+	/**
+	 * Inspect a buffer of 16 bit signed big endian mono samples.
+	 * @param buffer Buffer holding the samples.
+	 * @param offset Offset of the first byte to inspect.
+	 * @param length Number of bytes to inspect.
+	 * @return What to send for this buffer.
+	 */
+	public Decision process(byte[] buffer, int offset, int length) {
+
+		int samples = length / 2;
+
+		if (samples == 0) {
+			return Decision.SUPPRESS;
+		}
+
+		long sumOfSquares = 0;
+		int crossings = 0;
+		int previous = 0;
+		int end = offset + samples * 2;
+
+		for (int i = offset; i < end; i += 2) {
+			int sample = (buffer[i] << 8) | (buffer[i + 1] & 0xFF);
+			sumOfSquares += sample * sample;
+			if ((sample ^ previous) < 0) {
+				crossings++;
+			}
+			previous = sample;
+		}
+
+		float meanSquare = (float) sumOfSquares / samples;
+		float crossingsPerSecond = crossings * sampleRate / samples;
+
+		float speechThreshold = Math.max(
+				MIN_SPEECH_RMS * MIN_SPEECH_RMS,
+				noiseFloorMeanSquare * NOISE_FLOOR_RATIO * NOISE_FLOOR_RATIO);
+
+		boolean voiced = meanSquare > speechThreshold;
+		boolean unvoiced =
+				meanSquare > speechThreshold * UNVOICED_ENERGY_RATIO
+				&& crossingsPerSecond >= UNVOICED_MIN_CROSSINGS_PER_SECOND
+				&& crossingsPerSecond <= UNVOICED_MAX_CROSSINGS_PER_SECOND;
+
+		// The floor stays where it is during speech and hangover.
+		if (voiced || unvoiced || hangoverRemaining > 0) {
+			checkLongSpeech(meanSquare, samples);
+		}
+
+		if (voiced || unvoiced) {
+			hangoverRemaining = hangoverSamples;
+			suppressing = false;
+			sentBuffers++;
+			return Decision.SEND;
+		}
+
+		if (hangoverRemaining > 0) {
+			hangoverRemaining -= samples;
+			sentBuffers++;
+			return Decision.SEND;
+		}
+
+		speechSamplesSeen = 0;
+		speechMinimum = Float.MAX_VALUE;
+		updateNoiseFloor(meanSquare, samples);
+
+		suppressedBuffers++;
+		suppressedBytes += length;
+
+		// Mark the start of every silence and then keep the receiver primed
+		// at a low rate.
+		if (!suppressing || samplesSinceKeepAlive >= keepAliveSamples) {
+			suppressing = true;
+			samplesSinceKeepAlive = samples;
+			keepAliveBuffers++;
+			return Decision.KEEP_ALIVE;
+		}
+
+		samplesSinceKeepAlive += samples;
+		return Decision.SUPPRESS;
+	}
+
+	/**
+	 * Size in bytes of the keep alive marker written by
+	 * {@link #writeKeepAlive(byte[], int)}.
+	 * @return Keep alive marker size in bytes.
+	 */
+	public int getKeepAliveLength() {
+		return KEEP_ALIVE_SAMPLES * 2;
+	}
+
+	/**
+	 * Write a keep alive marker made of comfort noise at the level of the
+	 * tracked noise floor.
+	 * @param buffer Buffer to write to. Must hold at least
+	 * {@link #getKeepAliveLength()} bytes from offset.
+	 * @param offset Offset to start writing at.
+	 * @return Number of bytes written.
+	 */
+	public int writeKeepAlive(byte[] buffer, int offset) {
+
+		int amplitude = (int) Math.sqrt(noiseFloorMeanSquare);
+		int seed = noiseSeed;
+
+		for (int i = 0; i < KEEP_ALIVE_SAMPLES; i++) {
+			seed ^= seed << 13;
+			seed ^= seed >>> 17;
+			seed ^= seed << 5;
+
+			int sample = amplitude == 0 ? 0 : (seed % amplitude);
+			buffer[offset + 2 * i] = (byte) (sample >> 8);
+			buffer[offset + 2 * i + 1] = (byte) sample;
+		}
+
+		noiseSeed = seed;
+		return KEEP_ALIVE_SAMPLES * 2;
+	}
+
+	/**
+	 * Number of buffers sent as speech.
+	 * @return Sent buffer count.
+	 */
+	public long getSentBuffers() {
+		return sentBuffers;
+	}
+
+	/**
+	 * Number of buffers suppressed as silence, including those replaced by a
+	 * keep alive marker.
+	 * @return Suppressed buffer count.
+	 */
+	public long getSuppressedBuffers() {
+		return suppressedBuffers;
+	}
+
+	/**
+	 * Number of keep alive markers sent.
+	 * @return Keep alive count.
+	 */
+	public long getKeepAliveBuffers() {
+		return keepAliveBuffers;
+	}
+
+	/**
+	 * Number of microphone bytes that were not sent.
+	 * @return Suppressed byte count.
+	 */
+	public long getSuppressedBytes() {
+		return suppressedBytes;
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Track the minimum of the noise over the window. The floor drops as soon
+	 * as quieter noise shows up, and rises once the quieter noise has left
+	 * the window.
+	 * @param meanSquare Mean square of a noise buffer.
+	 * @param samples Samples in the buffer.
+	 */
+	private void updateNoiseFloor(float meanSquare, int samples) {
+
+		currentMinimum = Math.min(currentMinimum, meanSquare);
+		partSamplesSeen += samples;
+
+		if (partSamplesSeen >= partSamples) {
+			partMinimums[partIndex] = currentMinimum;
+			partIndex = (partIndex + 1) % partMinimums.length;
+			currentMinimum = Float.MAX_VALUE;
+			partSamplesSeen = 0;
+		}
+
+		float minimum = currentMinimum;
+		for (float partMinimum : partMinimums) {
+			minimum = Math.min(minimum, partMinimum);
+		}
+
+		noiseFloorMeanSquare = minimum * MINIMUM_BIAS;
+	}
+
+	/**
+	 * Restart the noise floor from the quietest speech buffer once speech has
+	 * gone on without a break for too long.
+	 * @param meanSquare Mean square of a speech or hangover buffer.
+	 * @param samples Samples in the buffer.
+	 */
+	private void checkLongSpeech(float meanSquare, int samples) {
+
+		speechMinimum = Math.min(speechMinimum, meanSquare);
+		speechSamplesSeen += samples;
+
+		if (speechSamplesSeen >= MAX_SPEECH_MILLIS * sampleRate / 1000.0f) {
+			Arrays.fill(partMinimums, speechMinimum);
+			currentMinimum = Float.MAX_VALUE;
+			partSamplesSeen = 0;
+			noiseFloorMeanSquare = speechMinimum * MINIMUM_BIAS;
+			speechSamplesSeen = 0;
+			speechMinimum = Float.MAX_VALUE;
+		}
+	}
+}
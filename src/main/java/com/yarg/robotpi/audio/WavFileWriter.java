@@ -0,0 +1,212 @@
+package com.yarg.robotpi.audio;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+
+/**
+ * Appends 16 bit mono PCM to a WAV file through a {@link FileChannel}. The
+ * header sizes are patched in place by {@link #finalizeHeader()}, so calling
+ * it now and then leaves a playable file behind even if the program dies
+ * while recording.
+ */
+public class WavFileWriter {
+
+	/** Size of the canonical WAV header. */
+	private static final int HEADER_BYTES = 44;
+
+	/** Offset of the RIFF chunk size. */
+	private static final int RIFF_SIZE_OFFSET = 4;
+
+	/** Offset of the data chunk size. */
+	private static final int DATA_SIZE_OFFSET = 40;
+
+	/** Bytes per frame of 16 bit mono audio. */
+	private static final int FRAME_SIZE = 2;
+
+	/** File being written. */
+	private final RandomAccessFile file;
+
+	/** Channel of the file. */
+	private final FileChannel channel;
+
+	/** Staging buffer for byte swapped samples. */
+	private final ByteBuffer staging;
+
+	/** Reused buffer for header fields. */
+	private final ByteBuffer field;
+
+	/** Bytes of audio written. */
+	private long dataBytes;
+
+	/**
+	 * Create a WAV file, replacing any file of the same name.
+	 * @param path File to write.
+	 * @param sampleRate Sample rate of the audio.
+	 * @throws IOException If the file can't be created.
+	 */
+	public WavFileWriter(File path, float sampleRate) throws IOException {
+
+		file = new RandomAccessFile(path, "rw");
+		file.setLength(0);
+		channel = file.getChannel();
+		staging = ByteBuffer.allocateDirect(16384);
+		field = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+
+		int rate = Math.round(sampleRate);
+		ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+		header.put(new byte[] {'R', 'I', 'F', 'F'});
+		header.putInt(HEADER_BYTES - 8);
+		header.put(new byte[] {'W', 'A', 'V', 'E', 'f', 'm', 't', ' '});
+		header.putInt(16);
+		header.putShort((short) 1);
+		header.putShort((short) 1);
+		header.putInt(rate);
+		header.putInt(rate * FRAME_SIZE);
+		header.putShort((short) FRAME_SIZE);
+		header.putShort((short) 16);
+		header.put(new byte[] {'d', 'a', 't', 'a'});
+		header.putInt(0);
+		header.flip();
+
+		while (header.hasRemaining()) {
+			channel.write(header);
+		}
+
+		dataBytes = 0;
+	}
+
+	/**
+	 * Append samples.
+	 * @param data 16 bit signed big endian samples.
+	 * @param offset Offset of the first byte.
+	 * @param length Number of bytes. Rounded down to whole frames.
+	 * @throws IOException If writing fails.
+	 */
+	public void write(byte[] data, int offset, int length) throws IOException {
+
+		int end = offset + length - length % FRAME_SIZE;
+
+		// WAV samples are little endian.
+		for (int i = offset; i < end; i += FRAME_SIZE) {
+			if (staging.remaining() < FRAME_SIZE) {
+				flushStaging();
+			}
+			staging.put(data[i + 1]);
+			staging.put(data[i]);
+		}
+
+		flushStaging();
+	}
+
+	/**
+	 * Append silence.
+	 * @param frames Number of frames.
+	 * @throws IOException If writing fails.
+	 */
+	public void writeSilence(long frames) throws IOException {
+
+		long bytes = frames * FRAME_SIZE;
+
+		while (bytes > 0) {
+			int chunk = (int) Math.min(bytes, staging.capacity());
+			staging.clear();
+			for (int i = 0; i < chunk; i++) {
+				staging.put((byte) 0);
+			}
+			flushStaging();
+			bytes -= chunk;
+		}
+	}
+
+	/**
+	 * Frames written so far.
+	 * @return Frame count.
+	 */
+	public long getFrames() {
+		return dataBytes / FRAME_SIZE;
+	}
+
+	/**
+	 * Write the current sizes into the header.
+	 * @throws IOException If writing fails.
+	 */
+	public void finalizeHeader() throws IOException {
+
+		long data = Math.min(dataBytes, 0xFFFFFFFFL - HEADER_BYTES);
+
+		writeField(RIFF_SIZE_OFFSET, (int) (data + HEADER_BYTES - 8));
+		writeField(DATA_SIZE_OFFSET, (int) data);
+	}
+
+	/**
+	 * Finalize the header and close the file.
+	 * @throws IOException If writing fails.
+	 */
+	public void close() throws IOException {
+		try {
+			finalizeHeader();
+		} finally {
+			file.close();
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Write out the staging buffer at the end of the file.
+	 * @throws IOException If writing fails.
+	 */
+	private void flushStaging() throws IOException {
+
+		staging.flip();
+		dataBytes += staging.remaining();
+
+		while (staging.hasRemaining()) {
+			channel.write(staging);
+		}
+
+		staging.clear();
+	}
+
+	/**
+	 * Write a little endian 32 bit header field in place.
+	 * @param position Offset of the field.
+	 * @param value Value to write.
+	 * @throws IOException If writing fails.
+	 */
+	private void writeField(long position, int value) throws IOException {
+
+		field.clear();
+		field.putInt(value);
+		field.flip();
+
+		while (field.hasRemaining()) {
+			channel.write(field, position + field.position());
+		}
+	}
+}
@@ -0,0 +1,287 @@
+package com.yarg.robotpi.config;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.List;
+import java.util.Properties;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Performance settings read from a properties file and reloaded whenever
+ * the file changes. The current settings are held as a single
+ * {@link PerformanceProfile} that is swapped in one step, and listeners are
+ * told about each new one so they can apply it without restarting anything.
+ *
+ * A file that fails to parse is reported and ignored; the settings in use
+ * stay as they were. A missing file means the built in defaults.
+ */
+public class PerformanceConfig extends Thread {
+
+	/** Told about every new profile. */
+	public interface Listener {
+
+		/**
+		 * New settings were loaded. Called on the watcher thread.
+		 * @param profile New settings.
+		 * @param previous Settings that were in use.
+		 */
+		public void profileChanged(PerformanceProfile profile, PerformanceProfile previous);
+	}
+
+	/** How often the watcher checks whether it should stop. */
+	private static final long POLL_MILLIS = 250;
+
+	/**
+	 * Time to wait after a change before reloading. Editors often write a
+	 * file in several steps.
+	 */
+	private static final long SETTLE_MILLIS = 200;
+
+	/** Configuration file. */
+	private final File file;
+
+	/** Settings in use. */
+	private final AtomicReference<PerformanceProfile> profile = 
+			new AtomicReference<PerformanceProfile>(PerformanceProfile.defaults());
+
+	/** Told about every new profile. */
+	private final List<Listener> listeners = new CopyOnWriteArrayList<Listener>();
+
+	/** Track execution state of this thread. */
+	private volatile boolean running;
+
+	/**
+	 * Create a configuration backed by a file. Call {@link #load()} to read it.
+	 * @param file Properties file, need not exist yet.
+	 */
+	public PerformanceConfig(File file) {
+		super("PerformanceConfig");
+		setDaemon(true);
+		this.file = file.getAbsoluteFile();
+	}
+
+	/**
+	 * Settings in use. Read once and keep the result for a consistent set.
+	 * @return Current profile.
+	 */
+	public PerformanceProfile getProfile() {
+		return profile.get();
+	}
+
+	/**
+	 * Add a listener told about every new profile.
+	 * @param listener Listener to add.
+	 */
+	public void addListener(Listener listener) {
+		listeners.add(listener);
+	}
+
+	/**
+	 * Remove a listener.
+	 * @param listener Listener to remove.
+	 */
+	public void removeListener(Listener listener) {
+		listeners.remove(listener);
+	}
+
+	/**
+	 * Read the file and, if the settings changed, switch to them and tell the
+	 * listeners.
+	 * @return True if the settings changed.
+	 */
+	public boolean load() {
+
+		Properties properties = new Properties();
+
+		if (file.isFile()) {
+			InputStream in = null;
+			try {
+				in = new FileInputStream(file);
+				properties.load(in);
+			} catch (IOException e) {
+				System.out.println("Unable to read "+file+", keeping current settings.");
+				e.printStackTrace();
+				return false;
+			} finally {
+				if (in != null) {
+					try {
+						in.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		}
+
+		PerformanceProfile next;
+
+		try {
+			next = new PerformanceProfile(properties);
+		} catch (IllegalArgumentException e) {
+			System.out.println("Bad setting in "+file+", keeping current settings: "
+					+e.getMessage());
+			return false;
+		}
+
+		PerformanceProfile previous = profile.get();
+
+		if (next.describe().equals(previous.describe())) {
+			return false;
+		}
+
+		profile.set(next);
+		System.out.println(next.describe());
+
+		if (next.requiresRestartFrom(previous)) {
+			System.out.println("Port, network reactor and video changes take effect after a restart.");
+		}
+
+		for (Listener listener : listeners) {
+			listener.profileChanged(next, previous);
+		}
+
+		return true;
+	}
+
+	/**
+	 * Start reloading the file whenever it changes.
+	 */
+	public void startWatching() {
+
+		if (running) {
+			return;
+		}
+
+		running = true;
+		start();
+	}
+
+	/**
+	 * Stop watching the file.
+	 */
+	public void stopWatching() {
+
+		running = false;
+
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		Path directory = file.getParentFile().toPath();
+		Path name = file.toPath().getFileName();
+		WatchService watcher;
+
+		try {
+			watcher = FileSystems.getDefault().newWatchService();
+			directory.register(watcher, 
+					StandardWatchEventKinds.ENTRY_CREATE,
+					StandardWatchEventKinds.ENTRY_MODIFY,
+					StandardWatchEventKinds.ENTRY_DELETE);
+		} catch (IOException e) {
+			System.out.println("Unable to watch "+file+", settings won't reload.");
+			e.printStackTrace();
+			return;
+		}
+
+		System.out.println("Watching "+file+" for setting changes.");
+
+		try {
+			while (running) {
+
+				WatchKey key = watcher.poll(POLL_MILLIS, TimeUnit.MILLISECONDS);
+
+				if (key == null) {
+					continue;
+				}
+
+				boolean changed = false;
+
+				for (WatchEvent<?> event : key.pollEvents()) {
+					if (event.kind() == StandardWatchEventKinds.OVERFLOW
+							|| name.equals(event.context())) {
+						changed = true;
+					}
+				}
+
+				if (!key.reset()) {
+					System.out.println("Lost watch on "+directory+", settings won't reload.");
+					break;
+				}
+
+				if (changed) {
+					// Let the writer finish, then drop the events it caused.
+					Thread.sleep(SETTLE_MILLIS);
+					drain(watcher);
+					load();
+				}
+			}
+		} catch (InterruptedException e) {
+			// Stopping.
+		} catch (ClosedWatchServiceException e) {
+			// Stopping.
+		} finally {
+			try {
+				watcher.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Discard events already queued.
+	 * @param watcher Watch service to drain.
+	 */
+	private static void drain(WatchService watcher) {
+
+		WatchKey key;
+
+		while ((key = watcher.poll()) != null) {
+			key.pollEvents();
+			key.reset();
+		}
+	}
+}
@@ -0,0 +1,530 @@
+package com.yarg.robotpi.config;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Properties;
+
+import com.yarg.robotpi.audio.AudioLineProfile;
+import com.yarg.robotpi.video.VideoReceiverSupervisor;
+
+/**
+ * One consistent set of performance settings. Instances never change; a new
+ * profile is built for every change so the running loops always see either
+ * the old settings or the new ones, never a mix.
+ *
+ * Settings are looked up in this order, the first one found wins:
+ * <ol>
+ * <li>profile.NAME.KEY in the configuration file</li>
+ * <li>KEY in the configuration file</li>
+ * <li>profile.NAME.KEY built in</li>
+ * <li>KEY built in</li>
+ * </ol>
+ * The built in profiles are balanced (the defaults), lowLatency and
+ * lowBandwidth.
+ */
+public class PerformanceProfile {
+
+	/** Key naming the active profile. */
+	public static final String PROFILE_KEY = "profile";
+
+	/** Profile used if none is named. */
+	public static final String DEFAULT_PROFILE = "balanced";
+
+	/** Built in settings. */
+	private static final Properties BUILT_IN = new Properties();
+
+	static {
+		BUILT_IN.setProperty("controller.pollMillis", "40");
+		BUILT_IN.setProperty("controller.deadZone", "0.05");
+		BUILT_IN.setProperty("controller.maxMessageChars", "32");
+		BUILT_IN.setProperty("controller.port", "49801");
+		BUILT_IN.setProperty("audio.receivePort", "49808");
+		BUILT_IN.setProperty("audio.sendPort", "49809");
+		BUILT_IN.setProperty("audio.outboundSampleRate", "44100");
+		BUILT_IN.setProperty("audio.maxPayloadBytes", "1200");
+		BUILT_IN.setProperty("audio.packetMillis", "0");
+		BUILT_IN.setProperty("audio.filePacketDelayMillis", "125");
+		BUILT_IN.setProperty("audio.lineProfile", "BALANCED");
+		BUILT_IN.setProperty("audio.preRollMillis", "0");
+		BUILT_IN.setProperty("audio.voiceActivityDetection", "true");
+		BUILT_IN.setProperty("audio.adaptiveQuality", "false");
+		BUILT_IN.setProperty("telemetry.port", "49810");
+		BUILT_IN.setProperty("network.reactor", "false");
+		BUILT_IN.setProperty("video.binary", VideoReceiverSupervisor.DEFAULT_BINARY);
+		BUILT_IN.setProperty("video.pipeline", "");
+		BUILT_IN.setProperty("video.tap", "false");
+
+		// Poll and send more often in smaller packets through smaller buffers.
+		BUILT_IN.setProperty("profile.lowLatency.controller.pollMillis", "20");
+		BUILT_IN.setProperty("profile.lowLatency.audio.packetMillis", "10");
+		BUILT_IN.setProperty("profile.lowLatency.audio.lineProfile", "LOW_LATENCY");
+
+		// Poll less and send voice quality audio in fewer, larger packets.
+		BUILT_IN.setProperty("profile.lowBandwidth.controller.pollMillis", "60");
+		BUILT_IN.setProperty("profile.lowBandwidth.audio.outboundSampleRate", "16000");
+		BUILT_IN.setProperty("profile.lowBandwidth.audio.packetMillis", "40");
+	}
+
+	/** Profile name. */
+	private final String name;
+
+	/** Time between controller polls in milliseconds. */
+	private final int controllerPollMillis;
+
+	/** Stick deflection treated as centered. */
+	private final float controllerDeadZone;
+
+	/** Longest controller message sent, in characters. */
+	private final int controllerMaxMessageChars;
+
+	/** Robot port controller data is sent to. */
+	private final int controllerPort;
+
+	/** Local port audio from the robot arrives on. */
+	private final int audioReceivePort;
+
+	/** Robot port audio is sent to. */
+	private final int audioSendPort;
+
+	/** Sample rate audio is sent to the robot at. */
+	private final int audioOutboundSampleRate;
+
+	/** Largest audio payload per datagram. */
+	private final int audioMaxPayloadBytes;
+
+	/** Audio packet duration, 0 to fill the payload budget. */
+	private final int audioPacketMillis;
+
+	/** Delay between audio file packets in milliseconds. */
+	private final int audioFilePacketDelayMillis;
+
+	/** Audio line buffering. */
+	private final AudioLineProfile audioLineProfile;
+
+	/** Microphone audio kept ahead of each talk press. */
+	private final int audioPreRollMillis;
+
+	/** True to only send microphone audio while speaking. */
+	private final boolean audioVoiceActivityDetection;
+
+	/** True to lower the outbound audio quality when the network is congested. */
+	private final boolean audioAdaptiveQuality;
+
+	/** Local port robot telemetry arrives on. */
+	private final int telemetryPort;
+
+	/** True to run all UDP traffic on one reactor thread. */
+	private final boolean networkReactor;
+
+	/** GStreamer launcher the video receiver runs. */
+	private final String videoBinary;
+
+	/** Video receive pipeline, empty for the built in one. */
+	private final String videoPipeline;
+
+	/** True to relay video through a tap that measures the stream. */
+	private final boolean videoTap;
+
+	/**
+	 * Build a profile from configuration.
+	 * @param properties Configuration file contents, may be empty.
+	 * @throws IllegalArgumentException If the profile is unknown or a setting
+	 * can't be parsed.
+	 */
+	public PerformanceProfile(Properties properties) {
+
+		name = properties.getProperty(PROFILE_KEY, DEFAULT_PROFILE).trim();
+
+		if (!isKnown(properties, name)) {
+			throw new IllegalArgumentException("Unknown profile: "+name);
+		}
+
+		controllerPollMillis = getInt(properties, "controller.pollMillis", 1, 1000);
+		controllerDeadZone = getFloat(properties, "controller.deadZone", 0.0f, 0.5f);
+		controllerMaxMessageChars = getInt(properties, "controller.maxMessageChars", 16, 1024);
+		controllerPort = getInt(properties, "controller.port", 1, 65535);
+		audioReceivePort = getInt(properties, "audio.receivePort", 1, 65535);
+		audioSendPort = getInt(properties, "audio.sendPort", 1, 65535);
+		audioOutboundSampleRate = getInt(properties, "audio.outboundSampleRate", 8000, 48000);
+		audioMaxPayloadBytes = getInt(properties, "audio.maxPayloadBytes", 64, 8192);
+		audioPacketMillis = getInt(properties, "audio.packetMillis", 0, 100);
+		audioFilePacketDelayMillis = getInt(properties, "audio.filePacketDelayMillis", 10, 1000);
+		audioPreRollMillis = getInt(properties, "audio.preRollMillis", 0, 500);
+		audioVoiceActivityDetection = getBoolean(properties, "audio.voiceActivityDetection");
+		audioAdaptiveQuality = getBoolean(properties, "audio.adaptiveQuality");
+		telemetryPort = getInt(properties, "telemetry.port", 1, 65535);
+		networkReactor = getBoolean(properties, "network.reactor");
+		videoBinary = get(properties, "video.binary");
+		videoPipeline = get(properties, "video.pipeline");
+		videoTap = getBoolean(properties, "video.tap");
+
+		if (videoBinary.isEmpty()) {
+			throw new IllegalArgumentException("video.binary is empty");
+		}
+
+		String lineProfile = get(properties, "audio.lineProfile");
+		try {
+			audioLineProfile = AudioLineProfile.valueOf(lineProfile);
+		} catch (IllegalArgumentException e) {
+			throw new IllegalArgumentException(
+					"audio.lineProfile must be one of LOW_LATENCY, BALANCED, SAFE: "+lineProfile);
+		}
+	}
+
+	/**
+	 * Profile built only from the built in settings.
+	 * @return Default profile.
+	 */
+	public static PerformanceProfile defaults() {
+		return new PerformanceProfile(new Properties());
+	}
+
+	/**
+	 * Profile name.
+	 * @return Name.
+	 */
+	public String getName() {
+		return name;
+	}
+
+	/**
+	 * Time between controller polls.
+	 * @return Poll interval in milliseconds.
+	 */
+	public int getControllerPollMillis() {
+		return controllerPollMillis;
+	}
+
+	/**
+	 * Stick deflection treated as centered.
+	 * @return Dead zone, 0 to 0.5.
+	 */
+	public float getControllerDeadZone() {
+		return controllerDeadZone;
+	}
+
+	/**
+	 * Longest controller message sent.
+	 * @return Maximum length in characters.
+	 */
+	public int getControllerMaxMessageChars() {
+		return controllerMaxMessageChars;
+	}
+
+	/**
+	 * Robot port controller data is sent to. Only read at startup.
+	 * @return Port.
+	 */
+	public int getControllerPort() {
+		return controllerPort;
+	}
+
+	/**
+	 * Local port audio from the robot arrives on. Only read at startup.
+	 * @return Port.
+	 */
+	public int getAudioReceivePort() {
+		return audioReceivePort;
+	}
+
+	/**
+	 * Robot port audio is sent to. Only read at startup.
+	 * @return Port.
+	 */
+	public int getAudioSendPort() {
+		return audioSendPort;
+	}
+
+	/**
+	 * Sample rate audio is sent to the robot at.
+	 * @return Sample rate in Hz.
+	 */
+	public int getAudioOutboundSampleRate() {
+		return audioOutboundSampleRate;
+	}
+
+	/**
+	 * Largest audio payload per datagram.
+	 * @return Payload budget in bytes.
+	 */
+	public int getAudioMaxPayloadBytes() {
+		return audioMaxPayloadBytes;
+	}
+
+	/**
+	 * Audio packet duration.
+	 * @return Duration in milliseconds, 0 to fill the payload budget.
+	 */
+	public int getAudioPacketMillis() {
+		return audioPacketMillis;
+	}
+
+	/**
+	 * Delay between audio file packets.
+	 * @return Delay in milliseconds.
+	 */
+	public int getAudioFilePacketDelayMillis() {
+		return audioFilePacketDelayMillis;
+	}
+
+	/**
+	 * Audio line buffering.
+	 * @return Line profile.
+	 */
+	public AudioLineProfile getAudioLineProfile() {
+		return audioLineProfile;
+	}
+
+	/**
+	 * Microphone audio kept ahead of each talk press.
+	 * @return Pre-roll in milliseconds.
+	 */
+	public int getAudioPreRollMillis() {
+		return audioPreRollMillis;
+	}
+
+	/**
+	 * Whether silent microphone audio is suppressed.
+	 * @return True to only send microphone audio while speaking.
+	 */
+	public boolean isAudioVoiceActivityDetection() {
+		return audioVoiceActivityDetection;
+	}
+
+	/**
+	 * Whether the outbound sample rate and packet rate drop when the network
+	 * is congested. Packets then carry a rate header, so only for robots
+	 * that read it.
+	 * @return True to adapt.
+	 */
+	public boolean isAudioAdaptiveQuality() {
+		return audioAdaptiveQuality;
+	}
+
+	/**
+	 * Local port robot telemetry arrives on. Only read at startup.
+	 * @return Port number.
+	 */
+	public int getTelemetryPort() {
+		return telemetryPort;
+	}
+
+	/**
+	 * Whether all UDP traffic runs on one reactor thread instead of a thread
+	 * per socket. Only read at startup.
+	 * @return True for the reactor.
+	 */
+	public boolean isNetworkReactor() {
+		return networkReactor;
+	}
+
+	/**
+	 * GStreamer launcher the video receiver runs. Only read at startup.
+	 * @return Path of gst-launch.
+	 */
+	public String getVideoBinary() {
+		return videoBinary;
+	}
+
+	/**
+	 * Video receive pipeline in gst-launch syntax, with {port} standing for
+	 * the port to receive on. Only read at startup.
+	 * @return Pipeline, or empty for the built in one.
+	 * @see VideoReceiverSupervisor#pipeline(String, int)
+	 */
+	public String getVideoPipeline() {
+		return videoPipeline;
+	}
+
+	/**
+	 * Whether video is relayed through a tap that measures the RTP stream
+	 * before it reaches the receiver. Costs an extra hop for every video
+	 * packet. Only read at startup.
+	 * @return True to measure the stream.
+	 */
+	public boolean isVideoTap() {
+		return videoTap;
+	}
+
+	/**
+	 * True if a setting that is only read at startup differs, so the change
+	 * needs a restart to take effect.
+	 * @param other Profile to compare with.
+	 * @return True if a port, the network model or the video receiver
+	 * differs.
+	 */
+	public boolean requiresRestartFrom(PerformanceProfile other) {
+		return controllerPort != other.controllerPort
+				|| audioReceivePort != other.audioReceivePort
+				|| audioSendPort != other.audioSendPort
+				|| telemetryPort != other.telemetryPort
+				|| networkReactor != other.networkReactor
+				|| !videoBinary.equals(other.videoBinary)
+				|| !videoPipeline.equals(other.videoPipeline)
+				|| videoTap != other.videoTap;
+	}
+
+	/**
+	 * Describe every setting, for logging. Two profiles with the same
+	 * description have the same settings.
+	 * @return Settings summary.
+	 */
+	public String describe() {
+		return String.format("Profile %s: controller poll %d ms, dead zone %.2f, "
+				+ "max message %d chars, port %d; audio ports %d/%d, %d Hz out, "
+				+ "%d byte payload, %d ms packets, %d ms file packet delay, "
+				+ "%s lines, %d ms pre-roll, VAD %s, adaptive %s; telemetry port %d, %s; "
+				+ "video %s, %s, tap %s",
+				name, controllerPollMillis, controllerDeadZone,
+				controllerMaxMessageChars, controllerPort, audioReceivePort,
+				audioSendPort, audioOutboundSampleRate, audioMaxPayloadBytes,
+				audioPacketMillis, audioFilePacketDelayMillis, audioLineProfile,
+				audioPreRollMillis, audioVoiceActivityDetection ? "on" : "off",
+				audioAdaptiveQuality ? "on" : "off",
+				telemetryPort, networkReactor ? "UDP reactor" : "thread per socket",
+				videoBinary, videoPipeline.isEmpty() ? "built in pipeline" : videoPipeline,
+				videoTap ? "on" : "off");
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Check that a profile name is the default, a built in profile or has
+	 * settings of its own in the configuration file.
+	 * @param properties Configuration file contents.
+	 * @param name Profile name.
+	 * @return True if the profile exists.
+	 */
+	private static boolean isKnown(Properties properties, String name) {
+
+		if (name.equals(DEFAULT_PROFILE)) {
+			return true;
+		}
+
+		String prefix = PROFILE_KEY+"."+name+".";
+
+		for (String key : BUILT_IN.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				return true;
+			}
+		}
+
+		for (String key : properties.stringPropertyNames()) {
+			if (key.startsWith(prefix)) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	/**
+	 * Look up a setting for this profile.
+	 * @param properties Configuration file contents.
+	 * @param key Setting name.
+	 * @return Setting value, trimmed.
+	 */
+	private String get(Properties properties, String key) {
+
+		String profileKey = PROFILE_KEY+"."+name+"."+key;
+		String value = properties.getProperty(profileKey, properties.getProperty(key));
+
+		if (value == null) {
+			value = BUILT_IN.getProperty(profileKey, BUILT_IN.getProperty(key));
+		}
+
+		return value.trim();
+	}
+
+	/**
+	 * Look up a whole number setting.
+	 * @param properties Configuration file contents.
+	 * @param key Setting name.
+	 * @param min Smallest value allowed.
+	 * @param max Largest value allowed.
+	 * @return Setting value.
+	 */
+	private int getInt(Properties properties, String key, int min, int max) {
+
+		String value = get(properties, key);
+		int result;
+
+		try {
+			result = Integer.parseInt(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key+" is not a whole number: "+value);
+		}
+
+		if (result < min || result > max) {
+			throw new IllegalArgumentException(
+					key+" must be from "+min+" to "+max+": "+result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Look up a decimal setting.
+	 * @param properties Configuration file contents.
+	 * @param key Setting name.
+	 * @param min Smallest value allowed.
+	 * @param max Largest value allowed.
+	 * @return Setting value.
+	 */
+	private float getFloat(Properties properties, String key, float min, float max) {
+
+		String value = get(properties, key);
+		float result;
+
+		try {
+			result = Float.parseFloat(value);
+		} catch (NumberFormatException e) {
+			throw new IllegalArgumentException(key+" is not a number: "+value);
+		}
+
+		if (!(result >= min && result <= max)) {
+			throw new IllegalArgumentException(
+					key+" must be from "+min+" to "+max+": "+result);
+		}
+
+		return result;
+	}
+
+	/**
+	 * Look up a true/false setting.
+	 * @param properties Configuration file contents.
+	 * @param key Setting name.
+	 * @return Setting value.
+	 */
+	private boolean getBoolean(Properties properties, String key) {
+
+		String value = get(properties, key);
+
+		if (value.equalsIgnoreCase("true")) {
+			return true;
+		} else if (value.equalsIgnoreCase("false")) {
+			return false;
+		}
+
+		throw new IllegalArgumentException(key+" must be true or false: "+value);
+	}
+}
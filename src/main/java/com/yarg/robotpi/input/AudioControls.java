@@ -34,6 +34,14 @@ public interface AudioControls {
 	 */
 	public void stopAudioFile();
 	
+	/**
+	 * Level of the audio file being played at its current play position,
+	 * taken from the precomputed envelope of the file.
+	 * @return Level from 0 to 1, or -1 if no file is playing or the file
+	 * has not been analyzed.
+	 */
+	public float getAudioFileLevel();
+	
 	/**
 	 * Take audio from microphone.
 	 */
@@ -4,9 +4,13 @@ import java.io.IOException;
 import java.net.DatagramPacket;
 import java.net.DatagramSocket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.SocketException;
 import java.net.UnknownHostException;
 
+import com.yarg.robotpi.net.DatagramQueue;
+import com.yarg.robotpi.net.UdpReactor;
+
 /*
  * Licensed to the Apache Software Foundation (ASF) under one
  * or more contributor license agreements.  See the NOTICE file
@@ -46,9 +50,24 @@ public class ControllerDataClient {
 	/** Server to send packet to. */
 	private InetAddress server;
 	
+	/** Packets waiting for the reactor, null when sending directly. */
+	private DatagramQueue reactorQueue;
+	
+	/** Reactor channel the packets go out on. */
+	private UdpReactor.Outbound outbound;
+	
 	/** Maximum number of characters allowed in the data package. */
 	private static final int MAX_DATA_CHAR_LEN = 32;
 	
+	/** 
+	 * Packets held for the reactor. Each carries the complete controller
+	 * state, so only the newest few are worth keeping.
+	 */
+	private static final int REACTOR_QUEUE_PACKETS = 4;
+	
+	/** Largest packet held for the reactor, one Ethernet frame. */
+	private static final int REACTOR_PACKET_BYTES = 1500;
+	
 	/**
 	 * Default constructor.
 	 * @param serverAddress Server address to send data to.
@@ -63,12 +82,21 @@ public class ControllerDataClient {
 	}
 
 	public void sendData(String dataString) {
+		sendData(dataString, MAX_DATA_CHAR_LEN);
+	}
+	
+	/**
+	 * Send a message unless it is too long.
+	 * @param dataString Message to send.
+	 * @param maxLength Messages this long or longer are dropped.
+	 */
+	public void sendData(String dataString, int maxLength) {
 		
-		if (dataString.length() >= MAX_DATA_CHAR_LEN) {
+		if (dataString.length() >= maxLength) {
 			return;
 		}
 		
-		if (clientDatagramSocket == null || server == null) {
+		if ((clientDatagramSocket == null && reactorQueue == null) || server == null) {
 			return;
 		}
 		
@@ -77,6 +105,12 @@ public class ControllerDataClient {
 		
 		data = dataString.getBytes();
 		
+		if (reactorQueue != null) {
+			reactorQueue.offer(data, 0, data.length);
+			outbound.signal();
+			return;
+		}
+		
 		clientDatagramPacket = new DatagramPacket(
 				data, data.length, server, this.serverPort);
 		
@@ -87,6 +121,46 @@ public class ControllerDataClient {
 		}
 	}
 	
+	/**
+	 * Send through a shared reactor, ahead of any other traffic, instead of
+	 * blocking the caller. The blocking socket is closed.
+	 * @param reactor Reactor to send through.
+	 */
+	public void setReactor(UdpReactor reactor) {
+		
+		if (server == null) {
+			return;
+		}
+		
+		try {
+			reactorQueue = new DatagramQueue(REACTOR_QUEUE_PACKETS, REACTOR_PACKET_BYTES);
+			outbound = reactor.addOutbound("controller", UdpReactor.Priority.CONTROL, 
+					new InetSocketAddress(server, serverPort), reactorQueue);
+		} catch (IOException e) {
+			System.out.println("Unable to send controller data through the reactor.");
+			e.printStackTrace();
+			reactorQueue = null;
+			return;
+		}
+		
+		if (clientDatagramSocket != null) {
+			clientDatagramSocket.close();
+			clientDatagramSocket = null;
+		}
+	}
+	
+	/**
+	 * Close the blocking socket. Nothing is sent afterwards unless sending
+	 * through a reactor.
+	 */
+	public void close() {
+		
+		if (clientDatagramSocket != null) {
+			clientDatagramSocket.close();
+			clientDatagramSocket = null;
+		}
+	}
+	
 	// -------------------------------------------------------------------------
 	// Private methods
 	// -------------------------------------------------------------------------
@@ -109,5 +183,13 @@ public class ControllerDataClient {
 			e.printStackTrace();
 			return;
 		}
+		
+		// Ask the WiFi to queue controller data ahead of audio and video.
+		try {
+			clientDatagramSocket.setTrafficClass(
+					UdpReactor.Priority.CONTROL.getTrafficClass());
+		} catch (SocketException e) {
+			System.out.println("Unable to mark controller packets: "+e.getMessage());
+		}
 	}
 }
@@ -22,11 +22,22 @@ package com.yarg.robotpi.input;
 import java.io.File;
 
 import com.yarg.robotpi.RobotPIUIInterface;
+import com.yarg.robotpi.config.PerformanceProfile;
+import com.yarg.robotpi.net.UdpReactor;
 
 public class ControllerInputThread extends Thread{
 	
 	/** Prefix expected for audio files where mouth should move. */
 	private static final String SPEAK_FILE_PREFIX = "speak";
+	
+	/** Envelope level at which the mouth opens while speaking a file. */
+	private static final float MOUTH_OPEN_LEVEL = 0.3f;
+	
+	/** Robot to send controller data to if none is given. */
+	private static final String DEFAULT_SERVER_ADDRESS = "robotpi.local";
+	
+	/** Robot port controller data is sent to. */
+	private static final int SERVER_PORT = 49801;
 
 	/** Input controller to poll for data. */
 	private ControllerInputData inputData;
@@ -37,10 +48,11 @@ public class ControllerInputThread extends Thread{
 	/** Track execution state of this thread. */
 	private boolean running;
 	
-	private static final float EPSILON = 0.05f;
-	
-	/** Sleep duration in milliseconds before getting input device values. */
-	private static final int SLEEP = 40;
+	/** 
+	 * Poll interval, dead zone and message length. Read once per poll so a
+	 * change never applies half way through one.
+	 */
+	private volatile PerformanceProfile profile = PerformanceProfile.defaults();
 	
 	/** Drive input value. */
 	private float driveInput;
@@ -73,7 +85,7 @@ public class ControllerInputThread extends Thread{
 	private boolean selectNextSoundFile = false;
 	
 	/** Audio controls for starting and stopping audio file play back. */
-	private AudioControls audioControls;
+	private volatile AudioControls audioControls;
 	
 	private ControllerDataClient controllerDataClient;
 	
@@ -84,21 +96,65 @@ public class ControllerInputThread extends Thread{
 	 */
 	public ControllerInputThread(
 			ControllerInputData inputData, RobotPIUIInterface uiInterface) {
+		this(inputData, uiInterface, DEFAULT_SERVER_ADDRESS);
+	}
+	
+	/**
+	 * Create a new controller input thread instance sending to a given robot.
+	 * @param inputData Controller input to get data from.
+	 * @param uiInterface UI interface to update with controller values.
+	 * @param serverAddress Robot host name or address. Pass an address that
+	 * is already resolved to avoid another name lookup.
+	 */
+	public ControllerInputThread(ControllerInputData inputData, 
+			RobotPIUIInterface uiInterface, String serverAddress) {
+		this(inputData, uiInterface, serverAddress, SERVER_PORT);
+	}
+	
+	/**
+	 * Create a new controller input thread instance sending to a given robot
+	 * port.
+	 * @param inputData Controller input to get data from.
+	 * @param uiInterface UI interface to update with controller values.
+	 * @param serverAddress Robot host name or address.
+	 * @param serverPort Robot port to send controller data to.
+	 */
+	public ControllerInputThread(ControllerInputData inputData, 
+			RobotPIUIInterface uiInterface, String serverAddress, int serverPort) {
 		
 		this.inputData = inputData;
 		this.uiInterface = uiInterface;
-		controllerDataClient = new ControllerDataClient("robotpi.local", 49801);
+		controllerDataClient = new ControllerDataClient(serverAddress, serverPort);
 		running = false;
 	}
 	
 	/**
-	 * Set the audio controls to interface with.
+	 * Set the audio controls to interface with. May be set after the thread
+	 * has started; audio inputs are ignored until then.
 	 * @param audioControls Audio controls to interface with.
 	 */
 	public void setAudioControls(AudioControls audioControls) {
 		this.audioControls = audioControls;
 	}
 	
+	/**
+	 * Send controller data through a shared reactor instead of blocking this
+	 * thread. Must be called before starting.
+	 * @param reactor Reactor to send through.
+	 */
+	public void setReactor(UdpReactor reactor) {
+		controllerDataClient.setReactor(reactor);
+	}
+	
+	/**
+	 * Switch to new performance settings while running. Takes effect from
+	 * the next poll.
+	 * @param profile Settings to use.
+	 */
+	public void setProfile(PerformanceProfile profile) {
+		this.profile = profile;
+	}
+	
 	/**
 	 * Start the controller input thread.
 	 */
@@ -123,6 +179,9 @@ public class ControllerInputThread extends Thread{
 		
 		while (running) {
 			
+			PerformanceProfile profile = this.profile;
+			float deadZone = profile.getControllerDeadZone();
+			
 			inputData.pollDevice();
 			
 			driveInput = inputData.getDriveInput();
@@ -134,25 +193,29 @@ public class ControllerInputThread extends Thread{
 			playSoundInput = inputData.getPlaySound();
 			
 			// Clamp drive, turn, head lift and head turn values.
-			if (driveInput < EPSILON && driveInput > -EPSILON) {
+			if (driveInput < deadZone && driveInput > -deadZone) {
 				driveInput = 0.0f;
 			}
 			
-			if (turnInput < EPSILON && turnInput > -EPSILON) {
+			if (turnInput < deadZone && turnInput > -deadZone) {
 				turnInput = 0.0f;
 			}
 			
-			if (headLiftInput < EPSILON && headLiftInput > -EPSILON) {
+			if (headLiftInput < deadZone && headLiftInput > -deadZone) {
 				headLiftInput = 0.0f;
 			}
 			
-			if (headTurnInput < EPSILON && headTurnInput > -EPSILON) {
+			if (headTurnInput < deadZone && headTurnInput > -deadZone) {
 				headTurnInput = 0.0f;
 			}
 			
 			soundInputShouldMoveMouth = false;
 			
-			if (playSoundInput) {
+			AudioControls audioControls = this.audioControls;
+			
+			if (audioControls == null) {
+				// Audio is still starting up.
+			} else if (playSoundInput) {
 				String audioFilePath = uiInterface.getSelectedAudioFilePath();
 				if (audioFilePath != null) {
 					File audioFile = new File(audioFilePath);
@@ -167,7 +230,9 @@ public class ControllerInputThread extends Thread{
 				audioControls.stopAudioFile();
 			}
 			
-			if (talkingInput) {
+			if (audioControls == null) {
+				// Audio is still starting up.
+			} else if (talkingInput) {
 				audioControls.playMicrophone();
 			} else {
 				audioControls.stopMicrophone();
@@ -203,18 +268,24 @@ public class ControllerInputThread extends Thread{
 				selectNextSoundFile = inputData.getNextAudioFile();
 			}
 			
-			// Override talkingInput to cause robot to speak the audio file
-			// being played.
-			if (soundInputShouldMoveMouth) {
-				talkingInput = true;
+			// Open the mouth in time with the audio file being played. Files
+			// that have not been analyzed yet fall back to overriding
+			// talkingInput so the robot still speaks them.
+			if (soundInputShouldMoveMouth && audioControls != null) {
+				float level = audioControls.getAudioFileLevel();
+				if (level < 0.0f) {
+					talkingInput = true;
+				} else if (level >= MOUTH_OPEN_LEVEL) {
+					openMouthInput = true;
+				}
 			}
 			
 			String dataMsg = String.format("%d,%d,%d,%d,%d,%d:", (int)(100*driveInput), (int)(100*turnInput), (int)(100*headLiftInput), (int)(100*headTurnInput), (talkingInput ? 1 : 0), (openMouthInput ? 1 : 0));
 			
-			controllerDataClient.sendData(dataMsg);
+			controllerDataClient.sendData(dataMsg, profile.getControllerMaxMessageChars());
 			
 			try {
-				Thread.sleep(SLEEP);
+				Thread.sleep(profile.getControllerPollMillis());
 			} catch (InterruptedException e) {
 				// TODO Auto-generated catch block
 				e.printStackTrace();
@@ -0,0 +1,124 @@
+package com.yarg.robotpi.net;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * Small bounded queue of datagrams for an {@link UdpReactor} outbound
+ * channel. Every slot is preallocated. When full the oldest datagram is
+ * dropped, which suits messages that each carry the complete latest state.
+ */
+public class DatagramQueue implements UdpReactor.OutboundQueue {
+
+	/** Datagram buffers. */
+	private final byte[][] slots;
+
+	/** Length of the datagram in each slot. */
+	private final int[] lengths;
+
+	/** Slot of the oldest datagram. */
+	private int head;
+
+	/** Datagrams queued. */
+	private int size;
+
+	/** Datagrams dropped to make room. */
+	private long dropped;
+
+	/** Datagrams ever removed from the front, sent or dropped. */
+	private long removed;
+
+	/** Value of removed when the front datagram was last peeked. */
+	private long peeked = -1;
+
+	/**
+	 * Create a queue.
+	 * @param capacity Most datagrams held.
+	 * @param slotBytes Largest datagram.
+	 */
+	public DatagramQueue(int capacity, int slotBytes) {
+		slots = new byte[capacity][slotBytes];
+		lengths = new int[capacity];
+	}
+
+	/**
+	 * Queue a copy of a datagram, dropping the oldest if full.
+	 * @param data Datagram data.
+	 * @param offset Offset of the first byte.
+	 * @param length Datagram length. Longer than a slot is refused.
+	 * @return True if queued.
+	 */
+	public synchronized boolean offer(byte[] data, int offset, int length) {
+
+		if (length > slots[0].length) {
+			return false;
+		}
+
+		if (size == slots.length) {
+			head = (head + 1) % slots.length;
+			size--;
+			removed++;
+			dropped++;
+		}
+
+		int index = (head + size) % slots.length;
+		System.arraycopy(data, offset, slots[index], 0, length);
+		lengths[index] = length;
+		size++;
+		return true;
+	}
+
+	/**
+	 * Datagrams dropped to make room.
+	 * @return Dropped count.
+	 */
+	public synchronized long getDropped() {
+		return dropped;
+	}
+
+	// -------------------------------------------------------------------------
+	// Methods required by UdpReactor.OutboundQueue
+	// -------------------------------------------------------------------------
+
+	@Override
+	public synchronized boolean peekInto(ByteBuffer target) {
+
+		if (size == 0) {
+			return false;
+		}
+
+		target.put(slots[head], 0, lengths[head]);
+		peeked = removed;
+		return true;
+	}
+
+	@Override
+	public synchronized void remove() {
+
+		// The peeked datagram may have been dropped to make room meanwhile;
+		// then the new front has not been sent yet.
+		if (size > 0 && peeked == removed) {
+			head = (head + 1) % slots.length;
+			size--;
+			removed++;
+		}
+	}
+}
@@ -0,0 +1,580 @@
+package com.yarg.robotpi.net;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Runs all UDP traffic on one thread. Outbound channels are non-blocking and
+ * each drains its own queue, higher priorities first: after every burst the
+ * reactor starts again from the highest priority, so a large audio backlog
+ * never delays a control packet by more than one burst. Inbound channels
+ * hand their datagrams to a handler on the reactor thread.
+ *
+ * Replaces one blocking thread per socket, which costs a thread wake up and
+ * context switch for every packet on each socket. Producers on other threads
+ * queue packets and call {@link Outbound#signal()}; wake ups are coalesced
+ * so a burst of packets wakes the reactor once.
+ */
+public class UdpReactor extends Thread {
+
+	/**
+	 * Order outbound channels are served in. Each also has a DSCP marking so
+	 * WiFi access points with WMM queue the packets the same way.
+	 */
+	public enum Priority {
+
+		/** Small, latency critical messages. CS6, the WMM voice queue. */
+		CONTROL(0xC0),
+
+		/** Real time media. AF41, the WMM video queue. */
+		MEDIA(0x88),
+
+		/** Anything that can wait. Best effort. */
+		BULK(0x00);
+
+		/** IP traffic class byte, DSCP in the top six bits. */
+		private final int trafficClass;
+
+		/**
+		 * Create a priority.
+		 * @param trafficClass IP traffic class byte.
+		 */
+		private Priority(int trafficClass) {
+			this.trafficClass = trafficClass;
+		}
+
+		/**
+		 * IP traffic class byte for sockets carrying this kind of traffic.
+		 * @return Traffic class, DSCP in the top six bits.
+		 */
+		public int getTrafficClass() {
+			return trafficClass;
+		}
+	}
+
+	/** Packets waiting to go out on one channel. Read only by the reactor. */
+	public interface OutboundQueue {
+
+		/**
+		 * Copy the oldest packet into a buffer, leaving it queued.
+		 * @param target Cleared buffer to copy into.
+		 * @return True if a packet was copied, false if the queue is empty.
+		 */
+		public boolean peekInto(ByteBuffer target);
+
+		/**
+		 * Drop the oldest packet once it was sent.
+		 */
+		public void remove();
+	}
+
+	/** Takes datagrams arriving on a channel. */
+	public interface InboundHandler {
+
+		/**
+		 * The channel has datagrams waiting. Called on the reactor thread;
+		 * read until the channel returns nothing.
+		 * @param channel Non-blocking channel to read from.
+		 * @throws IOException If reading fails.
+		 */
+		public void readable(DatagramChannel channel) throws IOException;
+	}
+
+	/** Most packets sent from one channel before higher priorities are checked again. */
+	private static final int BURST_PACKETS = 8;
+
+	/** Largest datagram sent. */
+	private static final int MAX_DATAGRAM_BYTES = 65507;
+
+	/** Longest wait in select, so a lost wake up is never fatal. */
+	private static final long SELECT_TIMEOUT_MILLIS = 250;
+
+	/** Multiplexes every channel. */
+	private final Selector selector;
+
+	/** 
+	 * Outbound channels, highest priority first. Changed only by the reactor
+	 * thread, holding the lock so other threads can describe them.
+	 */
+	private final List<Outbound> outbounds = new ArrayList<Outbound>();
+
+	/** Registrations and removals waiting for the reactor thread. */
+	private final ConcurrentLinkedQueue<Runnable> changes = new ConcurrentLinkedQueue<Runnable>();
+
+	/** True once the selector was woken and not yet gone back to sleep. */
+	private final AtomicBoolean wakeUpPending = new AtomicBoolean();
+
+	/** Packets are copied here on their way out. */
+	private final ByteBuffer sendBuffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+
+	/** Track execution state of this thread. */
+	private volatile boolean running;
+
+	/** Times the reactor woke up. */
+	private volatile long wakeUps;
+
+	/** One outbound channel and its queue. */
+	public class Outbound {
+
+		/** Name for logging. */
+		private final String name;
+
+		/** Serving order. */
+		private final Priority priority;
+
+		/** Where packets go. */
+		private final InetSocketAddress target;
+
+		/** Packets to send. */
+		private final OutboundQueue queue;
+
+		/** Non-blocking channel packets are sent on. */
+		private final DatagramChannel channel;
+
+		/** Selection key, waiting for write readiness while blocked. */
+		private SelectionKey key;
+
+		/** True while the socket buffer is full. Reactor thread only. */
+		private boolean blocked;
+
+		/** Packets sent. */
+		private volatile long sentPackets;
+
+		/** Bytes sent. */
+		private volatile long sentBytes;
+
+		/** Times the socket buffer was full. */
+		private volatile long blockedSends;
+
+		/** Packets dropped after a send error. */
+		private volatile long failedSends;
+
+		/**
+		 * Create an outbound channel.
+		 * @param name Name for logging.
+		 * @param priority Serving order.
+		 * @param target Where packets go.
+		 * @param queue Packets to send.
+		 * @throws IOException If the channel can't be opened.
+		 */
+		private Outbound(String name, Priority priority, 
+				InetSocketAddress target, OutboundQueue queue) throws IOException {
+			this.name = name;
+			this.priority = priority;
+			this.target = target;
+			this.queue = queue;
+			channel = DatagramChannel.open();
+			channel.configureBlocking(false);
+			try {
+				channel.setOption(StandardSocketOptions.IP_TOS, priority.getTrafficClass());
+			} catch (IOException e) {
+				System.out.println("UDP reactor: unable to mark "+name+" packets: "+e.getMessage());
+			}
+		}
+
+		/**
+		 * Tell the reactor packets were queued. Safe to call from any thread
+		 * and cheap when the reactor is already awake.
+		 */
+		public void signal() {
+			wakeUp();
+		}
+
+		/**
+		 * Packets sent so far.
+		 * @return Sent packet count.
+		 */
+		public long getSentPackets() {
+			return sentPackets;
+		}
+
+		/**
+		 * Bytes sent so far.
+		 * @return Sent byte count.
+		 */
+		public long getSentBytes() {
+			return sentBytes;
+		}
+
+		/**
+		 * Describe what was sent, for logging.
+		 * @return Channel summary.
+		 */
+		public String describe() {
+			return String.format("%s (%s): %d packets, %d bytes, %d blocked, %d failed",
+					name, priority, sentPackets, sentBytes, blockedSends, failedSends);
+		}
+
+		/**
+		 * Send queued packets until the queue is empty, the socket buffer is
+		 * full or the burst is used up. Reactor thread only.
+		 * @param burst Most packets to send.
+		 * @return Packets sent.
+		 */
+		private int service(int burst) {
+
+			if (blocked) {
+				return 0;
+			}
+
+			int sent = 0;
+
+			while (sent < burst) {
+
+				sendBuffer.clear();
+
+				if (!queue.peekInto(sendBuffer)) {
+					break;
+				}
+
+				sendBuffer.flip();
+				int length = sendBuffer.remaining();
+
+				try {
+					if (channel.send(sendBuffer, target) == 0) {
+						// Socket buffer full; the packet stays queued until
+						// the channel can be written again.
+						blocked = true;
+						blockedSends++;
+						key.interestOps(SelectionKey.OP_WRITE);
+						break;
+					}
+					sentPackets++;
+					sentBytes += length;
+				} catch (IOException e) {
+					// Unreachable robot and the like. Drop the packet rather
+					// than spin on it; the next one may get through.
+					failedSends++;
+					if (failedSends == 1 || failedSends % 1000 == 0) {
+						System.out.println("UDP reactor: "+name+" send failed "
+								+failedSends+" times: "+e.getMessage());
+					}
+				}
+
+				queue.remove();
+				sent++;
+			}
+
+			return sent;
+		}
+	}
+
+	/**
+	 * Create a reactor. Call {@link #startReactor()} to start it.
+	 * @throws IOException If the selector can't be opened.
+	 */
+	public UdpReactor() throws IOException {
+		super("UdpReactor");
+		setDaemon(true);
+		selector = Selector.open();
+	}
+
+	/**
+	 * Create and start a reactor, logging any failure.
+	 * @return Running reactor, or null if it could not be created.
+	 */
+	public static UdpReactor open() {
+
+		try {
+			UdpReactor reactor = new UdpReactor();
+			reactor.startReactor();
+			return reactor;
+		} catch (IOException e) {
+			System.out.println("Unable to start the UDP reactor, using a thread per socket.");
+			e.printStackTrace();
+			return null;
+		}
+	}
+
+	/**
+	 * Add an outbound channel.
+	 * @param name Name for logging.
+	 * @param priority Serving order.
+	 * @param target Where packets go.
+	 * @param queue Packets to send, read only by the reactor thread.
+	 * @return Handle to signal when packets are queued.
+	 * @throws IOException If the channel can't be opened.
+	 */
+	public Outbound addOutbound(String name, Priority priority, 
+			InetSocketAddress target, OutboundQueue queue) throws IOException {
+
+		final Outbound outbound = new Outbound(name, priority, target, queue);
+
+		change(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					outbound.key = outbound.channel.register(selector, 0, outbound);
+				} catch (IOException e) {
+					System.out.println("UDP reactor: unable to add "+outbound.name);
+					e.printStackTrace();
+					return;
+				}
+				synchronized (UdpReactor.this) {
+					outbounds.add(outbound);
+					Collections.sort(outbounds, new Comparator<Outbound>() {
+
+						@Override
+						public int compare(Outbound a, Outbound b) {
+							return a.priority.compareTo(b.priority);
+						}
+					});
+				}
+			}
+		});
+
+		return outbound;
+	}
+
+	/**
+	 * Remove an outbound channel and close it. Packets still queued are not
+	 * sent.
+	 * @param outbound Channel to remove.
+	 */
+	public void removeOutbound(final Outbound outbound) {
+
+		change(new Runnable() {
+
+			@Override
+			public void run() {
+				synchronized (UdpReactor.this) {
+					outbounds.remove(outbound);
+				}
+				closeQuietly(outbound.channel);
+			}
+		});
+	}
+
+	/**
+	 * Add an inbound channel. It is switched to non-blocking mode. Closing
+	 * the channel removes it.
+	 * @param channel Bound channel to read from.
+	 * @param handler Takes the datagrams.
+	 */
+	public void addInbound(final DatagramChannel channel, final InboundHandler handler) {
+
+		change(new Runnable() {
+
+			@Override
+			public void run() {
+				try {
+					channel.configureBlocking(false);
+					channel.register(selector, SelectionKey.OP_READ, handler);
+				} catch (IOException e) {
+					System.out.println("UDP reactor: unable to add inbound channel");
+					e.printStackTrace();
+				}
+			}
+		});
+	}
+
+	/**
+	 * Start the reactor thread.
+	 */
+	public void startReactor() {
+		running = true;
+		start();
+	}
+
+	/**
+	 * Stop the reactor thread and close its outbound channels. Inbound
+	 * channels belong to whoever added them and are left open.
+	 */
+	public void stopReactor() {
+
+		running = false;
+		selector.wakeup();
+
+		try {
+			join();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		}
+
+		System.out.println(describe());
+	}
+
+	/**
+	 * Times the reactor woke up so far.
+	 * @return Wake up count.
+	 */
+	public long getWakeUps() {
+		return wakeUps;
+	}
+
+	/**
+	 * Describe the traffic on every outbound channel, for logging.
+	 * @return Reactor summary.
+	 */
+	public synchronized String describe() {
+
+		StringBuilder builder = new StringBuilder("UDP reactor: "+wakeUps+" wake ups");
+
+		for (Outbound outbound : new ArrayList<Outbound>(outbounds)) {
+			builder.append("; ").append(outbound.describe());
+		}
+
+		return builder.toString();
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		try {
+			while (running) {
+
+				Runnable change;
+				while ((change = changes.poll()) != null) {
+					change.run();
+				}
+
+				// Clear the flag before looking at the queues, so a packet
+				// queued after the look always wakes the next select.
+				wakeUpPending.set(false);
+				serviceOutbound();
+
+				selector.select(SELECT_TIMEOUT_MILLIS);
+				wakeUps++;
+
+				Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+
+				while (keys.hasNext()) {
+					SelectionKey key = keys.next();
+					keys.remove();
+					handle(key);
+				}
+			}
+		} catch (IOException e) {
+			System.out.println("UDP reactor stopped by an error.");
+			e.printStackTrace();
+		} finally {
+			synchronized (this) {
+				for (Outbound outbound : outbounds) {
+					closeQuietly(outbound.channel);
+				}
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Send from every outbound channel, always going back to the highest
+	 * priority after a full burst.
+	 */
+	private void serviceOutbound() {
+
+		boolean more = true;
+
+		while (more) {
+
+			more = false;
+
+			for (int i = 0; i < outbounds.size(); i++) {
+				if (outbounds.get(i).service(BURST_PACKETS) == BURST_PACKETS) {
+					more = true;
+					break;
+				}
+			}
+		}
+	}
+
+	/**
+	 * Act on a ready channel.
+	 * @param key Selected key.
+	 */
+	private void handle(SelectionKey key) {
+
+		Object attachment = key.attachment();
+
+		try {
+			if (attachment instanceof Outbound) {
+				// Writable again; served on the next pass.
+				Outbound outbound = (Outbound) attachment;
+				outbound.blocked = false;
+				key.interestOps(0);
+			} else if (key.isReadable()) {
+				((InboundHandler) attachment).readable((DatagramChannel) key.channel());
+			}
+		} catch (CancelledKeyException e) {
+			// Channel was closed by its owner.
+		} catch (IOException e) {
+			if (key.channel().isOpen()) {
+				System.out.println("UDP reactor: receive failed: "+e.getMessage());
+			}
+		}
+	}
+
+	/**
+	 * Run a registration change on the reactor thread.
+	 * @param change Change to run.
+	 */
+	private void change(Runnable change) {
+		changes.add(change);
+		selector.wakeup();
+	}
+
+	/**
+	 * Wake the reactor unless a wake up is already on its way.
+	 */
+	private void wakeUp() {
+		if (wakeUpPending.compareAndSet(false, true)) {
+			selector.wakeup();
+		}
+	}
+
+	/**
+	 * Close a channel, logging failures.
+	 * @param channel Channel to close.
+	 */
+	private static void closeQuietly(DatagramChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+}
@@ -0,0 +1,425 @@
+package com.yarg.robotpi.telemetry;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.ByteBuffer;
+
+/**
+ * One telemetry report from the robot, held in plain primitive fields so a
+ * frame can be decoded into the same instance over and over without
+ * allocating.
+ *
+ * Wire format, big endian, {@value #FRAME_BYTES} bytes:
+ * <pre>
+ *  0  u16  magic 0x5254 ("RT")
+ *  2  u8   version, 1
+ *  3  u8   flags, reserved
+ *  4  u32  sequence number
+ *  8  u32  robot uptime in milliseconds
+ * 12  u16  battery voltage in millivolts
+ * 14  s16  battery current in milliamps, negative while charging
+ * 16  s16  left drive motor load in tenths of a percent
+ * 18  s16  right drive motor load in tenths of a percent
+ * 20  s16  head lift motor load in tenths of a percent
+ * 22  s16  head turn motor load in tenths of a percent
+ * 24  s16  CPU temperature in hundredths of a degree Celsius
+ * 26  u8   CPU load in percent
+ * 27  s8   WiFi signal in dBm
+ * 28  u16  age of the last controller command in milliseconds,
+ *          0xFFFF if none has arrived
+ * 30  u32  controller commands received
+ * </pre>
+ */
+public class TelemetryFrame {
+
+	/** First two bytes of every frame. */
+	public static final int MAGIC = 0x5254;
+
+	/** Format version decoded here. */
+	public static final int VERSION = 1;
+
+	/** Size of a frame. */
+	public static final int FRAME_BYTES = 34;
+
+	/** Command age sent when no command has arrived. */
+	public static final int NO_COMMAND = 0xFFFF;
+
+	/** Sequence number. */
+	private long sequence;
+
+	/** Robot uptime in milliseconds. */
+	private long uptimeMillis;
+
+	/** Battery voltage in millivolts. */
+	private int batteryMillivolts;
+
+	/** Battery current in milliamps. */
+	private int batteryMilliamps;
+
+	/** Left drive motor load in tenths of a percent. */
+	private int leftMotorLoad;
+
+	/** Right drive motor load in tenths of a percent. */
+	private int rightMotorLoad;
+
+	/** Head lift motor load in tenths of a percent. */
+	private int headLiftMotorLoad;
+
+	/** Head turn motor load in tenths of a percent. */
+	private int headTurnMotorLoad;
+
+	/** CPU temperature in hundredths of a degree. */
+	private int cpuCentidegrees;
+
+	/** CPU load in percent. */
+	private int cpuLoadPercent;
+
+	/** WiFi signal in dBm. */
+	private int wifiDbm;
+
+	/** Age of the last controller command in milliseconds. */
+	private int commandAgeMillis;
+
+	/** Controller commands received. */
+	private long commandsReceived;
+
+	/** When the frame arrived, from System.nanoTime(); 0 if never. */
+	private long receivedNanos;
+
+	/**
+	 * Decode a frame, replacing the contents of this one. Nothing is changed
+	 * if the data is not a valid frame.
+	 * @param buffer Data between position and limit. Not modified.
+	 * @param nowNanos Arrival time from System.nanoTime().
+	 * @return True if decoded.
+	 */
+	public boolean decode(ByteBuffer buffer, long nowNanos) {
+
+		int p = buffer.position();
+
+		if (buffer.remaining() < FRAME_BYTES
+				|| (buffer.getShort(p) & 0xFFFF) != MAGIC
+				|| (buffer.get(p + 2) & 0xFF) != VERSION) {
+			return false;
+		}
+
+		sequence = buffer.getInt(p + 4) & 0xFFFFFFFFL;
+		uptimeMillis = buffer.getInt(p + 8) & 0xFFFFFFFFL;
+		batteryMillivolts = buffer.getShort(p + 12) & 0xFFFF;
+		batteryMilliamps = buffer.getShort(p + 14);
+		leftMotorLoad = buffer.getShort(p + 16);
+		rightMotorLoad = buffer.getShort(p + 18);
+		headLiftMotorLoad = buffer.getShort(p + 20);
+		headTurnMotorLoad = buffer.getShort(p + 22);
+		cpuCentidegrees = buffer.getShort(p + 24);
+		cpuLoadPercent = buffer.get(p + 26) & 0xFF;
+		wifiDbm = buffer.get(p + 27);
+		commandAgeMillis = buffer.getShort(p + 28) & 0xFFFF;
+		commandsReceived = buffer.getInt(p + 30) & 0xFFFFFFFFL;
+		receivedNanos = nowNanos;
+		return true;
+	}
+
+	/**
+	 * Encode this frame, for the robot side and test senders.
+	 * @param buffer Buffer to write at its position, which is advanced.
+	 */
+	public void encode(ByteBuffer buffer) {
+		buffer.putShort((short) MAGIC);
+		buffer.put((byte) VERSION);
+		buffer.put((byte) 0);
+		buffer.putInt((int) sequence);
+		buffer.putInt((int) uptimeMillis);
+		buffer.putShort((short) batteryMillivolts);
+		buffer.putShort((short) batteryMilliamps);
+		buffer.putShort((short) leftMotorLoad);
+		buffer.putShort((short) rightMotorLoad);
+		buffer.putShort((short) headLiftMotorLoad);
+		buffer.putShort((short) headTurnMotorLoad);
+		buffer.putShort((short) cpuCentidegrees);
+		buffer.put((byte) cpuLoadPercent);
+		buffer.put((byte) wifiDbm);
+		buffer.putShort((short) commandAgeMillis);
+		buffer.putInt((int) commandsReceived);
+	}
+
+	/**
+	 * Copy another frame into this one.
+	 * @param other Frame to copy.
+	 */
+	public void copyFrom(TelemetryFrame other) {
+		sequence = other.sequence;
+		uptimeMillis = other.uptimeMillis;
+		batteryMillivolts = other.batteryMillivolts;
+		batteryMilliamps = other.batteryMilliamps;
+		leftMotorLoad = other.leftMotorLoad;
+		rightMotorLoad = other.rightMotorLoad;
+		headLiftMotorLoad = other.headLiftMotorLoad;
+		headTurnMotorLoad = other.headTurnMotorLoad;
+		cpuCentidegrees = other.cpuCentidegrees;
+		cpuLoadPercent = other.cpuLoadPercent;
+		wifiDbm = other.wifiDbm;
+		commandAgeMillis = other.commandAgeMillis;
+		commandsReceived = other.commandsReceived;
+		receivedNanos = other.receivedNanos;
+	}
+
+	/**
+	 * True once a frame was decoded into this one.
+	 * @return True if it holds a frame.
+	 */
+	public boolean isValid() {
+		return receivedNanos != 0;
+	}
+
+	/**
+	 * Time since the frame arrived.
+	 * @param nowNanos Current time from System.nanoTime().
+	 * @return Age in milliseconds, or Long.MAX_VALUE if never.
+	 */
+	public long getAgeMillis(long nowNanos) {
+		return receivedNanos == 0 ? Long.MAX_VALUE : (nowNanos - receivedNanos) / 1000000L;
+	}
+
+	/**
+	 * Describe the frame, for logging.
+	 * @return Frame summary.
+	 */
+	public String describe() {
+
+		if (!isValid()) {
+			return "no telemetry";
+		}
+
+		return String.format("#%d, up %d s, battery %.2f V %.2f A, motors %.1f/%.1f/%.1f/%.1f%%, "
+				+ "CPU %.1f C %d%%, WiFi %d dBm, command age %s, %d commands",
+				sequence, uptimeMillis / 1000, getBatteryVolts(), batteryMilliamps / 1000.0f,
+				leftMotorLoad / 10.0f, rightMotorLoad / 10.0f,
+				headLiftMotorLoad / 10.0f, headTurnMotorLoad / 10.0f,
+				getCpuTemperature(), cpuLoadPercent, wifiDbm,
+				hasCommand() ? commandAgeMillis+" ms" : "none", commandsReceived);
+	}
+
+	/**
+	 * Sequence number.
+	 * @return Sequence number.
+	 */
+	public long getSequence() {
+		return sequence;
+	}
+
+	/**
+	 * Set the sequence number.
+	 * @param sequence Sequence number.
+	 */
+	public void setSequence(long sequence) {
+		this.sequence = sequence;
+	}
+
+	/**
+	 * Robot uptime.
+	 * @return Uptime in milliseconds.
+	 */
+	public long getUptimeMillis() {
+		return uptimeMillis;
+	}
+
+	/**
+	 * Set the robot uptime.
+	 * @param uptimeMillis Uptime in milliseconds.
+	 */
+	public void setUptimeMillis(long uptimeMillis) {
+		this.uptimeMillis = uptimeMillis;
+	}
+
+	/**
+	 * Battery voltage.
+	 * @return Voltage in millivolts.
+	 */
+	public int getBatteryMillivolts() {
+		return batteryMillivolts;
+	}
+
+	/**
+	 * Battery voltage.
+	 * @return Voltage in volts.
+	 */
+	public float getBatteryVolts() {
+		return batteryMillivolts / 1000.0f;
+	}
+
+	/**
+	 * Set the battery voltage.
+	 * @param batteryMillivolts Voltage in millivolts.
+	 */
+	public void setBatteryMillivolts(int batteryMillivolts) {
+		this.batteryMillivolts = batteryMillivolts;
+	}
+
+	/**
+	 * Battery current.
+	 * @return Current in milliamps, negative while charging.
+	 */
+	public int getBatteryMilliamps() {
+		return batteryMilliamps;
+	}
+
+	/**
+	 * Set the battery current.
+	 * @param batteryMilliamps Current in milliamps.
+	 */
+	public void setBatteryMilliamps(int batteryMilliamps) {
+		this.batteryMilliamps = batteryMilliamps;
+	}
+
+	/**
+	 * Left drive motor load.
+	 * @return Load in tenths of a percent.
+	 */
+	public int getLeftMotorLoad() {
+		return leftMotorLoad;
+	}
+
+	/**
+	 * Right drive motor load.
+	 * @return Load in tenths of a percent.
+	 */
+	public int getRightMotorLoad() {
+		return rightMotorLoad;
+	}
+
+	/**
+	 * Head lift motor load.
+	 * @return Load in tenths of a percent.
+	 */
+	public int getHeadLiftMotorLoad() {
+		return headLiftMotorLoad;
+	}
+
+	/**
+	 * Head turn motor load.
+	 * @return Load in tenths of a percent.
+	 */
+	public int getHeadTurnMotorLoad() {
+		return headTurnMotorLoad;
+	}
+
+	/**
+	 * Set the motor loads.
+	 * @param left Left drive motor load in tenths of a percent.
+	 * @param right Right drive motor load in tenths of a percent.
+	 * @param headLift Head lift motor load in tenths of a percent.
+	 * @param headTurn Head turn motor load in tenths of a percent.
+	 */
+	public void setMotorLoads(int left, int right, int headLift, int headTurn) {
+		leftMotorLoad = left;
+		rightMotorLoad = right;
+		headLiftMotorLoad = headLift;
+		headTurnMotorLoad = headTurn;
+	}
+
+	/**
+	 * CPU temperature.
+	 * @return Temperature in degrees Celsius.
+	 */
+	public float getCpuTemperature() {
+		return cpuCentidegrees / 100.0f;
+	}
+
+	/**
+	 * Set the CPU temperature.
+	 * @param cpuCentidegrees Temperature in hundredths of a degree.
+	 */
+	public void setCpuCentidegrees(int cpuCentidegrees) {
+		this.cpuCentidegrees = cpuCentidegrees;
+	}
+
+	/**
+	 * CPU load.
+	 * @return Load in percent.
+	 */
+	public int getCpuLoadPercent() {
+		return cpuLoadPercent;
+	}
+
+	/**
+	 * Set the CPU load.
+	 * @param cpuLoadPercent Load in percent.
+	 */
+	public void setCpuLoadPercent(int cpuLoadPercent) {
+		this.cpuLoadPercent = cpuLoadPercent;
+	}
+
+	/**
+	 * WiFi signal strength.
+	 * @return Signal in dBm.
+	 */
+	public int getWifiDbm() {
+		return wifiDbm;
+	}
+
+	/**
+	 * Set the WiFi signal strength.
+	 * @param wifiDbm Signal in dBm.
+	 */
+	public void setWifiDbm(int wifiDbm) {
+		this.wifiDbm = wifiDbm;
+	}
+
+	/**
+	 * True if the robot has received a controller command.
+	 * @return True if the command age is known.
+	 */
+	public boolean hasCommand() {
+		return commandAgeMillis != NO_COMMAND;
+	}
+
+	/**
+	 * Age of the last controller command when the frame was sent.
+	 * @return Age in milliseconds, {@link #NO_COMMAND} if none.
+	 */
+	public int getCommandAgeMillis() {
+		return commandAgeMillis;
+	}
+
+	/**
+	 * Set the age of the last controller command.
+	 * @param commandAgeMillis Age in milliseconds, {@link #NO_COMMAND} if none.
+	 */
+	public void setCommandAgeMillis(int commandAgeMillis) {
+		this.commandAgeMillis = commandAgeMillis;
+	}
+
+	/**
+	 * Controller commands received by the robot.
+	 * @return Command count.
+	 */
+	public long getCommandsReceived() {
+		return commandsReceived;
+	}
+
+	/**
+	 * Set the controller commands received.
+	 * @param commandsReceived Command count.
+	 */
+	public void setCommandsReceived(long commandsReceived) {
+		this.commandsReceived = commandsReceived;
+	}
+}
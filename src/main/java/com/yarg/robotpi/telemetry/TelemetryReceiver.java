@@ -0,0 +1,330 @@
+package com.yarg.robotpi.telemetry;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+
+import com.yarg.robotpi.net.UdpReactor;
+
+/**
+ * Receives telemetry frames from the robot. Frames are read into a single
+ * direct buffer and decoded into preallocated {@link TelemetryFrame}s, so
+ * nothing is allocated per frame however fast the robot reports. Frames
+ * older than the newest one are counted and dropped; a large step back in
+ * sequence is taken as a robot restart.
+ */
+public class TelemetryReceiver extends Thread {
+
+	/** Default port to listen on. */
+	public static final int DEFAULT_PORT = 49810;
+
+	/** Sequence step back beyond which the robot is assumed restarted. */
+	private static final int RESTART_SEQUENCE_GAP = 1000;
+
+	/** Pause before rebinding after a socket failure. */
+	private static final long REOPEN_DELAY_MILLIS = 1000;
+
+	/** Port to listen on. */
+	private final int port;
+
+	/** Datagrams land here. Larger than a frame so oversized ones are seen. */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(512);
+
+	/** Frame being decoded, only touched by the receiving thread. */
+	private final TelemetryFrame incoming = new TelemetryFrame();
+
+	/** Newest frame, guarded by itself. */
+	private final TelemetryFrame latest = new TelemetryFrame();
+
+	/** Open channel, null when closed. */
+	private volatile DatagramChannel channel;
+
+	/** Reactor to receive on, null to use this thread. */
+	private UdpReactor reactor;
+
+	/** True while receiving. */
+	private volatile boolean running;
+
+	/** Sequence of the newest frame. */
+	private long lastSequence = -1;
+
+	/** Frames decoded and accepted. */
+	private volatile long receivedFrames;
+
+	/** Datagrams that were not telemetry frames. */
+	private volatile long badFrames;
+
+	/** Frames missing from the sequence. */
+	private volatile long lostFrames;
+
+	/** Frames arriving after a newer one or twice, dropped. */
+	private volatile long lateFrames;
+
+	/** Times the robot restarted its sequence. */
+	private volatile long restarts;
+
+	/**
+	 * Create a new receiver on the default port.
+	 */
+	public TelemetryReceiver() {
+		this(DEFAULT_PORT);
+	}
+
+	/**
+	 * Create a new receiver.
+	 * @param port Port to listen on.
+	 */
+	public TelemetryReceiver(int port) {
+		super("Telemetry receiver");
+		this.port = port;
+		setDaemon(true);
+	}
+
+	/**
+	 * Receive through a shared reactor instead of this thread. Must be called
+	 * before starting. The socket is not reopened after a failure in this
+	 * mode.
+	 * @param reactor Reactor to receive on, or null for this thread.
+	 */
+	public void setReactor(UdpReactor reactor) {
+		this.reactor = reactor;
+	}
+
+	/**
+	 * Bind the port and start receiving.
+	 * @throws IOException If the port can't be bound.
+	 */
+	public void startReceiving() throws IOException {
+
+		open();
+		running = true;
+
+		if (reactor == null) {
+			start();
+		} else {
+			reactor.addInbound(channel, new UdpReactor.InboundHandler() {
+
+				@Override
+				public void readable(DatagramChannel channel) throws IOException {
+					while (channel.receive(prepare()) != null) {
+						accept();
+					}
+				}
+			});
+		}
+
+		System.out.println("Telemetry: listening on port "+port
+				+(reactor == null ? "" : " on the UDP reactor"));
+	}
+
+	/**
+	 * Stop receiving and close the port.
+	 */
+	public void stopReceiving() {
+		running = false;
+		close();
+		interrupt();
+		System.out.println("Telemetry: "+describe());
+	}
+
+	/**
+	 * Copy the newest frame. Allocates nothing.
+	 * @param target Frame to copy into. Left invalid if nothing has arrived.
+	 */
+	public void getLatest(TelemetryFrame target) {
+		synchronized (latest) {
+			target.copyFrom(latest);
+		}
+	}
+
+	/**
+	 * Frames decoded and accepted.
+	 * @return Received frame count.
+	 */
+	public long getReceivedFrames() {
+		return receivedFrames;
+	}
+
+	/**
+	 * Datagrams that were not telemetry frames.
+	 * @return Bad frame count.
+	 */
+	public long getBadFrames() {
+		return badFrames;
+	}
+
+	/**
+	 * Frames missing from the sequence.
+	 * @return Lost frame count.
+	 */
+	public long getLostFrames() {
+		return lostFrames;
+	}
+
+	/**
+	 * Frames dropped for arriving after a newer one.
+	 * @return Late frame count.
+	 */
+	public long getLateFrames() {
+		return lateFrames;
+	}
+
+	/**
+	 * Describe the receive counters, for logging.
+	 * @return Receiver summary.
+	 */
+	public String describe() {
+		return String.format("%d frames, %d lost, %d late, %d bad, %d robot restarts",
+				receivedFrames, lostFrames, lateFrames, badFrames, restarts);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		while (running) {
+
+			try {
+				DatagramChannel current = channel;
+				if (current == null) {
+					open();
+					current = channel;
+				}
+				current.receive(prepare());
+				accept();
+			} catch (ClosedChannelException e) {
+				// Closed by stopReceiving, or by an interrupt. Reopen on the
+				// next pass if still running.
+				channel = null;
+			} catch (IOException e) {
+				if (running) {
+					System.out.println("Telemetry: receive failed, reopening");
+					e.printStackTrace();
+					close();
+					try {
+						Thread.sleep(REOPEN_DELAY_MILLIS);
+					} catch (InterruptedException e1) {
+						// Woken by stopReceiving.
+					}
+				}
+			}
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Bind the channel.
+	 * @throws IOException If the port can't be bound.
+	 */
+	private void open() throws IOException {
+
+		DatagramChannel newChannel = DatagramChannel.open();
+
+		try {
+			newChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			newChannel.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			newChannel.close();
+			throw e;
+		}
+
+		channel = newChannel;
+	}
+
+	/**
+	 * Close the channel.
+	 */
+	private void close() {
+
+		DatagramChannel current = channel;
+		channel = null;
+
+		if (current != null) {
+			try {
+				current.close();
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	/**
+	 * Clear the receive buffer.
+	 * @return Buffer ready to receive into.
+	 */
+	private ByteBuffer prepare() {
+		buffer.clear();
+		return buffer;
+	}
+
+	/**
+	 * Decode the datagram in the receive buffer and publish it if it is the
+	 * newest frame.
+	 */
+	private void accept() {
+
+		buffer.flip();
+
+		if (buffer.remaining() != TelemetryFrame.FRAME_BYTES
+				|| !incoming.decode(buffer, System.nanoTime())) {
+			badFrames++;
+			return;
+		}
+
+		long sequence = incoming.getSequence();
+
+		if (lastSequence >= 0) {
+
+			// Sequence numbers are 32 bits and wrap.
+			int gap = (int) (sequence - lastSequence);
+
+			if (gap <= 0 && gap > -RESTART_SEQUENCE_GAP) {
+				lateFrames++;
+				if (gap < 0 && lostFrames > 0) {
+					lostFrames--;
+				}
+				return;
+			}
+
+			if (gap > 0) {
+				lostFrames += gap - 1;
+			} else {
+				restarts++;
+			}
+		}
+
+		lastSequence = sequence;
+		receivedFrames++;
+
+		synchronized (latest) {
+			latest.copyFrom(incoming);
+		}
+	}
+}
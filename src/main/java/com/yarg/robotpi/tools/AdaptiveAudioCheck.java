@@ -0,0 +1,168 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Properties;
+
+import com.yarg.robotpi.audio.AudioPacketizer;
+import com.yarg.robotpi.audio.AudioQualityController;
+import com.yarg.robotpi.audio.AudioRateHeader;
+import com.yarg.robotpi.audio.PolyphaseResampler;
+import com.yarg.robotpi.config.PerformanceProfile;
+
+/**
+ * Checks that every step down of the outbound audio quality really sends
+ * less. For each built in profile, ten seconds of audio is resampled and
+ * packetized at every tier the way the microphone sender does it, rate
+ * header included, and the bytes and packets that would go on the wire are
+ * counted. Each tier must send fewer bytes a second than the one above it,
+ * and no more packets.
+ *
+ * Exits with status 1 if a tier fails the check.
+ *
+ * Usage: AdaptiveAudioCheck [profile names, default all built in]
+ */
+public class AdaptiveAudioCheck {
+
+	/** Profiles checked when none are named. */
+	private static final String[] BUILT_IN_PROFILES = {"balanced", "lowLatency", "lowBandwidth"};
+
+	/** Rate the microphone captures at. */
+	private static final int CAPTURE_RATE = 44100;
+
+	/** Frames rendered by the mixer at a time. */
+	private static final int BLOCK_FRAMES = 441;
+
+	/** Audio pushed through each tier. */
+	private static final int SECONDS = 10;
+
+	/** IPv4 and UDP header bytes on every datagram. */
+	private static final int DATAGRAM_OVERHEAD_BYTES = 28;
+
+	public static void main(String[] args) {
+
+		String[] names = args.length > 0 ? args : BUILT_IN_PROFILES;
+		boolean passed = true;
+
+		for (String name : names) {
+			Properties properties = new Properties();
+			properties.setProperty(PerformanceProfile.PROFILE_KEY, name);
+			passed &= check(new PerformanceProfile(properties));
+		}
+
+		System.out.println(passed ? "All tiers send less than the tier above." 
+				: "FAILED: a tier doesn't send less than the tier above.");
+
+		if (!passed) {
+			System.exit(1);
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Check every tier of one profile and print what each sends.
+	 * @param profile Profile to check.
+	 * @return True if every tier sends less than the one above.
+	 */
+	private static boolean check(PerformanceProfile profile) {
+
+		int configuredRate = profile.getAudioOutboundSampleRate();
+		int tiers = AudioQualityController.getTierCount(configuredRate);
+		boolean passed = true;
+		double lastBitsPerSecond = Double.MAX_VALUE;
+		double lastPacketsPerSecond = Double.MAX_VALUE;
+
+		System.out.println(String.format("%s: %d Hz, %d byte payload budget, %d ms packets",
+				profile.getName(), configuredRate, profile.getAudioMaxPayloadBytes(),
+				profile.getAudioPacketMillis()));
+
+		for (int tier = 0; tier < tiers; tier++) {
+
+			int sampleRate = AudioQualityController.getSampleRate(tier, configuredRate);
+			int packetMillis = AudioQualityController.getPacketMillis(
+					tier, configuredRate, profile.getAudioPacketMillis());
+
+			long[] sent = send(sampleRate, packetMillis, profile.getAudioMaxPayloadBytes());
+			double packetsPerSecond = (double) sent[0] / SECONDS;
+			double bitsPerSecond = sent[1] * 8.0 / SECONDS;
+
+			boolean less = bitsPerSecond < lastBitsPerSecond 
+					&& packetsPerSecond <= lastPacketsPerSecond;
+			passed &= less;
+
+			System.out.println(String.format(
+					"  tier %d: %5d Hz, %4d byte packets, %5.1f packets/s, %5.0f kbit/s%s",
+					tier, sampleRate, sent[2], packetsPerSecond, bitsPerSecond / 1000.0,
+					less ? "" : "  <-- not less than the tier above"));
+
+			lastBitsPerSecond = bitsPerSecond;
+			lastPacketsPerSecond = packetsPerSecond;
+		}
+
+		return passed;
+	}
+
+	/**
+	 * Resample and packetize a tone the way the microphone sender does.
+	 * @param sampleRate Outbound sample rate.
+	 * @param packetMillis Packet duration, 0 to fill the payload budget.
+	 * @param maxPayloadBytes Payload budget, rate header included.
+	 * @return Packets sent, bytes on the wire and bytes in each datagram.
+	 */
+	private static long[] send(int sampleRate, int packetMillis, int maxPayloadBytes) {
+
+		PolyphaseResampler resampler = 
+				new PolyphaseResampler(CAPTURE_RATE, sampleRate, BLOCK_FRAMES);
+		AudioPacketizer packetizer = new AudioPacketizer(
+				maxPayloadBytes - AudioRateHeader.BYTES, packetMillis, sampleRate);
+		byte[] block = new byte[BLOCK_FRAMES * 2];
+		byte[] resampled = new byte[2 * resampler.getMaxOutputFrames(BLOCK_FRAMES)];
+		long packets = 0;
+		long bytes = 0;
+		long datagramBytes = 0;
+
+		for (int i = 0; i < BLOCK_FRAMES; i++) {
+			short sample = (short) (8000 * Math.sin(2.0 * Math.PI * 440.0 * i / CAPTURE_RATE));
+			block[2 * i] = (byte) (sample >> 8);
+			block[2 * i + 1] = (byte) sample;
+		}
+
+		for (int i = 0; i < SECONDS * CAPTURE_RATE / BLOCK_FRAMES; i++) {
+
+			int length = resampler.process(block, 0, BLOCK_FRAMES, resampled, 0);
+			int offset = 0;
+
+			while (offset < length) {
+				offset += packetizer.write(resampled, offset, length - offset);
+				if (packetizer.isPacketReady()) {
+					datagramBytes = AudioRateHeader.BYTES + packetizer.getPacketLength();
+					bytes += datagramBytes + DATAGRAM_OVERHEAD_BYTES;
+					packets++;
+					packetizer.clear();
+				}
+			}
+		}
+
+		return new long[] {packets, bytes, datagramBytes};
+	}
+}
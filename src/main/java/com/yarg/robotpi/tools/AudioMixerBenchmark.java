@@ -0,0 +1,111 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Random;
+
+import com.yarg.robotpi.audio.AudioMixer;
+
+/**
+ * Measures how long the {@link AudioMixer} takes to mix one packet of
+ * microphone audio with several sound effects, and how that compares to the
+ * real time duration of the packet at 44.1 kHz.
+ * 
+ * Usage: AudioMixerBenchmark [frames per packet] [sound effects]
+ */
+public class AudioMixerBenchmark {
+
+	/** Sample rate the mix is compared against. */
+	private static final float SAMPLE_RATE = 44100.0f;
+
+	/** Packets mixed before measuring so the JIT has compiled the loops. */
+	private static final int WARMUP_PACKETS = 200000;
+
+	/** Packets mixed while measuring. */
+	private static final int MEASURED_PACKETS = 200000;
+
+	/** Length of each synthetic sound effect in packets. */
+	private static final int EFFECT_PACKETS = 16;
+
+	public static void main(String[] args) {
+
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+		int effects = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+
+		Random random = new Random(42);
+
+		byte[] microphone = new byte[frames * 2];
+		random.nextBytes(microphone);
+
+		short[][] effectSamples = new short[effects][frames * EFFECT_PACKETS];
+		for (short[] samples : effectSamples) {
+			for (int i = 0; i < samples.length; i++) {
+				samples[i] = (short) random.nextInt();
+			}
+		}
+
+		AudioMixer mixer = new AudioMixer(frames);
+		byte[] out = new byte[frames * 2];
+
+		long checksum = run(mixer, microphone, effectSamples, out, WARMUP_PACKETS);
+
+		long start = System.nanoTime();
+		checksum += run(mixer, microphone, effectSamples, out, MEASURED_PACKETS);
+		long elapsed = System.nanoTime() - start;
+
+		double nanosPerPacket = (double) elapsed / MEASURED_PACKETS;
+		double packetNanos = frames / SAMPLE_RATE * 1e9;
+
+		System.out.println(String.format(
+				"Mixed microphone + %d effects, %d frames per packet", 
+				effects, frames));
+		System.out.println(String.format(
+				"%.1f ns per packet, packet lasts %.0f ns, %.0fx faster than real time",
+				nanosPerPacket, packetNanos, packetNanos / nanosPerPacket));
+		System.out.println("(checksum "+checksum+")");
+	}
+
+	/**
+	 * Mix a number of packets.
+	 * @return Checksum so the work can't be optimized away.
+	 */
+	private static long run(AudioMixer mixer, byte[] microphone, 
+			short[][] effectSamples, byte[] out, int packets) {
+
+		int frames = mixer.getMaxFrames();
+		long checksum = 0;
+
+		for (int p = 0; p < packets; p++) {
+
+			mixer.clear(frames);
+			mixer.mixBigEndian(microphone, 0, frames, 1.0f);
+
+			int offset = (p % EFFECT_PACKETS) * frames;
+			for (int e = 0; e < effectSamples.length; e++) {
+				mixer.mix(effectSamples[e], offset, frames, 0.5f);
+			}
+
+			mixer.render(out, 0);
+			checksum += out[p % out.length];
+		}
+
+		return checksum;
+	}
+}
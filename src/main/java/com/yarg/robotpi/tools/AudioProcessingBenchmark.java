@@ -0,0 +1,147 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.Random;
+
+import com.yarg.robotpi.audio.AudioProcessingChain;
+import com.yarg.robotpi.audio.AutomaticGainControl;
+import com.yarg.robotpi.audio.LookAheadLimiter;
+import com.yarg.robotpi.audio.NoiseGate;
+
+/**
+ * Measures how long the microphone processing chain (noise gate, automatic
+ * gain control and limiter) takes per packet, stage by stage, and how that
+ * compares to the real time duration of the packet at 44.1 kHz. The input
+ * alternates quiet speech, loud speech that clips and silence, so every
+ * stage does real work.
+ * 
+ * Usage: AudioProcessingBenchmark [frames per packet]
+ */
+public class AudioProcessingBenchmark {
+
+	/** Sample rate the processing is compared against. */
+	private static final float SAMPLE_RATE = 44100.0f;
+
+	/** Packets processed before measuring so the JIT has compiled the loops. */
+	private static final int WARMUP_PACKETS = 50000;
+
+	/** Packets processed while measuring. */
+	private static final int MEASURED_PACKETS = 50000;
+
+	/** Length of the synthetic input in seconds. */
+	private static final int INPUT_SECONDS = 6;
+
+	public static void main(String[] args) {
+
+		int frames = args.length > 0 ? Integer.parseInt(args[0]) : 1024;
+
+		byte[] input = makeInput();
+		byte[] packet = new byte[frames * 2];
+
+		NoiseGate noiseGate = new NoiseGate(SAMPLE_RATE);
+		AutomaticGainControl automaticGainControl = new AutomaticGainControl(SAMPLE_RATE);
+		LookAheadLimiter limiter = new LookAheadLimiter(SAMPLE_RATE);
+
+		long checksum = run(new AudioProcessingChain(SAMPLE_RATE, 
+				noiseGate, automaticGainControl, limiter), input, packet, WARMUP_PACKETS);
+
+		// Fresh chain so the timing only covers compiled code.
+		AudioProcessingChain chain = new AudioProcessingChain(SAMPLE_RATE, 
+				noiseGate, automaticGainControl, limiter);
+
+		long start = System.nanoTime();
+		checksum += run(chain, input, packet, MEASURED_PACKETS);
+		long elapsed = System.nanoTime() - start;
+
+		double nanosPerPacket = (double) elapsed / MEASURED_PACKETS;
+		double packetNanos = frames / SAMPLE_RATE * 1e9;
+
+		System.out.println(String.format(
+				"Noise gate + AGC + limiter, %d frames per packet", frames));
+		System.out.println(chain.describe());
+		System.out.println(String.format(
+				"%.1f ns per packet including copy, packet lasts %.0f ns, %.0fx faster than real time",
+				nanosPerPacket, packetNanos, packetNanos / nanosPerPacket));
+		System.out.println(String.format(
+				"AGC settled at %.1f dB, limiter added %d frames of delay",
+				automaticGainControl.getGainDb(), limiter.getLatencyFrames()));
+		System.out.println("(checksum "+checksum+")");
+	}
+
+	/**
+	 * Process a number of packets, cycling through the input.
+	 * @return Checksum so the work can't be optimized away.
+	 */
+	private static long run(AudioProcessingChain chain, byte[] input, 
+			byte[] packet, int packets) {
+
+		long checksum = 0;
+		int offset = 0;
+
+		for (int p = 0; p < packets; p++) {
+
+			if (offset + packet.length > input.length) {
+				offset = 0;
+			}
+
+			System.arraycopy(input, offset, packet, 0, packet.length);
+			offset += packet.length;
+
+			chain.process(packet, 0, packet.length);
+			checksum += packet[p % packet.length];
+		}
+
+		return checksum;
+	}
+
+	/**
+	 * Make a voice like test signal: one second each of quiet speech,
+	 * silence and speech loud enough to clip, twice over.
+	 * @return 16 bit signed big endian samples.
+	 */
+	private static byte[] makeInput() {
+
+		Random random = new Random(42);
+		int frames = (int) SAMPLE_RATE * INPUT_SECONDS;
+		byte[] input = new byte[frames * 2];
+		float[] levels = {0.03f, 0.0f, 1.4f};
+
+		for (int i = 0; i < frames; i++) {
+
+			float level = levels[(int) (i / SAMPLE_RATE) % levels.length];
+			double t = i / SAMPLE_RATE;
+
+			// Syllables at about 4 Hz with a couple of formants and breath.
+			double syllable = Math.max(0.0, Math.sin(2.0 * Math.PI * 4.0 * t));
+			double voice = 0.6 * Math.sin(2.0 * Math.PI * 180.0 * t)
+					+ 0.3 * Math.sin(2.0 * Math.PI * 720.0 * t)
+					+ 0.1 * (random.nextFloat() * 2.0 - 1.0);
+			double noise = 0.002 * (random.nextFloat() * 2.0 - 1.0);
+
+			int sample = (int) Math.round(32767.0 * (level * syllable * voice + noise));
+			sample = Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, sample));
+			input[2 * i] = (byte) (sample >> 8);
+			input[2 * i + 1] = (byte) sample;
+		}
+
+		return input;
+	}
+}
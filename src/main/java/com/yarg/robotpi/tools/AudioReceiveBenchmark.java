@@ -0,0 +1,186 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.nio.ByteBuffer;
+
+import com.yarg.robotpi.audio.AudioBufferPool;
+import com.yarg.robotpi.audio.AudioJitterBuffer;
+import com.yarg.robotpi.audio.AudioReceiver;
+
+/**
+ * Measures the incoming audio receive path against a local
+ * {@link UdpBlaster}: packets per second, packets lost, and bytes allocated
+ * by the receive thread per packet. A drain thread stands in for the audio
+ * line and empties the jitter buffer as fast as it fills.
+ * 
+ * The "channel" mode is the pooled buffer path used by the client. The
+ * "socket" mode is the earlier path, a DatagramSocket receiving into one
+ * array that is then copied, for comparison.
+ * 
+ * Usage: AudioReceiveBenchmark [channel|socket] [packet bytes]
+ * [packets per second, 0 for flat out] [seconds] [port]
+ */
+public class AudioReceiveBenchmark {
+
+	/** Largest payload a UDP datagram can carry. */
+	private static final int MAX_DATAGRAM_BYTES = 65507;
+
+	/** Buffers in the pool. Matches the client. */
+	private static final int RECEIVE_BUFFERS = 36;
+
+	/** Packets the jitter buffer can hold. Matches the client. */
+	private static final int JITTER_BUFFER_PACKETS = 32;
+
+	/** Time to run before measuring so the JIT has compiled the loops. */
+	private static final long WARMUP_MILLIS = 2000;
+
+	public static void main(String[] args) throws Exception {
+
+		final boolean useChannel = args.length == 0 || !args[0].equals("socket");
+		int packetBytes = args.length > 1 ? Integer.parseInt(args[1]) : 1200;
+		int packetsPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 0;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 5;
+		final int port = args.length > 4 ? Integer.parseInt(args[4]) : 49898;
+
+		final AudioBufferPool pool = new AudioBufferPool(RECEIVE_BUFFERS, MAX_DATAGRAM_BYTES);
+		final AudioJitterBuffer jitterBuffer = new AudioJitterBuffer(44100.0f, 
+				JITTER_BUFFER_PACKETS, pool);
+		final AudioReceiver receiver = new AudioReceiver(port, pool);
+		final DatagramSocket socket = useChannel ? null : new DatagramSocket(port);
+
+		if (useChannel) {
+			receiver.open();
+		}
+
+		final long[] received = new long[1];
+		final boolean[] running = {true};
+
+		Thread receiveThread = new Thread("Receive") {
+
+			@Override
+			public void run() {
+
+				byte[] array = new byte[MAX_DATAGRAM_BYTES];
+				DatagramPacket datagram = new DatagramPacket(array, array.length);
+				long sequence = 0;
+
+				while (running[0]) {
+					try {
+						ByteBuffer packet;
+						if (useChannel) {
+							packet = receiver.receive();
+						} else {
+							socket.receive(datagram);
+							packet = pool.acquire();
+							if (packet != null) {
+								packet.put(array, 0, datagram.getLength());
+								packet.flip();
+							}
+							datagram.setLength(array.length);
+						}
+						if (packet != null) {
+							jitterBuffer.insert(sequence++, packet, System.nanoTime());
+							received[0]++;
+						}
+					} catch (IOException e) {
+						return;
+					}
+				}
+			}
+		};
+
+		Thread drainThread = new Thread("Drain") {
+
+			@Override
+			public void run() {
+				while (running[0]) {
+					if (jitterBuffer.poll() == null) {
+						Thread.yield();
+					}
+				}
+			}
+		};
+
+		UdpBlaster blaster = new UdpBlaster("localhost", port, packetBytes, packetsPerSecond);
+		Thread blasterThread = new Thread(blaster, "UdpBlaster");
+
+		receiveThread.start();
+		drainThread.start();
+		blasterThread.start();
+
+		Thread.sleep(WARMUP_MILLIS);
+
+		long startPackets = received[0];
+		long startSent = blaster.getSentPackets();
+		long startAllocated = getAllocatedBytes(receiveThread);
+		long start = System.nanoTime();
+
+		Thread.sleep(seconds * 1000L);
+
+		long packets = received[0] - startPackets;
+		long sent = blaster.getSentPackets() - startSent;
+		long allocated = getAllocatedBytes(receiveThread) - startAllocated;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+
+		blaster.stop();
+		running[0] = false;
+		receiver.close();
+		if (socket != null) {
+			socket.close();
+		}
+		blasterThread.join();
+		receiveThread.join(1000);
+		drainThread.join(1000);
+
+		System.out.println(String.format("%s path, %d byte packets",
+				useChannel ? "DatagramChannel + pooled buffers" : "DatagramSocket + copy",
+				packetBytes));
+		System.out.println(String.format(
+				"%.0f packets/s, %.1f MB/s, %d sent, %d received (%.1f%% lost)",
+				packets / elapsed, packets * packetBytes / elapsed / 1e6, sent, packets,
+				sent == 0 ? 0.0 : 100.0 * (sent - packets) / sent));
+		System.out.println(String.format(
+				"Pool exhausted %d times, receive thread allocated %s per packet",
+				pool.getExhausted(),
+				allocated < 0 ? "n/a" : String.format("%.1f bytes", (double) allocated / Math.max(1, packets))));
+	}
+
+	/**
+	 * Bytes allocated by a thread so far, where the JVM can tell.
+	 * @param thread Thread to ask about.
+	 * @return Allocated bytes, or -1 if not supported.
+	 */
+	private static long getAllocatedBytes(Thread thread) {
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(thread.getId());
+		}
+
+		return -1;
+	}
+}
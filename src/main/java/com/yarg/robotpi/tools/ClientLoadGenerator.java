@@ -0,0 +1,809 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.net.SocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import com.yarg.robotpi.audio.AudioBufferPool;
+import com.yarg.robotpi.audio.AudioJitterBuffer;
+import com.yarg.robotpi.audio.AudioPacketRing;
+import com.yarg.robotpi.audio.AudioPacketizer;
+import com.yarg.robotpi.audio.AudioReceiver;
+import com.yarg.robotpi.audio.AudioSendThread;
+import com.yarg.robotpi.audio.PolyphaseResampler;
+import com.yarg.robotpi.audio.VoiceActivityDetector;
+import com.yarg.robotpi.input.ControllerDataClient;
+
+/**
+ * Runs many simulated operator stations in one JVM against a stand-in robot
+ * server on loopback, and reports how the client's network code scales.
+ *
+ * Each client is built from the same parts as the real one, fed with
+ * synthetic input instead of a gamepad and sound card:
+ * <ul>
+ * <li>controller messages in the client's format through a
+ * {@link ControllerDataClient} every 40 ms</li>
+ * <li>a synthetic microphone resampled, packetized and voice detected as in
+ * the microphone sender, queued in an {@link AudioPacketRing} and sent by
+ * an {@link AudioSendThread}</li>
+ * <li>audio from the server received by an {@link AudioReceiver} into an
+ * {@link AudioJitterBuffer} and played out on the packet clock</li>
+ * </ul>
+ * The server stamps and echoes nothing; every packet carries its send time,
+ * so each end measures one way latency on the shared clock.
+ *
+ * For each client count the tool reports message rates, throughput, loss,
+ * latency percentiles per stream, jitter buffer health and CPU time per
+ * client.
+ *
+ * Usage: ClientLoadGenerator [client counts, such as 1,4,16,64] [seconds
+ * per step] [outbound sample rate] [base port]
+ */
+public class ClientLoadGenerator {
+
+	/** Interval between controller messages, as in the client. */
+	private static final long CONTROL_INTERVAL_NANOS = 40000000L;
+
+	/** Rate the synthetic microphone captures at, as in the client. */
+	private static final int CAPTURE_RATE = 44100;
+
+	/** Microphone block size, as a sound card would deliver it. */
+	private static final int CAPTURE_BLOCK_MILLIS = 10;
+
+	/** Audio the server sends each client per packet. */
+	private static final int INBOUND_PACKET_BYTES = 1200;
+
+	/** Time to run each step before measuring so the JIT has settled. */
+	private static final long WARMUP_MILLIS = 2000;
+
+	/** Latency samples kept per stream. */
+	private static final int MAX_SAMPLES = 1 << 21;
+
+	/** First client receive port, after the base port. */
+	private static final int CLIENT_PORT_OFFSET = 100;
+
+	/** True while latencies are being recorded. */
+	private static volatile boolean measuring;
+
+	public static void main(String[] args) throws Exception {
+
+		String counts = args.length > 0 ? args[0] : "1,4,16,64";
+		int seconds = args.length > 1 ? Integer.parseInt(args[1]) : 10;
+		int outboundRate = args.length > 2 ? Integer.parseInt(args[2]) : 44100;
+		int basePort = args.length > 3 ? Integer.parseInt(args[3]) : 49900;
+
+		StandInServer server = new StandInServer(basePort, basePort + CLIENT_PORT_OFFSET);
+		server.startServer();
+
+		short[] microphone = synthesizeMicrophone();
+
+		System.out.println(String.format(
+				"%d s per step, audio out at %d Hz, %d byte packets in at %.1f packets/s",
+				seconds, outboundRate, INBOUND_PACKET_BYTES, server.getPacketsPerSecond()));
+
+		for (String count : counts.split(",")) {
+			runStep(Integer.parseInt(count.trim()), seconds, outboundRate, basePort, 
+					server, microphone);
+		}
+
+		server.stopServer();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Run one client count and print its results.
+	 * @param count Number of clients.
+	 * @param seconds Measurement time.
+	 * @param outboundRate Outbound audio sample rate.
+	 * @param basePort Server port base.
+	 * @param server Stand-in server.
+	 * @param microphone Synthetic microphone audio.
+	 */
+	private static void runStep(int count, int seconds, int outboundRate, int basePort,
+			StandInServer server, short[] microphone) throws Exception {
+
+		List<SimulatedClient> clients = new ArrayList<SimulatedClient>();
+
+		for (int i = 0; i < count; i++) {
+			SimulatedClient client = new SimulatedClient(i, basePort, 
+					basePort + CLIENT_PORT_OFFSET + i, outboundRate, microphone);
+			client.startClient();
+			clients.add(client);
+		}
+
+		server.setClients(count);
+		Thread.sleep(WARMUP_MILLIS);
+
+		Latencies inbound = SimulatedClient.inbound;
+		server.control.reset();
+		server.audio.reset();
+		inbound.reset();
+
+		long[] startClients = snapshot(clients);
+		long startServerCpu = server.getCpuNanos();
+		long startServerSent = server.getSentPackets();
+		long start = System.nanoTime();
+		measuring = true;
+
+		Thread.sleep(seconds * 1000L);
+
+		measuring = false;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long[] endClients = snapshot(clients);
+		long serverCpu = server.getCpuNanos() - startServerCpu;
+		long serverSent = server.getSentPackets() - startServerSent;
+
+		server.setClients(0);
+		long underruns = 0;
+		long concealed = 0;
+		int threads = 0;
+		for (SimulatedClient client : clients) {
+			client.stopClient();
+			underruns += client.jitterBuffer.getUnderruns();
+			concealed += client.jitterBuffer.getConcealedPackets();
+			threads += client.threads.size();
+		}
+
+		long controlSent = endClients[1] - startClients[1];
+		long audioSent = endClients[2] - startClients[2];
+		long audioBytes = endClients[3] - startClients[3];
+		long cpu = endClients[0] - startClients[0];
+
+		System.out.println();
+		System.out.println(String.format("%d clients, %d threads", count, threads));
+		System.out.println("  Control out: "+server.control.describe(elapsed, controlSent));
+		System.out.println(String.format("  Audio out:   %s, %.2f Mbit/s", 
+				server.audio.describe(elapsed, audioSent), audioBytes * 8 / elapsed / 1e6));
+		System.out.println("  Audio in:    "+inbound.describe(elapsed, serverSent));
+		System.out.println(String.format("  Jitter buffers: %d underruns, %d packets concealed",
+				underruns, concealed));
+		System.out.println(String.format(
+				"  CPU: %.2f%% of a core per client, %.1f%% for all clients, %.1f%% for the server",
+				cpu / 1e7 / elapsed / count, cpu / 1e7 / elapsed, serverCpu / 1e7 / elapsed));
+	}
+
+	/**
+	 * Add up the counters of every client.
+	 * @param clients Clients to add up.
+	 * @return CPU nanoseconds, controller messages, audio packets and audio
+	 * bytes sent.
+	 */
+	private static long[] snapshot(List<SimulatedClient> clients) {
+
+		long[] totals = new long[4];
+
+		for (SimulatedClient client : clients) {
+			totals[0] += getCpuNanos(client.threads);
+			totals[1] += client.controlSent;
+			totals[2] += client.sendThread.getSentPackets();
+			totals[3] += client.sendThread.getSentBytes();
+		}
+
+		return totals;
+	}
+
+	/**
+	 * Two seconds of speech-like synthetic microphone audio: a buzzy tone
+	 * that rises and falls for 1.2 seconds, then a pause with only a little
+	 * background noise, so voice detection sends and suppresses as it would
+	 * for someone talking.
+	 * @return Samples at the capture rate.
+	 */
+	private static short[] synthesizeMicrophone() {
+
+		short[] samples = new short[2 * CAPTURE_RATE];
+		Random random = new Random(1);
+		double phase = 0.0;
+
+		for (int i = 0; i < samples.length; i++) {
+			double t = (double) i / CAPTURE_RATE;
+			double pitch = 140.0 + 40.0 * Math.sin(2.0 * Math.PI * 3.0 * t);
+			phase += 2.0 * Math.PI * pitch / CAPTURE_RATE;
+			double envelope = t < 1.2 ? 0.6 + 0.4 * Math.sin(2.0 * Math.PI * 5.0 * t) : 0.0;
+			double value = envelope * (Math.sin(phase) + 0.5 * Math.sin(2.0 * phase)
+					+ 0.25 * Math.sin(3.0 * phase)) * 6000.0 + random.nextGaussian() * 200.0;
+			samples[i] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, value));
+		}
+
+		return samples;
+	}
+
+	/**
+	 * Wait until a time without throwing.
+	 * @param dueNanos Time to wait for, from System.nanoTime().
+	 * @return False if interrupted.
+	 */
+	private static boolean sleepUntil(long dueNanos) {
+
+		long wait = dueNanos - System.nanoTime();
+
+		if (wait > 0) {
+			try {
+				Thread.sleep(wait / 1000000L, (int) (wait % 1000000L));
+			} catch (InterruptedException e) {
+				return false;
+			}
+		}
+
+		return true;
+	}
+
+	/**
+	 * CPU time used by some threads so far.
+	 * @param threads Threads to add up.
+	 * @return CPU time in nanoseconds.
+	 */
+	private static long getCpuNanos(List<Thread> threads) {
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long total = 0;
+
+		for (Thread thread : threads) {
+			total += Math.max(0, bean.getThreadCpuTime(thread.getId()));
+		}
+
+		return total;
+	}
+
+	/** Latencies of one stream across all clients. */
+	private static class Latencies {
+
+		/** Recorded latencies in nanoseconds. */
+		private final long[] samples = new long[MAX_SAMPLES];
+
+		/** Samples recorded. */
+		private int count;
+
+		/** Samples seen while measuring, including those not kept. */
+		private long seen;
+
+		/**
+		 * Forget everything recorded.
+		 */
+		synchronized void reset() {
+			count = 0;
+			seen = 0;
+		}
+
+		/**
+		 * Record a latency while measuring.
+		 * @param nanos Latency.
+		 */
+		synchronized void add(long nanos) {
+			if (measuring) {
+				seen++;
+				if (count < samples.length) {
+					samples[count++] = nanos;
+				}
+			}
+		}
+
+		/**
+		 * Describe the recorded latencies.
+		 * @param seconds Length of the measurement.
+		 * @param sent Packets sent while measuring, for the loss.
+		 * @return Summary.
+		 */
+		synchronized String describe(double seconds, long sent) {
+
+			if (count == 0) {
+				return "nothing received";
+			}
+
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+
+			return String.format("%7.0f packets/s, %.2f%% lost, latency p50 %.3f ms, "
+					+ "p99 %.3f ms, p99.9 %.3f ms, max %.3f ms",
+					seen / seconds, sent <= 0 ? 0.0 : Math.max(0.0, 100.0 * (sent - seen) / sent),
+					sorted[count / 2] / 1e6, sorted[(int) (count * 0.99)] / 1e6,
+					sorted[(int) (count * 0.999)] / 1e6, sorted[count - 1] / 1e6);
+		}
+	}
+
+	/** One operator station. */
+	private static class SimulatedClient {
+
+		/** Audio received by every client. */
+		static final Latencies inbound = new Latencies();
+
+		/** Client number. */
+		private final int index;
+
+		/** Sends controller messages. */
+		private final ControllerDataClient controlClient;
+
+		/** Microphone packets waiting to be sent. */
+		private final AudioPacketRing ring = new AudioPacketRing(32, 8192);
+
+		/** Sends microphone packets. */
+		final AudioSendThread sendThread;
+
+		/** Buffers audio from the server is received into. */
+		private final AudioBufferPool pool = new AudioBufferPool(36, 65507);
+
+		/** Receives audio from the server. */
+		private final AudioReceiver receiver;
+
+		/** Evens out audio from the server. */
+		final AudioJitterBuffer jitterBuffer;
+
+		/** Synthetic microphone audio. */
+		private final short[] microphone;
+
+		/** Outbound sample rate. */
+		private final int outboundRate;
+
+		/** Every thread of this client, for CPU accounting. */
+		final List<Thread> threads = new ArrayList<Thread>();
+
+		/** Flag execution state. */
+		private volatile boolean running;
+
+		/** Controller messages sent. */
+		volatile long controlSent;
+
+		/**
+		 * Create a client.
+		 * @param index Client number.
+		 * @param serverPort Server control port; audio goes to the next one.
+		 * @param receivePort Port to receive audio on.
+		 * @param outboundRate Outbound sample rate.
+		 * @param microphone Synthetic microphone audio.
+		 */
+		SimulatedClient(int index, int serverPort, int receivePort, int outboundRate,
+				short[] microphone) {
+			this.index = index;
+			this.outboundRate = outboundRate;
+			this.microphone = microphone;
+			controlClient = new ControllerDataClient("127.0.0.1", serverPort);
+			sendThread = new AudioSendThread("127.0.0.1", serverPort + 1, ring);
+			receiver = new AudioReceiver(receivePort, pool);
+			jitterBuffer = new AudioJitterBuffer(CAPTURE_RATE, 32, pool);
+		}
+
+		/**
+		 * Open the sockets and start every thread.
+		 * @throws IOException If a socket can't be opened.
+		 */
+		void startClient() throws IOException {
+
+			receiver.open();
+			if (!sendThread.initialize()) {
+				throw new IOException("Audio send socket won't open");
+			}
+
+			running = true;
+			sendThread.startSending();
+			threads.add(sendThread);
+
+			threads.add(new Thread("Client "+index+" control") {
+
+				@Override
+				public void run() {
+					sendControl();
+				}
+			});
+			threads.add(new Thread("Client "+index+" capture") {
+
+				@Override
+				public void run() {
+					capture();
+				}
+			});
+			threads.add(new Thread("Client "+index+" receive") {
+
+				@Override
+				public void run() {
+					receive();
+				}
+			});
+			threads.add(new Thread("Client "+index+" playout") {
+
+				@Override
+				public void run() {
+					playOut();
+				}
+			});
+
+			for (int i = 1; i < threads.size(); i++) {
+				threads.get(i).setDaemon(true);
+				threads.get(i).start();
+			}
+		}
+
+		/**
+		 * Stop every thread and close the sockets.
+		 */
+		void stopClient() throws InterruptedException {
+
+			running = false;
+			receiver.close();
+			sendThread.stopSending();
+
+			for (Thread thread : threads) {
+				thread.interrupt();
+				thread.join(1000);
+			}
+
+			controlClient.close();
+		}
+
+		/**
+		 * Send controller messages in the client's format with sticks moving
+		 * smoothly. The send time rides along as a last field.
+		 */
+		private void sendControl() {
+
+			long next = System.nanoTime() + index * 1000000L % CONTROL_INTERVAL_NANOS;
+
+			while (running && sleepUntil(next)) {
+				long now = System.nanoTime();
+				double t = now / 1e9;
+				String message = String.format("%d,%d,%d,%d,%d,%d,%d:",
+						(int) (100 * Math.sin(t)), (int) (100 * Math.cos(t / 2)),
+						(int) (50 * Math.sin(t / 3)), (int) (50 * Math.cos(t / 5)),
+						1, 0, now / 1000L);
+				controlClient.sendData(message, 64);
+				controlSent++;
+				next += CONTROL_INTERVAL_NANOS;
+			}
+		}
+
+		/**
+		 * Capture the synthetic microphone in sound card sized blocks and send
+		 * it the way the microphone sender does: resample, packetize, detect
+		 * voice and queue. Each packet starts with its queue time.
+		 */
+		private void capture() {
+
+			int blockFrames = CAPTURE_RATE * CAPTURE_BLOCK_MILLIS / 1000;
+			byte[] block = new byte[blockFrames * 2];
+			PolyphaseResampler resampler = 
+					new PolyphaseResampler(CAPTURE_RATE, outboundRate, blockFrames);
+			byte[] resampled = new byte[2 * resampler.getMaxOutputFrames(blockFrames)];
+			AudioPacketizer packetizer = new AudioPacketizer(
+					AudioPacketizer.DEFAULT_MAX_PAYLOAD_BYTES, 0, outboundRate);
+			VoiceActivityDetector detector = new VoiceActivityDetector(outboundRate);
+			ByteBuffer stamp = ByteBuffer.wrap(packetizer.getPacket());
+
+			int position = (index * 7919) % microphone.length;
+			long next = System.nanoTime();
+
+			while (running && sleepUntil(next)) {
+
+				for (int i = 0; i < blockFrames; i++) {
+					short sample = microphone[position];
+					block[2 * i] = (byte) (sample >> 8);
+					block[2 * i + 1] = (byte) sample;
+					position = (position + 1) % microphone.length;
+				}
+
+				int length = resampler.process(block, 0, blockFrames, resampled, 0);
+				int offset = 0;
+
+				while (offset < length) {
+					offset += packetizer.write(resampled, offset, length - offset);
+					if (packetizer.isPacketReady()) {
+						int packetLength = packetizer.getPacketLength();
+						if (detector.process(packetizer.getPacket(), 0, packetLength)
+								== VoiceActivityDetector.Decision.SEND) {
+							stamp.putLong(0, System.nanoTime());
+							ring.offer(packetizer.getPacket(), 0, packetLength);
+						}
+						packetizer.clear();
+					}
+				}
+
+				next += CAPTURE_BLOCK_MILLIS * 1000000L;
+			}
+		}
+
+		/**
+		 * Receive audio from the server into the jitter buffer, measuring
+		 * the latency of each packet on the way. The server numbers the
+		 * packets it sends each client.
+		 */
+		private void receive() {
+
+			while (running) {
+				try {
+					ByteBuffer packet = receiver.receive();
+					if (packet != null) {
+						long now = System.nanoTime();
+						int start = packet.position();
+						inbound.add(now - packet.getLong(start));
+						jitterBuffer.insert(packet.getLong(start + 8), packet, now);
+					}
+				} catch (IOException e) {
+					return;
+				}
+			}
+		}
+
+		/**
+		 * Take packets from the jitter buffer on the packet clock, as the
+		 * playout thread does for the speaker.
+		 */
+		private void playOut() {
+
+			long interval = (long) (INBOUND_PACKET_BYTES / 2 * 1e9 / CAPTURE_RATE);
+			long next = System.nanoTime();
+
+			while (running && sleepUntil(next)) {
+				jitterBuffer.poll();
+				next += interval;
+			}
+		}
+	}
+
+	/** Stands in for the robot, or a relay serving many stations. */
+	private static class StandInServer {
+
+		/** Controller messages from every client. */
+		final Latencies control = new Latencies();
+
+		/** Audio from every client. */
+		final Latencies audio = new Latencies();
+
+		/** Receives controller messages. */
+		private final DatagramChannel controlChannel;
+
+		/** Receives audio. */
+		private final DatagramChannel audioChannel;
+
+		/** Sends audio to each client. */
+		private final DatagramChannel sendChannel;
+
+		/** First client receive port. */
+		private final int firstClientPort;
+
+		/** Number of clients to send audio to. */
+		private volatile int clients;
+
+		/** Audio packets sent. */
+		private volatile long sentPackets;
+
+		/** Server threads, for CPU accounting. */
+		private final List<Thread> threads = new ArrayList<Thread>();
+
+		/** Flag execution state. */
+		private volatile boolean running;
+
+		/**
+		 * Create a server.
+		 * @param port Control port; audio arrives on the next one.
+		 * @param firstClientPort Port of the first client's audio receiver.
+		 * @throws IOException If a port can't be bound.
+		 */
+		StandInServer(int port, int firstClientPort) throws IOException {
+			this.firstClientPort = firstClientPort;
+			controlChannel = open(port);
+			audioChannel = open(port + 1);
+			sendChannel = DatagramChannel.open();
+			sendChannel.setOption(StandardSocketOptions.SO_SNDBUF, 4 * 1024 * 1024);
+		}
+
+		/**
+		 * Audio packets sent to each client per second.
+		 * @return Packet rate.
+		 */
+		double getPacketsPerSecond() {
+			return CAPTURE_RATE * 2.0 / INBOUND_PACKET_BYTES;
+		}
+
+		/**
+		 * Change how many clients get audio.
+		 * @param clients Client count.
+		 */
+		void setClients(int clients) {
+			this.clients = clients;
+		}
+
+		/**
+		 * Audio packets sent so far.
+		 * @return Sent packet count.
+		 */
+		long getSentPackets() {
+			return sentPackets;
+		}
+
+		/**
+		 * CPU time of the server threads.
+		 * @return CPU time in nanoseconds.
+		 */
+		long getCpuNanos() {
+			return ClientLoadGenerator.getCpuNanos(threads);
+		}
+
+		/**
+		 * Start the server threads.
+		 */
+		void startServer() {
+
+			running = true;
+
+			threads.add(new Thread("Server control") {
+
+				@Override
+				public void run() {
+					receiveControl();
+				}
+			});
+			threads.add(new Thread("Server audio in") {
+
+				@Override
+				public void run() {
+					receiveAudio();
+				}
+			});
+			threads.add(new Thread("Server audio out") {
+
+				@Override
+				public void run() {
+					sendAudio();
+				}
+			});
+
+			for (Thread thread : threads) {
+				thread.setDaemon(true);
+				thread.start();
+			}
+		}
+
+		/**
+		 * Stop the server threads.
+		 */
+		void stopServer() throws IOException, InterruptedException {
+
+			running = false;
+			controlChannel.close();
+			audioChannel.close();
+			sendChannel.close();
+
+			for (Thread thread : threads) {
+				thread.interrupt();
+				thread.join(1000);
+			}
+		}
+
+		/**
+		 * Bind a receive channel.
+		 * @param port Port to bind.
+		 * @return Channel.
+		 * @throws IOException If the port can't be bound.
+		 */
+		private static DatagramChannel open(int port) throws IOException {
+			DatagramChannel channel = DatagramChannel.open();
+			channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			channel.setOption(StandardSocketOptions.SO_RCVBUF, 4 * 1024 * 1024);
+			channel.bind(new InetSocketAddress("127.0.0.1", port));
+			return channel;
+		}
+
+		/**
+		 * Receive controller messages and measure their latency from the
+		 * time stamp in the last field.
+		 */
+		private void receiveControl() {
+
+			ByteBuffer buffer = ByteBuffer.allocate(1500);
+
+			while (running) {
+				try {
+					buffer.clear();
+					controlChannel.receive(buffer);
+				} catch (IOException e) {
+					return;
+				}
+
+				long nowMicros = System.nanoTime() / 1000L;
+				int end = buffer.position();
+				while (end > 0 && buffer.get(end - 1) != ':') {
+					end--;
+				}
+
+				long stamp = 0;
+				int i = end - 2;
+				long scale = 1;
+				while (i >= 0 && buffer.get(i) != ',') {
+					stamp += (buffer.get(i) - '0') * scale;
+					scale *= 10;
+					i--;
+				}
+
+				control.add((nowMicros - stamp) * 1000L);
+			}
+		}
+
+		/**
+		 * Receive audio and measure its latency from the leading time stamp.
+		 */
+		private void receiveAudio() {
+
+			ByteBuffer buffer = ByteBuffer.allocateDirect(65507);
+
+			while (running) {
+				try {
+					buffer.clear();
+					audioChannel.receive(buffer);
+				} catch (IOException e) {
+					return;
+				}
+
+				if (buffer.position() >= 8) {
+					audio.add(System.nanoTime() - buffer.getLong(0));
+				}
+			}
+		}
+
+		/**
+		 * Send every client a packet of audio on the packet clock, each
+		 * starting with its send time and sequence number.
+		 */
+		private void sendAudio() {
+
+			ByteBuffer packet = ByteBuffer.allocateDirect(INBOUND_PACKET_BYTES);
+			long interval = (long) (1e9 / getPacketsPerSecond());
+			long next = System.nanoTime();
+			List<SocketAddress> targets = new ArrayList<SocketAddress>();
+			long sequence = 0;
+
+			while (running && sleepUntil(next)) {
+
+				int count = clients;
+				while (targets.size() < count) {
+					targets.add(new InetSocketAddress("127.0.0.1", firstClientPort + targets.size()));
+				}
+
+				for (int i = 0; i < count; i++) {
+					packet.clear();
+					packet.putLong(0, System.nanoTime());
+					packet.putLong(8, sequence);
+					try {
+						sendChannel.send(packet, targets.get(i));
+						sentPackets++;
+					} catch (IOException e) {
+						if (!running) {
+							return;
+						}
+					}
+				}
+
+				sequence++;
+				next += interval;
+			}
+		}
+	}
+}
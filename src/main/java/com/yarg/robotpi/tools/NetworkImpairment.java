@@ -0,0 +1,295 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * One set of network conditions for the {@link UdpImpairmentProxy}.
+ * Instances never change; build a new one to change conditions.
+ *
+ * Conditions are written as space separated key=value pairs, for example
+ * "loss=2 delay=40 jitter=10 rate=500". Keys left out are off:
+ * <ul>
+ * <li>loss - random loss in percent</li>
+ * <li>burstEnter - chance per packet of entering a loss burst, in percent
+ * (Gilbert-Elliott good to bad)</li>
+ * <li>burstExit - chance per packet of leaving a loss burst, in percent
+ * (bad to good), default 25</li>
+ * <li>burstLoss - loss inside a burst in percent, default 100</li>
+ * <li>delay - one way delay in milliseconds</li>
+ * <li>jitter - extra delay spread evenly from 0 to this many milliseconds;
+ * packets may overtake each other</li>
+ * <li>reorder - chance of holding a packet back so later ones overtake it,
+ * in percent</li>
+ * <li>reorderDelay - how long a reordered packet is held back, default 20
+ * ms</li>
+ * <li>duplicate - chance of sending a packet twice, in percent</li>
+ * <li>rate - bandwidth cap in kbit/s, 0 for none</li>
+ * <li>queue - longest a packet may wait for the bandwidth cap before it is
+ * dropped, default 200 ms</li>
+ * </ul>
+ */
+public class NetworkImpairment {
+
+	/** Conditions that pass everything straight through. */
+	public static final NetworkImpairment NONE = new NetworkImpairment("");
+
+	/** Random loss in percent. */
+	private final double lossPercent;
+
+	/** Chance of entering a loss burst per packet, in percent. */
+	private final double burstEnterPercent;
+
+	/** Chance of leaving a loss burst per packet, in percent. */
+	private final double burstExitPercent;
+
+	/** Loss inside a burst in percent. */
+	private final double burstLossPercent;
+
+	/** One way delay in milliseconds. */
+	private final double delayMillis;
+
+	/** Largest extra random delay in milliseconds. */
+	private final double jitterMillis;
+
+	/** Chance of holding a packet back, in percent. */
+	private final double reorderPercent;
+
+	/** How long a reordered packet is held back in milliseconds. */
+	private final double reorderDelayMillis;
+
+	/** Chance of duplicating a packet, in percent. */
+	private final double duplicatePercent;
+
+	/** Bandwidth cap in kbit/s, 0 for none. */
+	private final double rateKbps;
+
+	/** Longest wait for the bandwidth cap in milliseconds. */
+	private final double queueMillis;
+
+	/**
+	 * Parse a set of conditions.
+	 * @param spec Space separated key=value pairs; empty for none.
+	 * @throws IllegalArgumentException If a key is unknown or a value can't
+	 * be parsed.
+	 */
+	public NetworkImpairment(String spec) {
+
+		Map<String, Double> values = new HashMap<String, Double>();
+
+		for (String pair : spec.trim().split("[\\s,]+")) {
+
+			if (pair.isEmpty()) {
+				continue;
+			}
+
+			int equals = pair.indexOf('=');
+			if (equals < 0) {
+				throw new IllegalArgumentException("Expected key=value: "+pair);
+			}
+
+			String key = pair.substring(0, equals);
+			String value = pair.substring(equals + 1);
+
+			try {
+				values.put(key, Double.valueOf(value));
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException(key+" is not a number: "+value);
+			}
+		}
+
+		lossPercent = take(values, "loss", 0.0, 100.0);
+		burstEnterPercent = take(values, "burstEnter", 0.0, 100.0);
+		burstExitPercent = take(values, "burstExit", 25.0, 100.0);
+		burstLossPercent = take(values, "burstLoss", 100.0, 100.0);
+		delayMillis = take(values, "delay", 0.0, 60000.0);
+		jitterMillis = take(values, "jitter", 0.0, 60000.0);
+		reorderPercent = take(values, "reorder", 0.0, 100.0);
+		reorderDelayMillis = take(values, "reorderDelay", 20.0, 60000.0);
+		duplicatePercent = take(values, "duplicate", 0.0, 100.0);
+		rateKbps = take(values, "rate", 0.0, 10000000.0);
+		queueMillis = take(values, "queue", 200.0, 60000.0);
+
+		if (!values.isEmpty()) {
+			throw new IllegalArgumentException("Unknown conditions: "+values.keySet());
+		}
+	}
+
+	/**
+	 * Random loss.
+	 * @return Loss in percent.
+	 */
+	public double getLossPercent() {
+		return lossPercent;
+	}
+
+	/**
+	 * Chance of entering a loss burst per packet.
+	 * @return Chance in percent.
+	 */
+	public double getBurstEnterPercent() {
+		return burstEnterPercent;
+	}
+
+	/**
+	 * Chance of leaving a loss burst per packet.
+	 * @return Chance in percent.
+	 */
+	public double getBurstExitPercent() {
+		return burstExitPercent;
+	}
+
+	/**
+	 * Loss inside a burst.
+	 * @return Loss in percent.
+	 */
+	public double getBurstLossPercent() {
+		return burstLossPercent;
+	}
+
+	/**
+	 * One way delay.
+	 * @return Delay in milliseconds.
+	 */
+	public double getDelayMillis() {
+		return delayMillis;
+	}
+
+	/**
+	 * Largest extra random delay.
+	 * @return Jitter in milliseconds.
+	 */
+	public double getJitterMillis() {
+		return jitterMillis;
+	}
+
+	/**
+	 * Chance of holding a packet back so later ones overtake it.
+	 * @return Chance in percent.
+	 */
+	public double getReorderPercent() {
+		return reorderPercent;
+	}
+
+	/**
+	 * How long a reordered packet is held back.
+	 * @return Hold time in milliseconds.
+	 */
+	public double getReorderDelayMillis() {
+		return reorderDelayMillis;
+	}
+
+	/**
+	 * Chance of sending a packet twice.
+	 * @return Chance in percent.
+	 */
+	public double getDuplicatePercent() {
+		return duplicatePercent;
+	}
+
+	/**
+	 * Bandwidth cap.
+	 * @return Cap in kbit/s, 0 for none.
+	 */
+	public double getRateKbps() {
+		return rateKbps;
+	}
+
+	/**
+	 * Longest a packet may wait for the bandwidth cap.
+	 * @return Queue limit in milliseconds.
+	 */
+	public double getQueueMillis() {
+		return queueMillis;
+	}
+
+	/**
+	 * Describe the conditions, for logging.
+	 * @return Conditions summary.
+	 */
+	public String describe() {
+
+		StringBuilder result = new StringBuilder();
+
+		append(result, lossPercent > 0, "%.1f%% loss", lossPercent);
+		append(result, burstEnterPercent > 0, "bursts %.1f%%/%.1f%% at %.0f%% loss", 
+				burstEnterPercent, burstExitPercent, burstLossPercent);
+		append(result, delayMillis > 0 || jitterMillis > 0, "%.0f+%.0f ms delay", 
+				delayMillis, jitterMillis);
+		append(result, reorderPercent > 0, "%.1f%% reordered by %.0f ms", 
+				reorderPercent, reorderDelayMillis);
+		append(result, duplicatePercent > 0, "%.1f%% duplicated", duplicatePercent);
+		append(result, rateKbps > 0, "%.0f kbit/s with %.0f ms queue", 
+				rateKbps, queueMillis);
+
+		return result.length() == 0 ? "no impairment" : result.toString();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Remove a value from the parsed pairs.
+	 * @param values Parsed pairs.
+	 * @param key Key to take.
+	 * @param defaultValue Value if the key is missing.
+	 * @param max Largest value allowed.
+	 * @return Value.
+	 */
+	private static double take(Map<String, Double> values, String key, 
+			double defaultValue, double max) {
+
+		Double value = values.remove(key);
+
+		if (value == null) {
+			return defaultValue;
+		}
+
+		if (!(value >= 0.0 && value <= max)) {
+			throw new IllegalArgumentException(key+" must be from 0 to "+max+": "+value);
+		}
+
+		return value;
+	}
+
+	/**
+	 * Add a part to a description if it applies.
+	 * @param result Description so far.
+	 * @param applies True to add the part.
+	 * @param format Format of the part.
+	 * @param args Format arguments.
+	 */
+	private static void append(StringBuilder result, boolean applies, 
+			String format, Object... args) {
+
+		if (!applies) {
+			return;
+		}
+
+		if (result.length() > 0) {
+			result.append(", ");
+		}
+
+		result.append(String.format(format, args));
+	}
+}
@@ -0,0 +1,312 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a synthetic H.264 RTP stream wrapped in GDP, the way the robot's
+ * rtph264pay ! gdppay ! udpsink pipeline does, so the video tap can be
+ * exercised without a camera. Frames are split into FU-A fragments with the
+ * marker bit on the last one and an IDR frame every second. Loss, pairwise
+ * reordering and send time jitter can be added to check the statistics.
+ * 
+ * Usage: RtpStreamGenerator [host] [port] [frames per second] [kbit/s]
+ * [loss %] [reorder %] [jitter ms] [seconds]
+ */
+public class RtpStreamGenerator implements Runnable {
+
+	/** Length of a GDP 1.0 header. */
+	private static final int GDP_HEADER_BYTES = 62;
+
+	/** RTP payload size, as with rtph264pay's default MTU. */
+	private static final int RTP_PAYLOAD_BYTES = 1388;
+
+	/** RTP header length. */
+	private static final int RTP_HEADER_BYTES = 12;
+
+	/** RTP clock rate of H.264 video. */
+	private static final int CLOCK_RATE = 90000;
+
+	/** Dynamic payload type used by the robot. */
+	private static final int PAYLOAD_TYPE = 96;
+
+	/** Address to send to. */
+	private final InetSocketAddress target;
+
+	/** Frames per second. */
+	private final int framesPerSecond;
+
+	/** Bytes of each frame, key frames are four times larger. */
+	private final int frameBytes;
+
+	/** Chance of dropping each packet. */
+	private final double loss;
+
+	/** Chance of swapping each packet with the next. */
+	private final double reorder;
+
+	/** Largest extra delay of each frame. */
+	private final long jitterNanos;
+
+	/** Decides loss, reordering and jitter. */
+	private final Random random = new Random(42);
+
+	/** Datagram being built. */
+	private final ByteBuffer packet = ByteBuffer.allocateDirect(GDP_HEADER_BYTES 
+			+ RTP_HEADER_BYTES + RTP_PAYLOAD_BYTES + 2);
+
+	/** Datagram held back to be sent after the next one. */
+	private final ByteBuffer heldBack = ByteBuffer.allocateDirect(packet.capacity());
+
+	/** Flag execution state. */
+	private volatile boolean running;
+
+	/** Datagrams sent. */
+	private volatile long sentPackets;
+
+	/** Packets dropped on purpose. */
+	private volatile long droppedPackets;
+
+	/** Next RTP sequence number. */
+	private int sequence;
+
+	/**
+	 * Create a generator.
+	 * @param host Host to send to.
+	 * @param port Port to send to.
+	 * @param framesPerSecond Frames per second.
+	 * @param kilobitsPerSecond Video bit rate.
+	 * @param lossPercent Share of packets to drop.
+	 * @param reorderPercent Share of packets to swap with the next.
+	 * @param jitterMillis Largest extra delay of each frame.
+	 */
+	public RtpStreamGenerator(String host, int port, int framesPerSecond, 
+			int kilobitsPerSecond, double lossPercent, double reorderPercent, 
+			int jitterMillis) {
+
+		target = new InetSocketAddress(host, port);
+		this.framesPerSecond = framesPerSecond;
+		frameBytes = Math.max(1, kilobitsPerSecond * 1000 / 8 / (framesPerSecond + 3));
+		loss = lossPercent / 100.0;
+		reorder = reorderPercent / 100.0;
+		jitterNanos = TimeUnit.MILLISECONDS.toNanos(jitterMillis);
+	}
+
+	/**
+	 * Stop sending. {@link #run()} returns shortly after.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Datagrams sent so far.
+	 * @return Sent packet count.
+	 */
+	public long getSentPackets() {
+		return sentPackets;
+	}
+
+	/**
+	 * Packets dropped on purpose so far.
+	 * @return Dropped packet count.
+	 */
+	public long getDroppedPackets() {
+		return droppedPackets;
+	}
+
+	@Override
+	public void run() {
+
+		running = true;
+		long frameNanos = 1000000000L / framesPerSecond;
+		long startNanos = System.nanoTime();
+
+		try (DatagramChannel channel = DatagramChannel.open()) {
+
+			channel.connect(target);
+			sendCaps(channel);
+
+			for (long frame = 0; running; frame++) {
+
+				long due = startNanos + frame * frameNanos 
+						+ (jitterNanos > 0 ? (long) (random.nextDouble() * jitterNanos) : 0);
+				long wait = due - System.nanoTime();
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+				}
+
+				boolean key = frame % framesPerSecond == 0;
+				long timestamp = frame * CLOCK_RATE / framesPerSecond;
+				sendFrame(channel, key ? frameBytes * 4 : frameBytes, key, timestamp);
+			}
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 5000;
+		int framesPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 25;
+		int kilobitsPerSecond = args.length > 3 ? Integer.parseInt(args[3]) : 2000;
+		double lossPercent = args.length > 4 ? Double.parseDouble(args[4]) : 0.0;
+		double reorderPercent = args.length > 5 ? Double.parseDouble(args[5]) : 0.0;
+		int jitterMillis = args.length > 6 ? Integer.parseInt(args[6]) : 0;
+		int seconds = args.length > 7 ? Integer.parseInt(args[7]) : 10;
+
+		RtpStreamGenerator generator = new RtpStreamGenerator(host, port, 
+				framesPerSecond, kilobitsPerSecond, lossPercent, reorderPercent, 
+				jitterMillis);
+		Thread thread = new Thread(generator, "RtpStreamGenerator");
+		thread.start();
+
+		Thread.sleep(seconds * 1000L);
+		generator.stop();
+		thread.join();
+
+		System.out.println(String.format(
+				"Sent %d packets to %s:%d in %d s, %d dropped on purpose",
+				generator.getSentPackets(), host, port, seconds, 
+				generator.getDroppedPackets()));
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Send a GDP caps packet, as gdppay does before the first buffer.
+	 * @param channel Channel to send on.
+	 * @throws IOException If sending fails.
+	 */
+	private void sendCaps(DatagramChannel channel) throws IOException {
+
+		byte[] caps = "application/x-rtp, media=video, encoding-name=H264, payload=96"
+				.getBytes("US-ASCII");
+
+		ByteBuffer datagram = ByteBuffer.allocate(GDP_HEADER_BYTES + caps.length);
+		writeGdpHeader(datagram, 2, caps.length);
+		datagram.put(caps);
+		datagram.flip();
+		send(channel, datagram);
+	}
+
+	/**
+	 * Split a frame into FU-A fragments and send them.
+	 * @param channel Channel to send on.
+	 * @param bytes Frame size.
+	 * @param key True for an IDR frame.
+	 * @param timestamp RTP timestamp of the frame.
+	 * @throws IOException If sending fails.
+	 */
+	private void sendFrame(DatagramChannel channel, int bytes, boolean key, 
+			long timestamp) throws IOException {
+
+		int nalType = key ? 5 : 1;
+
+		for (int sent = 0; sent < bytes; sent += RTP_PAYLOAD_BYTES) {
+
+			int fragment = Math.min(RTP_PAYLOAD_BYTES, bytes - sent);
+			boolean first = sent == 0;
+			boolean last = sent + fragment >= bytes;
+
+			packet.clear();
+			writeGdpHeader(packet, 1, RTP_HEADER_BYTES + 2 + fragment);
+
+			packet.put((byte) 0x80);
+			packet.put((byte) ((last ? 0x80 : 0) | PAYLOAD_TYPE));
+			packet.putShort((short) sequence++);
+			packet.putInt((int) timestamp);
+			packet.putInt(0x524F424F);
+
+			packet.put((byte) (0x60 | 28));
+			packet.put((byte) ((first ? 0x80 : 0) | (last ? 0x40 : 0) | nalType));
+			for (int i = 0; i < fragment; i++) {
+				packet.put((byte) i);
+			}
+			packet.flip();
+
+			if (random.nextDouble() < loss) {
+				droppedPackets++;
+				continue;
+			}
+
+			if (heldBack.position() == 0 && !last && random.nextDouble() < reorder) {
+				heldBack.put(packet);
+				continue;
+			}
+
+			send(channel, packet);
+
+			if (heldBack.position() > 0) {
+				heldBack.flip();
+				send(channel, heldBack);
+				heldBack.clear();
+			}
+		}
+	}
+
+	/**
+	 * Write a GDP 1.0 header. Timestamps, offsets and CRCs are left zero,
+	 * as gdppay does by default.
+	 * @param buffer Buffer to write to.
+	 * @param payloadType GDP payload type, 1 for a buffer, 2 for caps.
+	 * @param payloadBytes Length of the payload that follows.
+	 */
+	private static void writeGdpHeader(ByteBuffer buffer, int payloadType, int payloadBytes) {
+
+		int start = buffer.position();
+
+		buffer.put((byte) 1);
+		buffer.put((byte) 0);
+		buffer.put((byte) 0);
+		buffer.put((byte) 0);
+		buffer.putShort((short) payloadType);
+		buffer.putInt(payloadBytes);
+
+		while (buffer.position() < start + GDP_HEADER_BYTES) {
+			buffer.put((byte) 0);
+		}
+	}
+
+	/**
+	 * Send a datagram, ignoring a missing listener.
+	 * @param channel Channel to send on.
+	 * @param datagram Datagram to send.
+	 */
+	private void send(DatagramChannel channel, ByteBuffer datagram) {
+		try {
+			channel.write(datagram);
+			sentPackets++;
+		} catch (IOException e) {
+			// Nobody listening yet (ICMP port unreachable). Keep going.
+		}
+	}
+}
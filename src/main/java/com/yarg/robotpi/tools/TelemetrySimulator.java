@@ -0,0 +1,219 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.locks.LockSupport;
+
+import com.yarg.robotpi.telemetry.TelemetryFrame;
+import com.yarg.robotpi.telemetry.TelemetryReceiver;
+
+/**
+ * Stands in for the robot's telemetry sender. Reports a battery that slowly
+ * drains, motors that load up and ease off, a CPU that warms with load and a
+ * command age that jitters like a 40 ms controller poll.
+ *
+ * Run with host "self" to also start a {@link TelemetryReceiver} in this
+ * process and report what it received and how much its thread allocated.
+ *
+ * Usage: TelemetrySimulator [host|self] [port] [frames per second] [seconds]
+ */
+public class TelemetrySimulator implements Runnable {
+
+	/** Time to run before measuring in self mode, so the JIT has settled. */
+	private static final long WARMUP_MILLIS = 2000;
+
+	/** Address to send to. */
+	private final InetSocketAddress target;
+
+	/** Frames per second. */
+	private final int framesPerSecond;
+
+	/** Frame being filled. */
+	private final TelemetryFrame frame = new TelemetryFrame();
+
+	/** Encoded frame. */
+	private final ByteBuffer payload = ByteBuffer.allocateDirect(TelemetryFrame.FRAME_BYTES);
+
+	/** Flag execution state. */
+	private volatile boolean running;
+
+	/** Frames sent. */
+	private volatile long sentFrames;
+
+	/**
+	 * Create a new simulator.
+	 * @param host Host to send to.
+	 * @param port Port to send to.
+	 * @param framesPerSecond Frames per second.
+	 */
+	public TelemetrySimulator(String host, int port, int framesPerSecond) {
+		target = new InetSocketAddress(host, port);
+		this.framesPerSecond = Math.max(1, framesPerSecond);
+	}
+
+	/**
+	 * Stop sending. {@link #run()} returns shortly after.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Frames sent so far.
+	 * @return Sent frame count.
+	 */
+	public long getSentFrames() {
+		return sentFrames;
+	}
+
+	@Override
+	public void run() {
+
+		running = true;
+		long intervalNanos = 1000000000L / framesPerSecond;
+		long start = System.nanoTime();
+		long nextSendNanos = start;
+		long sequence = 0;
+		long commands = 0;
+
+		try (DatagramChannel channel = DatagramChannel.open()) {
+
+			channel.connect(target);
+
+			while (running) {
+
+				long now = System.nanoTime();
+				long wait = nextSendNanos - now;
+				if (wait > 0) {
+					LockSupport.parkNanos(wait);
+					continue;
+				}
+				nextSendNanos += intervalNanos;
+
+				double seconds = (now - start) / 1e9;
+				double load = Math.max(0.0, Math.sin(seconds / 3.0));
+				int commandAge = (int) ((now / 1000000L) % 40);
+				commands = (long) (seconds * 25);
+
+				frame.setSequence(sequence++);
+				frame.setUptimeMillis((long) (seconds * 1000) + 3600000L);
+				frame.setBatteryMillivolts((int) (12600 - seconds * 2 - load * 400));
+				frame.setBatteryMilliamps((int) (600 + load * 3400));
+				frame.setMotorLoads((int) (load * 800), (int) (load * 760),
+						(int) (Math.abs(Math.sin(seconds)) * 300), 
+						(int) (Math.abs(Math.cos(seconds / 2.0)) * 200));
+				frame.setCpuCentidegrees((int) (4800 + load * 1500));
+				frame.setCpuLoadPercent((int) (20 + load * 50));
+				frame.setWifiDbm((int) (-55 - load * 10));
+				frame.setCommandAgeMillis(commandAge);
+				frame.setCommandsReceived(commands);
+
+				payload.clear();
+				frame.encode(payload);
+				payload.flip();
+
+				try {
+					channel.write(payload);
+					sentFrames++;
+				} catch (IOException e) {
+					// Nobody listening yet (ICMP port unreachable). Keep going.
+				}
+			}
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException, IOException {
+
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : TelemetryReceiver.DEFAULT_PORT;
+		int framesPerSecond = args.length > 2 ? Integer.parseInt(args[2]) : 100;
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 10;
+
+		boolean self = "self".equals(host);
+		TelemetryReceiver receiver = null;
+
+		if (self) {
+			host = "localhost";
+			receiver = new TelemetryReceiver(port);
+			receiver.startReceiving();
+		}
+
+		TelemetrySimulator simulator = new TelemetrySimulator(host, port, framesPerSecond);
+		Thread thread = new Thread(simulator, "TelemetrySimulator");
+		thread.start();
+
+		if (!self) {
+			Thread.sleep(seconds * 1000L);
+			simulator.stop();
+			thread.join();
+			System.out.println(String.format("Sent %d telemetry frames to %s:%d in %d s",
+					simulator.getSentFrames(), host, port, seconds));
+			return;
+		}
+
+		Thread.sleep(WARMUP_MILLIS);
+
+		long startFrames = receiver.getReceivedFrames();
+		long startAllocated = getAllocatedBytes(receiver);
+
+		Thread.sleep(seconds * 1000L);
+
+		long frames = receiver.getReceivedFrames() - startFrames;
+		long allocated = getAllocatedBytes(receiver) - startAllocated;
+
+		TelemetryFrame latest = new TelemetryFrame();
+		receiver.getLatest(latest);
+
+		simulator.stop();
+		thread.join();
+		receiver.stopReceiving();
+
+		System.out.println("Latest: "+latest.describe());
+		System.out.println(String.format(
+				"Received %d frames in %d s, receive thread allocated %s",
+				frames, seconds,
+				allocated < 0 ? "n/a" : allocated+" bytes"));
+	}
+
+	/**
+	 * Bytes allocated by a thread so far, where the JVM can tell.
+	 * @param thread Thread to ask about.
+	 * @return Allocated bytes, or -1 if not supported.
+	 */
+	private static long getAllocatedBytes(Thread thread) {
+
+		java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+
+		if (bean instanceof com.sun.management.ThreadMXBean) {
+			return ((com.sun.management.ThreadMXBean) bean)
+					.getThreadAllocatedBytes(thread.getId());
+		}
+
+		return -1;
+	}
+}
@@ -0,0 +1,143 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Sends a stream of fixed size UDP datagrams of noise, either flat out or at
+ * a fixed packet rate. Stands in for the robot when exercising the audio
+ * receive path.
+ * 
+ * Usage: UdpBlaster [host] [port] [packet bytes] [packets per second, 0 for
+ * flat out] [seconds]
+ */
+public class UdpBlaster implements Runnable {
+
+	/** Address to send to. */
+	private final InetSocketAddress target;
+
+	/** Datagram contents. */
+	private final ByteBuffer payload;
+
+	/** Packets per second, 0 for as fast as possible. */
+	private final int packetsPerSecond;
+
+	/** Flag execution state. */
+	private volatile boolean running;
+
+	/** Datagrams sent. */
+	private volatile long sentPackets;
+
+	/**
+	 * Create a new blaster.
+	 * @param host Host to send to.
+	 * @param port Port to send to.
+	 * @param packetBytes Size of each datagram.
+	 * @param packetsPerSecond Packets per second, 0 for as fast as possible.
+	 */
+	public UdpBlaster(String host, int port, int packetBytes, int packetsPerSecond) {
+
+		target = new InetSocketAddress(host, port);
+		this.packetsPerSecond = packetsPerSecond;
+
+		byte[] noise = new byte[packetBytes];
+		new Random(42).nextBytes(noise);
+		payload = ByteBuffer.allocateDirect(packetBytes);
+		payload.put(noise);
+		payload.flip();
+	}
+
+	/**
+	 * Stop sending. {@link #run()} returns shortly after.
+	 */
+	public void stop() {
+		running = false;
+	}
+
+	/**
+	 * Datagrams sent so far.
+	 * @return Sent packet count.
+	 */
+	public long getSentPackets() {
+		return sentPackets;
+	}
+
+	@Override
+	public void run() {
+
+		running = true;
+		long intervalNanos = packetsPerSecond > 0 ? 1000000000L / packetsPerSecond : 0;
+		long nextSendNanos = System.nanoTime();
+
+		try (DatagramChannel channel = DatagramChannel.open()) {
+
+			channel.connect(target);
+
+			while (running) {
+
+				if (intervalNanos > 0) {
+					long wait = nextSendNanos - System.nanoTime();
+					if (wait > 0) {
+						LockSupport.parkNanos(wait);
+						continue;
+					}
+					nextSendNanos += intervalNanos;
+				}
+
+				payload.rewind();
+				try {
+					channel.write(payload);
+					sentPackets++;
+				} catch (IOException e) {
+					// Nobody listening yet (ICMP port unreachable). Keep going.
+				}
+			}
+
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+	}
+
+	public static void main(String[] args) throws InterruptedException {
+
+		String host = args.length > 0 ? args[0] : "localhost";
+		int port = args.length > 1 ? Integer.parseInt(args[1]) : 49808;
+		int packetBytes = args.length > 2 ? Integer.parseInt(args[2]) : 1200;
+		int packetsPerSecond = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+		int seconds = args.length > 4 ? Integer.parseInt(args[4]) : 10;
+
+		UdpBlaster blaster = new UdpBlaster(host, port, packetBytes, packetsPerSecond);
+		Thread thread = new Thread(blaster, "UdpBlaster");
+		thread.start();
+
+		Thread.sleep(seconds * 1000L);
+		blaster.stop();
+		thread.join();
+
+		System.out.println(String.format("Sent %d packets of %d bytes to %s:%d in %d s",
+				blaster.getSentPackets(), packetBytes, host, port, seconds));
+	}
+}
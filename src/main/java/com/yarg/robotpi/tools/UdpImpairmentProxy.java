@@ -0,0 +1,606 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Forwards a UDP stream on loopback through simulated bad WiFi: random and
+ * burst loss, delay, jitter, reordering, duplication and a bandwidth cap.
+ * Conditions can be changed at any time or scheduled ahead, so a run can
+ * walk through a scripted sequence of network weather.
+ *
+ * Put one proxy in each direction to impair, between the client and a
+ * stand-in robot listening on another port. For example, to impair
+ * controller data, point the client at port 49801 and run the stand-in
+ * robot on 59801:
+ * <pre>
+ * UdpImpairmentProxy proxy = new UdpImpairmentProxy(49801,
+ *         new InetSocketAddress("localhost", 59801));
+ * proxy.setSeed(1);
+ * proxy.setImpairment(new NetworkImpairment("loss=5 delay=30 jitter=10"));
+ * proxy.startProxy();
+ * ...
+ * proxy.stopProxy();
+ * assert proxy.getDeliveredPackets() &gt; 0;
+ * </pre>
+ *
+ * A script has one line per change, the time in seconds from the start
+ * followed by the conditions, and # starts a comment:
+ * <pre>
+ * 0   delay=20
+ * 10  delay=20 loss=5 burstEnter=2
+ * 20  rate=300 queue=100
+ * 30
+ * </pre>
+ *
+ * Usage: UdpImpairmentProxy [listen port] [target host:port] [conditions, or
+ * &#64;script file] [seconds, 0 to run until stopped]
+ */
+public class UdpImpairmentProxy extends Thread {
+
+	/** Largest datagram. */
+	private static final int MAX_DATAGRAM_BYTES = 65507;
+
+	/** Socket buffers asked for, so the proxy itself never drops. */
+	private static final int SOCKET_BUFFER_BYTES = 2 * 1024 * 1024;
+
+	/** A datagram waiting for its delivery time. */
+	private static class Pending implements Delayed {
+
+		/** When to deliver, from System.nanoTime(). */
+		private final long dueNanos;
+
+		/** Arrival order, so packets due together keep their order. */
+		private final long order;
+
+		/** Datagram contents. */
+		private final byte[] data;
+
+		/**
+		 * Create a pending datagram.
+		 * @param dueNanos When to deliver.
+		 * @param order Arrival order.
+		 * @param data Datagram contents.
+		 */
+		private Pending(long dueNanos, long order, byte[] data) {
+			this.dueNanos = dueNanos;
+			this.order = order;
+			this.data = data;
+		}
+
+		@Override
+		public long getDelay(TimeUnit unit) {
+			return unit.convert(dueNanos - System.nanoTime(), TimeUnit.NANOSECONDS);
+		}
+
+		@Override
+		public int compareTo(Delayed other) {
+			Pending that = (Pending) other;
+			if (dueNanos != that.dueNanos) {
+				return dueNanos - that.dueNanos < 0 ? -1 : 1;
+			}
+			return order < that.order ? -1 : (order == that.order ? 0 : 1);
+		}
+	}
+
+	/** Port clients send to, 0 for any free port. */
+	private final int listenPort;
+
+	/** Where datagrams are forwarded. */
+	private final InetSocketAddress target;
+
+	/** Datagrams waiting for their delivery time. */
+	private final DelayQueue<Pending> pending = new DelayQueue<Pending>();
+
+	/** Applies scheduled changes. */
+	private final ScheduledExecutorService scheduler;
+
+	/** Current conditions. */
+	private volatile NetworkImpairment impairment = NetworkImpairment.NONE;
+
+	/** Random source, only used by the receiving thread. */
+	private final Random random = new Random();
+
+	/** Channel receiving and forwarding. */
+	private volatile DatagramChannel channel;
+
+	/** Port actually bound, 0 until started. */
+	private volatile int boundPort;
+
+	/** Sends datagrams as they fall due. */
+	private Thread deliveryThread;
+
+	/** Flag execution state of thread. */
+	private volatile boolean running;
+
+	// The following are only touched by the receiving thread.
+
+	/** True while in a loss burst. */
+	private boolean inBurst;
+
+	/** When the bandwidth capped link is next free. */
+	private long linkFreeNanos;
+
+	/** Datagrams taken in so far. */
+	private long order;
+
+	/** Datagrams received. */
+	private volatile long receivedPackets;
+
+	/** Datagrams lost at random. */
+	private volatile long randomLosses;
+
+	/** Datagrams lost in bursts. */
+	private volatile long burstLosses;
+
+	/** Datagrams dropped waiting for the bandwidth cap. */
+	private volatile long queueDrops;
+
+	/** Datagrams held back to be overtaken. */
+	private volatile long reorderedPackets;
+
+	/** Extra copies sent. */
+	private volatile long duplicatedPackets;
+
+	/** Datagrams forwarded, copies included. */
+	private volatile long deliveredPackets;
+
+	/** Bytes forwarded, copies included. */
+	private volatile long deliveredBytes;
+
+	/**
+	 * Create a proxy.
+	 * @param listenPort Port to receive on, 0 for any free port.
+	 * @param target Where to forward to.
+	 */
+	public UdpImpairmentProxy(int listenPort, InetSocketAddress target) {
+
+		super("UdpImpairmentProxy "+listenPort);
+		this.listenPort = listenPort;
+		this.target = target;
+		setDaemon(true);
+
+		scheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+			@Override
+			public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "UdpImpairmentProxy schedule");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+	}
+
+	/**
+	 * Seed the random choices so a run can be repeated exactly. Must be
+	 * called before starting.
+	 * @param seed Random seed.
+	 */
+	public void setSeed(long seed) {
+		random.setSeed(seed);
+	}
+
+	/**
+	 * Change the conditions. Applies to datagrams received from now on.
+	 * @param impairment New conditions.
+	 */
+	public void setImpairment(NetworkImpairment impairment) {
+		this.impairment = impairment;
+		System.out.println("Impairment on port "+getListenPort()+": "+impairment.describe());
+	}
+
+	/**
+	 * Current conditions.
+	 * @return Conditions.
+	 */
+	public NetworkImpairment getImpairment() {
+		return impairment;
+	}
+
+	/**
+	 * Change the conditions later.
+	 * @param delayMillis Time from now.
+	 * @param impairment Conditions to change to.
+	 */
+	public void schedule(long delayMillis, final NetworkImpairment impairment) {
+
+		scheduler.schedule(new Runnable() {
+
+			@Override
+			public void run() {
+				setImpairment(impairment);
+			}
+		}, delayMillis, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Schedule every change in a script, timed from now.
+	 * @param lines Script lines.
+	 * @throws IllegalArgumentException If a line can't be parsed; nothing is
+	 * scheduled then.
+	 */
+	public void schedule(List<String> lines) {
+
+		long[] times = new long[lines.size()];
+		NetworkImpairment[] changes = new NetworkImpairment[lines.size()];
+		int count = 0;
+
+		for (String line : lines) {
+
+			int comment = line.indexOf('#');
+			String text = (comment < 0 ? line : line.substring(0, comment)).trim();
+
+			if (text.isEmpty()) {
+				continue;
+			}
+
+			String[] parts = text.split("\\s+", 2);
+			try {
+				times[count] = Math.round(Double.parseDouble(parts[0]) * 1000.0);
+			} catch (NumberFormatException e) {
+				throw new IllegalArgumentException("Script line must start with seconds: "+line);
+			}
+			changes[count] = new NetworkImpairment(parts.length > 1 ? parts[1] : "");
+			count++;
+		}
+
+		for (int i = 0; i < count; i++) {
+			schedule(times[i], changes[i]);
+		}
+	}
+
+	/**
+	 * Bind the port and start forwarding.
+	 * @throws IOException If the port can't be bound.
+	 */
+	public void startProxy() throws IOException {
+
+		DatagramChannel newChannel = DatagramChannel.open();
+
+		try {
+			newChannel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+			newChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_BYTES);
+			newChannel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_BYTES);
+			newChannel.bind(new InetSocketAddress(listenPort));
+		} catch (IOException e) {
+			newChannel.close();
+			throw e;
+		}
+
+		channel = newChannel;
+		boundPort = ((InetSocketAddress) newChannel.getLocalAddress()).getPort();
+		running = true;
+
+		deliveryThread = new Thread("UdpImpairmentProxy delivery") {
+
+			@Override
+			public void run() {
+				deliver();
+			}
+		};
+		deliveryThread.setDaemon(true);
+		deliveryThread.start();
+		start();
+
+		System.out.println("Impairment proxy forwarding port "+getListenPort()+" to "+target);
+	}
+
+	/**
+	 * Stop forwarding and release the port. Datagrams still held back are
+	 * dropped.
+	 */
+	public void stopProxy() {
+
+		running = false;
+		scheduler.shutdownNow();
+
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			if (deliveryThread != null) {
+				deliveryThread.interrupt();
+				deliveryThread.join(1000);
+			}
+			join(1000);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		pending.clear();
+		System.out.println("Impairment proxy on port "+getListenPort()+": "+describe());
+	}
+
+	/**
+	 * Port the proxy receives on, useful when it was asked for any free
+	 * port.
+	 * @return Bound port, or the requested one before starting.
+	 */
+	public int getListenPort() {
+		return boundPort == 0 ? listenPort : boundPort;
+	}
+
+	/**
+	 * Datagrams received.
+	 * @return Received count.
+	 */
+	public long getReceivedPackets() {
+		return receivedPackets;
+	}
+
+	/**
+	 * Datagrams lost at random.
+	 * @return Random loss count.
+	 */
+	public long getRandomLosses() {
+		return randomLosses;
+	}
+
+	/**
+	 * Datagrams lost in bursts.
+	 * @return Burst loss count.
+	 */
+	public long getBurstLosses() {
+		return burstLosses;
+	}
+
+	/**
+	 * Datagrams dropped waiting for the bandwidth cap.
+	 * @return Queue drop count.
+	 */
+	public long getQueueDrops() {
+		return queueDrops;
+	}
+
+	/**
+	 * Datagrams held back to be overtaken.
+	 * @return Reordered count.
+	 */
+	public long getReorderedPackets() {
+		return reorderedPackets;
+	}
+
+	/**
+	 * Extra copies sent.
+	 * @return Duplicate count.
+	 */
+	public long getDuplicatedPackets() {
+		return duplicatedPackets;
+	}
+
+	/**
+	 * Datagrams forwarded, copies included.
+	 * @return Delivered count.
+	 */
+	public long getDeliveredPackets() {
+		return deliveredPackets;
+	}
+
+	/**
+	 * Bytes forwarded, copies included.
+	 * @return Delivered byte count.
+	 */
+	public long getDeliveredBytes() {
+		return deliveredBytes;
+	}
+
+	/**
+	 * Describe the counters, for logging.
+	 * @return Proxy summary.
+	 */
+	public String describe() {
+		return String.format("%d received, %d delivered, %d lost at random, %d in bursts, "
+				+ "%d over the bandwidth cap, %d reordered, %d duplicated",
+				receivedPackets, deliveredPackets, randomLosses, burstLosses, 
+				queueDrops, reorderedPackets, duplicatedPackets);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+
+		while (running) {
+
+			buffer.clear();
+
+			try {
+				channel.receive(buffer);
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				if (running) {
+					e.printStackTrace();
+				}
+				continue;
+			}
+
+			long now = System.nanoTime();
+			buffer.flip();
+			receivedPackets++;
+			impair(buffer, now, impairment);
+		}
+	}
+
+	public static void main(String[] args) throws IOException, InterruptedException {
+
+		int listenPort = args.length > 0 ? Integer.parseInt(args[0]) : 49801;
+		String target = args.length > 1 ? args[1] : "localhost:59801";
+		String conditions = args.length > 2 ? args[2] : "";
+		int seconds = args.length > 3 ? Integer.parseInt(args[3]) : 0;
+
+		int colon = target.lastIndexOf(':');
+		final UdpImpairmentProxy proxy = new UdpImpairmentProxy(listenPort, 
+				new InetSocketAddress(target.substring(0, colon), 
+						Integer.parseInt(target.substring(colon + 1))));
+
+		proxy.startProxy();
+
+		if (conditions.startsWith("@")) {
+			proxy.schedule(Files.readAllLines(new File(conditions.substring(1)).toPath(), 
+					Charset.forName("UTF-8")));
+		} else {
+			proxy.setImpairment(new NetworkImpairment(conditions));
+		}
+
+		if (seconds > 0) {
+			Thread.sleep(seconds * 1000L);
+			proxy.stopProxy();
+			return;
+		}
+
+		Runtime.getRuntime().addShutdownHook(new Thread() {
+
+			@Override
+			public void run() {
+				proxy.stopProxy();
+			}
+		});
+
+		proxy.join();
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Decide the fate of one datagram and queue it for delivery.
+	 * @param buffer Datagram between position and limit.
+	 * @param now Arrival time.
+	 * @param conditions Conditions to apply.
+	 */
+	private void impair(ByteBuffer buffer, long now, NetworkImpairment conditions) {
+
+		// Gilbert-Elliott: move between the good and burst states, then lose
+		// the packet with the loss of the state it is in.
+		if (conditions.getBurstEnterPercent() > 0) {
+			if (inBurst) {
+				inBurst = !chance(conditions.getBurstExitPercent());
+			} else {
+				inBurst = chance(conditions.getBurstEnterPercent());
+			}
+		} else {
+			inBurst = false;
+		}
+
+		if (inBurst && chance(conditions.getBurstLossPercent())) {
+			burstLosses++;
+			return;
+		}
+
+		if (chance(conditions.getLossPercent())) {
+			randomLosses++;
+			return;
+		}
+
+		int length = buffer.remaining();
+		long due = now;
+
+		// The bandwidth cap sends one packet at a time; a packet that would
+		// wait longer than the queue allows is dropped, like a full router
+		// buffer.
+		if (conditions.getRateKbps() > 0) {
+			long transmitNanos = (long) (length * 8 * 1e6 / conditions.getRateKbps());
+			long start = Math.max(now, linkFreeNanos);
+			if (start - now > conditions.getQueueMillis() * 1e6) {
+				queueDrops++;
+				return;
+			}
+			linkFreeNanos = start + transmitNanos;
+			due = linkFreeNanos;
+		}
+
+		due += (long) ((conditions.getDelayMillis() 
+				+ random.nextDouble() * conditions.getJitterMillis()) * 1e6);
+
+		if (chance(conditions.getReorderPercent())) {
+			due += (long) (conditions.getReorderDelayMillis() * 1e6);
+			reorderedPackets++;
+		}
+
+		byte[] data = new byte[length];
+		buffer.get(data);
+		pending.add(new Pending(due, order++, data));
+
+		if (chance(conditions.getDuplicatePercent())) {
+			pending.add(new Pending(due, order++, data));
+			duplicatedPackets++;
+		}
+	}
+
+	/**
+	 * Roll the dice.
+	 * @param percent Chance in percent.
+	 * @return True with the given chance.
+	 */
+	private boolean chance(double percent) {
+		return percent > 0 && random.nextDouble() * 100.0 < percent;
+	}
+
+	/**
+	 * Send datagrams as they fall due until stopped.
+	 */
+	private void deliver() {
+
+		while (running) {
+
+			Pending next;
+
+			try {
+				next = pending.take();
+			} catch (InterruptedException e) {
+				return;
+			}
+
+			try {
+				channel.send(ByteBuffer.wrap(next.data), target);
+				deliveredPackets++;
+				deliveredBytes += next.data.length;
+			} catch (ClosedChannelException e) {
+				return;
+			} catch (IOException e) {
+				// Nobody listening at the target (ICMP port unreachable). Keep going.
+			}
+		}
+	}
+}
@@ -0,0 +1,435 @@
+package com.yarg.robotpi.tools;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.yarg.robotpi.audio.AudioBufferPool;
+import com.yarg.robotpi.audio.AudioPacketRing;
+import com.yarg.robotpi.audio.AudioReceiver;
+import com.yarg.robotpi.audio.AudioSendThread;
+import com.yarg.robotpi.input.ControllerDataClient;
+import com.yarg.robotpi.net.UdpReactor;
+
+/**
+ * Compares the thread per socket network model with the {@link UdpReactor}
+ * on loopback, using the client's own classes for all three sockets:
+ * controller messages every 40 ms, outgoing audio packets through an
+ * {@link AudioPacketRing}, and incoming audio through an
+ * {@link AudioReceiver}. Every packet carries its send time, so the sinks
+ * measure how long each kind takes to arrive.
+ *
+ * Reports delivered packets, latency percentiles per stream, CPU time of the
+ * client side threads and, on Linux, context switches of the whole process.
+ *
+ * Usage: UdpReactorBenchmark [threads|reactor] [audio packets per second]
+ * [seconds] [base port]
+ */
+public class UdpReactorBenchmark {
+
+	/** Interval between controller messages, as in the client. */
+	private static final long CONTROL_INTERVAL_MILLIS = 40;
+
+	/** Audio packet size. */
+	private static final int AUDIO_PACKET_BYTES = 1200;
+
+	/** Time to run before measuring so the JIT has compiled the loops. */
+	private static final long WARMUP_MILLIS = 2000;
+
+	/** 
+	 * Audio sources wake this often and send whatever is due, since sleeps
+	 * shorter than about a millisecond are not reliable.
+	 */
+	private static final long PACE_NANOS = 1000000L;
+
+	/** Latency samples kept per stream. */
+	private static final int MAX_SAMPLES = 1 << 20;
+
+	/** Set false to stop every thread. */
+	private static volatile boolean running = true;
+
+	/** True while latencies are being recorded. */
+	private static volatile boolean measuring = false;
+
+	public static void main(String[] args) throws Exception {
+
+		boolean useReactor = args.length > 0 && args[0].equals("reactor");
+		final int packetsPerSecond = args.length > 1 ? Integer.parseInt(args[1]) : 1000;
+		int seconds = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+		int basePort = args.length > 3 ? Integer.parseInt(args[3]) : 49890;
+
+		final int controlPort = basePort;
+		final int audioOutPort = basePort + 1;
+		final int audioInPort = basePort + 2;
+
+		// Robot side: sinks for controller and audio, and a source of audio.
+		final LatencySink controlSink = new LatencySink("Control sink", controlPort, true);
+		final LatencySink audioSink = new LatencySink("Audio sink", audioOutPort, false);
+		final Latencies inbound = new Latencies();
+
+		// Client side.
+		List<Thread> clientThreads = new ArrayList<Thread>();
+		UdpReactor reactor = useReactor ? new UdpReactor() : null;
+
+		final ControllerDataClient controlClient = 
+				new ControllerDataClient("127.0.0.1", controlPort);
+
+		final AudioPacketRing ring = new AudioPacketRing(32, 8192);
+		AudioSendThread sendThread = new AudioSendThread("127.0.0.1", audioOutPort, ring);
+		sendThread.initialize();
+
+		final AudioBufferPool pool = new AudioBufferPool(36, 65507);
+		final AudioReceiver receiver = new AudioReceiver(audioInPort, pool);
+		receiver.open();
+
+		if (useReactor) {
+			reactor.startReactor();
+			clientThreads.add(reactor);
+			controlClient.setReactor(reactor);
+			sendThread.startSending(reactor);
+			reactor.addInbound(receiver.getChannel(), new UdpReactor.InboundHandler() {
+
+				@Override
+				public void readable(DatagramChannel channel) throws IOException {
+					ByteBuffer packet;
+					while ((packet = receiver.poll()) != null) {
+						inbound.add(System.nanoTime() - packet.getLong(packet.position()));
+						pool.release(packet);
+					}
+				}
+			});
+		} else {
+			sendThread.startSending();
+			clientThreads.add(sendThread);
+
+			Thread receiveThread = new Thread("Audio receive") {
+
+				@Override
+				public void run() {
+					while (running) {
+						try {
+							ByteBuffer packet = receiver.receive();
+							if (packet != null) {
+								inbound.add(System.nanoTime() - packet.getLong(packet.position()));
+								pool.release(packet);
+							}
+						} catch (IOException e) {
+							return;
+						}
+					}
+				}
+			};
+			receiveThread.start();
+			clientThreads.add(receiveThread);
+		}
+
+		Thread controlThread = new Thread("Controller") {
+
+			@Override
+			public void run() {
+				while (running) {
+					controlClient.sendData(String.valueOf(System.nanoTime()));
+					pause(CONTROL_INTERVAL_MILLIS * 1000000L);
+				}
+			}
+		};
+
+		Thread captureThread = new Thread("Capture") {
+
+			@Override
+			public void run() {
+				byte[] packet = new byte[AUDIO_PACKET_BYTES];
+				ByteBuffer stamp = ByteBuffer.wrap(packet);
+				long begin = System.nanoTime();
+				long sent = 0;
+				while (running) {
+					for (long due = packetsDue(begin, packetsPerSecond); sent < due; sent++) {
+						stamp.putLong(0, System.nanoTime());
+						ring.offer(packet, 0, packet.length);
+					}
+					pause(PACE_NANOS);
+				}
+			}
+		};
+
+		Thread robotThread = new Thread("Robot audio") {
+
+			@Override
+			public void run() {
+				try {
+					DatagramSocket socket = new DatagramSocket();
+					byte[] packet = new byte[AUDIO_PACKET_BYTES];
+					ByteBuffer stamp = ByteBuffer.wrap(packet);
+					DatagramPacket datagram = new DatagramPacket(packet, packet.length,
+							InetAddress.getByName("127.0.0.1"), audioInPort);
+					long begin = System.nanoTime();
+					long sent = 0;
+					while (running) {
+						for (long due = packetsDue(begin, packetsPerSecond); sent < due; sent++) {
+							stamp.putLong(0, System.nanoTime());
+							socket.send(datagram);
+						}
+						pause(PACE_NANOS);
+					}
+					socket.close();
+				} catch (IOException e) {
+					e.printStackTrace();
+				}
+			}
+		};
+
+		clientThreads.add(controlThread);
+		clientThreads.add(captureThread);
+
+		controlSink.start();
+		audioSink.start();
+		controlThread.start();
+		captureThread.start();
+		robotThread.start();
+
+		Thread.sleep(WARMUP_MILLIS);
+
+		long startCpu = getCpuNanos(clientThreads);
+		long startSwitches = getContextSwitches();
+		long start = System.nanoTime();
+		measuring = true;
+
+		Thread.sleep(seconds * 1000L);
+
+		measuring = false;
+		double elapsed = (System.nanoTime() - start) / 1e9;
+		long cpu = getCpuNanos(clientThreads) - startCpu;
+		long switches = getContextSwitches() - startSwitches;
+
+		running = false;
+		controlThread.join();
+		captureThread.join();
+		robotThread.join();
+		controlSink.close();
+		audioSink.close();
+		receiver.close();
+		if (reactor != null) {
+			sendThread.stopSending();
+			reactor.stopReactor();
+		} else {
+			sendThread.stopSending();
+		}
+
+		System.out.println(String.format("%s, %d audio packets/s each way, %d s",
+				useReactor ? "UDP reactor" : "Thread per socket", packetsPerSecond, seconds));
+		System.out.println("Controller out: "+controlSink.latencies.describe(elapsed));
+		System.out.println("Audio out:      "+audioSink.latencies.describe(elapsed));
+		System.out.println("Audio in:       "+inbound.describe(elapsed));
+		System.out.println(String.format("Client threads: %d, CPU %.1f%% of one core",
+				clientThreads.size(), cpu / 1e7 / elapsed));
+		System.out.println(switches < 0 ? "Context switches: n/a" 
+				: String.format("Context switches: %.0f/s (whole process)", switches / elapsed));
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Sleep without throwing.
+	 * @param nanos Time to sleep.
+	 */
+	private static void pause(long nanos) {
+		try {
+			Thread.sleep(nanos / 1000000L, (int) (nanos % 1000000L));
+		} catch (InterruptedException e) {
+			running = false;
+		}
+	}
+
+	/**
+	 * Number of packets that should have been sent by now.
+	 * @param begin When sending began, from System.nanoTime().
+	 * @param packetsPerSecond Send rate.
+	 * @return Packets due in total.
+	 */
+	private static long packetsDue(long begin, int packetsPerSecond) {
+		return (System.nanoTime() - begin) * packetsPerSecond / 1000000000L;
+	}
+
+	/**
+	 * CPU time used by some threads so far.
+	 * @param threads Threads to add up.
+	 * @return CPU time in nanoseconds.
+	 */
+	private static long getCpuNanos(List<Thread> threads) {
+
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		long total = 0;
+
+		for (Thread thread : threads) {
+			total += Math.max(0, bean.getThreadCpuTime(thread.getId()));
+		}
+
+		return total;
+	}
+
+	/**
+	 * Context switches of every thread in the process so far, from /proc.
+	 * @return Switch count, or -1 where /proc is not available.
+	 */
+	private static long getContextSwitches() {
+
+		File[] tasks = new File("/proc/self/task").listFiles();
+
+		if (tasks == null) {
+			return -1;
+		}
+
+		long total = 0;
+
+		for (File task : tasks) {
+			try {
+				for (String line : Files.readAllLines(
+						new File(task, "status").toPath(), Charset.forName("US-ASCII"))) {
+					if (line.startsWith("voluntary_ctxt_switches:")
+							|| line.startsWith("nonvoluntary_ctxt_switches:")) {
+						total += Long.parseLong(line.substring(line.indexOf(':') + 1).trim());
+					}
+				}
+			} catch (IOException e) {
+				// Thread ended while reading.
+			}
+		}
+
+		return total;
+	}
+
+	/** Latencies of one stream. */
+	private static class Latencies {
+
+		/** Recorded latencies in nanoseconds. */
+		private final long[] samples = new long[MAX_SAMPLES];
+
+		/** Samples recorded. */
+		private int count;
+
+		/**
+		 * Record a latency while measuring.
+		 * @param nanos Latency.
+		 */
+		synchronized void add(long nanos) {
+			if (measuring && count < samples.length) {
+				samples[count++] = nanos;
+			}
+		}
+
+		/**
+		 * Describe the recorded latencies.
+		 * @param seconds Length of the measurement.
+		 * @return Summary.
+		 */
+		synchronized String describe(double seconds) {
+
+			if (count == 0) {
+				return "nothing received";
+			}
+
+			long[] sorted = Arrays.copyOf(samples, count);
+			Arrays.sort(sorted);
+
+			return String.format("%6.0f packets/s, latency p50 %.3f ms, p99 %.3f ms, max %.3f ms",
+					count / seconds, sorted[count / 2] / 1e6,
+					sorted[(int) (count * 0.99)] / 1e6, sorted[count - 1] / 1e6);
+		}
+	}
+
+	/** Receives one stream on the robot side and measures its latency. */
+	private static class LatencySink extends Thread {
+
+		/** Socket to receive on. */
+		private final DatagramSocket socket;
+
+		/** True if the send time is sent as text, false for 8 binary bytes. */
+		private final boolean text;
+
+		/** Measured latencies. */
+		final Latencies latencies = new Latencies();
+
+		/**
+		 * Create a sink.
+		 * @param name Thread name.
+		 * @param port Port to receive on.
+		 * @param text True for text time stamps.
+		 * @throws IOException If the port can't be bound.
+		 */
+		LatencySink(String name, int port, boolean text) throws IOException {
+			super(name);
+			socket = new DatagramSocket(port);
+			this.text = text;
+		}
+
+		/**
+		 * Stop receiving.
+		 */
+		void close() throws InterruptedException {
+			socket.close();
+			join();
+		}
+
+		@Override
+		public void run() {
+
+			byte[] buffer = new byte[65507];
+			DatagramPacket datagram = new DatagramPacket(buffer, buffer.length);
+			ByteBuffer stamp = ByteBuffer.wrap(buffer);
+
+			while (true) {
+				try {
+					datagram.setLength(buffer.length);
+					socket.receive(datagram);
+				} catch (IOException e) {
+					return;
+				}
+
+				long now = System.nanoTime();
+				long sent;
+
+				if (text) {
+					// Controller messages end with a '?' terminator.
+					sent = Long.parseLong(new String(buffer, 0, datagram.getLength() - 1,
+							Charset.forName("US-ASCII")));
+				} else {
+					sent = stamp.getLong(0);
+				}
+
+				latencies.add(now - sent);
+			}
+		}
+	}
+}
@@ -0,0 +1,80 @@
+package com.yarg.robotpi.video;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Keeps the last lines written by a child process. Old lines are thrown
+ * away once the log is full, so a chatty process can run for days without
+ * the log growing.
+ */
+public class OutputLog {
+
+	/** Most lines kept. */
+	private final int capacity;
+
+	/** Kept lines, oldest first. */
+	private final ArrayDeque<String> lines;
+
+	/** Lines ever added. */
+	private long totalLines;
+
+	/**
+	 * Create a log.
+	 * @param capacity Most lines kept.
+	 */
+	public OutputLog(int capacity) {
+		this.capacity = capacity;
+		lines = new ArrayDeque<String>(capacity);
+	}
+
+	/**
+	 * Add a line, dropping the oldest if the log is full.
+	 * @param line Line to add.
+	 */
+	public synchronized void add(String line) {
+
+		if (lines.size() == capacity) {
+			lines.removeFirst();
+		}
+
+		lines.addLast(line);
+		totalLines++;
+	}
+
+	/**
+	 * Copy of the kept lines.
+	 * @return Lines, oldest first.
+	 */
+	public synchronized List<String> getLines() {
+		return new ArrayList<String>(lines);
+	}
+
+	/**
+	 * Number of lines ever added, including those since dropped.
+	 * @return Total line count.
+	 */
+	public synchronized long getTotalLines() {
+		return totalLines;
+	}
+}
@@ -0,0 +1,371 @@
+package com.yarg.robotpi.video;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Statistics of an RTP stream carrying H.264, measured from the packet
+ * headers alone: packet, bit and frame rates, loss, reordering and RFC 3550
+ * inter-arrival jitter. Frames are counted at the marker bit, which the
+ * H.264 payloader sets on the last packet of every access unit, and key
+ * frames at the start of every IDR slice.
+ *
+ * Packets are fed from a single thread. Results can be read from any
+ * thread; rates are worked out once a second and read as 0 when the stream
+ * has gone quiet.
+ */
+public class RtpStreamStatistics {
+
+	/** RTP clock rate of H.264 video. */
+	private static final double CLOCK_RATE = 90000.0;
+
+	/** Smallest RTP header. */
+	private static final int RTP_HEADER_BYTES = 12;
+
+	/** Rates are worked out over this long. */
+	private static final long RATE_WINDOW_NANOS = TimeUnit.SECONDS.toNanos(1);
+
+	/** Rates older than this read as 0. */
+	private static final long STALE_NANOS = TimeUnit.SECONDS.toNanos(2);
+
+	/** H.264 NAL unit type of an IDR slice. */
+	private static final int NAL_IDR = 5;
+
+	/** H.264 RTP single time aggregation packet. */
+	private static final int NAL_STAP_A = 24;
+
+	/** H.264 RTP fragmentation unit. */
+	private static final int NAL_FU_A = 28;
+
+	/** Packets received, duplicates excluded. */
+	private volatile long packets;
+
+	/** Payload bytes received. */
+	private volatile long bytes;
+
+	/** Packets that arrived after a later one. */
+	private volatile long reordered;
+
+	/** Packets repeating the newest sequence number. */
+	private volatile long duplicates;
+
+	/** Datagrams that weren't RTP. */
+	private volatile long malformed;
+
+	/** Frames completed. */
+	private volatile long frames;
+
+	/** Key frames started. */
+	private volatile long keyFrames;
+
+	/** Packets expected from the sequence numbers seen. */
+	private volatile long expected;
+
+	/** Inter-arrival jitter, in RTP clock units. */
+	private volatile double jitter;
+
+	/** Packets per second over the last window. */
+	private volatile float packetRate;
+
+	/** Bits per second over the last window. */
+	private volatile float bitRate;
+
+	/** Frames per second over the last window. */
+	private volatile float frameRate;
+
+	/** Arrival of the latest packet. */
+	private volatile long lastArrivalNanos;
+
+	// The following are only touched by the feeding thread.
+
+	/** True once the first packet is in. */
+	private boolean started;
+
+	/** First sequence number. */
+	private int baseSequence;
+
+	/** Highest sequence number. */
+	private int maxSequence;
+
+	/** Sequence number wraps, times 65536. */
+	private long cycles;
+
+	/** Transit time of the previous packet, in RTP clock units. */
+	private double lastTransit;
+
+	/** Start of the rate window. */
+	private long windowStartNanos;
+
+	/** Packets at the start of the rate window. */
+	private long windowPackets;
+
+	/** Bytes at the start of the rate window. */
+	private long windowBytes;
+
+	/** Frames at the start of the rate window. */
+	private long windowFrames;
+
+	/**
+	 * Account for a packet.
+	 * @param buffer Buffer holding the packet. Read with absolute gets, so
+	 * its position and limit are left alone.
+	 * @param offset Offset of the RTP header.
+	 * @param length Length of the RTP packet.
+	 * @param arrivalNanos When the packet arrived.
+	 */
+	public void packet(ByteBuffer buffer, int offset, int length, long arrivalNanos) {
+
+		if (length < RTP_HEADER_BYTES || (buffer.get(offset) & 0xC0) != 0x80) {
+			malformed++;
+			return;
+		}
+
+		int first = buffer.get(offset) & 0xFF;
+		int second = buffer.get(offset + 1) & 0xFF;
+		int sequence = buffer.getShort(offset + 2) & 0xFFFF;
+		long timestamp = buffer.getInt(offset + 4) & 0xFFFFFFFFL;
+
+		int headerBytes = RTP_HEADER_BYTES + 4 * (first & 0x0F);
+		if ((first & 0x10) != 0 && length >= headerBytes + 4) {
+			headerBytes += 4 + 4 * (buffer.getShort(offset + headerBytes + 2) & 0xFFFF);
+		}
+		int payloadBytes = length - headerBytes;
+		if ((first & 0x20) != 0 && payloadBytes > 0) {
+			payloadBytes -= buffer.get(offset + length - 1) & 0xFF;
+		}
+		if (payloadBytes < 0) {
+			malformed++;
+			return;
+		}
+
+		if (!started) {
+			started = true;
+			baseSequence = sequence;
+			maxSequence = sequence;
+			windowStartNanos = arrivalNanos;
+			lastTransit = arrivalNanos / 1e9 * CLOCK_RATE - timestamp;
+		} else {
+			int delta = (sequence - maxSequence) & 0xFFFF;
+			if (delta == 0) {
+				duplicates++;
+				return;
+			} else if (delta < 0x8000) {
+				if (sequence < maxSequence) {
+					cycles += 0x10000;
+				}
+				maxSequence = sequence;
+			} else {
+				reordered++;
+			}
+		}
+
+		packets++;
+		bytes += payloadBytes;
+		expected = cycles + maxSequence - baseSequence + 1;
+		lastArrivalNanos = arrivalNanos;
+
+		// RFC 3550 section 6.4.1.
+		double transit = arrivalNanos / 1e9 * CLOCK_RATE - timestamp;
+		double difference = Math.abs(transit - lastTransit);
+		if (difference < CLOCK_RATE * 60) {
+			jitter += (difference - jitter) / 16.0;
+		}
+		lastTransit = transit;
+
+		if ((second & 0x80) != 0) {
+			frames++;
+		}
+
+		if (payloadBytes > 0 && startsKeyFrame(buffer, offset + headerBytes, payloadBytes)) {
+			keyFrames++;
+		}
+
+		if (arrivalNanos - windowStartNanos >= RATE_WINDOW_NANOS) {
+			double seconds = (arrivalNanos - windowStartNanos) / 1e9;
+			packetRate = (float) ((packets - windowPackets) / seconds);
+			bitRate = (float) ((bytes - windowBytes) * 8 / seconds);
+			frameRate = (float) ((frames - windowFrames) / seconds);
+			windowStartNanos = arrivalNanos;
+			windowPackets = packets;
+			windowBytes = bytes;
+			windowFrames = frames;
+		}
+	}
+
+	/**
+	 * Packets received.
+	 * @return Packet count.
+	 */
+	public long getPackets() {
+		return packets;
+	}
+
+	/**
+	 * Packets missing from the sequence numbers seen. Packets that arrive
+	 * late are not counted as lost.
+	 * @return Lost packet count.
+	 */
+	public long getLostPackets() {
+		return Math.max(0, expected - packets);
+	}
+
+	/**
+	 * Share of expected packets that are missing.
+	 * @return Loss between 0 and 1.
+	 */
+	public float getLossRatio() {
+		long expectedPackets = expected;
+		return expectedPackets == 0 ? 0.0f : (float) getLostPackets() / expectedPackets;
+	}
+
+	/**
+	 * Packets that arrived after a later one.
+	 * @return Reordered packet count.
+	 */
+	public long getReorderedPackets() {
+		return reordered;
+	}
+
+	/**
+	 * Packets repeating the newest sequence number.
+	 * @return Duplicate packet count.
+	 */
+	public long getDuplicatePackets() {
+		return duplicates;
+	}
+
+	/**
+	 * Datagrams that weren't RTP.
+	 * @return Malformed datagram count.
+	 */
+	public long getMalformedPackets() {
+		return malformed;
+	}
+
+	/**
+	 * Frames completed.
+	 * @return Frame count.
+	 */
+	public long getFrames() {
+		return frames;
+	}
+
+	/**
+	 * Key frames started.
+	 * @return Key frame count.
+	 */
+	public long getKeyFrames() {
+		return keyFrames;
+	}
+
+	/**
+	 * Inter-arrival jitter.
+	 * @return Jitter in milliseconds.
+	 */
+	public float getJitterMillis() {
+		return (float) (jitter / CLOCK_RATE * 1000.0);
+	}
+
+	/**
+	 * Packets per second over the last second.
+	 * @return Packet rate, 0 if the stream is quiet.
+	 */
+	public float getPacketRate() {
+		return isStale() ? 0.0f : packetRate;
+	}
+
+	/**
+	 * Payload bits per second over the last second.
+	 * @return Bit rate, 0 if the stream is quiet.
+	 */
+	public float getBitRate() {
+		return isStale() ? 0.0f : bitRate;
+	}
+
+	/**
+	 * Frames per second over the last second.
+	 * @return Frame rate, 0 if the stream is quiet.
+	 */
+	public float getFrameRate() {
+		return isStale() ? 0.0f : frameRate;
+	}
+
+	/**
+	 * Describe the stream, for logging and display.
+	 * @return Stream summary.
+	 */
+	public String describe() {
+		return String.format(
+				"%.1f fps, %.0f pkt/s, %.2f Mbit/s, %.2f%% lost (%d), %d reordered, "
+				+ "%d duplicate, jitter %.1f ms, %d frames, %d key frames, %d malformed",
+				getFrameRate(), getPacketRate(), getBitRate() / 1e6,
+				getLossRatio() * 100.0f, getLostPackets(), reordered, duplicates,
+				getJitterMillis(), frames, keyFrames, malformed);
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * True if the stream has gone quiet.
+	 * @return True if no packet arrived recently.
+	 */
+	private boolean isStale() {
+		return lastArrivalNanos == 0 || System.nanoTime() - lastArrivalNanos > STALE_NANOS;
+	}
+
+	/**
+	 * True if an H.264 RTP payload starts an IDR slice.
+	 * @param buffer Buffer holding the payload.
+	 * @param offset Offset of the payload.
+	 * @param length Length of the payload.
+	 * @return True if a key frame starts here.
+	 */
+	private static boolean startsKeyFrame(ByteBuffer buffer, int offset, int length) {
+
+		int type = buffer.get(offset) & 0x1F;
+
+		if (type == NAL_IDR) {
+			return true;
+		}
+
+		if (type == NAL_FU_A && length > 1) {
+			int header = buffer.get(offset + 1) & 0xFF;
+			return (header & 0x80) != 0 && (header & 0x1F) == NAL_IDR;
+		}
+
+		if (type == NAL_STAP_A) {
+			int position = offset + 1;
+			int end = offset + length;
+			while (position + 2 < end) {
+				int size = buffer.getShort(position) & 0xFFFF;
+				if ((buffer.get(position + 2) & 0x1F) == NAL_IDR) {
+					return true;
+				}
+				position += 2 + size;
+			}
+		}
+
+		return false;
+	}
+}
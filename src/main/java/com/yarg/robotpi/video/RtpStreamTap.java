@@ -0,0 +1,215 @@
+package com.yarg.robotpi.video;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.AsynchronousCloseException;
+import java.nio.channels.DatagramChannel;
+
+/**
+ * Relays the video stream from the robot to the local GStreamer receiver
+ * and measures it on the way through. Each datagram is received into one
+ * direct buffer, its headers are read in place and the same buffer is sent
+ * on, so the relay copies nothing and adds next to no delay.
+ *
+ * The robot sends RTP wrapped by gdppay; each datagram carries a GDP header
+ * followed by one RTP packet. GDP caps and event packets are relayed but not
+ * measured. Plain RTP, without GDP, is measured too.
+ */
+public class RtpStreamTap extends Thread {
+
+	/** Length of a GDP 1.0 header. */
+	private static final int GDP_HEADER_BYTES = 62;
+
+	/** GDP payload type of a buffer. */
+	private static final int GDP_PAYLOAD_BUFFER = 1;
+
+	/** Largest datagram. */
+	private static final int MAX_DATAGRAM_BYTES = 65507;
+
+	/** Socket receive buffer asked for, to ride out key frame bursts. */
+	private static final int RECEIVE_BUFFER_BYTES = 2 * 1024 * 1024;
+
+	/** Port the robot sends to. */
+	private final int listenPort;
+
+	/** Where the receiver listens. */
+	private final InetSocketAddress forwardAddress;
+
+	/** Measurements of the stream. */
+	private final RtpStreamStatistics statistics = new RtpStreamStatistics();
+
+	/** Datagram buffer. */
+	private final ByteBuffer buffer = ByteBuffer.allocateDirect(MAX_DATAGRAM_BYTES);
+
+	/** Channel receiving from the robot and sending to the receiver. */
+	private DatagramChannel channel;
+
+	/** GDP caps and event packets relayed. */
+	private volatile long controlPackets;
+
+	/** Datagrams that could not be relayed. */
+	private volatile long forwardErrors;
+
+	/** Flag execution state of thread. */
+	private volatile boolean running;
+
+	/**
+	 * Create a tap.
+	 * @param listenPort Port the robot sends video to.
+	 * @param forwardPort Local port the receiver listens on.
+	 */
+	public RtpStreamTap(int listenPort, int forwardPort) {
+		super("RtpStreamTap");
+		this.listenPort = listenPort;
+		forwardAddress = new InetSocketAddress(InetAddress.getLoopbackAddress(), forwardPort);
+		setDaemon(true);
+	}
+
+	/**
+	 * Bind the listening port and start relaying.
+	 * @throws IOException If the port can't be bound.
+	 */
+	public void startTap() throws IOException {
+
+		channel = DatagramChannel.open();
+		channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+		channel.setOption(StandardSocketOptions.SO_RCVBUF, RECEIVE_BUFFER_BYTES);
+		channel.bind(new InetSocketAddress(listenPort));
+
+		System.out.println("Video tap relaying port "+listenPort+" to "+forwardAddress);
+
+		running = true;
+		this.start();
+	}
+
+	/**
+	 * Stop relaying and release the port.
+	 */
+	public void stopTap() {
+
+		running = false;
+
+		try {
+			if (channel != null) {
+				channel.close();
+			}
+			this.join(1000);
+		} catch (IOException e) {
+			e.printStackTrace();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		System.out.println("Video stream: "+statistics.describe());
+	}
+
+	/**
+	 * Measurements of the video stream.
+	 * @return Stream statistics.
+	 */
+	public RtpStreamStatistics getStatistics() {
+		return statistics;
+	}
+
+	/**
+	 * GDP caps and event packets relayed.
+	 * @return Control packet count.
+	 */
+	public long getControlPackets() {
+		return controlPackets;
+	}
+
+	/**
+	 * Datagrams that could not be relayed.
+	 * @return Forward error count.
+	 */
+	public long getForwardErrors() {
+		return forwardErrors;
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		while (running) {
+
+			buffer.clear();
+
+			try {
+				channel.receive(buffer);
+			} catch (AsynchronousCloseException e) {
+				break;
+			} catch (IOException e) {
+				e.printStackTrace();
+				continue;
+			}
+
+			long arrivalNanos = System.nanoTime();
+			buffer.flip();
+
+			measure(buffer.limit(), arrivalNanos);
+
+			try {
+				channel.send(buffer, forwardAddress);
+			} catch (AsynchronousCloseException e) {
+				break;
+			} catch (IOException e) {
+				// Receiver not up yet or restarting.
+				forwardErrors++;
+			}
+		}
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Find the RTP packet in a datagram and measure it.
+	 * @param length Datagram length.
+	 * @param arrivalNanos When the datagram arrived.
+	 */
+	private void measure(int length, long arrivalNanos) {
+
+		if (length >= GDP_HEADER_BYTES && buffer.get(0) == 1 && buffer.get(1) == 0) {
+
+			int payloadType = buffer.getShort(4) & 0xFFFF;
+			long payloadBytes = buffer.getInt(6) & 0xFFFFFFFFL;
+
+			if (GDP_HEADER_BYTES + payloadBytes == length) {
+				if (payloadType == GDP_PAYLOAD_BUFFER) {
+					statistics.packet(buffer, GDP_HEADER_BYTES, (int) payloadBytes, arrivalNanos);
+				} else {
+					controlPackets++;
+				}
+				return;
+			}
+		}
+
+		statistics.packet(buffer, 0, length, arrivalNanos);
+	}
+}
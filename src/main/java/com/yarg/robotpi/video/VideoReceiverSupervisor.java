@@ -0,0 +1,508 @@
+package com.yarg.robotpi.video;
+
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one
+ * or more contributor license agreements.  See the NOTICE file
+ * distributed with this work for additional information
+ * regarding copyright ownership.  The ASF licenses this file
+ * to you under the Apache License, Version 2.0 (the
+ * "License"); you may not use this file except in compliance
+ * with the License.  You may obtain a copy of the License at
+ *
+ *   http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing,
+ * software distributed under the License is distributed on an
+ * "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY
+ * KIND, either express or implied.  See the License for the
+ * specific language governing permissions and limitations
+ * under the License.
+ */
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the GStreamer video receiver and keeps it running. Both output
+ * streams of the process are read on their own threads into a bounded
+ * {@link OutputLog}, so the verbose output of gst-launch can never fill the
+ * pipe and freeze the pipeline. The process is restarted, with growing
+ * backoff, when it exits or when frames stop being rendered.
+ *
+ * The default pipeline ends in fpsdisplaysink, whose measurements gst-launch
+ * prints in verbose mode; they are parsed into frame rate statistics and
+ * are what stall detection watches.
+ */
+public class VideoReceiverSupervisor extends Thread {
+
+	/** What the receiver is doing. */
+	public enum State {
+
+		/** Not running. */
+		STOPPED,
+
+		/** Running, no frames rendered yet. */
+		WAITING,
+
+		/** Rendering frames. */
+		PLAYING,
+
+		/** Waiting to restart after an exit or stall. */
+		RESTARTING
+	}
+
+	/** Default GStreamer launcher. */
+	public static final String DEFAULT_BINARY = "/usr/local/bin/gst-launch-1.0";
+
+	/** Port the robot sends video to. */
+	public static final int VIDEO_PORT = 5000;
+
+	/** Default receive pipeline. */
+	public static final String DEFAULT_PIPELINE = defaultPipeline(VIDEO_PORT);
+
+	/** Default time without a rendered frame before restarting. */
+	private static final long DEFAULT_STALL_MILLIS = 5000;
+
+	/** First restart delay. */
+	private static final long MIN_BACKOFF_MILLIS = 1000;
+
+	/** Longest restart delay. */
+	private static final long MAX_BACKOFF_MILLIS = 30000;
+
+	/** A run this long resets the backoff. */
+	private static final long STABLE_MILLIS = 30000;
+
+	/** How often the process is checked. */
+	private static final long CHECK_MILLIS = 250;
+
+	/** A frame rate older than this is reported as 0. */
+	private static final long FPS_STALE_MILLIS = 1500;
+
+	/** Lines of output kept. */
+	private static final int LOG_LINES = 500;
+
+	/** Frame rate measurement printed by fpsdisplaysink. */
+	private static final Pattern FPS_MESSAGE = Pattern.compile(
+			"rendered: (\\d+), dropped: (\\d+), current: ([0-9.]+)");
+
+	/** Output of the process, both streams. */
+	private final OutputLog outputLog = new OutputLog(LOG_LINES);
+
+	/** Launcher to run. */
+	private volatile String binary = DEFAULT_BINARY;
+
+	/** Pipeline to launch. */
+	private volatile String pipeline = DEFAULT_PIPELINE;
+
+	/** Time without a rendered frame before restarting. */
+	private volatile long stallMillis = DEFAULT_STALL_MILLIS;
+
+	/** What the receiver is doing. */
+	private volatile State state = State.STOPPED;
+
+	/** Latest frame rate. */
+	private volatile float framesPerSecond;
+
+	/** Frames rendered by the current process. */
+	private volatile long renderedFrames;
+
+	/** Frames dropped by the current process. */
+	private volatile long droppedFrames;
+
+	/** When the rendered count last went up. */
+	private volatile long lastFrameNanos;
+
+	/** When the current process started. */
+	private volatile long startedNanos;
+
+	/** Times the process was restarted. */
+	private volatile int restarts;
+
+	/** Process being supervised. */
+	private Process process;
+
+	/** Threads reading the process output. */
+	private final List<Thread> drainers = new ArrayList<Thread>();
+
+	/** Flag execution state of thread. */
+	private volatile boolean running;
+
+	/**
+	 * Create a supervisor. Call {@link #startSupervisor()} to launch the
+	 * receiver.
+	 */
+	public VideoReceiverSupervisor() {
+		super("VideoReceiverSupervisor");
+		setDaemon(true);
+	}
+
+	/**
+	 * Default receive pipeline listening on a given port.
+	 * @param port UDP port to receive on.
+	 * @return Pipeline description.
+	 */
+	public static String defaultPipeline(int port) {
+		return "udpsrc port="+port+" ! gdpdepay ! rtph264depay ! avdec_h264 ! videoconvert "
+				+ "! videoflip method=horizontal-flip "
+				+ "! fpsdisplaysink video-sink=autovideosink text-overlay=false sync=false";
+	}
+
+	/**
+	 * Receive pipeline from a configured one.
+	 * @param template Pipeline in gst-launch syntax with {port} standing for
+	 * the port to receive on, or empty for the default pipeline.
+	 * @param port UDP port to receive on.
+	 * @return Pipeline description.
+	 */
+	public static String pipeline(String template, int port) {
+
+		if (template == null || template.isEmpty()) {
+			return defaultPipeline(port);
+		}
+
+		return template.replace("{port}", Integer.toString(port));
+	}
+
+	/**
+	 * Set the GStreamer launcher. Applies from the next start.
+	 * @param binary Path of gst-launch.
+	 */
+	public void setBinary(String binary) {
+		this.binary = binary;
+	}
+
+	/**
+	 * Set the receive pipeline, in gst-launch syntax. Applies from the next
+	 * start. Stall detection only works if the pipeline reports frame rates
+	 * through fpsdisplaysink; without it the receiver is only restarted when
+	 * it exits.
+	 * @param pipeline Pipeline description.
+	 */
+	public void setPipeline(String pipeline) {
+		this.pipeline = pipeline;
+	}
+
+	/**
+	 * Set how long frames may stop before the receiver is restarted.
+	 * @param milliseconds Stall timeout.
+	 */
+	public void setStallMillis(long milliseconds) {
+		stallMillis = milliseconds;
+	}
+
+	/**
+	 * Launch the receiver and start watching it.
+	 */
+	public void startSupervisor() {
+		running = true;
+		this.start();
+	}
+
+	/**
+	 * Stop the receiver and wait for it to exit.
+	 */
+	public void stopSupervisor() {
+
+		running = false;
+		this.interrupt();
+
+		try {
+			this.join(2000);
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+	}
+
+	/**
+	 * What the receiver is doing.
+	 * @return Receiver state.
+	 */
+	public State getReceiverState() {
+		return state;
+	}
+
+	/**
+	 * Latest frame rate reported by the pipeline.
+	 * @return Frames per second, 0 if no frames are being rendered.
+	 */
+	public float getFramesPerSecond() {
+
+		long sinceFrameMillis = 
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFrameNanos);
+
+		if (state != State.PLAYING || sinceFrameMillis > FPS_STALE_MILLIS) {
+			return 0.0f;
+		}
+
+		return framesPerSecond;
+	}
+
+	/**
+	 * Frames rendered by the current process.
+	 * @return Rendered frame count.
+	 */
+	public long getRenderedFrames() {
+		return renderedFrames;
+	}
+
+	/**
+	 * Frames dropped by the current process.
+	 * @return Dropped frame count.
+	 */
+	public long getDroppedFrames() {
+		return droppedFrames;
+	}
+
+	/**
+	 * How long the current process has been running.
+	 * @return Uptime in milliseconds, 0 if not running.
+	 */
+	public long getUptimeMillis() {
+		State current = state;
+		if (current == State.STOPPED || current == State.RESTARTING) {
+			return 0;
+		}
+		return TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startedNanos);
+	}
+
+	/**
+	 * Number of times the receiver was restarted.
+	 * @return Restart count.
+	 */
+	public int getRestarts() {
+		return restarts;
+	}
+
+	/**
+	 * Latest output of the receiver.
+	 * @return Output log.
+	 */
+	public OutputLog getOutputLog() {
+		return outputLog;
+	}
+
+	/**
+	 * Describe the receiver, for logging and display.
+	 * @return Receiver summary.
+	 */
+	public String describe() {
+		return String.format("%s, %.1f fps, %d rendered, %d dropped, up %d s, %d restarts",
+				state, getFramesPerSecond(), renderedFrames, droppedFrames,
+				getUptimeMillis() / 1000, restarts);
+	}
+
+	/* (non-Javadoc)
+	 * @see java.lang.Thread#run()
+	 */
+	@Override
+	public void run() {
+
+		long backoffMillis = MIN_BACKOFF_MILLIS;
+
+		while (running) {
+
+			String reason = supervise();
+
+			if (!running) {
+				break;
+			}
+
+			if (getUptimeMillis() >= STABLE_MILLIS) {
+				backoffMillis = MIN_BACKOFF_MILLIS;
+			}
+
+			state = State.RESTARTING;
+			System.out.println("Video receiver "+reason+", restarting in "
+					+backoffMillis+" ms.");
+
+			try {
+				Thread.sleep(backoffMillis);
+			} catch (InterruptedException e) {
+				// Stopping.
+			}
+
+			backoffMillis = Math.min(MAX_BACKOFF_MILLIS, backoffMillis * 2);
+			restarts++;
+		}
+
+		state = State.STOPPED;
+	}
+
+	// -------------------------------------------------------------------------
+	// Private methods
+	// -------------------------------------------------------------------------
+
+	/**
+	 * Launch the receiver and watch it until it exits, stalls or the
+	 * supervisor is stopped. The process is gone when this returns.
+	 * @return Why the receiver ended.
+	 */
+	private String supervise() {
+
+		List<String> command = new ArrayList<String>();
+		command.add(binary);
+		command.add("-v");
+		command.addAll(Arrays.asList(pipeline.trim().split("\\s+")));
+
+		renderedFrames = 0;
+		droppedFrames = 0;
+		framesPerSecond = 0.0f;
+		startedNanos = System.nanoTime();
+		lastFrameNanos = startedNanos;
+
+		try {
+			process = new ProcessBuilder(command).start();
+		} catch (IOException e) {
+			outputLog.add("Unable to start "+binary+": "+e.getMessage());
+			System.out.println("Unable to start video receiver: "+e.getMessage());
+			return "failed to start";
+		}
+
+		state = State.WAITING;
+		System.out.println("Video receiver started: "+command);
+
+		drain(process.getInputStream(), "VideoReceiverStdout");
+		drain(process.getErrorStream(), "VideoReceiverStderr");
+
+		String reason = "stopped";
+
+		while (running) {
+
+			Integer exitValue = exitValue(process);
+
+			if (exitValue != null) {
+				reason = "exited with "+exitValue;
+				break;
+			}
+
+			long sinceFrameMillis = 
+					TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - lastFrameNanos);
+
+			// Only a stream that was playing can stall. Until the robot
+			// starts sending there is nothing a restart would fix.
+			if (state == State.PLAYING && sinceFrameMillis > stallMillis) {
+				reason = "stalled for "+sinceFrameMillis+" ms";
+				break;
+			}
+
+			try {
+				Thread.sleep(CHECK_MILLIS);
+			} catch (InterruptedException e) {
+				// Checked by the loop.
+			}
+		}
+
+		stopProcess();
+		return reason;
+	}
+
+	/**
+	 * Stop the process and wait for its output to be read.
+	 */
+	private void stopProcess() {
+
+		process.destroy();
+
+		try {
+			process.waitFor();
+			for (Thread drainer : drainers) {
+				drainer.join(1000);
+			}
+		} catch (InterruptedException e) {
+			// Leave the rest to the drainers, they end with the streams.
+		}
+
+		drainers.clear();
+		process = null;
+	}
+
+	/**
+	 * Start a thread reading a process output stream into the log.
+	 * @param stream Stream to read.
+	 * @param name Thread name.
+	 */
+	private void drain(final InputStream stream, String name) {
+
+		Thread drainer = new Thread(name) {
+
+			@Override
+			public void run() {
+
+				BufferedReader reader = new BufferedReader(new InputStreamReader(stream));
+
+				try {
+					String line;
+					while ((line = reader.readLine()) != null) {
+						handleLine(line);
+					}
+				} catch (IOException e) {
+					// The stream closes when the process is destroyed.
+				} finally {
+					try {
+						reader.close();
+					} catch (IOException e) {
+						e.printStackTrace();
+					}
+				}
+			}
+		};
+
+		drainer.setDaemon(true);
+		drainers.add(drainer);
+		drainer.start();
+	}
+
+	/**
+	 * Log a line of output and pick up any frame rate report in it.
+	 * @param line Line of output.
+	 */
+	private void handleLine(String line) {
+
+		outputLog.add(line);
+
+		if (line.startsWith("ERROR") || line.startsWith("WARNING")) {
+			System.out.println("Video receiver: "+line);
+		}
+
+		Matcher matcher = FPS_MESSAGE.matcher(line);
+
+		if (!matcher.find()) {
+			return;
+		}
+
+		long rendered = Long.parseLong(matcher.group(1));
+
+		droppedFrames = Long.parseLong(matcher.group(2));
+		framesPerSecond = Float.parseFloat(matcher.group(3));
+
+		if (rendered > renderedFrames) {
+			renderedFrames = rendered;
+			lastFrameNanos = System.nanoTime();
+			if (state == State.WAITING) {
+				state = State.PLAYING;
+				System.out.println("Video receiver playing.");
+			}
+		}
+	}
+
+	/**
+	 * Exit value of a process, without waiting.
+	 * @param process Process to check.
+	 * @return Exit value, or null while it is running.
+	 */
+	private static Integer exitValue(Process process) {
+		try {
+			return process.exitValue();
+		} catch (IllegalThreadStateException e) {
+			return null;
+		}
+	}
+}